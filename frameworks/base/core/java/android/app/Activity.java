@@ -162,24 +162,30 @@ import android.widget.LinearLayout;
 import android.hardware.display.DisplayManager;
 import android.hardware.input.InputManager;
 import android.applens.AppLensManager;
+import android.applens.LensHitIndex;
+import android.applens.LensMacroRunner;
+import android.applens.LensProjectionView;
+import android.applens.LensReadinessWatcher;
+import android.applens.LensResourceTable;
+import android.applens.LensSelectionOverlay;
+import android.applens.LensSession;
+import android.applens.LensSpec;
+import android.applens.LensStageStats;
+import android.applens.LensViewFactory;
 import android.applens.UIDisplay;
 import android.view.Gravity;
-import android.widget.EditText;
 import android.os.SystemClock;
 import android.graphics.PixelFormat;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.LinkedList;
-import java.lang.reflect.Constructor;
 import java.lang.Math;
 import java.lang.reflect.Field;
 
 import java.util.Stack;
+import android.util.IntArray;
 import android.util.TypedValue;
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserFactory;
-import java.io.FileInputStream;
+import android.view.ViewTreeObserver;
 /** applens: end */
 
 /**
@@ -787,10 +793,12 @@ public class Activity extends ContextThemeWrapper
     private boolean lensDone = false;
     private int mNumDisplay = 0;
 
-    /** @hide */
-    public static boolean mUISelectMode = false;
+    // Mirrored into View.LENS_WINDOW_SELECTING of the decor window for the touch path.
+    private boolean mUISelectMode = false;
 
-    private View mOverlayView = null;
+    // The single overlay window of UI selection mode and the index its taps are tested against.
+    private LensSelectionOverlay mSelectionOverlay;
+    private LensHitIndex mHitIndex;
 
     /** applens: end */
     static final String FRAGMENTS_TAG = "android:fragments";
@@ -1894,14 +1902,14 @@ public class Activity extends ContextThemeWrapper
         if (mDispId>0 && !lensDone) {
 //            Log.d("LENS", "onPostResume!! = "+mComponent.getClassName());
 //
-            Handler handler = new Handler(Looper.getMainLooper());
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    parseTouch(true, mWindow.getDecorView());
-                    fetchSubtree(true, mWindow.getDecorView());
-                }
-            }, 1000);
+            // Compile and map the spec off the main thread while the layout settles. Missing
+            // target views are waited for by LensReadinessWatcher, no fixed delay.
+            final View decor = mWindow.getDecorView();
+            LensSpec.getAsync(this, decor::post, spec -> {
+                mLensSpec = spec;
+                parseTouch(true, decor);
+                fetchSubtree(true, decor);
+            });
 
             lensDone = true;
         }
@@ -1910,10 +1918,11 @@ public class Activity extends ContextThemeWrapper
     }
 
     /** applens: start */
-    private AppLensManager mAppLensManager;
+    private LensSession mLensSession;
     private DisplayManager mDisplayManager;
-    private boolean watchUpdate = false;
-    private boolean macroUpdate = false;
+    private LensReadinessWatcher mLayoutWatcher;
+    private LensMacroRunner mMacroRunner;
+    private final LensStageStats mLensStats = new LensStageStats();
 
     /** @hide */
     public boolean triggerUISelection(MotionEvent ev) {
@@ -1922,6 +1931,7 @@ public class Activity extends ContextThemeWrapper
         }
         else if (ev.getAction() == MotionEvent.ACTION_UP && mTouchPointNums == 3) {
             mUISelectMode = !mUISelectMode;
+            mWindow.getDecorView().setLensWindowFlag(View.LENS_WINDOW_SELECTING, mUISelectMode);
             if (mUISelectMode) {
                 WindowManager.LayoutParams params = new WindowManager.LayoutParams(
                         mWindow.getDecorView().getWidth(),
@@ -1934,23 +1944,45 @@ public class Activity extends ContextThemeWrapper
                 params.gravity = Gravity.TOP | Gravity.LEFT;
                 params.x = 0;
                 params.y = 0;
-                mOverlayView = new View(this);
-                mOverlayView.setBackgroundColor(0x4d000000);
-                mWindowManager.addView(mOverlayView,params);
+                mSelectionOverlay = new LensSelectionOverlay(this, mWindow.getDecorView());
+                mWindowManager.addView(mSelectionOverlay, params);
+                mHitIndex = new LensHitIndex(mWindow.getDecorView());
+                mHitIndex.start();
             } else {
-                mWindowManager.removeView(mOverlayView);
-                mOverlayView = null;
-                finishAndRemoveTask();
-                System.exit(0);
+                endUISelection();
+                leaveLens();
+                moveTaskToBack(true);
             }
             mTouchPointNums = 0;
             return true;
         } else if (mTouchPointNums < ev.getPointerCount()) {
             mTouchPointNums = ev.getPointerCount();
         }
+        if (mUISelectMode) {
+            // The app sees no touches while selecting; a single tap selects the leaf under it.
+            if (ev.getAction() == MotionEvent.ACTION_UP && mTouchPointNums == 1) {
+                View leaf = mHitIndex.hitTest((int) ev.getX(), (int) ev.getY());
+                if (leaf != null) {
+                    mSelectionOverlay.toggle(leaf);
+                }
+            }
+            return true;
+        }
         return false;
     }
 
+    private void endUISelection() {
+        if (mSelectionOverlay != null) {
+            mSelectionOverlay.clear();
+            mWindowManager.removeView(mSelectionOverlay);
+            mSelectionOverlay = null;
+        }
+        if (mHitIndex != null) {
+            mHitIndex.stop();
+            mHitIndex = null;
+        }
+    }
+
     /** @hide */
     public boolean isOffScreen() {
         if(mDispId > 0)
@@ -1958,61 +1990,55 @@ public class Activity extends ContextThemeWrapper
         else
            return false; 
     }
-    /** @hide */
-    public boolean getWatchUpdate() {
-        return watchUpdate;
-    }
-
-    /** @hide */
-    public boolean getMacroUpdate() {
-        return macroUpdate;
-    }
-
     /** @hide */
     public void fetchSubtree(boolean firstTime, View decorView) {
-        mAppLensManager = AppLensManager.getInstance(this);
         Log.d("LENS", "fetch Subtree = "+firstTime+" / " +mComponent.getClassName());
+        if (firstTime || mLensSession == null) {
+            if (mLensSession != null) {
+                mLensSession.release();
+            }
+            mLensSession = new LensSession(mComponent.getClassName());
+        }
         if (extractSubtree(firstTime, decorView)) {
-            
-            mAppLensManager = AppLensManager.getInstance();
-            mAppLensManager.setPackageName(getPackageName());
-            mAppLensManager.setPrimaryTree(mWindow.getDecorView().findViewById(android.R.id.content));
+            mLensSession.setPrimaryTree(mWindow.getDecorView().findViewById(android.R.id.content));
             migrateUI();
         }
     }
 
-    private XmlPullParser macroParser;
-    private XmlPullParser uiParser;
+    // Spec of this package, handed over by LensSpec.getAsync before the lens starts.
+    private LensSpec mLensSpec;
+    private LensSpec.Block mLayoutBlock;
+    private int mLayoutCursor;
+    // Whether the views of the current <display> are projected rather than reparented.
+    private boolean mProjectDisplay;
     private ArrayList<int[]> displaySizes;
-    boolean isWaiting = false;
 
-    /** @hide */
+    /**
+     * Starts the macro of this activity, if it has one. Returns true if there is nothing to run.
+     * @hide
+     */
     public boolean parseTouch(boolean firstTime, View decorView) {
-        boolean res = false;
+        if (!firstTime) {
+            return mMacroRunner == null || mMacroRunner.isDone();
+        }
         try {
-            if (firstTime) {
-                File touchFile = new File(getExternalFilesDir(null) + "/macro.xml");
-                FileInputStream fis = new FileInputStream(touchFile);
-                XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-                macroParser = factory.newPullParser();
-                macroParser.setInput(fis, null);
-                res = inflateMacro(macroParser, firstTime, decorView);
-            } else {
-                res = inflateMacro(macroParser, firstTime, decorView);
+            LensSpec.Block block = mLensSpec.getMacro(mComponent.getClassName());
+            if (block == null) {
+                return true;
             }
-            if (res) {
-                mWindow.getDecorView().setMacroUpdate(false);
-                macroUpdate = false;
-            } else {
-                return false;
+            if (mMacroRunner != null) {
+                mMacroRunner.cancel();
             }
-
+            mMacroRunner = new LensMacroRunner(decorView,
+                    LensMacroRunner.compile(block, getLensResourceTable(), mLensString),
+                    mLensStats);
+            mMacroRunner.start();
+            return mMacroRunner.isDone();
         } catch (Exception e) {
             e.printStackTrace();
-            Log.d(LENS_TAG, "no macro file");
+            Log.d(LENS_TAG, "macro failed");
+            return false;
         }
-
-        return res;
     }
 
     private boolean extractSubtree(boolean firstTime, View decorView) {
@@ -2030,31 +2056,33 @@ public class Activity extends ContextThemeWrapper
                     displaySizes = new ArrayList<int[]>();
                     res = inflateYoutube(firstTime, decorView); 
                 } else {
-                    File layoutFile = new File(getExternalFilesDir(null) + "/second_layout.xml");
-//                    Log.d("LENS", (getExternalFilesDir(null)).toString());
-                    FileInputStream fis = new FileInputStream(layoutFile);
-                    XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-                    uiParser = factory.newPullParser();
-                    uiParser.setInput(fis, null);
+                    long start = LensStageStats.begin(LensStageStats.STAGE_SPEC_LOAD);
+                    mLayoutBlock = mLensSpec.getLayout(mComponent.getClassName());
+                    mLensStats.end(LensStageStats.STAGE_SPEC_LOAD, start);
+                    mLayoutCursor = 0;
+                    mProjectDisplay = false;
+                    if (mLayoutBlock == null) {
+                        Log.d(LENS_TAG, "no lens spec" +" / " +mComponent.getClassName());
+                        return false;
+                    }
                     displaySizes = new ArrayList<int[]>();
-                    res = inflate(uiParser, firstTime, decorView);
+                    res = inflate(mLayoutBlock, decorView);
                 }
             }else{
                 if (mComponent.getClassName().equals("com.google.android.apps.youtube.app.watchwhile.WatchWhileActivity")) {
                     res = inflateYoutube(firstTime, decorView);
-                } else { 
-                    res = inflate(uiParser, firstTime, decorView);
+                } else if (mLayoutBlock != null) {
+                    res = inflate(mLayoutBlock, decorView);
+                } else {
+                    return false;
                 }
             }
-            if (res) {
-                decorView.setWatchUpdate(false);
-                watchUpdate = false;
-            } else {
+            if (!res) {
                 return false;
             }
         } catch (Exception e) {
             e.printStackTrace();
-            Log.d(LENS_TAG, "no second_layout file" +" / " +mComponent.getClassName());	
+            Log.d(LENS_TAG, "extract subtree failed" +" / " +mComponent.getClassName());	
             return false;    
         }
         return true;
@@ -2072,6 +2100,7 @@ public class Activity extends ContextThemeWrapper
             mBringToFront = true;
 
            activityManager.lensBringToFront(getTaskId(), true);
+           leaveLens();
            mDisplayManager.dismissUIDisplay();
            return true;
         } else {
@@ -2083,152 +2112,10 @@ public class Activity extends ContextThemeWrapper
         }
     }
 
-    private boolean inflateMacro(XmlPullParser parser, boolean firstTime, View decorView) throws Exception {
-        int eventType = parser.getEventType();
-        String activityName = "";
-        boolean startParse = !firstTime;
-        while (eventType != XmlPullParser.END_DOCUMENT) {
-            if (!isWaiting) {
-                eventType = parser.getEventType();
-                switch (eventType) {
-                    case XmlPullParser.START_DOCUMENT:
-                        break;
-                    case XmlPullParser.START_TAG:
-                        if (parser.getName().equals("activity") 
-                                && parser.getAttributeValue(null, "android:name").equals(mComponent.getClassName())) {
-                            activityName = parser.getAttributeValue(null, "android:name");
-                            startParse = true;
-                        }
-                        
-                        if (startParse && parser.getName().equals("event")){
-                            View view = null;
-                            String id = parser.getAttributeValue(null, "android:viewId");
-                            int viewID = getResources().getIdentifier(id, "id", getPackageName());
-                            final View tempView = decorView.findViewById(viewID);
-
-
-
-                            if (tempView == null) {
-                                Log.d(LENS_TAG, id+" not found in "+decorView);
-                                decorView.setMacroUpdate(true);
-                                macroUpdate = true;
-                                return false;
-                            }
-                            String getParent = parser.getAttributeValue(null, "android:getParent");
-
-                            if (getParent != null && getParent.equals("true")) {
-                                view = (View)(tempView.getParent());
-                            } else {
-                                view = tempView;
-                            }
-                            
-                            String type = parser.getAttributeValue(null, "android:eventType");
-                            int delay = (parser.getAttributeValue(null, "android:delay"))!= null ? 
-                                    Integer.parseInt(parser.getAttributeValue(null, "android:delay")) :
-                                        0;
-                            if (type.equals("key")) {
-                                String text = parser.getAttributeValue(null, "android:string");
-                                if (text.equals("LensString")) {
-                                    text = mLensString;
-                                }
-                                ((EditText)view).getText().insert(((EditText)view).getSelectionStart(), text);
-                                Log.d(LENS_TAG, "inject: "+text+" to "+view);
-                            } else if (type.equals("touch")) {
-                                if (delay > 0) {
-                                    Handler handler = new Handler(Looper.getMainLooper());
-                                    handler.postDelayed(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            tempView.performClick();
-                                            Log.d(LENS_TAG, "inject touch to "+tempView);
-                                            isWaiting = false;
-                                        }
-                                    }, (delay*1000));
-                                } else {
-                                    view.performClick();
-                                    Log.d(LENS_TAG, "inject touch to "+view);
-                                }
-                            } else if (type.equals("touchPointer")) {
-                                int x = Integer.parseInt( parser.getAttributeValue(null, "android:x"));
-                                int y = Integer.parseInt(parser.getAttributeValue(null, "android:y"));
-                                String targetId = parser.getAttributeValue(null, "android:targetView");
-                                if (targetId != null) {
-                                    Log.d("hoyoung", "macro targetView need");
-                                    int targetViewId = getResources().getIdentifier(targetId, "id", getPackageName());
-                                    final View targetView = decorView.findViewById(targetViewId);
-
-                                    if (targetView == null || !(targetView.getVisibility()==View.VISIBLE)) {
-                                        Log.d("hoyoung", "macro targetView not found");
-                                        decorView.setMacroUpdate(true);
-                                        macroUpdate = true;
-                                        return false;
-                                    }
-
-                                    Log.d("hoyoung", "macro targetView found");
-
-                                    Handler handler = new Handler(Looper.getMainLooper());
-                                    handler.postDelayed(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            tempView.dispatchTouchEvent(MotionEvent.obtain(
-                                                        SystemClock.uptimeMillis(), SystemClock.uptimeMillis(),
-                                                        MotionEvent.ACTION_DOWN,x, y, 0));
-
-                                            tempView.dispatchTouchEvent(MotionEvent.obtain(
-                                                        SystemClock.uptimeMillis(), SystemClock.uptimeMillis(),
-                                                        MotionEvent.ACTION_UP,x, y, 0));
-                                            Log.d(LENS_TAG, "inject touch to "+tempView+" on "+x+":"+y);
-                                            isWaiting = false;
-                                        }
-                                    }, 500);
-                                } else {
-                                    if (delay > 0) {
-                                        Handler handler = new Handler(Looper.getMainLooper());
-                                        handler.postDelayed(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                tempView.dispatchTouchEvent(MotionEvent.obtain(
-                                                            SystemClock.uptimeMillis(), SystemClock.uptimeMillis(),
-                                                            MotionEvent.ACTION_DOWN,x, y, 0));
-
-                                                tempView.dispatchTouchEvent(MotionEvent.obtain(
-                                                            SystemClock.uptimeMillis(), SystemClock.uptimeMillis(),
-                                                            MotionEvent.ACTION_UP,x, y, 0));
-                                                Log.d(LENS_TAG, "inject touch to "+tempView+" on "+x+":"+y);
-                                                isWaiting = false;
-                                            }
-                                        }, (delay*1000));
-                                    } else {
-                                            tempView.dispatchTouchEvent(MotionEvent.obtain(
-                                                        SystemClock.uptimeMillis(), SystemClock.uptimeMillis(),
-                                                        MotionEvent.ACTION_DOWN,x, y, 0));
-
-                                            tempView.dispatchTouchEvent(MotionEvent.obtain(
-                                                        SystemClock.uptimeMillis(), SystemClock.uptimeMillis(),
-                                                        MotionEvent.ACTION_UP,x, y, 0));
-                                            Log.d(LENS_TAG, "inject touch to "+tempView+" on "+x+":"+y);
-                                    }
-                                }
-
-                            }
-
-                        }
-                        break;
-                    case XmlPullParser.END_TAG:
-                        if (parser.getName().equals("activity")) {
-                            startParse = false;
-                        } 
-                        break;
-                }
-                parser.next();
-            
-            }
-        }
-        return true;
-    }
+    private int mYoutubeParentId;
 
     private boolean inflateYoutube(boolean firstTime, View decorView) throws Exception {
-        ArrayList<ViewGroup> subtrees = mAppLensManager.getSubtrees();
+        ArrayList<ViewGroup> subtrees = mLensSession.getSubtrees();
 
         //add new Subtree for display 1
         ViewGroup subtree;         
@@ -2248,20 +2135,21 @@ public class Activity extends ContextThemeWrapper
         //find seek bar
         // id of parent view
         String parentId = "@id/next_gen_watch_layout";
-        int parentViewId = getResources().getIdentifier(parentId,"id", getPackageName());
-        View parentView = decorView.findViewById(parentViewId);
+        if (mYoutubeParentId == 0) {
+            mYoutubeParentId = getResources().getIdentifier(parentId,"id", getPackageName());
+        }
+        View parentView = decorView.findViewById(mYoutubeParentId);
 
         if (parentView == null) {
-            decorView.setWatchUpdate(true);
-            watchUpdate = true;
+            watchLayoutViews(new int[] {mYoutubeParentId}, decorView);
             Log.d(LENS_TAG, parentId + " not found");
             return false;
         } else {
             int childCount = ((ViewGroup)parentView).getChildCount();
             Log.d(LENS_TAG, "child count = " + childCount);
             if (childCount < 8) {
-                decorView.setWatchUpdate(true);
-                watchUpdate = true;
+                // The children have no IDs to watch for, look again after the next layout.
+                retryOnNextLayout(decorView);
                 return false;
             }
             //target View
@@ -2273,6 +2161,7 @@ public class Activity extends ContextThemeWrapper
 //            Log.d(LENS_TAG,"6th child = "+targetView);
             ViewGroup orgParent = (ViewGroup)targetView.getParent();
             if (orgParent != null) {
+                mLensSession.recordReparent(targetView, orgParent);
                 orgParent.removeView(targetView);
                 targetView.mVirtualParent = orgParent;
             }
@@ -2291,117 +2180,173 @@ public class Activity extends ContextThemeWrapper
         }
     }
 
-    int parsedBlocks = 0;
-    private boolean inflate(XmlPullParser parser, boolean firstTime, View decorView) throws Exception {
-        int eventType = parser.getEventType();
-        String activityName = "";
-        ArrayList<ViewGroup> subtrees = mAppLensManager.getSubtrees();
-        boolean startParse = !firstTime;
-        while (eventType != XmlPullParser.END_DOCUMENT) {
-            if (!isWaiting) {
-                eventType = parser.getEventType();
-                switch (eventType) {
-                    case XmlPullParser.START_DOCUMENT:
-                        break;
-                    case XmlPullParser.END_TAG:
-                        if (parser.getName().equals("new")) {
-                            ViewGroup newSubtree = subtrees.remove(subtrees.size() -1);
-                            ViewGroup oldSubtree = subtrees.get(subtrees.size() -1);
-                            
-                            newSubtree.clearPosition();
-                            oldSubtree.addView(newSubtree);
-                        }
-                        if (parser.getName().equals("activity")) {
-                            startParse = false;
-                        }
+    private boolean inflate(LensSpec.Block block, View decorView) throws Exception {
+        ArrayList<ViewGroup> subtrees = mLensSession.getSubtrees();
+        LensResourceTable ids = getLensResourceTable();
+        // Wait for every <existing> view before reparenting any of them.
+        long start = LensStageStats.begin(LensStageStats.STAGE_VIEW_LOOKUP);
+        int[] missing = findMissingViews(block, mLayoutCursor, ids, decorView);
+        mLensStats.end(LensStageStats.STAGE_VIEW_LOOKUP, start);
+        if (missing != null) {
+            Log.d(LENS_TAG, missing.length + " lens views not attached yet");
+            watchLayoutViews(missing, decorView);
+            return false;
+        }
+        start = LensStageStats.begin(LensStageStats.STAGE_REPARENT);
+        try {
+            return reparentSubtrees(block, decorView, subtrees, ids);
+        } finally {
+            mLensStats.end(LensStageStats.STAGE_REPARENT, start);
+        }
+    }
+
+    private boolean reparentSubtrees(LensSpec.Block block, View decorView,
+            ArrayList<ViewGroup> subtrees, LensResourceTable ids) throws Exception {
+        while (mLayoutCursor < block.size()) {
+            LensSpec.Node node = block.get(mLayoutCursor);
+            switch (node.getType()) {
+                case LensSpec.NODE_END_NEW: {
+                    ViewGroup newSubtree = subtrees.remove(subtrees.size() -1);
+                    ViewGroup oldSubtree = subtrees.get(subtrees.size() -1);
+
+                    newSubtree.clearPosition();
+                    oldSubtree.addView(newSubtree);
+                    break;
+                }
+                case LensSpec.NODE_DISPLAY: {
+                    mNumDisplay++;
+                    FrameLayout subtree = new FrameLayout(this);
+                    subtrees.add((ViewGroup)subtree);
+                    mProjectDisplay = "true".equals(node.getAttributeValue("android:projection"));
+
+                    int width = Integer.parseInt(node.getAttributeValue("android:width"));
+                    int height = Integer.parseInt(node.getAttributeValue("android:height"));
+                    int[] size = new int[]{width, height};
+                    displaySizes.add(size);
+                    break;
+                }
+                case LensSpec.NODE_EXISTING: {
+                    ViewGroup subtree = (ViewGroup)(subtrees.get(subtrees.size() -1));
+                    View view = null;
+                    String id = node.getAttributeValue("android:id");
+                    int viewID = ids.getId(node, "android:id");
+
+                    if (viewID == 0) {
+                        // Nothing to wait for, the app has no such resource.
+                        Log.w(LENS_TAG, id + " is not a resource of " + getPackageName());
                         break;
-                    case XmlPullParser.START_TAG:
-                        if (parser.getName().equals("activity") 
-                                && parser.getAttributeValue(null, "android:name").equals(mComponent.getClassName())) {
-                            activityName = parser.getAttributeValue(null, "android:name");
-                            startParse = true;
-                            parsedBlocks++;
-                        }
+                    }
+                    view = decorView.findViewById(viewID);
+                    String getParent = node.getAttributeValue("android:getParent");
 
+                    if (view == null) {
+                        Log.d(LENS_TAG, id+ " not found");
+                        watchLayoutViews(new int[] {viewID}, decorView);
+                        return false;
+                    }
 
-                        if (startParse) {
-                            if (parser.getName().equals("display")) {
-                                mNumDisplay++;
-                                FrameLayout subtree = new FrameLayout(this);
-                                subtrees.add((ViewGroup)subtree);
-                                
-                                int width = Integer.parseInt(parser.getAttributeValue(null, "android:width"));
-                                int height = Integer.parseInt(parser.getAttributeValue(null, "android:height"));
-                                int[] size = new int[]{width, height};
-                                displaySizes.add(size);
-
-                            } else if (parser.getName().equals("existing")) {
-                                ViewGroup subtree = (ViewGroup)(subtrees.get(subtrees.size() -1));
-                                View view = null;
-                                String id = parser.getAttributeValue(null, "android:id");
-                                int viewID = getResources().getIdentifier(id, "id", getPackageName());
-
-
-                                view = decorView.findViewById(viewID);
-                                String getParent = parser.getAttributeValue(null, "android:getParent");
-
-                                if (view == null) {
-                                    Log.d(LENS_TAG, id+ " not found");
-                                    decorView.setWatchUpdate(true);
-                                    watchUpdate = true;
-                                    return false;
-                                }
-
-                                if (getParent!= null && getParent.equals("true")) {
-                                    view = (View)view.getParent();
-                                }
-                                view.setMigrated(true);
-
-                                setViewAttribute(parser, view);
-
-                                ViewGroup orgParent = (ViewGroup)view.getParent();
-                                if (orgParent != null) {
-                                    orgParent.removeView(view);
-                                    view.mVirtualParent = orgParent;
-                                }
-                                ViewGroup.LayoutParams params = subtree.generateLayoutParams();
-                                ViewGroup.LayoutParams orgParams = view.getLayoutParams();
-                                view.clearPosition();
-                                subtree.addView(view, params);
-
-                            } else if (parser.getName().equals("new")) {
-                                View view = null; 
-                                ViewGroup subtree = (ViewGroup)(subtrees.get(subtrees.size() -1));
-                                String className = parser.getAttributeValue(null, "android:class");
-                                Class clazz = Class.forName("android.widget." + className);
-                                Constructor<? extends View> constructor = clazz.getConstructor(Context.class);
-                                view = (View) constructor.newInstance(this);
-                                view.setLayoutParams(subtree.generateLayoutParams());
-                                setViewAttribute(parser, view);
-                                subtrees.add((ViewGroup)view);
-                            }
-                        }
+                    if (getParent!= null && getParent.equals("true")) {
+                        view = (View)view.getParent();
+                    }
+                    if (mProjectDisplay) {
+                        // The view stays where it is, the display gets a projection of it.
+                        mLensSession.recordProjection(view);
+                        view.setVisibility(View.VISIBLE);
+                        View projection = new LensProjectionView(this, view);
+                        projection.setLayoutParams(subtree.generateLayoutParams());
+                        setViewAttribute(ids, node, projection);
+                        subtree.addView(projection);
                         break;
+                    }
+                    view.setMigrated(true);
+
+                    ViewGroup orgParent = (ViewGroup)view.getParent();
+                    if (orgParent != null) {
+                        mLensSession.recordReparent(view, orgParent);
+                    }
+                    setViewAttribute(ids, node, view);
+
+                    if (orgParent != null) {
+                        orgParent.removeView(view);
+                        view.mVirtualParent = orgParent;
+                    }
+                    ViewGroup.LayoutParams params = subtree.generateLayoutParams();
+                    view.clearPosition();
+                    subtree.addView(view, params);
+                    break;
+                }
+                case LensSpec.NODE_NEW: {
+                    View view = null; 
+                    ViewGroup subtree = (ViewGroup)(subtrees.get(subtrees.size() -1));
+                    String className = node.getAttributeValue("android:class");
+                    view = LensViewFactory.create(this, className);
+                    view.setLayoutParams(subtree.generateLayoutParams());
+                    setViewAttribute(ids, node, view);
+                    subtrees.add((ViewGroup)view);
+                    break;
                 }
-                parser.next();
             }
+            mLayoutCursor++;
         }
-        if (parsedBlocks >0)
-            return true;
-        else
-            return false;
+        return true;
+    }
+
+    private int[] findMissingViews(LensSpec.Block block, int from, LensResourceTable ids,
+            View decorView) {
+        IntArray missing = null;
+        for (int i = from; i < block.size(); i++) {
+            LensSpec.Node node = block.get(i);
+            if (node.getType() != LensSpec.NODE_EXISTING) {
+                continue;
+            }
+            int viewID = ids.getId(node, "android:id");
+            if (viewID != 0 && decorView.findViewById(viewID) == null) {
+                if (missing == null) {
+                    missing = new IntArray();
+                }
+                missing.add(viewID);
+            }
+        }
+        return missing == null ? null : missing.toArray();
     }
 
-    private void setViewAttribute(XmlPullParser parser, View view) {
-        int count = parser.getAttributeCount();
+    private void watchLayoutViews(int[] ids, final View decorView) {
+        if (mLayoutWatcher != null) {
+            mLayoutWatcher.cancel();
+        }
+        mLayoutWatcher = new LensReadinessWatcher(decorView, ids, new Runnable() {
+            @Override
+            public void run() {
+                mLayoutWatcher = null;
+                fetchSubtree(false, decorView);
+            }
+        });
+        mLayoutWatcher.start();
+    }
+
+    private void retryOnNextLayout(final View decorView) {
+        final ViewTreeObserver observer = decorView.getViewTreeObserver();
+        observer.addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
+            @Override
+            public void onGlobalLayout() {
+                decorView.getViewTreeObserver().removeOnGlobalLayoutListener(this);
+                fetchSubtree(false, decorView);
+            }
+        });
+    }
+
+    private LensResourceTable getLensResourceTable() {
+        return AppLensManager.getInstance(this).getResourceTable(this, mLensSpec);
+    }
+
+    private void setViewAttribute(LensResourceTable ids, LensSpec.Node node, View view) {
+        int count = node.getAttributeCount();
         for (int i = 0; i < count; i++) {
-            String attrName = parser.getAttributeName(i);
-            String attrVal = parser.getAttributeValue(i);
-            String attrType = null;
+            String attrName = node.getAttributeName(i);
+            String attrVal = node.getAttributeValue(i);
             int resID = -1;
             if (attrVal.charAt(0) == '@') {
-                attrType = attrVal.substring(1, attrVal.indexOf("/"));
-                resID = getResources().getIdentifier(attrVal, attrType, getPackageName());
+                resID = ids.getId(node.getAttributeValueIndex(i));
             }
 
             if (attrName.equals("android:id"))
@@ -2460,9 +2405,7 @@ public class Activity extends ContextThemeWrapper
     private View getViewInstance(String newInstance, String id, String className) {
         if (newInstance != null && newInstance.equals("true")) {
             try {
-                Class clazz = Class.forName("android.widget." + className);
-                Constructor<? extends View> constructor = clazz.getConstructor(Context.class);
-                return (View) constructor.newInstance(this);
+                return LensViewFactory.create(this, className);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -2474,148 +2417,154 @@ public class Activity extends ContextThemeWrapper
         return null;
     }
 
-    private void customizeChildren(XmlPullParser parser, ViewGroup parent) {
-        int depth = parser.getDepth();
-        Stack<View> stack = new Stack<View>();
-        for (int i = parent.getChildCount() - 1; i >= 0; i--) {
-            View child = parent.getChildAt(i);
-            if (child != null)
-                stack.push(child);
-        }
-
-        try {
-            int type = parser.next();
-            while (type != XmlPullParser.END_DOCUMENT) {
-                if (type == XmlPullParser.START_TAG) {
-                    View view = stack.pop();
-
-                    // Reconfiguring attributes
-                    setViewAttribute(parser, view);
-
-                    if (view instanceof ViewGroup) {
-                        ViewGroup vg = (ViewGroup) view;
-                        for (int i = vg.getChildCount() - 1; i >= 0; i--) {
-                            View child = vg.getChildAt(i);
-                            if (child != null)
-                                stack.push(child);
-                        }
-                    }
-                }
-                type = parser.next();
-                if (parser.getDepth() == depth && type == XmlPullParser.END_TAG)
-                    break;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        assert stack.empty() == true;
-    }
-
     /** @hide */
     public void migrateUI() {
-        ArrayList<ViewGroup> subtrees = mAppLensManager.getSubtrees();
-        int uiDisplayCount = mDisplayManager.getUIDisplayCount();
+        final ArrayList<ViewGroup> subtrees = mLensSession.getSubtrees();
         Log.d("LENS", "migrateUI!!"+" / " +mComponent.getClassName());
         Log.d("LENS", "migrateUI numDisplay="+mNumDisplay);
 
+        if (mNumDisplay == 0) {
+            mDisplayManager.hideLoadingDisplay();
+            return;
+        }
+        int[] sizes = new int[mNumDisplay * 2];
         for (int i = 0; i < mNumDisplay; i++) {
-            int width = displaySizes.get(i)[0];
-            int height = displaySizes.get(i)[1];
-            int id = mDisplayManager.createUIDisplay(width,height);
-            try {
-                Thread.sleep(1000);
-            } catch(Exception e) {
-            
-            }
-            /* for reusing display
-            if (i >= uiDisplayCount) {
-                Log.d("LENS", "display not exist. creating");
-                mDisplayManager.createUIDisplay(width,height);
-                try {
-                    Thread.sleep(1000);
-                } catch(Exception e) {
+            sizes[i * 2] = displaySizes.get(i)[0];
+            sizes[i * 2 + 1] = displaySizes.get(i)[1];
+        }
+        mPendingUIDisplays = mNumDisplay;
+        final int cookie = System.identityHashCode(this);
+        final long addedStart = LensStageStats.beginAsync(LensStageStats.STAGE_DISPLAY_ADDED, cookie);
+        final long start = LensStageStats.begin(LensStageStats.STAGE_CREATE_DISPLAY);
+        // All displays are requested at once; each subtree is shown as soon as its display exists.
+        mDisplayManager.createUIDisplays(sizes, new DisplayManager.UIDisplayCallback() {
+            @Override
+            public void onUIDisplayAdded(int index, int displayId) {
+                if (mPendingUIDisplays == 1) {
+                    mLensStats.endAsync(LensStageStats.STAGE_DISPLAY_ADDED, cookie, addedStart);
                 }
-            } else {
-                Log.d("LENS", "display already exist. resizing to "+displaySizes.get(i)[0]+":"+displaySizes.get(i)[1]);
-                mDisplayManager.resizeUIDisplay(width, height, i);
-            }*/
-            Display[] presentationDisplays = mDisplayManager.getDisplays(DisplayManager.DISPLAY_CATEGORY_PRESENTATION);
-            for (Display display : presentationDisplays) {
-                if (display.getName().equals("UI #"+id)) {
-                    Log.d("LENS", "drawing on UI #"+id);
-                    Presentation presentation = new UIDisplay(this,display,subtrees.get(i), width, height);
-                    presentation.show();
-                    if (mComponent.getClassName().equals("com.google.android.apps.youtube.app.watchwhile.WatchWhileActivity")) {
-                        // touch video to bring up seek bar
-                        long downTime = SystemClock.uptimeMillis();
-                        long eventTime = SystemClock.uptimeMillis() + 100;
-                        int metaState = 0;
-                        MotionEvent ev = MotionEvent.obtain(downTime, eventTime, MotionEvent.ACTION_UP, 200, 200, metaState);
-                        ev.setDisplayId(1);
-                        InputManager mInputManager = (InputManager) getSystemService(Context.INPUT_SERVICE);
-                        mInputManager.injectInputEvent(ev, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC);
-
-                    }
-
-                    if (mComponent.getClassName().equals("com.iloen.melon.MusicBrowserActivity")) {
-                        Handler handler = new Handler(Looper.getMainLooper());
-                        handler.postDelayed(new Runnable() {
-                            @Override
-                            public void run() {
-                                Log.d("hoyoung", "melontouch" + id);
-                                int metaState = 0;
-
-                                long downTime = SystemClock.uptimeMillis();
-                                long eventTime = SystemClock.uptimeMillis();
-                                MotionEvent ev = MotionEvent.obtain(downTime, eventTime, MotionEvent.ACTION_DOWN, 1200, 100, metaState);
-                                ev.setDisplayId(2);
-                                ((UIDisplay)presentation).handleMelon().dispatchTouchEvent(ev);
-
-                                long downTime2 = SystemClock.uptimeMillis();
-                                long eventTime2 = SystemClock.uptimeMillis();
-                                MotionEvent ev2 = MotionEvent.obtain(downTime2, eventTime2, MotionEvent.ACTION_UP, 1200, 100, metaState);
-                                ev2.setDisplayId(2);
-                                ((UIDisplay)presentation).handleMelon().dispatchTouchEvent(ev2);
-                            }
-                        }, 2000);
-                    }
-//                    if (i >= uiDisplayCount)
-//                        mDisplayManager.createRightUIDisplay(width,height);
+                showOnUIDisplay(index, displayId, subtrees);
+                if (--mPendingUIDisplays == 0) {
+                    // hide loading Display
+                    mDisplayManager.hideLoadingDisplay();
                 }
             }
-        }
+        }, mHandler);
+        mLensStats.end(LensStageStats.STAGE_CREATE_DISPLAY, start);
+    }
 
-        // hide loading Display
+    private int mPendingUIDisplays;
+    private final ArrayList<Presentation> mUIPresentations = new ArrayList<Presentation>();
 
-        mDisplayManager.hideLoadingDisplay();
-//        mDisplayManager.showUIDisplay();
-        /*
-        Handler handler = new Handler(Looper.getMainLooper());
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-            }
-        }, 1000);
-*/
-       /* 
-        for (int i = 0; i < mAppLensManager.mNumDisplay; i++) {
-            int displayId = mDisplayManager.createUIDisplay(displaySizes.get(i)[0],displaySizes.get(i)[1]);
-            try {
-                Thread.sleep(1000);
-            } catch (Exception e) {
-            
-            }
-            Display[] presentationDisplays = mDisplayManager.getDisplays(DisplayManager.DISPLAY_CATEGORY_PRESENTATION);
-            for(Display display : presentationDisplays) {
-                if (display.getName().equals("UI #"+displayId)) {
-                    Presentation presentation = new UIDisplay(this,display,subtrees.get(i));
-                    presentation.show();
-                    mDisplayManager.createRightUIDisplay(displaySizes.get(i)[0],displaySizes.get(i)[1]);
+    private void showOnUIDisplay(int index, int displayId, ArrayList<ViewGroup> subtrees) {
+        Display display = mDisplayManager.getDisplay(displayId);
+        // A released session means the lens was dismissed while the display was being made.
+        if (display == null || mLensSession == null || index >= subtrees.size()) {
+            Log.w(LENS_TAG, "UI display " + displayId + " for subtree " + index + " is gone");
+            return;
+        }
+        int width = displaySizes.get(index)[0];
+        int height = displaySizes.get(index)[1];
+        Log.d("LENS", "drawing on "+display.getName());
+        Presentation presentation = new UIDisplay(this, display, subtrees.get(index), width, height,
+                mLensSession);
+        long start = LensStageStats.begin(LensStageStats.STAGE_PRESENTATION_SHOW);
+        presentation.show();
+        mLensStats.end(LensStageStats.STAGE_PRESENTATION_SHOW, start);
+        mUIPresentations.add(presentation);
+        final int cookie = displayId;
+        final long frameStart = LensStageStats.beginAsync(LensStageStats.STAGE_FIRST_FRAME, cookie);
+        presentation.getWindow().getDecorView().getViewTreeObserver().registerFrameCommitCallback(
+                () -> mLensStats.endAsync(LensStageStats.STAGE_FIRST_FRAME, cookie, frameStart));
+        if (mComponent.getClassName().equals("com.google.android.apps.youtube.app.watchwhile.WatchWhileActivity")) {
+            // touch video to bring up seek bar
+            long downTime = SystemClock.uptimeMillis();
+            long eventTime = SystemClock.uptimeMillis() + 100;
+            int metaState = 0;
+            MotionEvent ev = MotionEvent.obtain(downTime, eventTime, MotionEvent.ACTION_UP, 200, 200, metaState);
+            ev.setDisplayId(1);
+            InputManager mInputManager = (InputManager) getSystemService(Context.INPUT_SERVICE);
+            mInputManager.injectInputEvent(ev, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC);
+
+        }
+
+        if (mComponent.getClassName().equals("com.iloen.melon.MusicBrowserActivity")) {
+            Handler handler = new Handler(Looper.getMainLooper());
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d("hoyoung", "melontouch" + displayId);
+                    int metaState = 0;
+
+                    long downTime = SystemClock.uptimeMillis();
+                    long eventTime = SystemClock.uptimeMillis();
+                    MotionEvent ev = MotionEvent.obtain(downTime, eventTime, MotionEvent.ACTION_DOWN, 1200, 100, metaState);
+                    ev.setDisplayId(2);
+                    ((UIDisplay)presentation).handleMelon().dispatchTouchEvent(ev);
+
+                    long downTime2 = SystemClock.uptimeMillis();
+                    long eventTime2 = SystemClock.uptimeMillis();
+                    MotionEvent ev2 = MotionEvent.obtain(downTime2, eventTime2, MotionEvent.ACTION_UP, 1200, 100, metaState);
+                    ev2.setDisplayId(2);
+                    ((UIDisplay)presentation).handleMelon().dispatchTouchEvent(ev2);
                 }
+            }, 2000);
+        }
+    }
+
+    /**
+     * UI displays are pooled by the system, so our presentations must not outlive the lens.
+     * Views moved out of the activity are put back if {@code restoreViews}.
+     */
+    private void dismissUIPresentations(boolean restoreViews) {
+        for (int i = mUIPresentations.size() - 1; i >= 0; i--) {
+            mUIPresentations.get(i).dismiss();
+        }
+        mUIPresentations.clear();
+        if (mLensSession != null) {
+            if (restoreViews) {
+                int restored = mLensSession.restoreViews();
+                Log.d(LENS_TAG, "restored " + restored + " views");
             }
+            mLensSession.release();
+            mLensSession = null;
+            // Edits to the spec apply to the next lens; they are checked off the main thread.
+            LensSpec.reload(this);
         }
-        */
-        
+    }
+
+    private void cancelLensWork() {
+        if (mLayoutWatcher != null) {
+            mLayoutWatcher.cancel();
+            mLayoutWatcher = null;
+        }
+        if (mMacroRunner != null) {
+            mMacroRunner.cancel();
+            mMacroRunner = null;
+        }
+    }
+
+    /** Stops all lens work of this activity and drops its views; called when it is destroyed. */
+    private void releaseLens() {
+        endUISelection();
+        cancelLensWork();
+        dismissUIPresentations(false);
+    }
+
+    /**
+     * Leaves the lens but keeps the activity and its process: migrated views go back where they
+     * were taken from and the presentations on the UI displays are dismissed, so the next lens
+     * starts from a warm activity instead of a cold start.
+     */
+    private void leaveLens() {
+        final long start = LensStageStats.begin(LensStageStats.STAGE_TEARDOWN);
+        cancelLensWork();
+        dismissUIPresentations(true);
+        mNumDisplay = 0;
+        mLayoutBlock = null;
+        // Run the lens again the next time the activity resumes on an off-screen display.
+        lensDone = false;
+        mLensStats.end(LensStageStats.STAGE_TEARDOWN, start);
     }
     /** applens: end */
 
@@ -3564,9 +3513,9 @@ public class Activity extends ContextThemeWrapper
         Log.d("LENS", "dispatchMovedToDisplay: id="+displayId);
         /* applens: start */
         if (displayId == 0 && !mBringToFront) {
-            finishAndRemoveTask();
-            System.exit(0);
-            return;
+            // The task was parked below the others on the default display; keep it warm.
+            leaveLens();
+            mDispId = displayId;
         }
         /* applens: end */
         updateDisplay(displayId);
@@ -4522,6 +4471,7 @@ public class Activity extends ContextThemeWrapper
             mTouchPointNums = event.getPointerCount();
         }
         else if (event.getAction() == MotionEvent.ACTION_UP && mTouchPointNums == 3) {
+            leaveLens();
             mDisplayManager.dismissUIDisplay();
             /*
             mDisplayManager.createOffScreenDisplay();
@@ -7815,6 +7765,16 @@ public class Activity extends ContextThemeWrapper
                 writer.println(mChangingConfigurations);
         writer.print(innerPrefix); writer.print("mCurrentConfig=");
                 writer.println(mCurrentConfig);
+        /** applens: start */
+        if (mLensStats.hasSamples()) {
+            writer.print(innerPrefix); writer.println("Lens stages:");
+            mLensStats.dump(writer, innerPrefix + "  ");
+        }
+        if (mMacroRunner != null) {
+            writer.print(innerPrefix); writer.println("Lens macro:");
+            mMacroRunner.dump(writer, innerPrefix + "  ");
+        }
+        /** applens: end */
 
         mFragments.dumpLoaders(innerPrefix, fd, writer, args);
         mFragments.getFragmentManager().dump(innerPrefix, fd, writer, args);
@@ -8870,6 +8830,9 @@ public class Activity extends ContextThemeWrapper
     final void performDestroy() {
         dispatchActivityPreDestroyed();
         mDestroyed = true;
+        /** applens: start */
+        releaseLens();
+        /** applens: end */
         mWindow.destroy();
         mFragments.dispatchDestroy();
         onDestroy();
@@ -1,56 +1,32 @@
 package android.applens;
 
-import android.view.View;
-import android.view.ViewGroup;
-import android.view.Window;
-import android.util.Log;
 import android.content.Context;
-import android.view.Display;
-import android.content.Intent;
-import android.app.Activity;
-
-import android.hardware.display.DisplayManager;
-import java.util.ArrayList;
-import java.util.Arrays;
-
-/** @hide */
+import android.content.res.Resources;
+
+/**
+ * Process-wide lens state that does not depend on an activity, such as the resolved resource
+ * table. Per-activity state, including every view, lives in a {@link LensSession}.
+ *
+ * @hide
+ */
 public class AppLensManager {
     private static final String APPLENS_TAG = "APPLENS(Manager)";
 
     private static AppLensManager sInstance = null;
 
-    private ArrayList<View> mMigratedViews = null;
-    private ArrayList<View> mTargetViews = new ArrayList<View>();
-
-
-    private Context mContext;
-    public int mUiWidth = -1;
-    public int mUiHeight = -1;
-    public int mUiDpi = -1;
-    public int UiOrientation = 0;
+    // The application context, never an activity.
+    private final Context mContext;
+    private LensResourceTable mResourceTable;
 
-
-    public int mNumDisplay = 0;
-    private View mProxyLayout;
-    public View mPrimaryTree = null;
-    private ArrayList<ViewGroup> mSubtrees;
-    public boolean mIsTraversing = false;
-    public static int mRecursionDepth = 0;
-
-    private String mPackageName = null;
-    private DisplayManager mDisplayManager;
-
-    public AppLensManager(Context context) {
-        mSubtrees = new ArrayList<ViewGroup>();
+    private AppLensManager(Context context) {
         mContext = context;
-        mDisplayManager = (DisplayManager) mContext.getSystemService(Context.DISPLAY_SERVICE);
-        
     }
 
     public static AppLensManager getInstance(Context context) {
         synchronized(AppLensManager.class) {
             if (sInstance == null) {
-                sInstance = new AppLensManager(context);
+                Context appContext = context.getApplicationContext();
+                sInstance = new AppLensManager(appContext != null ? appContext : context);
             }
             return sInstance;
         }
@@ -62,45 +38,21 @@ public class AppLensManager {
         }
     }
 
-    public void dismissUIDisplay() {
-        mDisplayManager.dismissUIDisplay();    
-    }
-
-    public void setPackageName(String packageName) {
-        mPackageName = packageName;
-    }
-
-    public ArrayList<ViewGroup> getSubtrees() {
-        return mSubtrees;
-    }
-
-    public void setPrimaryTree(View root) {
-        mPrimaryTree = root;
-    }
-
-    public void addTargetView(View view) {
-        mTargetViews.add(view);        
-    }
-
-    public ArrayList<View> getTargetViews() {
-        return mTargetViews;
-    }
-
-    public void setMigratedViews(ArrayList<View> migratedViews) {
-        mMigratedViews = migratedViews;
-    }
-
-    public void setProxyLayout(View layout) {
-        mProxyLayout = layout;
-    }
-
-    public ArrayList<View> getMigratedViews() {
-        return mMigratedViews;
-    }
-
-    public View getProxyLayout() {
-        return mProxyLayout;
+    /**
+     * Returns the resource IDs referenced by {@code spec}, resolved for the package of
+     * {@code context}. The table is built once and rebuilt only when the spec, the APK or the
+     * asset configuration changes.
+     */
+    public LensResourceTable getResourceTable(Context context, LensSpec spec) {
+        Resources resources = context.getResources();
+        String packageName = context.getPackageName();
+        String sourceDir = context.getApplicationInfo().sourceDir;
+        synchronized (this) {
+            if (mResourceTable == null
+                    || !mResourceTable.isValidFor(spec, resources, packageName, sourceDir)) {
+                mResourceTable = new LensResourceTable(spec, resources, packageName, sourceDir);
+            }
+            return mResourceTable;
+        }
     }
-
-
 }
@@ -0,0 +1,174 @@
+package android.applens;
+
+import android.graphics.Rect;
+import android.util.IntArray;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Spatial index of the leaf views below a root, for hit testing taps in UI selection mode.
+ *
+ * The visible bounds of every visible leaf are collected into a uniform grid over the root.
+ * The index is only marked stale on layout or scroll changes and rebuilt on the next query, so
+ * a tap looks at the few leaves of one cell instead of dispatching through the whole tree.
+ * Bounds are in the coordinates of the root.
+ *
+ * @hide
+ */
+public final class LensHitIndex {
+    // Cells per side of the grid.
+    private static final int GRID_SIZE = 16;
+
+    private final View mRoot;
+    // Leaves in traversal order, so a later leaf is drawn above an earlier one.
+    private final ArrayList<View> mLeaves = new ArrayList<View>();
+    private final ArrayList<Rect> mBounds = new ArrayList<Rect>();
+    private final IntArray[] mCells = new IntArray[GRID_SIZE * GRID_SIZE];
+    private int mCellWidth;
+    private int mCellHeight;
+    private boolean mStale = true;
+    private boolean mStarted;
+    private int mRebuilds;
+
+    private final ViewTreeObserver.OnGlobalLayoutListener mOnLayout =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+        @Override
+        public void onGlobalLayout() {
+            mStale = true;
+        }
+    };
+
+    private final ViewTreeObserver.OnScrollChangedListener mOnScroll =
+            new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            mStale = true;
+        }
+    };
+
+    public LensHitIndex(View root) {
+        mRoot = root;
+        for (int i = 0; i < mCells.length; i++) {
+            mCells[i] = new IntArray();
+        }
+    }
+
+    /** Starts tracking layout changes of the root's tree. */
+    public void start() {
+        if (!mStarted) {
+            mStarted = true;
+            mStale = true;
+            ViewTreeObserver observer = mRoot.getViewTreeObserver();
+            observer.addOnGlobalLayoutListener(mOnLayout);
+            observer.addOnScrollChangedListener(mOnScroll);
+        }
+    }
+
+    /** Stops tracking and drops every view reference. */
+    public void stop() {
+        if (mStarted) {
+            mStarted = false;
+            ViewTreeObserver observer = mRoot.getViewTreeObserver();
+            observer.removeOnGlobalLayoutListener(mOnLayout);
+            observer.removeOnScrollChangedListener(mOnScroll);
+        }
+        clear();
+        mStale = true;
+    }
+
+    /** Returns the topmost leaf whose visible bounds contain {@code x, y}, or null. */
+    public View hitTest(int x, int y) {
+        if (mStale) {
+            rebuild();
+        }
+        if (mCellWidth == 0 || x < 0 || y < 0) {
+            return null;
+        }
+        final int col = x / mCellWidth;
+        final int row = y / mCellHeight;
+        if (col >= GRID_SIZE || row >= GRID_SIZE) {
+            return null;
+        }
+        final IntArray cell = mCells[row * GRID_SIZE + col];
+        for (int i = cell.size() - 1; i >= 0; i--) {
+            final int leaf = cell.get(i);
+            if (mBounds.get(leaf).contains(x, y)) {
+                return mLeaves.get(leaf);
+            }
+        }
+        return null;
+    }
+
+    /** Returns the number of leaves in the index, rebuilding it if needed. */
+    public int getLeafCount() {
+        if (mStale) {
+            rebuild();
+        }
+        return mLeaves.size();
+    }
+
+    /** Returns how often the index was rebuilt. */
+    public int getRebuildCount() {
+        return mRebuilds;
+    }
+
+    private void clear() {
+        mLeaves.clear();
+        mBounds.clear();
+        for (IntArray cell : mCells) {
+            cell.clear();
+        }
+    }
+
+    private void rebuild() {
+        clear();
+        mStale = false;
+        mRebuilds++;
+        final int width = mRoot.getWidth();
+        final int height = mRoot.getHeight();
+        if (width <= 0 || height <= 0) {
+            mCellWidth = mCellHeight = 0;
+            return;
+        }
+        mCellWidth = (width + GRID_SIZE - 1) / GRID_SIZE;
+        mCellHeight = (height + GRID_SIZE - 1) / GRID_SIZE;
+
+        // Depth first in child order, which is the drawing order of default containers.
+        final ArrayDeque<View> stack = new ArrayDeque<View>();
+        stack.push(mRoot);
+        while (!stack.isEmpty()) {
+            View view = stack.pop();
+            if (view.getVisibility() != View.VISIBLE) {
+                continue;
+            }
+            if (view instanceof ViewGroup) {
+                ViewGroup group = (ViewGroup) view;
+                for (int i = group.getChildCount() - 1; i >= 0; i--) {
+                    stack.push(group.getChildAt(i));
+                }
+                continue;
+            }
+            Rect bounds = new Rect();
+            if (view.getGlobalVisibleRect(bounds) && bounds.intersect(0, 0, width, height)) {
+                add(view, bounds);
+            }
+        }
+    }
+
+    private void add(View view, Rect bounds) {
+        final int leaf = mLeaves.size();
+        mLeaves.add(view);
+        mBounds.add(bounds);
+        final int lastCol = Math.min((bounds.right - 1) / mCellWidth, GRID_SIZE - 1);
+        final int lastRow = Math.min((bounds.bottom - 1) / mCellHeight, GRID_SIZE - 1);
+        for (int row = bounds.top / mCellHeight; row <= lastRow; row++) {
+            for (int col = bounds.left / mCellWidth; col <= lastCol; col++) {
+                mCells[row * GRID_SIZE + col].add(leaf);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package android.applens;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.EditText;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Runs the macro of an activity as a state machine on the main looper.
+ *
+ * The macro block is compiled once into {@link Step}s. A step does not sleep for the delay of
+ * the spec; it waits until its views are attached, shown and laid out, then runs on the next
+ * animation frame. The delay only extends how long the step may wait before the macro gives
+ * up. Steps run strictly in order and each one records how long it waited in
+ * {@link LensStageStats#STAGE_MACRO_STEP}.
+ *
+ * @hide
+ */
+public final class LensMacroRunner {
+    private static final String APPLENS_TAG = "APPLENS(Macro)";
+
+    // How long a step may wait for its views when the spec gives no delay.
+    private static final long DEFAULT_STEP_TIMEOUT_MILLIS = 10000;
+
+    private static final int STEP_KEY = 0;
+    private static final int STEP_CLICK = 1;
+    private static final int STEP_TOUCH = 2;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_WAITING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_FAILED = 3;
+    private static final int STATE_CANCELLED = 4;
+
+    /** One compiled macro event. */
+    public static final class Step {
+        final int mType;
+        final String mName;
+        final int mViewId;
+        final boolean mUseParent;
+        final int mTargetId;
+        final float mX;
+        final float mY;
+        final String mText;
+        final long mTimeoutMillis;
+        long mWaitMillis = -1;
+
+        Step(int type, String name, int viewId, boolean useParent, int targetId, float x,
+                float y, String text, long timeoutMillis) {
+            mType = type;
+            mName = name;
+            mViewId = viewId;
+            mUseParent = useParent;
+            mTargetId = targetId;
+            mX = x;
+            mY = y;
+            mText = text;
+            mTimeoutMillis = timeoutMillis;
+        }
+    }
+
+    private final View mRoot;
+    private final ArrayList<Step> mSteps;
+    private final LensStageStats mStats;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private int mState = STATE_IDLE;
+    private int mIndex;
+    private long mStepStartNanos;
+    private LensReadinessWatcher mWatcher;
+    private ViewTreeObserver.OnGlobalLayoutListener mLayoutListener;
+
+    private final Runnable mTryRunnable = this::tryStep;
+    private final Runnable mRunRunnable = this::runStep;
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == STATE_WAITING) {
+                Log.w(APPLENS_TAG, "step " + mIndex + " (" + mSteps.get(mIndex).mName
+                        + ") not ready in time, giving up");
+                stopWaiting();
+                mState = STATE_FAILED;
+            }
+        }
+    };
+
+    public LensMacroRunner(View root, ArrayList<Step> steps, LensStageStats stats) {
+        mRoot = root;
+        mSteps = steps;
+        mStats = stats;
+    }
+
+    /**
+     * Compiles the events of {@code block}. Events whose view is not a resource of the app are
+     * dropped; {@code lensString} replaces the "LensString" text.
+     */
+    public static ArrayList<Step> compile(LensSpec.Block block, LensResourceTable ids,
+            String lensString) {
+        ArrayList<Step> steps = new ArrayList<Step>(block.size());
+        for (int i = 0; i < block.size(); i++) {
+            LensSpec.Node node = block.get(i);
+            if (node.getType() != LensSpec.NODE_EVENT) {
+                continue;
+            }
+            String name = node.getAttributeValue("android:viewId");
+            int viewId = ids.getId(node, "android:viewId");
+            if (viewId == 0) {
+                Log.w(APPLENS_TAG, name + " is not a resource of the app, skipped");
+                continue;
+            }
+            String type = node.getAttributeValue("android:eventType");
+            String delay = node.getAttributeValue("android:delay");
+            long timeout = delay != null
+                    ? DEFAULT_STEP_TIMEOUT_MILLIS + Integer.parseInt(delay) * 1000L
+                    : DEFAULT_STEP_TIMEOUT_MILLIS;
+            boolean useParent = "true".equals(node.getAttributeValue("android:getParent"));
+            if ("key".equals(type)) {
+                String text = node.getAttributeValue("android:string");
+                if ("LensString".equals(text)) {
+                    text = lensString;
+                }
+                steps.add(new Step(STEP_KEY, name, viewId, useParent, 0, 0, 0, text, timeout));
+            } else if ("touch".equals(type)) {
+                steps.add(new Step(STEP_CLICK, name, viewId, useParent, 0, 0, 0, null, timeout));
+            } else if ("touchPointer".equals(type)) {
+                int targetId = node.getAttributeValue("android:targetView") != null
+                        ? ids.getId(node, "android:targetView") : 0;
+                float x = Integer.parseInt(node.getAttributeValue("android:x"));
+                float y = Integer.parseInt(node.getAttributeValue("android:y"));
+                steps.add(new Step(STEP_TOUCH, name, viewId, useParent, targetId, x, y, null,
+                        timeout));
+            } else {
+                Log.w(APPLENS_TAG, "unknown event type " + type + " of " + name);
+            }
+        }
+        return steps;
+    }
+
+    /** Starts the macro from its first step. Must be called on the main thread. */
+    public void start() {
+        mIndex = 0;
+        startStep();
+    }
+
+    /** Stops the macro; the current step does not run. */
+    public void cancel() {
+        if (mState == STATE_WAITING) {
+            stopWaiting();
+            mState = STATE_CANCELLED;
+        }
+    }
+
+    /** Returns whether every step has run. */
+    public boolean isDone() {
+        return mState == STATE_DONE;
+    }
+
+    private void startStep() {
+        if (mIndex >= mSteps.size()) {
+            mState = STATE_DONE;
+            Log.d(APPLENS_TAG, "macro done, " + mSteps.size() + " steps");
+            return;
+        }
+        mState = STATE_WAITING;
+        mStepStartNanos = SystemClock.elapsedRealtimeNanos();
+        mHandler.postDelayed(mTimeoutRunnable, mSteps.get(mIndex).mTimeoutMillis);
+        tryStep();
+    }
+
+    private void tryStep() {
+        if (mState != STATE_WAITING) {
+            return;
+        }
+        final Step step = mSteps.get(mIndex);
+        View view = mRoot.findViewById(step.mViewId);
+        View target = step.mTargetId != 0 ? mRoot.findViewById(step.mTargetId) : null;
+        if (view == null || (step.mTargetId != 0 && target == null)) {
+            int missing = view == null ? step.mViewId : step.mTargetId;
+            mWatcher = new LensReadinessWatcher(mRoot, new int[] {missing}, mTryRunnable);
+            mWatcher.start();
+            return;
+        }
+        if (step.mType == STEP_TOUCH && !isReady(view)
+                || target != null && !isReady(target)) {
+            waitForLayout();
+            return;
+        }
+        // Let the frame that showed the views finish before acting on them.
+        mRoot.postOnAnimation(mRunRunnable);
+    }
+
+    private static boolean isReady(View view) {
+        return view.isShown() && view.isLaidOut() && !view.isLayoutRequested();
+    }
+
+    private void waitForLayout() {
+        mLayoutListener = new ViewTreeObserver.OnGlobalLayoutListener() {
+            @Override
+            public void onGlobalLayout() {
+                mRoot.getViewTreeObserver().removeOnGlobalLayoutListener(this);
+                mLayoutListener = null;
+                tryStep();
+            }
+        };
+        mRoot.getViewTreeObserver().addOnGlobalLayoutListener(mLayoutListener);
+    }
+
+    private void stopWaiting() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mRoot.removeCallbacks(mRunRunnable);
+        mRoot.removeCallbacks(mTryRunnable);
+        if (mWatcher != null) {
+            mWatcher.cancel();
+            mWatcher = null;
+        }
+        if (mLayoutListener != null) {
+            mRoot.getViewTreeObserver().removeOnGlobalLayoutListener(mLayoutListener);
+            mLayoutListener = null;
+        }
+    }
+
+    private void runStep() {
+        if (mState != STATE_WAITING) {
+            return;
+        }
+        final Step step = mSteps.get(mIndex);
+        View view = mRoot.findViewById(step.mViewId);
+        if (view == null) {
+            // Detached again during the frame.
+            tryStep();
+            return;
+        }
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        final long waitNanos = SystemClock.elapsedRealtimeNanos() - mStepStartNanos;
+        step.mWaitMillis = waitNanos / 1000000;
+        mStats.record(LensStageStats.STAGE_MACRO_STEP, waitNanos);
+
+        // Taps go to the event view itself, the other events may be redirected to its parent.
+        if (step.mUseParent && step.mType != STEP_TOUCH) {
+            view = (View) view.getParent();
+        }
+        switch (step.mType) {
+            case STEP_KEY: {
+                EditText editText = (EditText) view;
+                editText.getText().insert(editText.getSelectionStart(), step.mText);
+                break;
+            }
+            case STEP_CLICK:
+                view.performClick();
+                break;
+            case STEP_TOUCH:
+                injectTap(view, step.mX, step.mY);
+                break;
+        }
+        Log.d(APPLENS_TAG, "step " + mIndex + " (" + step.mName + ") after "
+                + step.mWaitMillis + "ms");
+        mIndex++;
+        startStep();
+    }
+
+    private static void injectTap(View view, float x, float y) {
+        final long now = SystemClock.uptimeMillis();
+        MotionEvent event = MotionEvent.obtain(now, now, MotionEvent.ACTION_DOWN, x, y, 0);
+        view.dispatchTouchEvent(event);
+        event.setAction(MotionEvent.ACTION_UP);
+        view.dispatchTouchEvent(event);
+        event.recycle();
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "state=" + mState + " step=" + mIndex + "/" + mSteps.size());
+        for (int i = 0; i < mSteps.size(); i++) {
+            Step step = mSteps.get(i);
+            if (step.mWaitMillis >= 0) {
+                pw.println(prefix + "  " + i + " " + step.mName + ": waited "
+                        + step.mWaitMillis + "ms");
+            }
+        }
+    }
+}
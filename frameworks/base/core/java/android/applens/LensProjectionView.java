@@ -0,0 +1,134 @@
+package android.applens;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Shows a view of the activity on a UI display without taking it out of its own tree.
+ *
+ * The source view keeps its parent, layout and window; this view takes its place in the
+ * subtree of the UI display, sizes itself like the source and draws the source's display list
+ * instead of content of its own, the way {@link android.view.GhostView} does. When the lens
+ * gives the projection another size, the source is stretched to fill it. Each time the source
+ * tree draws, the projection is invalidated so it shows the same frame. Touches on the
+ * projection are mapped back and dispatched to the source view in its own coordinates.
+ *
+ * @hide
+ */
+public final class LensProjectionView extends View {
+    private final View mSource;
+    // Whether the current gesture went to the source.
+    private boolean mForwarding;
+    private final Matrix mTmpMatrix = new Matrix();
+    private final Matrix mTmpInverse = new Matrix();
+
+    private final ViewTreeObserver.OnDrawListener mOnSourceDraw =
+            new ViewTreeObserver.OnDrawListener() {
+        @Override
+        public void onDraw() {
+            invalidate();
+        }
+    };
+
+    private final View.OnLayoutChangeListener mOnSourceLayout = new View.OnLayoutChangeListener() {
+        @Override
+        public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                int oldLeft, int oldTop, int oldRight, int oldBottom) {
+            if (right - left != oldRight - oldLeft || bottom - top != oldBottom - oldTop) {
+                requestLayout();
+            }
+        }
+    };
+
+    public LensProjectionView(Context context, View source) {
+        super(context);
+        mSource = source;
+    }
+
+    public View getSource() {
+        return mSource;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mSource.getViewTreeObserver().addOnDrawListener(mOnSourceDraw);
+        mSource.addOnLayoutChangeListener(mOnSourceLayout);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mSource.getViewTreeObserver().removeOnDrawListener(mOnSourceDraw);
+        mSource.removeOnLayoutChangeListener(mOnSourceLayout);
+        mForwarding = false;
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        setMeasuredDimension(resolveSize(mSource.getWidth(), widthMeasureSpec),
+                resolveSize(mSource.getHeight(), heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (!(canvas instanceof RecordingCanvas)) {
+            return;
+        }
+        RenderNode renderNode = mSource.updateDisplayListIfDirty();
+        if (renderNode.hasDisplayList()) {
+            // The node is positioned in its own parent, move it to our origin.
+            int save = canvas.save();
+            if (mSource.getWidth() > 0 && mSource.getHeight() > 0) {
+                canvas.scale(getWidth() / (float) mSource.getWidth(),
+                        getHeight() / (float) mSource.getHeight());
+            }
+            canvas.translate(-mSource.getLeft(), -mSource.getTop());
+            ((RecordingCanvas) canvas).drawRenderNode(renderNode);
+            canvas.restoreToCount(save);
+        }
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        final int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_DOWN) {
+            mForwarding = mSource.isAttachedToWindow();
+        }
+        if (!mForwarding) {
+            return false;
+        }
+        MotionEvent copy = transformToSource(event);
+        boolean handled = mSource.dispatchTouchEvent(copy);
+        copy.recycle();
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            mForwarding = false;
+        }
+        return handled;
+    }
+
+    /**
+     * Returns a copy of {@code event} in the coordinates of the source: undoes the stretch
+     * applied in {@link #onDraw} and the source's own transformation.
+     */
+    MotionEvent transformToSource(MotionEvent event) {
+        final MotionEvent copy = MotionEvent.obtain(event);
+        final Matrix matrix = mTmpMatrix;
+        matrix.reset();
+        if (getWidth() > 0 && getHeight() > 0) {
+            matrix.setScale(mSource.getWidth() / (float) getWidth(),
+                    mSource.getHeight() / (float) getHeight());
+        }
+        if (!mSource.getMatrix().isIdentity() && mSource.getMatrix().invert(mTmpInverse)) {
+            matrix.postConcat(mTmpInverse);
+        }
+        copy.transform(matrix);
+        return copy;
+    }
+}
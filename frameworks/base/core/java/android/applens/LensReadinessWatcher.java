@@ -0,0 +1,109 @@
+package android.applens;
+
+import android.util.IntArray;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Waits until every view ID of a set is attached below a root view.
+ *
+ * The IDs are registered once; afterwards the watcher only looks at the subtrees that
+ * {@link android.view.ViewGroup} reports as added or removed, instead of looking up every ID
+ * on each layout pass. The callback is posted once, when the last missing view attaches.
+ *
+ * @hide
+ */
+public final class LensReadinessWatcher {
+    private static final String APPLENS_TAG = "APPLENS(Readiness)";
+
+    private final View mRoot;
+    private final IntArray mPending = new IntArray();
+    private final IntArray mFound = new IntArray();
+    private final Runnable mOnReady;
+    private boolean mActive;
+
+    public LensReadinessWatcher(View root, int[] ids, Runnable onReady) {
+        mRoot = root;
+        mOnReady = onReady;
+        for (int id : ids) {
+            if (id != 0 && mPending.indexOf(id) < 0) {
+                mPending.add(id);
+            }
+        }
+    }
+
+    /**
+     * Starts watching. Returns true and posts the callback right away if all views are already
+     * attached.
+     */
+    public boolean start() {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            if (mRoot.findViewById(mPending.get(i)) != null) {
+                mFound.add(mPending.get(i));
+                mPending.remove(i);
+            }
+        }
+        mActive = true;
+        if (mPending.size() == 0) {
+            fire();
+            return true;
+        }
+        if (!mRoot.addLensReadinessWatcher(this)) {
+            // Not attached yet, the first traversal will run us again.
+            mActive = false;
+            mRoot.post(this::start);
+        }
+        return false;
+    }
+
+    /** Stops watching without running the callback. */
+    public void cancel() {
+        if (mActive) {
+            mActive = false;
+            mRoot.removeLensReadinessWatcher(this);
+        }
+    }
+
+    /** Returns the number of views still missing. */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /** Called by {@link android.view.ViewGroup} when {@code child} was added to the window. */
+    public void onViewAdded(View child) {
+        if (!mActive) {
+            return;
+        }
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            int id = mPending.get(i);
+            if (child.findViewById(id) != null) {
+                mFound.add(id);
+                mPending.remove(i);
+            }
+        }
+        if (mPending.size() == 0) {
+            fire();
+        }
+    }
+
+    /** Called by {@link android.view.ViewGroup} when {@code child} was removed from the window. */
+    public void onViewRemoved(View child) {
+        if (!mActive) {
+            return;
+        }
+        for (int i = mFound.size() - 1; i >= 0; i--) {
+            int id = mFound.get(i);
+            if (child.findViewById(id) != null && mRoot.findViewById(id) == null) {
+                mPending.add(id);
+                mFound.remove(i);
+            }
+        }
+    }
+
+    private void fire() {
+        cancel();
+        Log.d(APPLENS_TAG, "all " + mFound.size() + " views attached");
+        // Never run the migration from inside addView().
+        mRoot.post(mOnReady);
+    }
+}
@@ -0,0 +1,76 @@
+package android.applens;
+
+import android.content.res.Resources;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Resource IDs of every name referenced by a {@link LensSpec}, indexed by string pool index.
+ *
+ * References of the form {@code @type/name} are resolved when the table is built; bare names
+ * (treated as {@code id}) are resolved on first use and memoized. Tables are owned by
+ * {@link AppLensManager}, which rebuilds them when the package's assets change.
+ *
+ * @hide
+ */
+public final class LensResourceTable {
+    private static final int UNRESOLVED = Integer.MIN_VALUE;
+
+    private final LensSpec mSpec;
+    private final Resources mResources;
+    private final String mPackageName;
+    private final String mSourceDir;
+    private final int mAssetsSeq;
+    private final int[] mIds;
+
+    LensResourceTable(LensSpec spec, Resources resources, String packageName, String sourceDir) {
+        mSpec = spec;
+        mResources = resources;
+        mPackageName = packageName;
+        mSourceDir = sourceDir;
+        mAssetsSeq = resources.getConfiguration().assetsSeq;
+        mIds = new int[spec.getStringCount()];
+        Arrays.fill(mIds, UNRESOLVED);
+        for (int i = 0; i < mIds.length; i++) {
+            String name = spec.getString(i);
+            if (name.length() > 0 && name.charAt(0) == '@') {
+                mIds[i] = resolve(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the resource ID named by string {@code index} of the spec, 0 if it does not exist.
+     */
+    public int getId(int index) {
+        int id = mIds[index];
+        if (id == UNRESOLVED) {
+            id = resolve(mSpec.getString(index));
+            mIds[index] = id;
+        }
+        return id;
+    }
+
+    /** Returns the resource ID named by attribute {@code name} of {@code node}, 0 if unset. */
+    public int getId(LensSpec.Node node, String name) {
+        int index = node.getAttributeValueIndex(name);
+        return index < 0 ? 0 : getId(index);
+    }
+
+    boolean isValidFor(LensSpec spec, Resources resources, String packageName, String sourceDir) {
+        return mSpec == spec
+                && mPackageName.equals(packageName)
+                && Objects.equals(mSourceDir, sourceDir)
+                && mAssetsSeq == resources.getConfiguration().assetsSeq;
+    }
+
+    private int resolve(String name) {
+        if (name.isEmpty()) {
+            return 0;
+        }
+        int slash = name.indexOf('/');
+        String type = (name.charAt(0) == '@' && slash > 0) ? name.substring(1, slash) : "id";
+        return mResources.getIdentifier(name, type, mPackageName);
+    }
+}
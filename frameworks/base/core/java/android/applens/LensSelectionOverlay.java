@@ -0,0 +1,171 @@
+package android.applens;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+
+/**
+ * The one overlay window of UI selection mode.
+ *
+ * Dims the activity and draws the bounds of every selected view from a list, instead of
+ * adding a window per selection. A tap on a leaf cycles it through being selected alone,
+ * selected with its siblings as a group, and not selected; the state is kept in
+ * {@link View#mUISelected}. The overlay follows layout and scroll changes of the activity.
+ *
+ * @hide
+ */
+public final class LensSelectionOverlay extends View {
+    private static final int DIM_COLOR = 0x4d000000;
+    private static final int BOUND_COLOR = 0xffff0000;
+    private static final float BOUND_WIDTH = 20f;
+
+    private final View mRoot;
+    // Views whose bounds are drawn: solo leaves and the parents of groups.
+    private final ArrayList<View> mSelected = new ArrayList<View>();
+    private final Paint mPaint = new Paint();
+    private final Rect mTmpRect = new Rect();
+    private final int[] mTmpLocation = new int[2];
+
+    private final ViewTreeObserver.OnGlobalLayoutListener mOnLayout =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+        @Override
+        public void onGlobalLayout() {
+            invalidateIfSelected();
+        }
+    };
+
+    private final ViewTreeObserver.OnScrollChangedListener mOnScroll =
+            new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            invalidateIfSelected();
+        }
+    };
+
+    public LensSelectionOverlay(Context context, View root) {
+        super(context);
+        mRoot = root;
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeWidth(BOUND_WIDTH);
+        mPaint.setColor(BOUND_COLOR);
+        setBackgroundColor(DIM_COLOR);
+    }
+
+    /** Returns the selected views: single leaves, and the parents of selected groups. */
+    public ArrayList<View> getSelectedViews() {
+        return mSelected;
+    }
+
+    /** Advances the selection of the leaf {@code view} as one tap does. */
+    public void toggle(View view) {
+        switch (view.mUISelected) {
+            case View.NOT_SELECTED:
+                view.mUISelected = View.SOLO_SELECTED;
+                mSelected.add(view);
+                break;
+            case View.SOLO_SELECTED: {
+                ViewParent parent = view.getParent();
+                if (!(parent instanceof ViewGroup) || parent == mRoot) {
+                    view.mUISelected = View.NOT_SELECTED;
+                    mSelected.remove(view);
+                    break;
+                }
+                ViewGroup group = (ViewGroup) parent;
+                for (int i = group.getChildCount() - 1; i >= 0; i--) {
+                    View child = group.getChildAt(i);
+                    if (child.mUISelected == View.SOLO_SELECTED) {
+                        mSelected.remove(child);
+                    }
+                    child.mUISelected = View.GROUP_SELECTED;
+                }
+                if (group.mUISelected != View.SOLO_SELECTED) {
+                    group.mUISelected = View.SOLO_SELECTED;
+                    mSelected.add(group);
+                }
+                break;
+            }
+            default: {
+                ViewParent parent = view.getParent();
+                view.mUISelected = View.NOT_SELECTED;
+                if (parent instanceof ViewGroup) {
+                    unselectGroup((ViewGroup) parent);
+                }
+                break;
+            }
+        }
+        invalidate();
+    }
+
+    private void unselectGroup(ViewGroup group) {
+        group.mUISelected = View.NOT_SELECTED;
+        mSelected.remove(group);
+        for (int i = group.getChildCount() - 1; i >= 0; i--) {
+            group.getChildAt(i).mUISelected = View.NOT_SELECTED;
+        }
+    }
+
+    /** Unselects everything. */
+    public void clear() {
+        for (int i = mSelected.size() - 1; i >= 0; i--) {
+            View view = mSelected.get(i);
+            if (view instanceof ViewGroup) {
+                unselectGroup((ViewGroup) view);
+            } else {
+                view.mUISelected = View.NOT_SELECTED;
+            }
+        }
+        mSelected.clear();
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        ViewTreeObserver observer = mRoot.getViewTreeObserver();
+        observer.addOnGlobalLayoutListener(mOnLayout);
+        observer.addOnScrollChangedListener(mOnScroll);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        ViewTreeObserver observer = mRoot.getViewTreeObserver();
+        observer.removeOnGlobalLayoutListener(mOnLayout);
+        observer.removeOnScrollChangedListener(mOnScroll);
+        super.onDetachedFromWindow();
+    }
+
+    private void invalidateIfSelected() {
+        if (!mSelected.isEmpty()) {
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mSelected.isEmpty()) {
+            return;
+        }
+        // Bounds are in the root's coordinates; the overlay window need not start at its origin.
+        mRoot.getLocationOnScreen(mTmpLocation);
+        final int dx = mTmpLocation[0];
+        final int dy = mTmpLocation[1];
+        getLocationOnScreen(mTmpLocation);
+        canvas.save();
+        canvas.translate(dx - mTmpLocation[0], dy - mTmpLocation[1]);
+        for (int i = 0; i < mSelected.size(); i++) {
+            if (mSelected.get(i).getGlobalVisibleRect(mTmpRect)) {
+                // Keep the stroke inside the view.
+                mTmpRect.inset((int) (BOUND_WIDTH / 2), (int) (BOUND_WIDTH / 2));
+                canvas.drawRect(mTmpRect, mPaint);
+            }
+        }
+        canvas.restore();
+    }
+}
@@ -0,0 +1,199 @@
+package android.applens;
+
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Lens state of one activity: the subtrees being built for its UI displays and the views that
+ * were migrated onto them.
+ *
+ * A session is owned by its activity and released when the activity is destroyed or its UI
+ * displays are dismissed; after {@link #release} it holds no views. Views the session does not
+ * own, such as the activity's content root and the layouts on the UI displays, are only
+ * referenced weakly. Views moved out of the activity remember where they came from, so
+ * {@link #restoreViews} can put them back when the lens is left without destroying the activity.
+ *
+ * @hide
+ */
+public final class LensSession {
+    private static final String APPLENS_TAG = "APPLENS(Session)";
+
+    private final String mName;
+    private final ArrayList<ViewGroup> mSubtrees = new ArrayList<ViewGroup>();
+    private final ArrayList<View> mMigratedViews = new ArrayList<View>();
+    // Views taken out of the activity, in the order they were moved.
+    private final ArrayList<Reparented> mReparented = new ArrayList<Reparented>();
+    // Views left in place for a projection, with the visibility they had before it.
+    private final ArrayList<View> mProjected = new ArrayList<View>();
+    private final ArrayList<Integer> mProjectedVisibility = new ArrayList<Integer>();
+    private WeakReference<View> mPrimaryTree;
+    private WeakReference<View> mProxyLayout;
+    private boolean mReleased;
+
+    public LensSession(String name) {
+        mName = name;
+    }
+
+    /** Returns the subtrees being built, one per UI display plus nested new layouts. */
+    public ArrayList<ViewGroup> getSubtrees() {
+        return mSubtrees;
+    }
+
+    public void setPrimaryTree(View root) {
+        mPrimaryTree = new WeakReference<View>(root);
+    }
+
+    public View getPrimaryTree() {
+        return mPrimaryTree != null ? mPrimaryTree.get() : null;
+    }
+
+    /** Records the leaf views shown on a UI display. */
+    public void addMigratedViews(ArrayList<View> views) {
+        if (!mReleased) {
+            mMigratedViews.addAll(views);
+        }
+    }
+
+    public ArrayList<View> getMigratedViews() {
+        return mMigratedViews;
+    }
+
+    /**
+     * Records that {@code view} is about to be moved out of {@code parent}. Must be called
+     * before the lens changes its layout params, position, visibility, background or padding.
+     */
+    public void recordReparent(View view, ViewGroup parent) {
+        if (!mReleased) {
+            mReparented.add(new Reparented(view, parent, parent.indexOfChild(view)));
+        }
+    }
+
+    /**
+     * Records that {@code view} stays in place but is projected onto a UI display. Must be
+     * called before the lens changes its visibility.
+     */
+    public void recordProjection(View view) {
+        if (!mReleased) {
+            mProjected.add(view);
+            mProjectedVisibility.add(view.getVisibility());
+        }
+    }
+
+    /**
+     * Puts every moved view back into its original parent, at its original position and with
+     * its original layout params, translation, visibility, background and padding. The moved
+     * views and their descendants are no longer marked as migrated. Views are restored latest
+     * first, so positions stay valid. Projected views get their original visibility back.
+     * Returns the number of views restored.
+     */
+    public int restoreViews() {
+        final int projected = mProjected.size();
+        for (int i = projected - 1; i >= 0; i--) {
+            mProjected.get(i).setVisibility(mProjectedVisibility.get(i));
+        }
+        mProjected.clear();
+        mProjectedVisibility.clear();
+        final int count = mReparented.size();
+        for (int i = count - 1; i >= 0; i--) {
+            Reparented r = mReparented.get(i);
+            ViewParent current = r.mView.getParent();
+            if (current == r.mParent) {
+                continue;
+            }
+            if (current instanceof ViewGroup) {
+                ((ViewGroup) current).removeView(r.mView);
+            }
+            r.mView.mVirtualParent = null;
+            clearMigrated(r.mView);
+            r.mParams.width = r.mWidth;
+            r.mParams.height = r.mHeight;
+            r.mView.setTranslationY(r.mTranslationY);
+            r.mView.setVisibility(r.mVisibility);
+            r.mView.setBackground(r.mBackground);
+            r.mView.setPadding(r.mPaddingLeft, r.mPaddingTop, r.mPaddingRight,
+                    r.mPaddingBottom);
+            r.mParent.addView(r.mView, Math.min(r.mIndex, r.mParent.getChildCount()), r.mParams);
+        }
+        mReparented.clear();
+        return projected + count;
+    }
+
+    // UIDisplay marks every view of a display as migrated, not just the moved ones.
+    private static void clearMigrated(View view) {
+        view.setMigrated(false);
+        if (view instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup) view;
+            for (int i = group.getChildCount() - 1; i >= 0; i--) {
+                clearMigrated(group.getChildAt(i));
+            }
+        }
+    }
+
+    public void setProxyLayout(View layout) {
+        mProxyLayout = new WeakReference<View>(layout);
+    }
+
+    public View getProxyLayout() {
+        return mProxyLayout != null ? mProxyLayout.get() : null;
+    }
+
+    public boolean isReleased() {
+        return mReleased;
+    }
+
+    /** Drops every view reference. The session must not be used for a new migration after. */
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        Log.d(APPLENS_TAG, "release " + mName + ": " + mSubtrees.size() + " subtrees, "
+                + mMigratedViews.size() + " migrated views");
+        mReleased = true;
+        mSubtrees.clear();
+        mMigratedViews.clear();
+        mReparented.clear();
+        mProjected.clear();
+        mProjectedVisibility.clear();
+        mPrimaryTree = null;
+        mProxyLayout = null;
+    }
+
+    private static final class Reparented {
+        final View mView;
+        final ViewGroup mParent;
+        final int mIndex;
+        // The lens edits the params in place, so their size is kept separately.
+        final ViewGroup.LayoutParams mParams;
+        final int mWidth;
+        final int mHeight;
+        final float mTranslationY;
+        final int mVisibility;
+        final Drawable mBackground;
+        final int mPaddingLeft;
+        final int mPaddingTop;
+        final int mPaddingRight;
+        final int mPaddingBottom;
+
+        Reparented(View view, ViewGroup parent, int index) {
+            mView = view;
+            mParent = parent;
+            mIndex = index;
+            mParams = view.getLayoutParams();
+            mWidth = mParams.width;
+            mHeight = mParams.height;
+            mTranslationY = view.getTranslationY();
+            mVisibility = view.getVisibility();
+            mBackground = view.getBackground();
+            mPaddingLeft = view.getPaddingLeft();
+            mPaddingTop = view.getPaddingTop();
+            mPaddingRight = view.getPaddingRight();
+            mPaddingBottom = view.getPaddingBottom();
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package android.applens;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Compiled, indexed form of an app's lens spec (second_layout.xml and macro.xml).
+ *
+ * The spec is compiled once by {@link LensSpecCompiler} into {@link #COMPILED_FILE} next to the
+ * sources, memory-mapped, and cached per package. A cached spec is handed out without touching
+ * the disk; it is checked against the mtime and size of the sources on a background thread by
+ * {@link #reload}, and loaded again if they changed. Looking up the block of an activity is a
+ * hash lookup; blocks are decoded from the mapping the first time they are requested. Loading
+ * happens outside of the cache lock, so a load of one package never blocks lookups of the
+ * cached ones; UI code uses {@link #getAsync} so it never waits for a load at all.
+ *
+ * @hide
+ */
+public final class LensSpec {
+    private static final String APPLENS_TAG = "APPLENS(Spec)";
+
+    public static final String LAYOUT_FILE = "second_layout.xml";
+    public static final String MACRO_FILE = "macro.xml";
+    public static final String COMPILED_FILE = "lens_spec.bin";
+
+    static final int MAGIC = 0x4c454e53; // "LENS"
+    static final int VERSION = 1;
+
+    /**
+     * {@code <display>} start tag. With {@code android:projection="true"} the existing views of
+     * the display are projected instead of moved, see {@link LensProjectionView}.
+     */
+    public static final int NODE_DISPLAY = 1;
+    /** {@code <existing>} start tag. */
+    public static final int NODE_EXISTING = 2;
+    /** {@code <new>} start tag. */
+    public static final int NODE_NEW = 3;
+    /** {@code </new>} end tag, closes the innermost {@link #NODE_NEW}. */
+    public static final int NODE_END_NEW = 4;
+    /** {@code <event>} start tag of a macro. */
+    public static final int NODE_EVENT = 5;
+
+    private static final LensSpec EMPTY = new LensSpec(null);
+
+    private static final ArrayMap<String, LensSpec> sSpecs = new ArrayMap<>();
+    // Packages whose spec is being loaded, with the callbacks waiting for it. Guarded by sSpecs.
+    private static final ArrayMap<String, ArrayList<Consumer<LensSpec>>> sLoading =
+            new ArrayMap<>();
+
+    private final String[] mStrings;
+    private final HashMap<String, int[]> mIndex;
+    private final ByteBuffer mBuffer;
+    // mtime and length of the layout and macro the spec was loaded from, null if it has none.
+    private final long[] mSourceStamp;
+    private final HashMap<String, Block> mLayoutBlocks = new HashMap<>();
+    private final HashMap<String, Block> mMacroBlocks = new HashMap<>();
+
+    private LensSpec(long[] sourceStamp) {
+        mStrings = new String[0];
+        mIndex = new HashMap<>();
+        mBuffer = null;
+        mSourceStamp = sourceStamp;
+    }
+
+    private LensSpec(ByteBuffer buffer) {
+        mBuffer = buffer;
+        buffer.position(8);
+        mSourceStamp = new long[] {
+                buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong()};
+        buffer.position(LensSpecCompiler.HEADER_SIZE);
+
+        int stringCount = buffer.getInt();
+        mStrings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            mStrings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int indexCount = buffer.getInt();
+        mIndex = new HashMap<>(indexCount * 2);
+        for (int i = 0; i < indexCount; i++) {
+            String activity = mStrings[buffer.getInt()];
+            int layoutOffset = buffer.getInt();
+            int macroOffset = buffer.getInt();
+            mIndex.put(activity, new int[] {layoutOffset, macroOffset});
+        }
+    }
+
+    /**
+     * Returns the spec of the package of {@code context}, loading it on first use. Packages
+     * without a spec get an empty spec, so later lookups do not touch the disk either. Blocks
+     * while the spec is loaded, so must not be called on the UI thread; see {@link #getAsync}.
+     */
+    public static LensSpec get(Context context) {
+        final String packageName = context.getPackageName();
+        final LensSpec cached;
+        synchronized (sSpecs) {
+            while (sLoading.containsKey(packageName)) {
+                try {
+                    sSpecs.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return EMPTY;
+                }
+            }
+            cached = sSpecs.get(packageName);
+            if (cached != null) {
+                return cached;
+            }
+            sLoading.put(packageName, new ArrayList<>());
+        }
+        return loadAndPublish(packageName, context.getExternalFilesDir(null), null);
+    }
+
+    /**
+     * Passes the spec of the package of {@code context} to {@code callback} on
+     * {@code executor}. A spec that is not cached yet is loaded off the calling thread.
+     */
+    public static void getAsync(Context context, Executor executor, Consumer<LensSpec> callback) {
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        final String packageName = appContext.getPackageName();
+        final Consumer<LensSpec> delivery = spec -> executor.execute(() -> callback.accept(spec));
+        final LensSpec cached;
+        synchronized (sSpecs) {
+            ArrayList<Consumer<LensSpec>> callbacks = sLoading.get(packageName);
+            if (callbacks != null) {
+                callbacks.add(delivery);
+                return;
+            }
+            cached = sSpecs.get(packageName);
+            if (cached == null) {
+                callbacks = new ArrayList<>();
+                callbacks.add(delivery);
+                sLoading.put(packageName, callbacks);
+            }
+        }
+        if (cached != null) {
+            delivery.accept(cached);
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(
+                () -> loadAndPublish(packageName, appContext.getExternalFilesDir(null), null));
+    }
+
+    /**
+     * Checks the cached spec of the package of {@code context} against its sources on a
+     * background thread, and loads it again if they changed. Lookups made meanwhile wait for
+     * the check. Does nothing if the spec is not cached or already being loaded.
+     */
+    public static void reload(Context context) {
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        final String packageName = appContext.getPackageName();
+        final LensSpec cached;
+        synchronized (sSpecs) {
+            cached = sSpecs.get(packageName);
+            if (cached == null || sLoading.containsKey(packageName)) {
+                return;
+            }
+            sLoading.put(packageName, new ArrayList<>());
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(
+                () -> loadAndPublish(packageName, appContext.getExternalFilesDir(null), cached));
+    }
+
+    /**
+     * Returns {@code cached} if it is still up to date, or loads the spec of
+     * {@code packageName} again. The caller marked the package as loading.
+     */
+    private static LensSpec loadAndPublish(String packageName, File dir, LensSpec cached) {
+        LensSpec spec = EMPTY;
+        try {
+            spec = cached != null && cached.isUpToDate(dir) ? cached : load(dir);
+        } finally {
+            final ArrayList<Consumer<LensSpec>> callbacks;
+            synchronized (sSpecs) {
+                callbacks = sLoading.remove(packageName);
+                sSpecs.put(packageName, spec);
+                sSpecs.notifyAll();
+            }
+            for (int i = 0; i < callbacks.size(); i++) {
+                callbacks.get(i).accept(spec);
+            }
+        }
+        return spec;
+    }
+
+    private static LensSpec load(File dir) {
+        if (dir == null) {
+            return EMPTY;
+        }
+        File layout = new File(dir, LAYOUT_FILE);
+        File macro = new File(dir, MACRO_FILE);
+        File compiled = new File(dir, COMPILED_FILE);
+        // Empty specs remember the sources too, so a spec that failed to compile is only
+        // compiled again once it changes.
+        long[] sourceStamp = getSourceStamp(layout, macro);
+        if (!layout.exists() && !macro.exists()) {
+            return new LensSpec(sourceStamp);
+        }
+        try {
+            if (!LensSpecCompiler.isUpToDate(compiled, layout, macro)) {
+                LensSpecCompiler.compile(layout, macro, compiled);
+            }
+            return map(compiled);
+        } catch (Exception e) {
+            Log.w(APPLENS_TAG, "failed to load lens spec from " + dir, e);
+            return new LensSpec(sourceStamp);
+        }
+    }
+
+    private static long[] getSourceStamp(File layout, File macro) {
+        return new long[] {layout.lastModified(), layout.length(), macro.lastModified(),
+                macro.length()};
+    }
+
+    /** Returns whether the sources in {@code dir} are still the ones this spec was loaded from. */
+    private boolean isUpToDate(File dir) {
+        if (mSourceStamp == null || dir == null) {
+            return mSourceStamp == null && dir == null;
+        }
+        return Arrays.equals(mSourceStamp,
+                getSourceStamp(new File(dir, LAYOUT_FILE), new File(dir, MACRO_FILE)));
+    }
+
+    static LensSpec map(File compiled) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(compiled, "r");
+                FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("bad lens spec header in " + compiled);
+            }
+            return new LensSpec(buffer);
+        }
+    }
+
+    /** Returns the layout block of {@code activityName}, or null if it has none. */
+    public Block getLayout(String activityName) {
+        return getBlock(activityName, 0, mLayoutBlocks);
+    }
+
+    /** Returns the macro block of {@code activityName}, or null if it has none. */
+    public Block getMacro(String activityName) {
+        return getBlock(activityName, 1, mMacroBlocks);
+    }
+
+    /** Returns the string of pool index {@code index}. */
+    public String getString(int index) {
+        return mStrings[index];
+    }
+
+    /** Returns the size of the string pool. */
+    public int getStringCount() {
+        return mStrings.length;
+    }
+
+    private Block getBlock(String activityName, int section, HashMap<String, Block> decoded) {
+        int[] offsets = mIndex.get(activityName);
+        if (offsets == null || offsets[section] < 0) {
+            return null;
+        }
+        synchronized (decoded) {
+            Block block = decoded.get(activityName);
+            if (block == null) {
+                block = decodeBlock(offsets[section]);
+                decoded.put(activityName, block);
+            }
+            return block;
+        }
+    }
+
+    private Block decodeBlock(int offset) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset);
+        Node[] nodes = new Node[buffer.getInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            int type = buffer.get();
+            int attrCount = buffer.getShort();
+            int[] names = new int[attrCount];
+            int[] values = new int[attrCount];
+            for (int j = 0; j < attrCount; j++) {
+                names[j] = buffer.getInt();
+                values[j] = buffer.getInt();
+            }
+            nodes[i] = new Node(this, type, names, values);
+        }
+        return new Block(nodes);
+    }
+
+    /** The nodes of one activity, in document order. */
+    public static final class Block {
+        private final Node[] mNodes;
+
+        Block(Node[] nodes) {
+            mNodes = nodes;
+        }
+
+        public int size() {
+            return mNodes.length;
+        }
+
+        public Node get(int index) {
+            return mNodes[index];
+        }
+    }
+
+    /** One element of the spec with its attributes, in document order. */
+    public static final class Node {
+        private final LensSpec mSpec;
+        private final int mType;
+        private final int[] mNames;
+        private final int[] mValues;
+
+        Node(LensSpec spec, int type, int[] names, int[] values) {
+            mSpec = spec;
+            mType = type;
+            mNames = names;
+            mValues = values;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public int getAttributeCount() {
+            return mNames.length;
+        }
+
+        public String getAttributeName(int index) {
+            return mSpec.mStrings[mNames[index]];
+        }
+
+        public String getAttributeValue(int index) {
+            return mSpec.mStrings[mValues[index]];
+        }
+
+        /** Returns the string pool index of the value at {@code index}. */
+        public int getAttributeValueIndex(int index) {
+            return mValues[index];
+        }
+
+        /** Returns the value of attribute {@code name}, or null if it is not set. */
+        public String getAttributeValue(String name) {
+            int index = getAttributeValueIndex(name);
+            return index < 0 ? null : mSpec.mStrings[index];
+        }
+
+        /** Returns the string pool index of the value of attribute {@code name}, or -1. */
+        public int getAttributeValueIndex(String name) {
+            for (int i = 0; i < mNames.length; i++) {
+                if (mSpec.mStrings[mNames[i]].equals(name)) {
+                    return mValues[i];
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package android.applens;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiles second_layout.xml and macro.xml into the binary format read by {@link LensSpec}.
+ *
+ * <pre>
+ * header:  int magic, int version,
+ *          long layoutMtime, long layoutLength, long macroMtime, long macroLength
+ * strings: int count, { int byteLength, utf8 bytes }*
+ * index:   int count, { int activityString, int layoutOffset, int macroOffset }*
+ * blocks:  int nodeCount, { byte type, short attrCount, { int name, int value }* }*
+ * </pre>
+ *
+ * Offsets are absolute file positions, -1 when the activity has no block in that section.
+ * Several {@code <activity>} elements with the same name are merged into one block.
+ *
+ * @hide
+ */
+public final class LensSpecCompiler {
+    private static final String APPLENS_TAG = "APPLENS(SpecCompiler)";
+
+    static final int HEADER_SIZE = 4 + 4 + 8 * 4;
+
+    private static final String ATTR_NAME = "android:name";
+
+    private final ArrayList<String> mStrings = new ArrayList<>();
+    private final HashMap<String, Integer> mStringIndex = new HashMap<>();
+    private final LinkedHashMap<String, ArrayList<int[]>> mLayoutBlocks = new LinkedHashMap<>();
+    private final LinkedHashMap<String, ArrayList<int[]>> mMacroBlocks = new LinkedHashMap<>();
+
+    private LensSpecCompiler() {
+    }
+
+    /**
+     * Returns whether {@code compiled} was built from the current {@code layout} and
+     * {@code macro}.
+     */
+    public static boolean isUpToDate(File compiled, File layout, File macro) {
+        if (!compiled.exists()) {
+            return false;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(compiled, "r")) {
+            if (file.length() < HEADER_SIZE
+                    || file.readInt() != LensSpec.MAGIC
+                    || file.readInt() != LensSpec.VERSION) {
+                return false;
+            }
+            return file.readLong() == layout.lastModified()
+                    && file.readLong() == layout.length()
+                    && file.readLong() == macro.lastModified()
+                    && file.readLong() == macro.length();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compiles {@code layout} and {@code macro}, either of which may be missing, into
+     * {@code out}.
+     */
+    public static void compile(File layout, File macro, File out)
+            throws IOException, XmlPullParserException {
+        long start = System.nanoTime();
+        LensSpecCompiler compiler = new LensSpecCompiler();
+        if (layout.exists()) {
+            compiler.parse(layout, compiler.mLayoutBlocks, false);
+        }
+        if (macro.exists()) {
+            compiler.parse(macro, compiler.mMacroBlocks, true);
+        }
+
+        AtomicFile file = new AtomicFile(out);
+        FileOutputStream fos = file.startWrite();
+        try {
+            compiler.write(new DataOutputStream(fos), layout, macro);
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            file.failWrite(fos);
+            throw e;
+        }
+        Log.d(APPLENS_TAG, "compiled " + out + " in " + (System.nanoTime() - start) / 1000 + "us");
+    }
+
+    private void parse(File source, LinkedHashMap<String, ArrayList<int[]>> blocks, boolean macro)
+            throws IOException, XmlPullParserException {
+        try (FileInputStream fis = new FileInputStream(source)) {
+            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setInput(fis, null);
+
+            ArrayList<int[]> block = null;
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    String tag = parser.getName();
+                    if (tag.equals("activity")) {
+                        String name = parser.getAttributeValue(null, ATTR_NAME);
+                        block = blocks.get(name);
+                        if (block == null) {
+                            block = new ArrayList<>();
+                            blocks.put(name, block);
+                        }
+                    } else if (block != null) {
+                        int type = macro ? (tag.equals("event") ? LensSpec.NODE_EVENT : 0)
+                                : tag.equals("display") ? LensSpec.NODE_DISPLAY
+                                : tag.equals("existing") ? LensSpec.NODE_EXISTING
+                                : tag.equals("new") ? LensSpec.NODE_NEW : 0;
+                        if (type != 0) {
+                            block.add(encodeNode(type, parser));
+                        }
+                    }
+                } else if (eventType == XmlPullParser.END_TAG && block != null) {
+                    if (parser.getName().equals("activity")) {
+                        block = null;
+                    } else if (!macro && parser.getName().equals("new")) {
+                        block.add(new int[] {LensSpec.NODE_END_NEW});
+                    }
+                }
+                eventType = parser.next();
+            }
+        }
+    }
+
+    private int[] encodeNode(int type, XmlPullParser parser) {
+        int count = parser.getAttributeCount();
+        int[] node = new int[1 + count * 2];
+        node[0] = type;
+        for (int i = 0; i < count; i++) {
+            node[1 + i * 2] = intern(parser.getAttributeName(i));
+            node[2 + i * 2] = intern(parser.getAttributeValue(i));
+        }
+        return node;
+    }
+
+    private int intern(String string) {
+        Integer index = mStringIndex.get(string);
+        if (index == null) {
+            index = mStrings.size();
+            mStrings.add(string);
+            mStringIndex.put(string, index);
+        }
+        return index;
+    }
+
+    private void write(DataOutputStream out, File layout, File macro) throws IOException {
+        LinkedHashMap<String, int[]> index = new LinkedHashMap<>();
+        for (String activity : mLayoutBlocks.keySet()) {
+            index.put(activity, new int[] {-1, -1});
+        }
+        for (String activity : mMacroBlocks.keySet()) {
+            if (!index.containsKey(activity)) {
+                index.put(activity, new int[] {-1, -1});
+            }
+        }
+        for (String activity : index.keySet()) {
+            intern(activity);
+        }
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringsOut = new DataOutputStream(strings);
+        stringsOut.writeInt(mStrings.size());
+        for (String string : mStrings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            stringsOut.writeInt(bytes.length);
+            stringsOut.write(bytes);
+        }
+
+        int blocksStart = HEADER_SIZE + strings.size() + 4 + index.size() * 12;
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        DataOutputStream blocksOut = new DataOutputStream(blocks);
+        for (Map.Entry<String, int[]> entry : index.entrySet()) {
+            ArrayList<int[]> layoutBlock = mLayoutBlocks.get(entry.getKey());
+            if (layoutBlock != null) {
+                entry.getValue()[0] = blocksStart + blocks.size();
+                writeBlock(blocksOut, layoutBlock);
+            }
+            ArrayList<int[]> macroBlock = mMacroBlocks.get(entry.getKey());
+            if (macroBlock != null) {
+                entry.getValue()[1] = blocksStart + blocks.size();
+                writeBlock(blocksOut, macroBlock);
+            }
+        }
+
+        out.writeInt(LensSpec.MAGIC);
+        out.writeInt(LensSpec.VERSION);
+        out.writeLong(layout.lastModified());
+        out.writeLong(layout.length());
+        out.writeLong(macro.lastModified());
+        out.writeLong(macro.length());
+        strings.writeTo(out);
+        out.writeInt(index.size());
+        for (Map.Entry<String, int[]> entry : index.entrySet()) {
+            out.writeInt(mStringIndex.get(entry.getKey()));
+            out.writeInt(entry.getValue()[0]);
+            out.writeInt(entry.getValue()[1]);
+        }
+        blocks.writeTo(out);
+        out.flush();
+    }
+
+    private static void writeBlock(DataOutputStream out, ArrayList<int[]> block)
+            throws IOException {
+        out.writeInt(block.size());
+        for (int[] node : block) {
+            int attrCount = (node.length - 1) / 2;
+            out.writeByte(node[0]);
+            out.writeShort(attrCount);
+            for (int i = 1; i < node.length; i++) {
+                out.writeInt(node[i]);
+            }
+        }
+    }
+}
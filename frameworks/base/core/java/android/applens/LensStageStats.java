@@ -0,0 +1,150 @@
+package android.applens;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency of the stages of the lens pipeline, from loading the spec to the first frame on a UI
+ * display.
+ *
+ * Synchronous stages are bracketed with {@link #begin} and {@link #end}, which also emit a
+ * {@link Trace} section; stages that span callbacks use {@link #beginAsync} and
+ * {@link #endAsync}. Every sample lands in a per-stage histogram with power-of-two millisecond
+ * buckets, and the last sample is published as a trace counter.
+ *
+ * @hide
+ */
+public final class LensStageStats {
+    private static final long TRACE_TAG = Trace.TRACE_TAG_VIEW;
+
+    public static final int STAGE_SPEC_LOAD = 0;
+    public static final int STAGE_VIEW_LOOKUP = 1;
+    public static final int STAGE_REPARENT = 2;
+    public static final int STAGE_CREATE_DISPLAY = 3;
+    public static final int STAGE_DISPLAY_ADDED = 4;
+    public static final int STAGE_PRESENTATION_SHOW = 5;
+    public static final int STAGE_FIRST_FRAME = 6;
+    public static final int STAGE_MACRO_STEP = 7;
+    public static final int STAGE_TEARDOWN = 8;
+    private static final int STAGE_COUNT = 9;
+
+    private static final String[] STAGE_NAMES = {
+            "lens:specLoad",
+            "lens:viewLookup",
+            "lens:reparent",
+            "lens:createUIDisplay",
+            "lens:displayAdded",
+            "lens:presentationShow",
+            "lens:firstFrame",
+            "lens:macroStep",
+            "lens:teardown",
+    };
+
+    // Bucket i counts samples below 2^i ms, the last one everything above.
+    private static final int BUCKET_COUNT = 14;
+
+    private final int[][] mBuckets = new int[STAGE_COUNT][BUCKET_COUNT];
+    private final int[] mCounts = new int[STAGE_COUNT];
+    private final long[] mTotalMicros = new long[STAGE_COUNT];
+    private final long[] mMaxMicros = new long[STAGE_COUNT];
+
+    /** Opens the trace section of {@code stage} and returns its start time. */
+    public static long begin(int stage) {
+        Trace.traceBegin(TRACE_TAG, STAGE_NAMES[stage]);
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /** Closes the trace section opened by {@link #begin} and records the sample. */
+    public void end(int stage, long startNanos) {
+        Trace.traceEnd(TRACE_TAG);
+        record(stage, SystemClock.elapsedRealtimeNanos() - startNanos);
+    }
+
+    /** Opens an async trace section of {@code stage} and returns its start time. */
+    public static long beginAsync(int stage, int cookie) {
+        Trace.asyncTraceBegin(TRACE_TAG, STAGE_NAMES[stage], cookie);
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /** Closes the async trace section opened by {@link #beginAsync} and records the sample. */
+    public void endAsync(int stage, int cookie, long startNanos) {
+        Trace.asyncTraceEnd(TRACE_TAG, STAGE_NAMES[stage], cookie);
+        record(stage, SystemClock.elapsedRealtimeNanos() - startNanos);
+    }
+
+    /** Records a sample of {@code durationNanos} for {@code stage}. */
+    public void record(int stage, long durationNanos) {
+        final long micros = durationNanos / 1000;
+        final long millis = micros / 1000;
+        int bucket = millis <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+        if (bucket >= BUCKET_COUNT) {
+            bucket = BUCKET_COUNT - 1;
+        }
+        synchronized (this) {
+            mBuckets[stage][bucket]++;
+            mCounts[stage]++;
+            mTotalMicros[stage] += micros;
+            mMaxMicros[stage] = Math.max(mMaxMicros[stage], micros);
+        }
+        Trace.traceCounter(TRACE_TAG, STAGE_NAMES[stage], (int) micros);
+    }
+
+    /** Returns whether any stage has a sample. */
+    public synchronized boolean hasSamples() {
+        for (int count : mCounts) {
+            if (count > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the number of samples of {@code stage}. */
+    public synchronized int getCount(int stage) {
+        return mCounts[stage];
+    }
+
+    /**
+     * Returns the upper bound in ms of the bucket holding the {@code percentile}th sample of
+     * {@code stage}, or -1 if there are none.
+     */
+    public synchronized long getPercentileMillis(int stage, int percentile) {
+        final int count = mCounts[stage];
+        if (count == 0) {
+            return -1;
+        }
+        final int rank = Math.max(1, (count * percentile + 99) / 100);
+        int seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[stage][i];
+            if (seen >= rank) {
+                return i == BUCKET_COUNT - 1 ? mMaxMicros[stage] / 1000 : 1L << i;
+            }
+        }
+        return mMaxMicros[stage] / 1000;
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            final int count = mCounts[stage];
+            if (count == 0) {
+                continue;
+            }
+            pw.print(prefix); pw.print(STAGE_NAMES[stage]);
+            pw.print(": n="); pw.print(count);
+            pw.print(" avg="); pw.print(mTotalMicros[stage] / count / 1000f);
+            pw.print("ms p50<="); pw.print(getPercentileMillis(stage, 50));
+            pw.print("ms p95<="); pw.print(getPercentileMillis(stage, 95));
+            pw.print("ms max="); pw.print(mMaxMicros[stage] / 1000f);
+            pw.println("ms");
+            pw.print(prefix); pw.print("  buckets(<2^i ms)=");
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                pw.print(i == 0 ? "[" : ",");
+                pw.print(mBuckets[stage][i]);
+            }
+            pw.println("]");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package android.applens;
+
+import android.content.Context;
+import android.util.ArrayMap;
+import android.view.View;
+import android.widget.FrameLayout;
+import android.widget.LinearLayout;
+import android.widget.RelativeLayout;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Creates the views of {@code <new>} spec elements.
+ *
+ * The common containers are built with plain constructor calls. Any other class is looked up
+ * once, by simple name in {@code android.widget} or by fully qualified name, and its
+ * {@code (Context)} constructor is cached, so a warm factory never reflects on the class again.
+ * Constructors of app classes are only reused for contexts whose class loader can see them,
+ * like {@link android.view.LayoutInflater} does.
+ *
+ * @hide
+ */
+public final class LensViewFactory {
+    private static final String WIDGET_PREFIX = "android.widget.";
+    private static final ClassLoader BOOT_CLASS_LOADER = LensViewFactory.class.getClassLoader();
+
+    private interface Creator {
+        View create(Context context) throws ReflectiveOperationException;
+    }
+
+    private static final class ConstructorCreator implements Creator {
+        private final Constructor<? extends View> mConstructor;
+
+        ConstructorCreator(Constructor<? extends View> constructor) {
+            mConstructor = constructor;
+        }
+
+        @Override
+        public View create(Context context) throws ReflectiveOperationException {
+            return mConstructor.newInstance(context);
+        }
+
+        boolean isVisibleFrom(ClassLoader loader) {
+            final ClassLoader own = mConstructor.getDeclaringClass().getClassLoader();
+            if (own == BOOT_CLASS_LOADER) {
+                return true;
+            }
+            for (ClassLoader cl = loader; cl != null; cl = cl.getParent()) {
+                if (cl == own) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @GuardedBy("sCreators")
+    private static final ArrayMap<String, Creator> sCreators = new ArrayMap<String, Creator>();
+
+    static {
+        register("LinearLayout", LinearLayout::new);
+        register("FrameLayout", FrameLayout::new);
+        register("RelativeLayout", RelativeLayout::new);
+    }
+
+    private LensViewFactory() {
+    }
+
+    private static void register(String simpleName, Creator creator) {
+        sCreators.put(simpleName, creator);
+        sCreators.put(WIDGET_PREFIX + simpleName, creator);
+    }
+
+    /**
+     * Returns a new {@code className} view for {@code context}. A name without a package is
+     * taken from {@code android.widget}.
+     */
+    public static View create(Context context, String className)
+            throws ReflectiveOperationException {
+        Creator creator;
+        synchronized (sCreators) {
+            creator = sCreators.get(className);
+        }
+        if (creator instanceof ConstructorCreator
+                && !((ConstructorCreator) creator).isVisibleFrom(context.getClassLoader())) {
+            creator = null;
+        }
+        if (creator == null) {
+            creator = load(context, className);
+            synchronized (sCreators) {
+                sCreators.put(className, creator);
+            }
+        }
+        return creator.create(context);
+    }
+
+    /** Returns whether {@code className} can be created without looking up its class. */
+    @VisibleForTesting
+    public static boolean isWarm(String className) {
+        synchronized (sCreators) {
+            return sCreators.containsKey(className);
+        }
+    }
+
+    private static Creator load(Context context, String className)
+            throws ReflectiveOperationException {
+        final String name = className.indexOf('.') < 0 ? WIDGET_PREFIX + className : className;
+        final Class<? extends View> clazz = Class.forName(name, false, context.getClassLoader())
+                .asSubclass(View.class);
+        final Constructor<? extends View> constructor = clazz.getConstructor(Context.class);
+        constructor.setAccessible(true);
+        return new ConstructorCreator(constructor);
+    }
+}
@@ -27,7 +27,7 @@ import android.webkit.WebView;
 public class UIDisplay extends Presentation {
     private static final String APPLENS_TAG = "APPLENS(UIDisplay)";
     
-    private AppLensManager mAppLensManager;
+    private final LensSession mSession;
 
     FrameLayout mContentView;
     Context mOuterContext;
@@ -38,8 +38,10 @@ public class UIDisplay extends Presentation {
     int mWidth;
     int mHeight;
 
-    public UIDisplay(Context outerContext, Display display, ViewGroup subtree, int width, int height) {
+    public UIDisplay(Context outerContext, Display display, ViewGroup subtree, int width, int height,
+            LensSession session) {
         super(outerContext, display);
+        mSession = session;
         this.mOuterContext = outerContext;
         this.subtree = (View)subtree;
         this.mWidth = width;
@@ -54,9 +56,6 @@ public class UIDisplay extends Presentation {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mAppLensManager = AppLensManager.getInstance();
-        mTargetViews = mAppLensManager.getTargetViews();
-
         if (subtree != null) {
             Window window = getWindow();
             mWindowParams = window.getAttributes();
@@ -89,10 +88,10 @@ public class UIDisplay extends Presentation {
                         mTargetViews.add(child);
                     subtree.setFocusable(true);
                     subtree.setFocusableInTouchMode(true);
-                    mAppLensManager.setMigratedViews(mTargetViews);
-                    mAppLensManager.setProxyLayout(subtree);
                 }
             }
+            mSession.addMigratedViews(mTargetViews);
+            mSession.setProxyLayout(subtree);
 /**
             for (View view : mTargetViews) {
                 ViewGroup parent = (ViewGroup) view.getParent();
@@ -110,7 +109,7 @@ public class UIDisplay extends Presentation {
 //                mLayout.addView(view);
                 mContentView.addView(view);              
                 Log.d("sunjae", "view migrated!!");
-                mAppLensManager.setProxyLayout(mContentView);
+                mSession.setProxyLayout(mContentView);
                 view.setLayoutParams(new FrameLayout.LayoutParams(
                             FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
             **/
@@ -113,7 +113,6 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
@@ -300,6 +299,7 @@ public class PackageParser {
     @UnsupportedAppUsage
     private Callback mCallback;
     private File mCacheDir;
+    private int mCachedReadCount;
 
     private static final int SDK_VERSION = Build.VERSION.SDK_INT;
     private static final String[] SDK_CODENAMES = Build.VERSION.ACTIVE_CODENAMES;
@@ -568,6 +568,13 @@ public class PackageParser {
         mCacheDir = cacheDir;
     }
 
+    /**
+     * Returns the number of packages this package parser read from the cache.
+     */
+    public int getCachedReadCount() {
+        return mCachedReadCount;
+    }
+
     /**
      * Callback interface for retrieving information that may be needed while parsing
      * a package.
@@ -1013,6 +1020,7 @@ public class PackageParser {
             throws PackageParserException {
         Package parsed = useCaches ? getCachedResult(packageFile, flags) : null;
         if (parsed != null) {
+            mCachedReadCount++;
             return parsed;
         }
 
@@ -1102,39 +1110,30 @@ public class PackageParser {
     }
 
     /**
-     * Given a {@code packageFile} and a {@code cacheFile} returns whether the
-     * cache file is up to date based on the mod-time of both files.
+     * Returns the stat of {@code file}, or null if it can't be stated.
      */
-    private static boolean isCacheUpToDate(File packageFile, File cacheFile) {
+    private static StructStat statOrNull(File file) {
         try {
             // NOTE: We don't use the File.lastModified API because it has the very
             // non-ideal failure mode of returning 0 with no excepions thrown.
             // The nio2 Files API is a little better but is considerably more expensive.
-            final StructStat pkg = android.system.Os.stat(packageFile.getAbsolutePath());
-            final StructStat cache = android.system.Os.stat(cacheFile.getAbsolutePath());
-            return pkg.st_mtime < cache.st_mtime;
+            return android.system.Os.stat(file.getAbsolutePath());
         } catch (ErrnoException ee) {
-            // The most common reason why stat fails is that a given cache file doesn't
-            // exist. We ignore that here. It's easy to reason that it's safe to say the
-            // cache isn't up to date if we see any sort of exception here.
-            //
-            // (1) Exception while stating the package file : This should never happen,
-            // and if it does, we do a full package parse (which is likely to throw the
-            // same exception).
-            // (2) Exception while stating the cache file : If the file doesn't exist, the
-            // cache is obviously out of date. If the file *does* exist, we can't read it.
-            // We will attempt to delete and recreate it after parsing the package.
+            // If we can't stat the package file we do a full package parse, which is likely
+            // to throw the same exception.
             if (ee.errno != OsConstants.ENOENT) {
-                Slog.w("Error while stating package cache : ", ee);
+                Slog.w("Error while stating package : ", ee);
             }
-
-            return false;
+            return null;
         }
     }
 
     /**
      * Returns the cached parse result for {@code packageFile} for parse flags {@code flags},
      * or {@code null} if no cached result exists.
+     *
+     * The result is up to date if the package still has the mtime and size it had when it was
+     * cached, and no static overlay of it has changed since.
      */
     private Package getCachedResult(File packageFile, int flags) {
         if (mCacheDir == null) {
@@ -1142,22 +1141,28 @@ public class PackageParser {
         }
 
         final String cacheKey = getCacheKey(packageFile, flags);
-        final File cacheFile = new File(mCacheDir, cacheKey);
+        final PackageParserCacheFile cacheFile = PackageParserCacheFile.get(mCacheDir);
 
         try {
-            // If the cache is not up to date, return null.
-            if (!isCacheUpToDate(packageFile, cacheFile)) {
+            final StructStat stat = statOrNull(packageFile);
+            if (stat == null) {
+                return null;
+            }
+            final long[] writeTime = new long[1];
+            final byte[] bytes = cacheFile.read(cacheKey, stat.st_mtime, stat.st_size,
+                    writeTime);
+            if (bytes == null) {
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
             Package p = fromCacheEntry(bytes);
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
                     for (String overlayApk : overlayApks) {
                         // If a static RRO is updated, return null.
-                        if (!isCacheUpToDate(new File(overlayApk), cacheFile)) {
+                        final StructStat overlay = statOrNull(new File(overlayApk));
+                        if (overlay == null || overlay.st_mtime >= writeTime[0]) {
                             return null;
                         }
                     }
@@ -1167,9 +1172,9 @@ public class PackageParser {
         } catch (Throwable e) {
             Slog.w(TAG, "Error reading package cache: ", e);
 
-            // If something went wrong while reading the cache entry, delete the cache file
-            // so that we regenerate it the next time.
-            cacheFile.delete();
+            // If something went wrong while reading the cache entry, forget it so that we
+            // regenerate it the next time.
+            cacheFile.remove(cacheKey);
             return null;
         }
     }
@@ -1183,13 +1188,9 @@ public class PackageParser {
         }
 
         try {
-            final String cacheKey = getCacheKey(packageFile, flags);
-            final File cacheFile = new File(mCacheDir, cacheKey);
-
-            if (cacheFile.exists()) {
-                if (!cacheFile.delete()) {
-                    Slog.e(TAG, "Unable to delete cache file: " + cacheFile);
-                }
+            final StructStat stat = statOrNull(packageFile);
+            if (stat == null) {
+                return;
             }
 
             final byte[] cacheEntry = toCacheEntry(parsed);
@@ -1198,12 +1199,8 @@ public class PackageParser {
                 return;
             }
 
-            try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
-                fos.write(cacheEntry);
-            } catch (IOException ioe) {
-                Slog.w(TAG, "Error writing cache entry.", ioe);
-                cacheFile.delete();
-            }
+            PackageParserCacheFile.get(mCacheDir).write(getCacheKey(packageFile, flags),
+                    stat.st_mtime, stat.st_size, cacheEntry);
         } catch (Throwable e) {
             Slog.w(TAG, "Error saving package cache.", e);
         }
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * All cached package parse results of a cache directory, in one file.
+ *
+ * The file is a header followed by records, each holding a cache key, the fingerprint of the
+ * package it was parsed from and the serialized package. Records are only ever appended; a newer
+ * record of a key supersedes the older ones. The file is memory-mapped and indexed when first
+ * used, reading only the record headers, so a lookup costs no file open or read of its own.
+ * Records appended since then become readable by mapping the file again.
+ *
+ * There is one instance per cache directory, shared by every {@link PackageParser} using it.
+ *
+ * @hide
+ */
+public final class PackageParserCacheFile {
+    private static final String TAG = "PackageParserCacheFile";
+
+    @VisibleForTesting
+    static final String FILE_NAME = "packages.cache";
+
+    private static final int FILE_MAGIC = 0x504b4743; // PKGC
+    private static final int FILE_VERSION = 1;
+    private static final int RECORD_MAGIC = 0x52454331; // REC1
+    private static final int HEADER_SIZE = 8;
+
+    // Superseded records are dropped when the file is loaded and they outweigh the live ones.
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+    @GuardedBy("sCacheFiles")
+    private static final ArrayMap<File, PackageParserCacheFile> sCacheFiles = new ArrayMap<>();
+
+    private final File mFile;
+
+    @GuardedBy("this")
+    private MappedByteBuffer mMapped;
+    @GuardedBy("this")
+    private final HashMap<String, Entry> mIndex = new HashMap<>();
+    // Keys appended since the file was mapped.
+    @GuardedBy("this")
+    private final ArraySet<String> mAppendedKeys = new ArraySet<>();
+    @GuardedBy("this")
+    private boolean mLoaded;
+
+    /**
+     * Returns the cache file of {@code cacheDir}.
+     */
+    public static PackageParserCacheFile get(File cacheDir) {
+        synchronized (sCacheFiles) {
+            PackageParserCacheFile cacheFile = sCacheFiles.get(cacheDir);
+            if (cacheFile == null) {
+                cacheFile = new PackageParserCacheFile(new File(cacheDir, FILE_NAME));
+                sCacheFiles.put(cacheDir, cacheFile);
+            }
+            return cacheFile;
+        }
+    }
+
+    /**
+     * Unmaps the cache file of {@code cacheDir} and drops its instance, so that the space of the
+     * file is freed once it is deleted.
+     */
+    public static void clear(File cacheDir) {
+        final PackageParserCacheFile cacheFile;
+        synchronized (sCacheFiles) {
+            cacheFile = sCacheFiles.remove(cacheDir);
+        }
+        if (cacheFile != null) {
+            synchronized (cacheFile) {
+                cacheFile.unmap();
+                cacheFile.mIndex.clear();
+                cacheFile.mAppendedKeys.clear();
+                cacheFile.mLoaded = false;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    PackageParserCacheFile(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the serialized package stored for {@code key}, or null if there is none or the
+     * package at the time it was stored had a different mtime or size.
+     *
+     * @param writeTime receives the time, in seconds, the returned package was stored.
+     */
+    public synchronized byte[] read(String key, long mtime, long size, long[] writeTime) {
+        if (!mLoaded || mAppendedKeys.contains(key)) {
+            load();
+        }
+        final Entry entry = mIndex.get(key);
+        if (entry == null || entry.mtime != mtime || entry.size != size) {
+            return null;
+        }
+        final byte[] bytes = new byte[entry.length];
+        final ByteBuffer buffer = mMapped.duplicate();
+        buffer.position(entry.offset);
+        buffer.get(bytes);
+        if (writeTime != null) {
+            writeTime[0] = entry.writeTime;
+        }
+        return bytes;
+    }
+
+    /**
+     * Stores {@code bytes} as the serialized package of {@code key}, parsed from a package with
+     * the given mtime and size.
+     */
+    public synchronized void write(String key, long mtime, long size, byte[] bytes) {
+        final boolean empty = mFile.length() == 0;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile, true)))) {
+            if (empty) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+            }
+            final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(RECORD_MAGIC);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeLong(mtime);
+            out.writeLong(size);
+            out.writeLong(System.currentTimeMillis() / 1000);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            Slog.w(TAG, "Error writing cache entry.", e);
+            return;
+        }
+        mAppendedKeys.add(key);
+    }
+
+    /**
+     * Forgets the entry of {@code key}, which could not be read back.
+     */
+    public synchronized void remove(String key) {
+        mIndex.remove(key);
+    }
+
+    @GuardedBy("this")
+    private void load() {
+        mLoaded = false;
+        mAppendedKeys.clear();
+        mIndex.clear();
+        unmap();
+        if (!mFile.exists()) {
+            mLoaded = true;
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                FileChannel channel = raf.getChannel()) {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            final HashMap<String, Entry> index = new HashMap<>();
+            final long validLength = index(mapped, index);
+            if (validLength < 0) {
+                Slog.w(TAG, "Discarding cache file with unknown header " + mFile);
+                NioUtils.freeDirectBuffer(mapped);
+                raf.setLength(0);
+                mLoaded = true;
+                return;
+            }
+            if (validLength < channel.size()) {
+                // A write was cut short; drop it so that later records follow the last good one.
+                Slog.w(TAG, "Truncating cache file " + mFile + " to " + validLength);
+                raf.setLength(validLength);
+            }
+            // Only published once the whole file is indexed, so a failed load leaves the cache
+            // empty rather than half built.
+            mIndex.putAll(index);
+            mMapped = mapped;
+            mLoaded = true;
+
+            long liveBytes = 0;
+            for (Entry entry : mIndex.values()) {
+                liveBytes += entry.length;
+            }
+            if (validLength - liveBytes > Math.max(liveBytes, MIN_COMPACT_BYTES)) {
+                compact();
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Error reading cache file " + mFile, e);
+            mLoaded = false;
+            mIndex.clear();
+            unmap();
+            mFile.delete();
+        }
+    }
+
+    @GuardedBy("this")
+    private void unmap() {
+        if (mMapped != null) {
+            // Reads only use the mapping while holding the lock, so it can be freed right away.
+            NioUtils.freeDirectBuffer(mMapped);
+            mMapped = null;
+        }
+    }
+
+    /**
+     * Adds the latest record of each key in {@code buffer} to {@code index}. Returns the length
+     * of the well-formed part of the buffer, or -1 if it doesn't start with the file header.
+     */
+    @VisibleForTesting
+    static long index(ByteBuffer buffer, HashMap<String, Entry> index) {
+        buffer.position(0);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != FILE_MAGIC
+                || buffer.getInt() != FILE_VERSION) {
+            return -1;
+        }
+        int validLength = buffer.position();
+        try {
+            while (buffer.hasRemaining()) {
+                if (buffer.getInt() != RECORD_MAGIC) {
+                    break;
+                }
+                final int keyLength = buffer.getInt();
+                if (keyLength < 0 || keyLength > buffer.remaining()) {
+                    break;
+                }
+                final byte[] keyBytes = new byte[keyLength];
+                buffer.get(keyBytes);
+                final Entry entry = new Entry();
+                entry.mtime = buffer.getLong();
+                entry.size = buffer.getLong();
+                entry.writeTime = buffer.getLong();
+                entry.length = buffer.getInt();
+                entry.offset = buffer.position();
+                if (entry.length < 0 || entry.length > buffer.remaining()) {
+                    break;
+                }
+                buffer.position(entry.offset + entry.length);
+                index.put(new String(keyBytes, StandardCharsets.UTF_8), entry);
+                validLength = buffer.position();
+            }
+        } catch (BufferUnderflowException e) {
+            // Fall through with what was read so far.
+        }
+        return validLength;
+    }
+
+    /**
+     * Rewrites the file with only the live records, then maps it again.
+     */
+    @GuardedBy("this")
+    private void compact() throws IOException {
+        final File temp = new File(mFile.getPath() + ".tmp");
+        final String[] keys = mIndex.keySet().toArray(new String[0]);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            for (String key : keys) {
+                final Entry entry = mIndex.get(key);
+                final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                final byte[] bytes = new byte[entry.length];
+                final ByteBuffer buffer = mMapped.duplicate();
+                buffer.position(entry.offset);
+                buffer.get(bytes);
+                out.writeInt(RECORD_MAGIC);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.size);
+                out.writeLong(entry.writeTime);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            return;
+        }
+        Slog.i(TAG, "Compacted cache file " + mFile + " to " + keys.length + " entries");
+        load();
+    }
+
+    @VisibleForTesting
+    static final class Entry {
+        long mtime;
+        long size;
+        long writeTime;
+        int offset;
+        int length;
+    }
+}
@@ -655,6 +655,16 @@ public final class DisplayManager {
         return mGlobal.createUIDisplay(width, height);
     }
 
+    /**
+     * Creates one UI display per {@code width, height} pair of {@code sizes} without blocking.
+     * Displays left over from an earlier lens are reused and resized when possible.
+     * {@code callback} is called on {@code handler} (or the calling looper) as each display is
+     * added; entries may complete in any order.
+     */
+    public void createUIDisplays(int[] sizes, UIDisplayCallback callback, Handler handler) {
+        mGlobal.createUIDisplays(sizes, callback, handler);
+    }
+
     public void createLoadingDisplay(int width, int height) {
         mGlobal.createLoadingDisplay(width, height);
     }
@@ -724,6 +734,26 @@ public final class DisplayManager {
     public int getUIDisplayCount() {
         return mGlobal.getUIDisplayCount();
     }
+
+    /**
+     * Returns the package of the app most likely to show the next lens, predicted from recent
+     * lenses, or null. A launcher can start it ahead on an off-screen display.
+     * Requires {@link android.Manifest.permission#OBSERVE_APP_USAGE}.
+     * @hide
+     */
+    @RequiresPermission(Manifest.permission.OBSERVE_APP_USAGE)
+    public String getPredictedLensTarget() {
+        return mGlobal.getPredictedLensTarget();
+    }
+
+    /**
+     * Receives the displays of {@link #createUIDisplays}.
+     * @hide
+     */
+    public interface UIDisplayCallback {
+        /** The display of entry {@code index} of the request is ready. */
+        void onUIDisplayAdded(int index, int displayId);
+    }
     
     /** Applens: end */
     /**
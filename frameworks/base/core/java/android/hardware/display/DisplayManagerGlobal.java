@@ -458,6 +458,15 @@ public final class DisplayManagerGlobal {
         }
     }
 
+    public void createUIDisplays(int[] sizes, DisplayManager.UIDisplayCallback callback,
+            Handler handler) {
+        try {
+            mDm.createUIDisplays(sizes, new UIDisplayCallback(callback, handler));
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
 
     public void createLoadingDisplay(int width, int height) {
         try {
@@ -597,6 +606,15 @@ public final class DisplayManagerGlobal {
             throw e.rethrowFromSystemServer();
         }
     }
+
+    /** @hide */
+    public String getPredictedLensTarget() {
+        try {
+            return mDm.getPredictedLensTarget();
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
     /**Applens: end */
 
 
@@ -895,6 +913,24 @@ public final class DisplayManagerGlobal {
         }
     }
 
+    /** applens: start */
+    private final static class UIDisplayCallback extends IUIDisplayCallback.Stub {
+        private final DisplayManager.UIDisplayCallback mCallback;
+        private final Handler mHandler;
+
+        public UIDisplayCallback(DisplayManager.UIDisplayCallback callback, Handler handler) {
+            mCallback = callback;
+            mHandler = new Handler(handler != null ? handler.getLooper() : Looper.myLooper(),
+                    null, true /*async*/);
+        }
+
+        @Override // Binder call
+        public void onUIDisplayAdded(int index, int displayId) {
+            mHandler.post(() -> mCallback.onUIDisplayAdded(index, displayId));
+        }
+    }
+    /** applens: end */
+
     private final static class VirtualDisplayCallbackDelegate extends Handler {
         public static final int MSG_DISPLAY_PAUSED = 0;
         public static final int MSG_DISPLAY_RESUMED = 1;
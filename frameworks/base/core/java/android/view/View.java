@@ -169,8 +169,7 @@ import com.android.internal.policy.DecorContext;
 import com.android.internal.policy.DecorView;
 import android.app.Activity;
 import android.applens.AppLensManager;
-import android.widget.LinearLayout;
-import android.graphics.drawable.GradientDrawable;
+import android.applens.LensReadinessWatcher;
 /* applens: end */
 
 /**
@@ -813,10 +812,6 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
     /* applens: start */
     private boolean isMigrated = false;
     private boolean isMeasuring = false;
-    private boolean watchUpdate = false;
-    private boolean macroUpdate = false;
-
-    private LinearLayout mOverlayBound = null;
 
     /** @hide */
     public int mUISelected = 0;
@@ -830,12 +825,6 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
     /** @hide */
     public static final int GROUP_SELECTED = 2;
 
-    /** @hide */
-    public int mSelectedChildCount = 0;
-
-    /** @hide */
-    public int mSelectedDirectChildCount = 0;
-
     /** @hide */
     public ViewParent mVirtualParent = null;
 
@@ -844,21 +833,65 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
         mLeft = mRight = mTop = mBottom = 0;
     }
 
+    /**
+     * Lens state of a window, computed when the window is added or moves to another display and
+     * kept in its {@link AttachInfo} so the input and IME paths test a bit instead of casting
+     * contexts.
+     * @hide
+     */
+    public static final int LENS_WINDOW_ACTIVITY = 1 << 0;
+    /** The window is on an off-screen or UI display. @hide */
+    public static final int LENS_WINDOW_OFF_SCREEN = 1 << 1;
+    /** The window is in UI selection mode. @hide */
+    public static final int LENS_WINDOW_SELECTING = 1 << 2;
+
     /** @hide */
     public void setMigrated(boolean migrated) {
         isMigrated = migrated;
     }
 
+    /** Returns the LENS_WINDOW_* flags of this view's window, 0 if not attached. @hide */
+    public int getLensWindowFlags() {
+        return mAttachInfo != null ? mAttachInfo.mLensFlags : 0;
+    }
+
     /** @hide */
-    public void setWatchUpdate(boolean update) {
-        watchUpdate = update;
+    public void setLensWindowFlag(int flag, boolean set) {
+        if (mAttachInfo != null) {
+            if (set) {
+                mAttachInfo.mLensFlags |= flag;
+            } else {
+                mAttachInfo.mLensFlags &= ~flag;
+            }
+        }
+    }
+
+    /**
+     * Registers {@code watcher} for child add/remove events of this view's window.
+     * Returns false if the view is not attached.
+     * @hide
+     */
+    public boolean addLensReadinessWatcher(LensReadinessWatcher watcher) {
+        if (mAttachInfo == null) {
+            return false;
+        }
+        if (mAttachInfo.mLensReadinessWatchers == null) {
+            mAttachInfo.mLensReadinessWatchers = new ArrayList<>();
+        }
+        mAttachInfo.mLensReadinessWatchers.add(watcher);
+        return true;
     }
 
     /** @hide */
-    public void setMacroUpdate(boolean update) {
-        macroUpdate = update;
+    public void removeLensReadinessWatcher(LensReadinessWatcher watcher) {
+        if (mAttachInfo != null && mAttachInfo.mLensReadinessWatchers != null) {
+            mAttachInfo.mLensReadinessWatchers.remove(watcher);
+            if (mAttachInfo.mLensReadinessWatchers.isEmpty()) {
+                mAttachInfo.mLensReadinessWatchers = null;
+            }
+        }
     }
-    
+
     /** @hide */
     public void setMeasuring(boolean measuring) {
         isMeasuring = measuring;
@@ -13993,137 +14026,9 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
 
     /** applens: start */
 
-    private boolean isInTouchBound(MotionEvent event) {
-        float x = event.getX();
-        float y = event.getY();
-        if (x > getWidth() || y > getHeight()) {
-            return false;
-        }
-        return true;
-    }
-
-    private boolean isFullScreen() {
-        Context context = getContext();
-        View decorView = ((Activity)getContext()).getWindow().getDecorView();
-        int flags = decorView.getSystemUiVisibility();
-        return ((flags & SYSTEM_UI_FLAG_FULLSCREEN) != 0);
-    }
-
-    /** @hide */
-    public void addOverlayBound() {
-        WindowManager.LayoutParams params = new WindowManager.LayoutParams(
-                getWidth(),
-                getHeight(),
-                WindowManager.LayoutParams.TYPE_APPLICATION_ATTACHED_DIALOG,
-                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
-                | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE
-                | WindowManager.LayoutParams.FLAG_WATCH_OUTSIDE_TOUCH,
-                PixelFormat.TRANSLUCENT);
-        params.gravity = Gravity.LEFT | Gravity.TOP;
-        int[] xy = new int[2];
-        getLocationInWindow(xy);
-        params.x = xy[0];
-
-        if (isFullScreen())
-            params.y = xy[1];
-        else
-            params.y = xy[1] - 70;
-
-        if (mOverlayBound == null) {
-            mOverlayBound = new LinearLayout(mContext);
-            GradientDrawable gd = new GradientDrawable();
-            gd.setStroke(20, 0xffff0000);
-            gd.setColor(0);
-            mOverlayBound.setBackground(gd);
-        }
-
-        WindowManager wm = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
-        wm.addView(mOverlayBound, params);
-    }
-
-    /** @hide */
-    public void removeOverlayBound() {
-        if (mOverlayBound != null) {
-            WindowManager wm = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
-            wm.removeView(mOverlayBound);
-            mOverlayBound = null;
-        }
-    }
-
-    /**@hide */
-    public void markSelectedUI(boolean needOverlay) {
-        Context context = getContext();
-        if (!(context instanceof Activity)) {
-            mUISelected = NOT_SELECTED;
-            return;
-        }
-
-        if (needOverlay)
-            addOverlayBound();
-
-        ViewGroup parent = (ViewGroup)getParent();
-        parent.mSelectedDirectChildCount++;
-        while (parent != null) {
-            parent.mSelectedChildCount++;
-            if (parent.getId() == android.R.id.content)
-                break;
-            parent = (ViewGroup)parent.getParent();
-        }
-    }
-
-    /** @hide */
-    public void unmarkSelectedUI() {
-        ViewGroup parent = (ViewGroup)getParent();
-        parent.mSelectedDirectChildCount--;
-        while (parent != null) {
-            parent.mSelectedChildCount--;
-            if (parent.getId() == android.R.id.content)
-                break;
-            parent = (ViewGroup)parent.getParent();
-        }
-    }
-
-    /**@hide */
-    public void markSelectedUIGroup() {
-        ViewGroup parent = (ViewGroup) getParent();
-        parent.addOverlayBound();
-        removeOverlayBound();
-        parent.mUISelected = SOLO_SELECTED;
-
-        int childCount = parent.getChildCount();
-        for (int i = 0; i < childCount; i++) {
-            View child = parent.getChildAt(i);
-            if (child.mUISelected == SOLO_SELECTED)
-                child.removeOverlayBound();
-            else
-                child.markSelectedUI(false);
-            child.mUISelected = GROUP_SELECTED;
-        }
-
-    }
-    
-    /** @hide */
-    public void unmarkSelectedUIGroup() {
-        ViewGroup parent = (ViewGroup) getParent();
-        parent.removeOverlayBound();
-        parent.mUISelected = NOT_SELECTED;
-        mUISelected = NOT_SELECTED;
-        int childCount = parent.getChildCount();
-        for (int i = 0; i < childCount; i++) {
-            View child = parent.getChildAt(i);
-            child.unmarkSelectedUI();
-            child.mUISelected = NOT_SELECTED;
-        }
-    }
-
     /**@hide */
     public boolean isOffScreen() {
-       //sunjae 
-       if (mContext.getPackageName().equals("com.google.android.gms")) {
-           Log.e("hoyoung", "err handling");
-           return false;
-       }
-       return ((Activity)mContext).isOffScreen();
+        return (getLensWindowFlags() & LENS_WINDOW_OFF_SCREEN) != 0;
     }
     /** applens: end */
     public boolean dispatchTouchEvent(MotionEvent event) {
@@ -14136,23 +14041,9 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
                 if (res)
                     return true;
             }
-        } else if (Activity.mUISelectMode){
-            if (this instanceof ViewGroup)
-                return false;
-            if (event.getAction() == MotionEvent.ACTION_UP && isInTouchBound(event)) {
-                mUISelected++;
-                if (mUISelected > GROUP_SELECTED) {
-                    mUISelected = NOT_SELECTED;
-                    unmarkSelectedUIGroup();
-                }
-                if (mUISelected == SOLO_SELECTED)
-                    markSelectedUI(true);
-                else if (mUISelected == GROUP_SELECTED)
-                    markSelectedUIGroup();
-                else if (mUISelected == NOT_SELECTED)
-                    unmarkSelectedUIGroup();
-            }
-            return true;
+        } else if ((getLensWindowFlags() & LENS_WINDOW_SELECTING) != 0) {
+            // Taps are hit tested by the activity while selecting, see Activity.triggerUISelection.
+            return !(this instanceof ViewGroup);
         }
         /** applens: end */
 
@@ -14450,7 +14341,7 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
     public final boolean dispatchPointerEvent(MotionEvent event) {
         if (event.isTouchEvent()) {
             /** applens: start */
-            if (mContext instanceof DecorContext) {
+            if ((getLensWindowFlags() & LENS_WINDOW_ACTIVITY) != 0) {
                 boolean res = ((DecorContext)mContext).triggerUISelection(event);
                 if (res)
                     return true;
@@ -22763,24 +22654,6 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
 
         notifyAppearedOrDisappearedForContentCaptureIfNeeded(true);
         
-        /** applens: start
-        if (watchUpdate) {
-            if (mContext instanceof DecorContext) {
-                ((DecorContext)mContext).fetchSubtree();
-            }
-        }
-
-        if (macroUpdate) {
-            if (mContext instanceof DecorContext) {
-                ((DecorContext)mContext).parseMacro();
-            }
-        }
-
-        if (mContext instanceof Activity) {
-            Log.d("LENS", "instnace of activity");
-
-        }
-         applens: end */
     }
 
     private boolean hasParentWantsFocus() {
@@ -28778,6 +28651,18 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
          */
         boolean mUnbufferedDispatchRequested;
 
+        /**
+         * applens: watchers told about views added to or removed from this window, null when
+         * none are waiting.
+         */
+        ArrayList<LensReadinessWatcher> mLensReadinessWatchers;
+
+        /**
+         * applens: LENS_WINDOW_* flags of this window, set by ViewRootImpl when the window is
+         * added and updated when it moves to another display.
+         */
+        int mLensFlags;
+
         /**
          * Indicates that ViewAncestor should trigger a global layout change
          * the next time it performs a traversal
@@ -73,6 +73,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.function.Predicate;
 
+/* applens: start */
+import android.applens.LensReadinessWatcher;
+/* applens: end */
+
 /**
  * <p>
  * A <code>ViewGroup</code> is a special view that can contain other views
@@ -5033,6 +5037,14 @@ public abstract class ViewGroup extends View implements ViewParent, ViewManager
         if (mOnHierarchyChangeListener != null) {
             mOnHierarchyChangeListener.onChildViewAdded(this, child);
         }
+        /** applens: start */
+        if (mAttachInfo != null && mAttachInfo.mLensReadinessWatchers != null) {
+            final ArrayList<LensReadinessWatcher> watchers = mAttachInfo.mLensReadinessWatchers;
+            for (int i = watchers.size() - 1; i >= 0; i--) {
+                watchers.get(i).onViewAdded(child);
+            }
+        }
+        /** applens: end */
     }
 
     /**
@@ -5050,6 +5062,14 @@ public abstract class ViewGroup extends View implements ViewParent, ViewManager
         if (mOnHierarchyChangeListener != null) {
             mOnHierarchyChangeListener.onChildViewRemoved(this, child);
         }
+        /** applens: start */
+        if (mAttachInfo != null && mAttachInfo.mLensReadinessWatchers != null) {
+            final ArrayList<LensReadinessWatcher> watchers = mAttachInfo.mLensReadinessWatchers;
+            for (int i = watchers.size() - 1; i >= 0; i--) {
+                watchers.get(i).onViewRemoved(child);
+            }
+        }
+        /** applens: end */
     }
 
     /**
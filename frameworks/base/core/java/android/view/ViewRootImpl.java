@@ -787,6 +787,9 @@ public final class ViewRootImpl implements ViewParent,
                 mView = view;
 
                 mAttachInfo.mDisplayState = mDisplay.getState();
+                /** applens: start */
+                mAttachInfo.mLensFlags = computeLensFlags(view, mDisplay);
+                /** applens: end */
                 mDisplayManager.registerDisplayListener(mDisplayListener, mHandler);
 
                 mViewLayoutDirectionInitial = mView.getRawLayoutDirection();
@@ -1403,6 +1406,14 @@ public final class ViewRootImpl implements ViewParent,
             mDisplay = preferredDisplay;
         }
         mContext.updateDisplay(mDisplay.getDisplayId());
+        /** applens: start */
+        // The window may have moved onto or off a lens display.
+        if (isLensDisplay(mDisplay)) {
+            mAttachInfo.mLensFlags |= View.LENS_WINDOW_OFF_SCREEN;
+        } else {
+            mAttachInfo.mLensFlags &= ~View.LENS_WINDOW_OFF_SCREEN;
+        }
+        /** applens: end */
     }
 
     void pokeDrawLockIfNeeded() {
@@ -7210,6 +7221,32 @@ public final class ViewRootImpl implements ViewParent,
         mView.debug();
     }
 
+    /** applens: start */
+    // Unique ID prefixes of the displays made by OffScreenDisplayAdapter and UIDisplayAdapter.
+    private static final String LENS_OFF_SCREEN_ID_PREFIX = "OffScreen:";
+    private static final String LENS_UI_DISPLAY_ID_PREFIX = "UIDisplay";
+
+    private static int computeLensFlags(View view, Display display) {
+        int flags = 0;
+        if (view.getContext() instanceof DecorContext) {
+            flags |= View.LENS_WINDOW_ACTIVITY;
+        }
+        if (isLensDisplay(display)) {
+            flags |= View.LENS_WINDOW_OFF_SCREEN;
+        }
+        return flags;
+    }
+
+    private static boolean isLensDisplay(Display display) {
+        if (display.getDisplayId() == DEFAULT_DISPLAY) {
+            return false;
+        }
+        final String uniqueId = display.getUniqueId();
+        return uniqueId != null && (uniqueId.startsWith(LENS_OFF_SCREEN_ID_PREFIX)
+                || uniqueId.startsWith(LENS_UI_DISPLAY_ID_PREFIX));
+    }
+    /** applens: end */
+
     public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
         String innerPrefix = prefix + "  ";
         writer.print(prefix); writer.println("ViewRoot:");
@@ -7232,6 +7269,8 @@ public final class ViewRootImpl implements ViewParent,
         } else {
             writer.println();
         }
+        writer.print(innerPrefix); writer.print("mLensFlags=0x");
+                writer.println(Integer.toHexString(mAttachInfo.mLensFlags));
         mFirstInputStage.dump(innerPrefix, writer);
 
         mChoreographer.dump(prefix, writer);
@@ -1407,11 +1407,7 @@ public final class InputMethodManager {
     public boolean showSoftInput(View view, int flags, ResultReceiver resultReceiver) {
         /** applens: start */
         if (view.isOffScreen()) {
-            Log.d("LENS", "view offscreen don't show keyboard");
             return false;
-        } else {
-            Log.d("LENS", "view not offscreen");
-        
         }
         /** applens: end */
         // Re-dispatch if there is a context mismatch.
@@ -135,26 +135,6 @@ public class DecorContext extends ContextThemeWrapper {
         return false;
     }
 
-    /** @hide */
-    public void fetchSubtree(View view) {
-        Context context = mActivityContext.get();
-        if (context instanceof Activity) {
-            if (((Activity)context).getWatchUpdate()){
-                ((Activity)context).fetchSubtree(false, view);
-            }
-        }
-    }
-
-    /** @hide */
-    public void parseMacro(View view) {
-        Context context = mActivityContext.get();
-        if (context instanceof Activity) {
-            if (((Activity)context).getMacroUpdate()) {
-                ((Activity)context).parseTouch(false, view);
-            }
-        }
-    }
-
     public boolean bringToFront() {
         Context context = mActivityContext.get();
         if (context instanceof Activity) {
@@ -112,11 +112,6 @@ import com.android.internal.widget.BackgroundFallback;
 import com.android.internal.widget.DecorCaptionView;
 import com.android.internal.widget.FloatingToolbar;
 
-/** applens: start */
-import android.content.ContextWrapper;
-import android.app.Activity;
-/** applens: end */
-
 import java.util.List;
 
 /** @hide */
@@ -792,20 +787,6 @@ public class DecorView extends FrameLayout implements RootViewSurfaceTaker, Wind
         }
     }
 
-    /**@hide */
-    private Context getActivity(Context context) {
-        if (context instanceof ContextWrapper) {
-            Context c = ((ContextWrapper) context).getBaseContext();
-            if (c instanceof Activity) {
-                return c;
-            } else {
-                return getActivity(c);
-            }
-        }else {
-            return null;
-        }
-    }
-
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
@@ -831,27 +812,6 @@ public class DecorView extends FrameLayout implements RootViewSurfaceTaker, Wind
         if (changed && mResizeMode == RESIZE_MODE_DOCKED_DIVIDER) {
             getViewRootImpl().requestInvalidateRootRenderNode();
         }
-        /** applens: start */
-        if (!mIsMigrated) {
-            if (mContext instanceof DecorContext) {
-                ((DecorContext)mContext).fetchSubtree((View)this);
-                ((DecorContext)mContext).parseMacro((View)this);
-                
-            } else if(mContext instanceof ContextWrapper) {
-                Context c = getActivity(mContext);
-               if (c instanceof DecorContext) {
-                    ((DecorContext)mContext).fetchSubtree((View)this);
-                    ((DecorContext)mContext).parseMacro((View)this);
-               }
-               if (c instanceof Activity) {
-                    if (((Activity) c).getWatchUpdate())
-                        ((Activity) c).fetchSubtree(false, (View)this);
-                    if (((Activity) c).getMacroUpdate())
-                        ((Activity) c).parseTouch(false, (View)this);
-               } 
-            }
-        }
-        /** applens: end */
         
     }
 
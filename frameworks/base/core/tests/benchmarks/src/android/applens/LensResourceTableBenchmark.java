@@ -0,0 +1,105 @@
+package android.applens;
+
+import android.content.res.Resources;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+
+import java.io.File;
+import java.io.FileWriter;
+
+/**
+ * Compares resolving the view references of a lens spec through
+ * {@link Resources#getIdentifier} (what every migration attempt used to do) against the int
+ * lookups of a {@link LensResourceTable}.
+ */
+public class LensResourceTableBenchmark {
+    private static final String[] NAMES = {
+            "content", "text1", "text2", "icon", "title", "button1", "button2", "button3",
+            "list", "empty", "summary", "checkbox", "background", "progress",
+            "secondaryProgress", "tabhost", "tabs", "tabcontent", "input", "edit", "hint",
+            "message", "primary", "selectAll", "cut", "copy", "paste", "home",
+            "widget_frame", "closeButton", "custom", "extractArea", "candidatesArea",
+            "inputArea", "keyboardView", "mask", "toggle", "switch_widget", "selectedIcon",
+            "statusBarBackground", "navigationBarBackground",
+    };
+
+    @Param({"120"})
+    private int mReferences;
+
+    private File mDir;
+    private Resources mResources;
+    private LensSpec.Block mBlock;
+    private LensResourceTable mTable;
+
+    @BeforeExperiment
+    protected void setUp() throws Exception {
+        mDir = new File("/data/local/tmp/lens_bench");
+        mDir.mkdirs();
+        File layout = new File(mDir, LensSpec.LAYOUT_FILE);
+        File macro = new File(mDir, LensSpec.MACRO_FILE);
+        File compiled = new File(mDir, LensSpec.COMPILED_FILE);
+
+        StringBuilder sb = new StringBuilder("<lens><activity android:name=\"Bench\">");
+        sb.append("<display android:width=\"100\" android:height=\"100\">");
+        for (int i = 0; i < mReferences; i++) {
+            sb.append("<existing android:id=\"@android:id/")
+                    .append(NAMES[i % NAMES.length])
+                    .append("\" android:background=\"@android:drawable/btn_default\"/>");
+        }
+        sb.append("</display></activity></lens>");
+        try (FileWriter writer = new FileWriter(layout)) {
+            writer.write(sb.toString());
+        }
+
+        LensSpecCompiler.compile(layout, macro, compiled);
+        LensSpec spec = LensSpec.map(compiled);
+        mBlock = spec.getLayout("Bench");
+        mResources = Resources.getSystem();
+        mTable = new LensResourceTable(spec, mResources, "android", null);
+    }
+
+    @AfterExperiment
+    protected void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    public int timeGetIdentifier(int reps) {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            for (int j = 1; j < mBlock.size(); j++) {
+                LensSpec.Node node = mBlock.get(j);
+                sum += mResources.getIdentifier(node.getAttributeValue("android:id"), "id",
+                        "android");
+                sum += mResources.getIdentifier(node.getAttributeValue("android:background"),
+                        "drawable", "android");
+            }
+        }
+        return sum;
+    }
+
+    public int timeResourceTable(int reps) {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            for (int j = 1; j < mBlock.size(); j++) {
+                LensSpec.Node node = mBlock.get(j);
+                sum += mTable.getId(node, "android:id");
+                sum += mTable.getId(node, "android:background");
+            }
+        }
+        return sum;
+    }
+
+    public int timeBuildResourceTable(int reps) throws Exception {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += new LensResourceTable(LensSpec.map(new File(mDir, LensSpec.COMPILED_FILE)),
+                    mResources, "android", null).getId(0);
+        }
+        return sum;
+    }
+}
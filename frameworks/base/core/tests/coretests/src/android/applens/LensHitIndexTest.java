@@ -0,0 +1,77 @@
+package android.applens;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.content.Context;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link LensHitIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensHitIndexTest {
+    private Context mContext;
+    private FrameLayout mRoot;
+    private View mBottom;
+    private View mTop;
+    private View mHidden;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+        mRoot = new FrameLayout(mContext);
+        FrameLayout group = new FrameLayout(mContext);
+        mBottom = new View(mContext);
+        mTop = new View(mContext);
+        mHidden = new View(mContext);
+        mHidden.setVisibility(View.GONE);
+        group.addView(mBottom, new FrameLayout.LayoutParams(400, 400));
+        group.addView(mTop, new FrameLayout.LayoutParams(100, 100));
+        group.addView(mHidden, new FrameLayout.LayoutParams(800, 800));
+        mRoot.addView(group, new FrameLayout.LayoutParams(800, 800));
+        layout();
+    }
+
+    private void layout() {
+        mRoot.measure(View.MeasureSpec.makeMeasureSpec(800, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(800, View.MeasureSpec.EXACTLY));
+        mRoot.layout(0, 0, 800, 800);
+    }
+
+    @Test
+    public void testFindsTopmostVisibleLeaf() {
+        LensHitIndex index = new LensHitIndex(mRoot);
+        assertEquals(2, index.getLeafCount());
+        assertSame(mTop, index.hitTest(50, 50));
+        assertSame(mBottom, index.hitTest(300, 300));
+        assertNull(index.hitTest(600, 600));
+        assertNull(index.hitTest(-1, 10));
+        assertNull(index.hitTest(10, 900));
+    }
+
+    @Test
+    public void testRebuildsOnlyWhenStale() {
+        LensHitIndex index = new LensHitIndex(mRoot);
+        index.hitTest(50, 50);
+        index.hitTest(300, 300);
+        assertEquals(1, index.getRebuildCount());
+
+        index.stop();
+        mHidden.setVisibility(View.VISIBLE);
+        layout();
+        assertSame(mHidden, index.hitTest(600, 600));
+        assertEquals(2, index.getRebuildCount());
+    }
+}
@@ -0,0 +1,103 @@
+package android.applens;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link LensProjectionView}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensProjectionViewTest {
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+    }
+
+    @Test
+    public void testKeepsSourceInPlace() {
+        FrameLayout parent = new FrameLayout(mContext);
+        View source = new View(mContext);
+        parent.addView(source);
+
+        FrameLayout subtree = new FrameLayout(mContext);
+        LensProjectionView projection = new LensProjectionView(mContext, source);
+        subtree.addView(projection);
+
+        assertSame(parent, source.getParent());
+        assertSame(source, projection.getSource());
+    }
+
+    @Test
+    public void testMeasuresLikeSource() {
+        View source = new View(mContext);
+        source.layout(10, 20, 110, 70);
+        LensProjectionView projection = new LensProjectionView(mContext, source);
+
+        int unspecified = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+        projection.measure(unspecified, unspecified);
+        assertEquals(100, projection.getMeasuredWidth());
+        assertEquals(50, projection.getMeasuredHeight());
+
+        int exactly = View.MeasureSpec.makeMeasureSpec(40, View.MeasureSpec.EXACTLY);
+        projection.measure(exactly, exactly);
+        assertEquals(40, projection.getMeasuredWidth());
+        assertEquals(40, projection.getMeasuredHeight());
+    }
+
+    @Test
+    public void testMapsTouchesToSource() {
+        View source = new View(mContext);
+        source.layout(10, 20, 110, 70);
+        LensProjectionView projection = new LensProjectionView(mContext, source);
+        projection.layout(0, 0, 200, 200);
+
+        long now = SystemClock.uptimeMillis();
+        MotionEvent down = MotionEvent.obtain(now, now, MotionEvent.ACTION_DOWN, 100, 100, 0);
+        MotionEvent mapped = projection.transformToSource(down);
+        assertEquals(50f, mapped.getX(), 0.01f);
+        assertEquals(25f, mapped.getY(), 0.01f);
+        mapped.recycle();
+
+        // The source's own scale is undone too.
+        source.setPivotX(0);
+        source.setPivotY(0);
+        source.setScaleX(2f);
+        mapped = projection.transformToSource(down);
+        assertEquals(25f, mapped.getX(), 0.01f);
+        assertEquals(25f, mapped.getY(), 0.01f);
+        mapped.recycle();
+        down.recycle();
+    }
+
+    @Test
+    public void testDoesNotForwardToDetachedSource() {
+        final boolean[] touched = new boolean[1];
+        View source = new View(mContext);
+        source.setOnTouchListener((v, event) -> touched[0] = true);
+        LensProjectionView projection = new LensProjectionView(mContext, source);
+
+        long now = SystemClock.uptimeMillis();
+        MotionEvent down = MotionEvent.obtain(now, now, MotionEvent.ACTION_DOWN, 5, 5, 0);
+        assertFalse(projection.dispatchTouchEvent(down));
+        down.recycle();
+        assertFalse(touched[0]);
+    }
+}
@@ -0,0 +1,75 @@
+package android.applens;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link LensSelectionOverlay}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensSelectionOverlayTest {
+    private Context mContext;
+    private FrameLayout mRoot;
+    private FrameLayout mGroup;
+    private View mFirst;
+    private View mSecond;
+    private LensSelectionOverlay mOverlay;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+        mRoot = new FrameLayout(mContext);
+        mGroup = new FrameLayout(mContext);
+        mFirst = new View(mContext);
+        mSecond = new View(mContext);
+        mGroup.addView(mFirst);
+        mGroup.addView(mSecond);
+        mRoot.addView(mGroup);
+        mOverlay = new LensSelectionOverlay(mContext, mRoot);
+    }
+
+    @Test
+    public void testTapsCycleSoloGroupNone() {
+        mOverlay.toggle(mFirst);
+        assertEquals(View.SOLO_SELECTED, mFirst.mUISelected);
+        assertEquals(1, mOverlay.getSelectedViews().size());
+        assertTrue(mOverlay.getSelectedViews().contains(mFirst));
+
+        mOverlay.toggle(mFirst);
+        assertEquals(View.SOLO_SELECTED, mGroup.mUISelected);
+        assertEquals(View.GROUP_SELECTED, mFirst.mUISelected);
+        assertEquals(View.GROUP_SELECTED, mSecond.mUISelected);
+        assertEquals(1, mOverlay.getSelectedViews().size());
+        assertTrue(mOverlay.getSelectedViews().contains(mGroup));
+
+        mOverlay.toggle(mSecond);
+        assertEquals(View.NOT_SELECTED, mGroup.mUISelected);
+        assertEquals(View.NOT_SELECTED, mFirst.mUISelected);
+        assertEquals(View.NOT_SELECTED, mSecond.mUISelected);
+        assertEquals(0, mOverlay.getSelectedViews().size());
+    }
+
+    @Test
+    public void testClearUnselectsEverything() {
+        mOverlay.toggle(mFirst);
+        mOverlay.toggle(mFirst);
+        mOverlay.clear();
+        assertEquals(View.NOT_SELECTED, mGroup.mUISelected);
+        assertEquals(View.NOT_SELECTED, mFirst.mUISelected);
+        assertEquals(View.NOT_SELECTED, mSecond.mUISelected);
+        assertEquals(0, mOverlay.getSelectedViews().size());
+    }
+}
@@ -0,0 +1,186 @@
+package android.applens;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link LensSession}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensSessionTest {
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+    }
+
+    @Test
+    public void testReleaseDropsViews() {
+        LensSession session = new LensSession("test");
+        FrameLayout root = new FrameLayout(mContext);
+        session.getSubtrees().add(new FrameLayout(mContext));
+        ArrayList<View> migrated = new ArrayList<View>();
+        migrated.add(new View(mContext));
+        session.addMigratedViews(migrated);
+        session.setPrimaryTree(root);
+        session.setProxyLayout(root);
+        assertSame(root, session.getPrimaryTree());
+
+        session.release();
+        assertTrue(session.isReleased());
+        assertEquals(0, session.getSubtrees().size());
+        assertEquals(0, session.getMigratedViews().size());
+        assertNull(session.getPrimaryTree());
+        assertNull(session.getProxyLayout());
+
+        // A late presentation must not repopulate a released session.
+        session.addMigratedViews(migrated);
+        assertEquals(0, session.getMigratedViews().size());
+    }
+
+    @Test
+    public void testRestoreViewsPutsViewsBack() {
+        LensSession session = new LensSession("test");
+        FrameLayout parent = new FrameLayout(mContext);
+        View first = new View(mContext);
+        View moved = new View(mContext);
+        View last = new View(mContext);
+        parent.addView(first);
+        parent.addView(moved, new FrameLayout.LayoutParams(10, 20));
+        parent.addView(last);
+        moved.setVisibility(View.INVISIBLE);
+
+        // What the lens does to a migrated view.
+        session.recordReparent(moved, parent);
+        moved.getLayoutParams().width = FrameLayout.LayoutParams.MATCH_PARENT;
+        moved.setTranslationY(30f);
+        moved.setVisibility(View.VISIBLE);
+        parent.removeView(moved);
+        moved.mVirtualParent = parent;
+        FrameLayout subtree = new FrameLayout(mContext);
+        subtree.addView(moved);
+
+        assertEquals(1, session.restoreViews());
+        assertSame(parent, moved.getParent());
+        assertSame(moved, parent.getChildAt(1));
+        assertEquals(0, subtree.getChildCount());
+        assertNull(moved.mVirtualParent);
+        assertEquals(10, moved.getLayoutParams().width);
+        assertEquals(20, moved.getLayoutParams().height);
+        assertEquals(0f, moved.getTranslationY(), 0f);
+        assertEquals(View.INVISIBLE, moved.getVisibility());
+
+        // Nothing is left to restore.
+        assertEquals(0, session.restoreViews());
+    }
+
+    @Test
+    public void testRestoreViewsUndoesAttributes() {
+        LensSession session = new LensSession("test");
+        FrameLayout parent = new FrameLayout(mContext);
+        FrameLayout moved = new FrameLayout(mContext);
+        View child = new View(mContext);
+        moved.addView(child);
+        parent.addView(moved);
+        Drawable background = new ColorDrawable(Color.RED);
+        moved.setBackground(background);
+        moved.setPadding(1, 2, 3, 4);
+
+        // What the lens and UIDisplay do to a migrated view.
+        moved.setMigrated(true);
+        session.recordReparent(moved, parent);
+        moved.setBackgroundResource(android.R.drawable.btn_default);
+        moved.setPadding(0, 50, 0, 0);
+        parent.removeView(moved);
+        FrameLayout subtree = new FrameLayout(mContext);
+        subtree.addView(moved);
+        child.setMigrated(true);
+
+        assertEquals(1, session.restoreViews());
+        assertSame(background, moved.getBackground());
+        assertEquals(1, moved.getPaddingLeft());
+        assertEquals(2, moved.getPaddingTop());
+        assertEquals(3, moved.getPaddingRight());
+        assertEquals(4, moved.getPaddingBottom());
+        assertFalse(moved.isMigrated());
+        assertFalse(child.isMigrated());
+    }
+
+    @Test
+    public void testRestoreViewsRestoresProjectedVisibility() {
+        LensSession session = new LensSession("test");
+        FrameLayout parent = new FrameLayout(mContext);
+        View projected = new View(mContext);
+        projected.setVisibility(View.GONE);
+        parent.addView(projected);
+
+        // What the lens does to a view it projects.
+        session.recordProjection(projected);
+        projected.setVisibility(View.VISIBLE);
+
+        assertEquals(1, session.restoreViews());
+        assertEquals(View.GONE, projected.getVisibility());
+        assertSame(parent, projected.getParent());
+        assertEquals(0, session.restoreViews());
+    }
+
+    @Test
+    public void testDoesNotRetainUnownedViews() {
+        LensSession session = new LensSession("test");
+        WeakReference<View> ref = setPrimaryTreeAndForget(session);
+        for (int i = 0; i < 20 && ref.get() != null; i++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+        }
+        assertNull(ref.get());
+        assertNull(session.getPrimaryTree());
+    }
+
+    @Test
+    public void testReleasedSessionRetainsNothing() {
+        LensSession session = new LensSession("test");
+        WeakReference<View> ref = addSubtreeAndForget(session);
+        session.release();
+        for (int i = 0; i < 20 && ref.get() != null; i++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+        }
+        assertNull(ref.get());
+    }
+
+    private WeakReference<View> setPrimaryTreeAndForget(LensSession session) {
+        View root = new FrameLayout(mContext);
+        session.setPrimaryTree(root);
+        return new WeakReference<View>(root);
+    }
+
+    private WeakReference<View> addSubtreeAndForget(LensSession session) {
+        FrameLayout subtree = new FrameLayout(mContext);
+        subtree.addView(new View(mContext));
+        session.getSubtrees().add(subtree);
+        return new WeakReference<View>(subtree);
+    }
+}
@@ -0,0 +1,197 @@
+package android.applens;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link LensSpecCompiler} and {@link LensSpec}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensSpecCompilerTest {
+    private static final String LAYOUT =
+            "<lens>"
+            + "<activity android:name=\"com.example.Main\">"
+            + "<display android:width=\"400\" android:height=\"200\">"
+            + "<new android:class=\"LinearLayout\" android:orientation=\"vertical\">"
+            + "<existing android:id=\"@id/play\" android:layout_weight=\"1\"/>"
+            + "</new>"
+            + "</display>"
+            + "</activity>"
+            + "<activity android:name=\"com.example.Other\">"
+            + "<display android:width=\"100\" android:height=\"100\">"
+            + "<existing android:id=\"@id/seek\"/>"
+            + "</display>"
+            + "</activity>"
+            + "<activity android:name=\"com.example.Main\">"
+            + "<display android:width=\"300\" android:height=\"100\"/>"
+            + "</activity>"
+            + "</lens>";
+
+    private static final String MACRO =
+            "<macro>"
+            + "<activity android:name=\"com.example.Main\">"
+            + "<event android:viewId=\"@id/search\" android:eventType=\"touch\"/>"
+            + "</activity>"
+            + "</macro>";
+
+    private File mDir;
+    private File mLayout;
+    private File mMacro;
+    private File mCompiled;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(), "lens_spec_test");
+        mDir.mkdirs();
+        mLayout = write(LensSpec.LAYOUT_FILE, LAYOUT);
+        mMacro = write(LensSpec.MACRO_FILE, MACRO);
+        mCompiled = new File(mDir, LensSpec.COMPILED_FILE);
+    }
+
+    @After
+    public void tearDown() {
+        mLayout.delete();
+        mMacro.delete();
+        mCompiled.delete();
+        mDir.delete();
+    }
+
+    @Test
+    public void compileMergesBlocksPerActivity() throws Exception {
+        LensSpecCompiler.compile(mLayout, mMacro, mCompiled);
+        LensSpec spec = LensSpec.map(mCompiled);
+
+        LensSpec.Block main = spec.getLayout("com.example.Main");
+        assertEquals(5, main.size());
+        assertEquals(LensSpec.NODE_DISPLAY, main.get(0).getType());
+        assertEquals("400", main.get(0).getAttributeValue("android:width"));
+        assertEquals(LensSpec.NODE_NEW, main.get(1).getType());
+        assertEquals("LinearLayout", main.get(1).getAttributeValue("android:class"));
+        assertEquals(LensSpec.NODE_EXISTING, main.get(2).getType());
+        assertEquals("android:id", main.get(2).getAttributeName(0));
+        assertEquals("@id/play", main.get(2).getAttributeValue(0));
+        assertEquals(LensSpec.NODE_END_NEW, main.get(3).getType());
+        assertEquals(LensSpec.NODE_DISPLAY, main.get(4).getType());
+        assertEquals("300", main.get(4).getAttributeValue("android:width"));
+
+        assertEquals(2, spec.getLayout("com.example.Other").size());
+        assertNull(spec.getMacro("com.example.Other"));
+        assertNull(spec.getLayout("com.example.Missing"));
+    }
+
+    @Test
+    public void compileMacroBlock() throws Exception {
+        LensSpecCompiler.compile(mLayout, mMacro, mCompiled);
+        LensSpec.Block macro = LensSpec.map(mCompiled).getMacro("com.example.Main");
+
+        assertEquals(1, macro.size());
+        assertEquals(LensSpec.NODE_EVENT, macro.get(0).getType());
+        assertEquals("touch", macro.get(0).getAttributeValue("android:eventType"));
+        assertNull(macro.get(0).getAttributeValue("android:delay"));
+    }
+
+    @Test
+    public void compileWithoutMacro() throws Exception {
+        mMacro.delete();
+        LensSpecCompiler.compile(mLayout, mMacro, mCompiled);
+
+        assertTrue(LensSpecCompiler.isUpToDate(mCompiled, mLayout, mMacro));
+        assertNull(LensSpec.map(mCompiled).getMacro("com.example.Main"));
+    }
+
+    @Test
+    public void getAsyncLoadsOffTheCallingThread() throws Exception {
+        final Context context = newContext("android.applens.test.async");
+        final Thread caller = Thread.currentThread();
+        final LensSpec[] delivered = new LensSpec[1];
+        final Thread[] loader = new Thread[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        LensSpec.getAsync(context, Runnable::run, spec -> {
+            delivered[0] = spec;
+            loader[0] = Thread.currentThread();
+            latch.countDown();
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNotSame(caller, loader[0]);
+        // Later lookups are served from the cache.
+        assertSame(delivered[0], LensSpec.get(context));
+    }
+
+    @Test
+    public void reloadPicksUpChangedSources() throws Exception {
+        final Context context = newContext("android.applens.test.reload");
+        final LensSpec first = LensSpec.get(context);
+        assertNotNull(first.getLayout("com.example.Other"));
+        assertSame(first, LensSpec.get(context));
+
+        write(LensSpec.LAYOUT_FILE, LAYOUT.replace("com.example.Other", "com.example.Renamed"));
+        // Lookups do not check the sources, only a reload does.
+        assertSame(first, LensSpec.get(context));
+        LensSpec.reload(context);
+        final LensSpec second = LensSpec.get(context);
+        assertNotSame(first, second);
+        assertNull(second.getLayout("com.example.Other"));
+        assertNotNull(second.getLayout("com.example.Renamed"));
+    }
+
+    @Test
+    public void staleWhenSourceChanges() throws Exception {
+        assertFalse(LensSpecCompiler.isUpToDate(mCompiled, mLayout, mMacro));
+        LensSpecCompiler.compile(mLayout, mMacro, mCompiled);
+        assertTrue(LensSpecCompiler.isUpToDate(mCompiled, mLayout, mMacro));
+
+        write(LensSpec.MACRO_FILE, MACRO + " ");
+        assertFalse(LensSpecCompiler.isUpToDate(mCompiled, mLayout, mMacro));
+    }
+
+    private Context newContext(String packageName) {
+        return new ContextWrapper(InstrumentationRegistry.getContext()) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public String getPackageName() {
+                return packageName;
+            }
+
+            @Override
+            public File getExternalFilesDir(String type) {
+                return mDir;
+            }
+        };
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(mDir, name);
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,68 @@
+package android.applens;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests for {@link LensStageStats}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensStageStatsTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testEmpty() {
+        LensStageStats stats = new LensStageStats();
+        assertFalse(stats.hasSamples());
+        assertEquals(0, stats.getCount(LensStageStats.STAGE_REPARENT));
+        assertEquals(-1, stats.getPercentileMillis(LensStageStats.STAGE_REPARENT, 50));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LensStageStats stats = new LensStageStats();
+        // 19 fast samples and one slow one.
+        for (int i = 0; i < 19; i++) {
+            stats.record(LensStageStats.STAGE_FIRST_FRAME, 3 * MS);
+        }
+        stats.record(LensStageStats.STAGE_FIRST_FRAME, 100 * MS);
+
+        assertTrue(stats.hasSamples());
+        assertEquals(20, stats.getCount(LensStageStats.STAGE_FIRST_FRAME));
+        assertEquals(0, stats.getCount(LensStageStats.STAGE_SPEC_LOAD));
+        assertEquals(4, stats.getPercentileMillis(LensStageStats.STAGE_FIRST_FRAME, 50));
+        assertEquals(4, stats.getPercentileMillis(LensStageStats.STAGE_FIRST_FRAME, 95));
+        assertEquals(128, stats.getPercentileMillis(LensStageStats.STAGE_FIRST_FRAME, 100));
+    }
+
+    @Test
+    public void testOverflowReportsMax() {
+        LensStageStats stats = new LensStageStats();
+        stats.record(LensStageStats.STAGE_CREATE_DISPLAY, 60000 * MS);
+        assertEquals(60000, stats.getPercentileMillis(LensStageStats.STAGE_CREATE_DISPLAY, 50));
+    }
+
+    @Test
+    public void testDumpSkipsEmptyStages() {
+        LensStageStats stats = new LensStageStats();
+        stats.record(LensStageStats.STAGE_VIEW_LOOKUP, MS);
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        stats.dump(pw, "");
+        pw.flush();
+        String dump = sw.toString();
+        assertTrue(dump.contains("lens:viewLookup: n=1"));
+        assertFalse(dump.contains("lens:reparent"));
+    }
+}
@@ -0,0 +1,63 @@
+package android.applens;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.view.View;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link LensViewFactory}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensViewFactoryTest {
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getContext();
+    }
+
+    @Test
+    public void testCommonContainersAreWarm() throws Exception {
+        assertTrue(LensViewFactory.isWarm("LinearLayout"));
+        assertTrue(LensViewFactory.isWarm("android.widget.FrameLayout"));
+        View first = LensViewFactory.create(mContext, "LinearLayout");
+        View second = LensViewFactory.create(mContext, "LinearLayout");
+        assertEquals(LinearLayout.class, first.getClass());
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void testOtherClassIsCachedAfterFirstUse() throws Exception {
+        assertEquals(TextView.class,
+                LensViewFactory.create(mContext, "TextView").getClass());
+        assertTrue(LensViewFactory.isWarm("TextView"));
+        assertEquals(TextView.class,
+                LensViewFactory.create(mContext, "android.widget.TextView").getClass());
+    }
+
+    @Test
+    public void testUnknownClassIsNotCached() {
+        try {
+            LensViewFactory.create(mContext, "NoSuchLensView");
+            fail("expected ClassNotFoundException");
+        } catch (ReflectiveOperationException expected) {
+        }
+        assertFalse(LensViewFactory.isWarm("NoSuchLensView"));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import android.os.FileUtils;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackageParserCacheFileTest {
+    private static final byte[] FOO = {1, 2, 3};
+    private static final byte[] BAR = {4, 5, 6, 7};
+
+    private File mCacheDir;
+
+    @Before
+    public void setUp() {
+        mCacheDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "PackageParserCacheFileTest");
+        FileUtils.deleteContentsAndDir(mCacheDir);
+        mCacheDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        PackageParserCacheFile.clear(mCacheDir);
+        FileUtils.deleteContentsAndDir(mCacheDir);
+    }
+
+    private PackageParserCacheFile newCacheFile() {
+        return new PackageParserCacheFile(new File(mCacheDir, PackageParserCacheFile.FILE_NAME));
+    }
+
+    @Test
+    public void testReadWrite() {
+        final PackageParserCacheFile cacheFile = newCacheFile();
+        assertNull(cacheFile.read("foo", 1, 10, null));
+
+        cacheFile.write("foo", 1, 10, FOO);
+        cacheFile.write("bar", 2, 20, BAR);
+        final long[] writeTime = new long[1];
+        assertArrayEquals(FOO, cacheFile.read("foo", 1, 10, writeTime));
+        assertEquals(System.currentTimeMillis() / 1000, writeTime[0], 5);
+        assertArrayEquals(BAR, cacheFile.read("bar", 2, 20, null));
+
+        // A new instance reads the entries back from the file.
+        assertArrayEquals(FOO, newCacheFile().read("foo", 1, 10, null));
+    }
+
+    @Test
+    public void testRead_fingerprintMismatch() {
+        final PackageParserCacheFile cacheFile = newCacheFile();
+        cacheFile.write("foo", 1, 10, FOO);
+        assertNull(cacheFile.read("foo", 2, 10, null));
+        assertNull(cacheFile.read("foo", 1, 11, null));
+    }
+
+    @Test
+    public void testWrite_supersedes() {
+        final PackageParserCacheFile cacheFile = newCacheFile();
+        cacheFile.write("foo", 1, 10, FOO);
+        assertArrayEquals(FOO, cacheFile.read("foo", 1, 10, null));
+        cacheFile.write("foo", 2, 20, BAR);
+        assertNull(cacheFile.read("foo", 1, 10, null));
+        assertArrayEquals(BAR, cacheFile.read("foo", 2, 20, null));
+    }
+
+    @Test
+    public void testLoad_truncatedRecord() throws Exception {
+        final File file = new File(mCacheDir, PackageParserCacheFile.FILE_NAME);
+        final PackageParserCacheFile cacheFile = newCacheFile();
+        cacheFile.write("foo", 1, 10, FOO);
+        final long goodLength = file.length();
+        cacheFile.write("bar", 2, 20, BAR);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 1);
+        }
+
+        final PackageParserCacheFile reloaded = newCacheFile();
+        assertArrayEquals(FOO, reloaded.read("foo", 1, 10, null));
+        assertNull(reloaded.read("bar", 2, 20, null));
+        assertEquals(goodLength, file.length());
+
+        // Records appended after the truncation are readable.
+        reloaded.write("bar", 2, 20, BAR);
+        assertArrayEquals(BAR, newCacheFile().read("bar", 2, 20, null));
+    }
+
+    @Test
+    public void testIndex_badHeader() {
+        final HashMap<String, PackageParserCacheFile.Entry> index = new HashMap<>();
+        assertEquals(-1, PackageParserCacheFile.index(ByteBuffer.wrap(new byte[16]), index));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testIndex_badKeyLength() {
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putInt(0x504b4743).putInt(1).putInt(0x52454331).putInt(Integer.MAX_VALUE);
+        final HashMap<String, PackageParserCacheFile.Entry> index = new HashMap<>();
+        assertEquals(8, PackageParserCacheFile.index(buffer, index));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testClear() {
+        final PackageParserCacheFile cacheFile = PackageParserCacheFile.get(mCacheDir);
+        cacheFile.write("foo", 1, 10, FOO);
+        assertArrayEquals(FOO, cacheFile.read("foo", 1, 10, null));
+
+        PackageParserCacheFile.clear(mCacheDir);
+        FileUtils.deleteContents(mCacheDir);
+        final PackageParserCacheFile cleared = PackageParserCacheFile.get(mCacheDir);
+        assertNotSame(cacheFile, cleared);
+        assertNull(cleared.read("foo", 1, 10, null));
+        cleared.write("bar", 2, 20, BAR);
+        assertArrayEquals(BAR, cleared.read("bar", 2, 20, null));
+    }
+}
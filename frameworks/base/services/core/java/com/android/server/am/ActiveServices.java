@@ -1795,7 +1795,9 @@ public final class ActiveServices {
                                 || (callerApp.getCurProcState() <= ActivityManager.PROCESS_STATE_TOP
                                         && (flags & Context.BIND_TREAT_LIKE_ACTIVITY) != 0),
                         b.client);
-                mAm.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_BIND_SERVICE);
+                // Only the host gained a client; the caller is unchanged.
+                mAm.enqueueOomAdjTargetLocked(s.app);
+                mAm.updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_BIND_SERVICE);
             }
 
             if (DEBUG_SERVICE) Slog.v(TAG_SERVICE, "Bind " + s + " with " + b
@@ -1936,6 +1938,7 @@ public final class ActiveServices {
                 }
 
                 if (r.binding.service.app != null) {
+                    mAm.enqueueOomAdjTargetLocked(r.binding.service.app);
                     if (r.binding.service.app.whitelistManager) {
                         updateWhitelistManagerLocked(r.binding.service.app);
                     }
@@ -1949,7 +1952,7 @@ public final class ActiveServices {
                 }
             }
 
-            mAm.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_UNBIND_SERVICE);
+            mAm.updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_UNBIND_SERVICE);
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -7278,7 +7278,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
+                    // Only the provider's host lost a client.
+                    enqueueOomAdjTargetLocked(conn.provider.proc);
+                    updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
                 }
             }
         } finally {
@@ -7319,7 +7321,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
+                    enqueueOomAdjTargetLocked(localCpr.proc);
+                    updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_REMOVE_PROVIDER);
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -9877,6 +9880,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
                 mOomAdjProfiler.dump(pw);
                 pw.println();
+                mOomAdjuster.dumpUpdateStatsLocked(pw);
+                pw.println();
                 if (dumpAll) {
                     pw.println("-------------------------------------------------------------------------------");
                 }
@@ -11230,6 +11235,9 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         dumpProcessesToGc(pw, needSep, null);
 
+        pw.println();
+        mOomAdjuster.dumpUpdateStatsLocked(pw);
+
         pw.println();
         mAtmInternal.dumpForOom(pw);
 
@@ -15289,8 +15297,9 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
         }
 
+        // Actions the queue coalesces are replaced as if the sender had asked for it.
         final boolean replacePending =
-                (intent.getFlags()&Intent.FLAG_RECEIVER_REPLACE_PENDING) != 0;
+                broadcastQueueForIntent(intent).shouldReplacePending(intent, ordered, resultTo);
 
         if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Enqueueing broadcast: " + intent.getAction()
                 + " replacePending=" + replacePending);
@@ -15646,6 +15655,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
+                } else {
+                    queue.finishFanOutReceiverLocked(who);
                 }
                 if (doNext) {
                     r.queue.processNextBroadcastLocked(/*fromMsg=*/ false, /*skipOomAdj=*/ true);
@@ -16921,6 +16932,23 @@ public class ActivityManagerService extends IActivityManager.Stub
         mOomAdjuster.updateOomAdjLocked(oomAdjReason);
     }
 
+    /**
+     * Marks {@code app} as changed for the next {@link #updateOomAdjPendingTargetsLocked}.
+     */
+    @GuardedBy("this")
+    final void enqueueOomAdjTargetLocked(ProcessRecord app) {
+        mOomAdjuster.enqueueOomAdjTargetLocked(app);
+    }
+
+    /**
+     * Updates the processes marked since the last update and those they affect, see
+     * {@link OomAdjuster#updateOomAdjPendingTargetsLocked}.
+     */
+    @GuardedBy("this")
+    final void updateOomAdjPendingTargetsLocked(String oomAdjReason) {
+        mOomAdjuster.updateOomAdjPendingTargetsLocked(oomAdjReason);
+    }
+
     @Override
     public void makePackageIdle(String packageName, int userId) {
         if (checkCallingPermission(android.Manifest.permission.FORCE_STOP_PACKAGES)
@@ -24,6 +24,7 @@ import static com.android.server.am.ActivityManagerDebugConfig.TAG_AM;
 import android.app.ActivityManager;
 import android.app.ActivityThread;
 import android.os.Debug;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
@@ -41,7 +42,9 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.ServiceThread;
 
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -71,6 +74,11 @@ public final class AppCompactor {
             "compact_full_delta_rss_throttle_kb";
     @VisibleForTesting static final String KEY_COMPACT_PROC_STATE_THROTTLE =
             "compact_proc_state_throttle";
+    @VisibleForTesting static final String KEY_USE_ADAPTIVE_COMPACTION = "use_adaptive_compaction";
+    @VisibleForTesting static final String KEY_COMPACT_MIN_YIELD_KB = "compact_min_yield_kb";
+    @VisibleForTesting static final String KEY_COMPACT_MEMORY_PRESSURE =
+            "compact_memory_pressure";
+    @VisibleForTesting static final String KEY_COMPACT_CPU_PRESSURE = "compact_cpu_pressure";
 
     // Phenotype sends int configurations and we map them to the strings we'll use on device,
     // preventing a weird string value entering the kernel.
@@ -83,6 +91,17 @@ public final class AppCompactor {
     private static final String COMPACT_ACTION_ANON = "anon";
     private static final String COMPACT_ACTION_FULL = "all";
 
+    // Pressure stall information, as "some avg10=<percent> ..." on the first line.
+    private static final String PSI_MEMORY_PATH = "/proc/pressure/memory";
+    private static final String PSI_CPU_PATH = "/proc/pressure/cpu";
+
+    // Weight of the newest compaction in the learned yield and cost of a process.
+    @VisibleForTesting static final float YIELD_WEIGHT = 0.3f;
+    // How long a process is left alone after an unproductive compaction; doubles with each
+    // further unproductive one, up to the max.
+    @VisibleForTesting static final long BACKOFF_BASE = 30_000;
+    @VisibleForTesting static final long BACKOFF_MAX = 30 * 60 * 1000;
+
     // Defaults for phenotype flags.
     @VisibleForTesting static final Boolean DEFAULT_USE_COMPACTION = false;
     @VisibleForTesting static final int DEFAULT_COMPACT_ACTION_1 = COMPACT_ACTION_FILE_FLAG;
@@ -100,6 +119,14 @@ public final class AppCompactor {
     // Format of this string should be a comma separated list of integers.
     @VisibleForTesting static final String DEFAULT_COMPACT_PROC_STATE_THROTTLE =
             String.valueOf(ActivityManager.PROCESS_STATE_RECEIVER);
+    @VisibleForTesting static final Boolean DEFAULT_USE_ADAPTIVE_COMPACTION = true;
+    // A compaction that frees less than this is unproductive.
+    @VisibleForTesting static final long DEFAULT_COMPACT_MIN_YIELD_KB = 2_000L;
+    // Memory pressure (PSI some avg10, in percent) at which compaction ignores the backoff
+    // and the CPU pressure.
+    @VisibleForTesting static final float DEFAULT_COMPACT_MEMORY_PRESSURE = 10.0f;
+    // CPU pressure (PSI some avg10, in percent) above which compaction waits.
+    @VisibleForTesting static final float DEFAULT_COMPACT_CPU_PRESSURE = 40.0f;
 
     @VisibleForTesting
     interface PropertyChangedCallbackForTest {
@@ -151,6 +178,13 @@ public final class AppCompactor {
                                 updateFullDeltaRssThrottle();
                             } else if (KEY_COMPACT_PROC_STATE_THROTTLE.equals(name)) {
                                 updateProcStateThrottle();
+                            } else if (KEY_USE_ADAPTIVE_COMPACTION.equals(name)) {
+                                updateUseAdaptiveCompaction();
+                            } else if (KEY_COMPACT_MIN_YIELD_KB.equals(name)) {
+                                updateMinYield();
+                            } else if (KEY_COMPACT_MEMORY_PRESSURE.equals(name)
+                                    || KEY_COMPACT_CPU_PRESSURE.equals(name)) {
+                                updatePressureThresholds();
                             }
                         }
                     }
@@ -194,6 +228,14 @@ public final class AppCompactor {
             DEFAULT_COMPACT_FULL_DELTA_RSS_THROTTLE_KB;
     @GuardedBy("mPhenoypeFlagLock")
     @VisibleForTesting final Set<Integer> mProcStateThrottle;
+    @GuardedBy("mPhenotypeFlagLock")
+    @VisibleForTesting volatile boolean mUseAdaptiveCompaction = DEFAULT_USE_ADAPTIVE_COMPACTION;
+    @GuardedBy("mPhenotypeFlagLock")
+    @VisibleForTesting volatile long mMinYieldKb = DEFAULT_COMPACT_MIN_YIELD_KB;
+    @GuardedBy("mPhenotypeFlagLock")
+    @VisibleForTesting volatile float mMemoryPressureThreshold = DEFAULT_COMPACT_MEMORY_PRESSURE;
+    @GuardedBy("mPhenotypeFlagLock")
+    @VisibleForTesting volatile float mCpuPressureThreshold = DEFAULT_COMPACT_CPU_PRESSURE;
 
     // Handler on which compaction runs.
     private Handler mCompactionHandler;
@@ -209,10 +251,25 @@ public final class AppCompactor {
                 }
     };
 
+    // Maps process name to what compacting it has freed and cost so far. Written on the
+    // compaction thread only; locked on itself so that dump can read it.
+    @GuardedBy("mCompactionYields")
+    private final Map<String, CompactionYield> mCompactionYields =
+            new LinkedHashMap<String, CompactionYield>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry eldest) {
+                    return size() > 100;
+                }
+    };
+
     private int mSomeCompactionCount;
     private int mFullCompactionCount;
     private int mPersistentCompactionCount;
     private int mBfgsCompactionCount;
+    private int mBackoffSkipCount;
+    private int mCpuPressureSkipCount;
+    private float mLastMemoryPressure = -1;
+    private float mLastCpuPressure = -1;
 
     public AppCompactor(ActivityManagerService am) {
         mAm = am;
@@ -242,6 +299,9 @@ public final class AppCompactor {
             updateFullRssThrottle();
             updateFullDeltaRssThrottle();
             updateProcStateThrottle();
+            updateUseAdaptiveCompaction();
+            updateMinYield();
+            updatePressureThresholds();
         }
         Process.setThreadGroupAndCpuset(mCompactionThread.getThreadId(),
                 Process.THREAD_GROUP_SYSTEM);
@@ -277,9 +337,17 @@ public final class AppCompactor {
             pw.println("  "  + KEY_COMPACT_PROC_STATE_THROTTLE + "="
                     + Arrays.toString(mProcStateThrottle.toArray(new Integer[0])));
 
+            pw.println("  " + KEY_USE_ADAPTIVE_COMPACTION + "=" + mUseAdaptiveCompaction);
+            pw.println("  " + KEY_COMPACT_MIN_YIELD_KB + "=" + mMinYieldKb);
+            pw.println("  " + KEY_COMPACT_MEMORY_PRESSURE + "=" + mMemoryPressureThreshold);
+            pw.println("  " + KEY_COMPACT_CPU_PRESSURE + "=" + mCpuPressureThreshold);
+
             pw.println("  " + mSomeCompactionCount + " some, " + mFullCompactionCount
                     + " full, " + mPersistentCompactionCount + " persistent, "
                     + mBfgsCompactionCount + " BFGS compactions.");
+            pw.println("  " + mBackoffSkipCount + " skipped for backoff, "
+                    + mCpuPressureSkipCount + " skipped for CPU pressure; last pressure "
+                    + mLastMemoryPressure + "% memory, " + mLastCpuPressure + "% CPU.");
 
             pw.println("  Tracking last compaction stats for " + mLastCompactionStats.size()
                     + " processes.");
@@ -293,6 +361,21 @@ public final class AppCompactor {
                 }
             }
         }
+
+        final long now = SystemClock.uptimeMillis();
+        synchronized (mCompactionYields) {
+            pw.println("  Compaction yield for " + mCompactionYields.size() + " processes:");
+            for (Map.Entry<String, CompactionYield> entry : mCompactionYields.entrySet()) {
+                CompactionYield yield = entry.getValue();
+                pw.print("    " + entry.getKey() + ": " + yield.mCount + " compactions, "
+                        + yield.mYieldKb + "KB freed, " + yield.mCostMs + "ms");
+                if (yield.mBackoffUntil > now) {
+                    pw.print(", backing off " + (yield.mBackoffUntil - now) + "ms after "
+                            + yield.mUnproductiveCount + " unproductive");
+                }
+                pw.println();
+            }
+        }
     }
 
     @GuardedBy("mAm")
@@ -491,6 +574,134 @@ public final class AppCompactor {
         return true;
     }
 
+    @GuardedBy("mPhenotypeFlagLock")
+    private void updateUseAdaptiveCompaction() {
+        mUseAdaptiveCompaction = DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                KEY_USE_ADAPTIVE_COMPACTION, DEFAULT_USE_ADAPTIVE_COMPACTION);
+    }
+
+    @GuardedBy("mPhenotypeFlagLock")
+    private void updateMinYield() {
+        mMinYieldKb = DeviceConfig.getLong(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                KEY_COMPACT_MIN_YIELD_KB, DEFAULT_COMPACT_MIN_YIELD_KB);
+
+        if (mMinYieldKb < 0) {
+            mMinYieldKb = DEFAULT_COMPACT_MIN_YIELD_KB;
+        }
+    }
+
+    @GuardedBy("mPhenotypeFlagLock")
+    private void updatePressureThresholds() {
+        mMemoryPressureThreshold = DeviceConfig.getFloat(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                KEY_COMPACT_MEMORY_PRESSURE, DEFAULT_COMPACT_MEMORY_PRESSURE);
+        mCpuPressureThreshold = DeviceConfig.getFloat(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                KEY_COMPACT_CPU_PRESSURE, DEFAULT_COMPACT_CPU_PRESSURE);
+
+        // Pressure is a percentage; out of range values fall back to the defaults.
+        if (mMemoryPressureThreshold < 0.0f || mMemoryPressureThreshold > 100.0f) {
+            mMemoryPressureThreshold = DEFAULT_COMPACT_MEMORY_PRESSURE;
+        }
+        if (mCpuPressureThreshold < 0.0f || mCpuPressureThreshold > 100.0f) {
+            mCpuPressureThreshold = DEFAULT_COMPACT_CPU_PRESSURE;
+        }
+    }
+
+    /**
+     * Returns the share of the last 10 seconds, in percent, that some task stalled on the
+     * resource of {@code path}, or -1 if the kernel doesn't report pressure stalls.
+     */
+    private static float readPressure(String path) {
+        try {
+            return parsePressure(FileUtils.readTextFile(new File(path), 256, null));
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @VisibleForTesting
+    static float parsePressure(String psi) {
+        for (String field : TextUtils.split(psi.trim(), "\\s+")) {
+            if (field.startsWith("avg10=")) {
+                try {
+                    return Float.parseFloat(field.substring("avg10=".length()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index in mPendingCompactionProcesses of the process expected to free the most.
+     * A process never compacted before is tried first, to learn what it yields.
+     */
+    @GuardedBy("mAm")
+    private int pickPendingProcessLocked() {
+        int best = 0;
+        long bestYieldKb = -1;
+        synchronized (mCompactionYields) {
+            for (int i = 0; i < mPendingCompactionProcesses.size(); i++) {
+                CompactionYield yield = mCompactionYields.get(
+                        mPendingCompactionProcesses.get(i).processName);
+                if (yield == null) {
+                    return i;
+                }
+                if (yield.mYieldKb > bestYieldKb) {
+                    best = i;
+                    bestYieldKb = yield.mYieldKb;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns true if compacting {@code name} should be left for later, as the last compactions
+     * freed little or the CPU is busy. High memory pressure overrides both.
+     */
+    private boolean shouldBackOff(String name, long now) {
+        final float memoryPressure = readPressure(PSI_MEMORY_PATH);
+        final float cpuPressure = readPressure(PSI_CPU_PATH);
+        mLastMemoryPressure = memoryPressure;
+        mLastCpuPressure = cpuPressure;
+        if (memoryPressure >= mMemoryPressureThreshold) {
+            return false;
+        }
+        if (cpuPressure > mCpuPressureThreshold) {
+            if (DEBUG_COMPACTION) {
+                Slog.d(TAG_AM, "Skipping compaction for " + name + "; CPU pressure is "
+                        + cpuPressure + "%");
+            }
+            mCpuPressureSkipCount++;
+            return true;
+        }
+        synchronized (mCompactionYields) {
+            CompactionYield yield = mCompactionYields.get(name);
+            if (yield != null && now < yield.mBackoffUntil) {
+                if (DEBUG_COMPACTION) {
+                    Slog.d(TAG_AM, "Skipping compaction for " + name + "; last freed "
+                            + yield.mYieldKb + "KB, backing off for "
+                            + (yield.mBackoffUntil - now) + "ms");
+                }
+                mBackoffSkipCount++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void noteCompactionYield(String name, long freedKb, long costMs, long now) {
+        synchronized (mCompactionYields) {
+            CompactionYield yield = mCompactionYields.remove(name);
+            if (yield == null) {
+                yield = new CompactionYield();
+            }
+            yield.update(freedKb, costMs, now, mMinYieldKb);
+            mCompactionYields.put(name, yield);
+        }
+    }
+
     @VisibleForTesting
     static String compactActionIntToString(int action) {
         switch(action) {
@@ -519,6 +730,38 @@ public final class AppCompactor {
         }
     }
 
+    /**
+     * What compacting a process has freed and cost, learned over its past compactions.
+     */
+    @VisibleForTesting
+    static final class CompactionYield {
+        int mCount;
+        long mYieldKb;
+        long mCostMs;
+        int mUnproductiveCount;
+        long mBackoffUntil;
+
+        void update(long freedKb, long costMs, long now, long minYieldKb) {
+            freedKb = Math.max(freedKb, 0);
+            if (mCount == 0) {
+                mYieldKb = freedKb;
+                mCostMs = costMs;
+            } else {
+                mYieldKb = (long) (YIELD_WEIGHT * freedKb + (1 - YIELD_WEIGHT) * mYieldKb);
+                mCostMs = (long) (YIELD_WEIGHT * costMs + (1 - YIELD_WEIGHT) * mCostMs);
+            }
+            mCount++;
+            if (freedKb < minYieldKb) {
+                mUnproductiveCount++;
+                mBackoffUntil = now + Math.min(
+                        BACKOFF_BASE << Math.min(mUnproductiveCount - 1, 16), BACKOFF_MAX);
+            } else {
+                mUnproductiveCount = 0;
+                mBackoffUntil = 0;
+            }
+        }
+    }
+
     private final class MemCompactionHandler extends Handler {
         private MemCompactionHandler() {
             super(mCompactionThread.getLooper());
@@ -539,7 +782,13 @@ public final class AppCompactor {
                     int lastOomAdj = msg.arg1;
                     int procState = msg.arg2;
                     synchronized (mAm) {
-                        proc = mPendingCompactionProcesses.remove(0);
+                        final int index = mUseAdaptiveCompaction ? pickPendingProcessLocked() : 0;
+                        proc = mPendingCompactionProcesses.remove(index);
+                        if (index != 0) {
+                            // The message was sent for another process, use this one's state.
+                            lastOomAdj = proc.setAdj;
+                            procState = proc.setProcState;
+                        }
 
                         pendingAction = proc.reqCompactAction;
                         pid = proc.pid;
@@ -654,6 +903,10 @@ public final class AppCompactor {
                         return;
                     }
 
+                    if (mUseAdaptiveCompaction && shouldBackOff(name, start)) {
+                        return;
+                    }
+
                     long[] rssBefore = Process.getRss(pid);
                     long anonRssBefore = rssBefore[2];
 
@@ -748,6 +1001,8 @@ public final class AppCompactor {
                             proc.lastCompactAction = pendingAction;
                         }
 
+                        noteCompactionYield(name, rssBefore[0] - rssAfter[0], time, end);
+
                         if (action.equals(COMPACT_ACTION_FULL)
                                 || action.equals(COMPACT_ACTION_ANON)) {
                             mLastCompactionStats.put(pid, new LastCompactionStats(rssAfter));
@@ -20,6 +20,8 @@ import android.content.ContentResolver;
 import android.database.ContentObserver;
 import android.os.Handler;
 import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Slog;
 import android.util.TimeUtils;
@@ -40,6 +42,8 @@ public class BroadcastConstants {
     static final String KEY_DEFERRAL_FLOOR = "bcast_deferral_floor";
     static final String KEY_ALLOW_BG_ACTIVITY_START_TIMEOUT =
             "bcast_allow_bg_activity_start_timeout";
+    static final String KEY_MAX_FAN_OUT = "bcast_max_fan_out";
+    static final String KEY_COALESCE_ACTIONS = "bcast_coalesce_actions";
 
     // All time intervals are in milliseconds
     private static final long DEFAULT_TIMEOUT = 10_000;
@@ -48,6 +52,7 @@ public class BroadcastConstants {
     private static final float DEFAULT_DEFERRAL_DECAY_FACTOR = 0.75f;
     private static final long DEFAULT_DEFERRAL_FLOOR = 0;
     private static final long DEFAULT_ALLOW_BG_ACTIVITY_START_TIMEOUT = 10_000;
+    private static final int DEFAULT_MAX_FAN_OUT = 0;
 
     // All time constants are in milliseconds
 
@@ -64,6 +69,13 @@ public class BroadcastConstants {
     public long DEFERRAL_FLOOR = DEFAULT_DEFERRAL_FLOOR;
     // For how long after a whitelisted receiver's start its process can start a background activity
     public long ALLOW_BG_ACTIVITY_START_TIMEOUT = DEFAULT_ALLOW_BG_ACTIVITY_START_TIMEOUT;
+    // How many unordered deliveries to already-running manifest receivers may be in flight at
+    // once, rather than one at a time.  Zero, the default, disables the fan-out.
+    public int MAX_FAN_OUT = DEFAULT_MAX_FAN_OUT;
+    // Actions whose pending broadcasts are collapsed into a newer one of the same intent, as if
+    // sent with FLAG_RECEIVER_REPLACE_PENDING.  Colon separated in the settings record; only
+    // actions that are never sent ordered belong here.
+    public ArraySet<String> COALESCE_ACTIONS = new ArraySet<>();
 
     // Settings override tracking for this instance
     private String mSettingsKey;
@@ -120,7 +132,30 @@ public class BroadcastConstants {
             DEFERRAL_FLOOR = mParser.getLong(KEY_DEFERRAL_FLOOR, DEFERRAL_FLOOR);
             ALLOW_BG_ACTIVITY_START_TIMEOUT = mParser.getLong(KEY_ALLOW_BG_ACTIVITY_START_TIMEOUT,
                     ALLOW_BG_ACTIVITY_START_TIMEOUT);
+            MAX_FAN_OUT = mParser.getInt(KEY_MAX_FAN_OUT, MAX_FAN_OUT);
+            final String actions = mParser.getString(KEY_COALESCE_ACTIONS, null);
+            if (actions != null) {
+                COALESCE_ACTIONS = parseActions(actions);
+            }
+        }
+    }
+
+    static ArraySet<String> parseActions(String actions) {
+        final ArraySet<String> result = new ArraySet<>();
+        for (String action : actions.split(":")) {
+            action = action.trim();
+            if (!TextUtils.isEmpty(action)) {
+                result.add(action);
+            }
         }
+        return result;
+    }
+
+    /**
+     * Whether pending broadcasts of {@code action} should be collapsed into a newer one
+     */
+    public boolean isCoalescedAction(String action) {
+        return action != null && COALESCE_ACTIONS.contains(action);
     }
 
     /**
@@ -156,6 +191,12 @@ public class BroadcastConstants {
             pw.print("    "); pw.print(KEY_ALLOW_BG_ACTIVITY_START_TIMEOUT); pw.print(" = ");
             TimeUtils.formatDuration(ALLOW_BG_ACTIVITY_START_TIMEOUT, pw);
             pw.println();
+
+            pw.print("    "); pw.print(KEY_MAX_FAN_OUT); pw.print(" = ");
+            pw.println(MAX_FAN_OUT);
+
+            pw.print("    "); pw.print(KEY_COALESCE_ACTIONS); pw.print(" = ");
+            pw.println(COALESCE_ACTIONS);
         }
     }
 }
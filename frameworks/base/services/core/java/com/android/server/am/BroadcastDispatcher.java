@@ -265,6 +265,16 @@ public class BroadcastDispatcher {
         }
     }
 
+    /**
+     * Number of ordered broadcasts not yet retired, including deferred ones
+     */
+    public int pendingCountLocked() {
+        return (mCurrentBroadcast != null ? 1 : 0)
+                + mOrderedBroadcasts.size()
+                + pendingInDeferralsList(mDeferredBroadcasts)
+                + pendingInDeferralsList(mAlarmBroadcasts);
+    }
+
     private static int pendingInDeferralsList(ArrayList<Deferrals> list) {
         int pending = 0;
         final int numEntries = list.size();
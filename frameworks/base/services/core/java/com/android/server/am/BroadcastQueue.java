@@ -44,6 +44,7 @@ import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.Trace;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.SparseIntArray;
@@ -51,6 +52,8 @@ import android.util.StatsLog;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
@@ -163,8 +166,35 @@ public final class BroadcastQueue {
      */
     int mPendingBroadcastRecvIndex;
 
+    /**
+     * Unordered deliveries to manifest receivers whose process was already running, which
+     * the queue does not wait for before moving on to the next receiver.  There is at most
+     * one per process, so a finish from the process can only be for that delivery.
+     */
+    final ArrayMap<ProcessRecord, FanOutReceiver> mFanOutReceivers = new ArrayMap<>();
+
+    /**
+     * Number of broadcasts pending on this queue, sampled whenever one is enqueued.
+     */
+    final ExponentiallyBucketedHistogram mQueueDepthHistogram =
+            new ExponentiallyBucketedHistogram(10);
+
+    /**
+     * Milliseconds from enqueueing a broadcast to delivering it, per receiver.
+     */
+    final ExponentiallyBucketedHistogram mDispatchLatencyHistogram =
+            new ExponentiallyBucketedHistogram(16);
+
+    /**
+     * Pending broadcasts replaced by a newer one, and deliveries that were fanned out.
+     */
+    int mReplacedCount;
+    int mFanOutCount;
+
     static final int BROADCAST_INTENT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG;
     static final int BROADCAST_TIMEOUT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG + 1;
+    static final int BROADCAST_FAN_OUT_TIMEOUT_MSG =
+            ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG + 2;
 
     // log latency metrics for ordered broadcasts during BOOT_COMPLETED processing
     boolean mLogLatencyMetrics = true;
@@ -190,6 +220,11 @@ public final class BroadcastQueue {
                         broadcastTimeoutLocked(true);
                     }
                 } break;
+                case BROADCAST_FAN_OUT_TIMEOUT_MSG: {
+                    synchronized (mService) {
+                        fanOutTimeoutLocked((FanOutReceiver) msg.obj);
+                    }
+                } break;
             }
         }
     }
@@ -209,6 +244,23 @@ public final class BroadcastQueue {
         }
     }
 
+    static final class FanOutReceiver {
+        final BroadcastRecord mRecord;
+        final ProcessRecord mApp;
+        final IBinder mReceiver;
+        // Index of the receiver in the broadcast
+        final int mIndex;
+        final long mReceiverTime;
+
+        FanOutReceiver(BroadcastRecord record, ProcessRecord app, int index) {
+            mRecord = record;
+            mApp = app;
+            mReceiver = app.thread.asBinder();
+            mIndex = index;
+            mReceiverTime = SystemClock.uptimeMillis();
+        }
+    }
+
     BroadcastQueue(ActivityManagerService service, Handler handler,
             String name, BroadcastConstants constants, boolean allowDelayBehindServices) {
         mService = service;
@@ -250,6 +302,7 @@ public final class BroadcastQueue {
      */
     private void enqueueBroadcastHelper(BroadcastRecord r) {
         r.enqueueClockTime = System.currentTimeMillis();
+        mQueueDepthHistogram.add(mParallelBroadcasts.size() + mDispatcher.pendingCountLocked());
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
             Trace.asyncTraceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -263,7 +316,7 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceParallelBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mParallelBroadcasts, r, "PARALLEL");
+        return noteReplaced(replaceBroadcastLocked(mParallelBroadcasts, r, "PARALLEL"));
     }
 
     /**
@@ -271,7 +324,25 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceOrderedBroadcastLocked(BroadcastRecord r) {
-        return mDispatcher.replaceBroadcastLocked(r, "ORDERED");
+        return noteReplaced(mDispatcher.replaceBroadcastLocked(r, "ORDERED"));
+    }
+
+    /**
+     * Whether a new broadcast of {@code intent} should replace one of the same intent that is
+     * still pending on this queue: either the sender asked for it, or the action is one this
+     * queue coalesces and nothing observes the individual deliveries.
+     */
+    boolean shouldReplacePending(Intent intent, boolean ordered, IIntentReceiver resultTo) {
+        return (intent.getFlags() & Intent.FLAG_RECEIVER_REPLACE_PENDING) != 0
+                || (!ordered && resultTo == null
+                        && mConstants.isCoalescedAction(intent.getAction()));
+    }
+
+    private BroadcastRecord noteReplaced(BroadcastRecord old) {
+        if (old != null) {
+            mReplacedCount++;
+        }
+        return old;
     }
 
     private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
@@ -340,6 +411,146 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * Whether the current receiver of {@code r}, hosted by the running {@code app}, can be
+     * delivered to without waiting for it to finish.  Nothing depends on the order of an
+     * unordered broadcast without a result receiver, so its running receivers may overlap.
+     */
+    private boolean canFanOutLocked(BroadcastRecord r, ProcessRecord app) {
+        return !r.ordered && r.resultTo == null && !r.timeoutExempt
+                && mService.mProcessesReady && !app.inFullBackup
+                && mFanOutReceivers.size() < mConstants.MAX_FAN_OUT
+                && !mFanOutReceivers.containsKey(app)
+                && !(mDelayBehindServices
+                        && mService.mServices.hasBackgroundServicesLocked(r.userId));
+    }
+
+    private void fanOutCurBroadcastLocked(BroadcastRecord r, ProcessRecord app, int index)
+            throws RemoteException {
+        if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
+                "Fan out broadcast " + r + " to app " + app);
+        final FanOutReceiver fo = new FanOutReceiver(r, app, index);
+        trackFanOutLocked(fo);
+        app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
+        mService.mProcessList.updateLruProcessLocked(app, false, null);
+        mService.enqueueOomAdjTargetLocked(app);
+        mService.updateOomAdjPendingTargetsLocked(OomAdjuster.OOM_ADJ_REASON_START_RECEIVER);
+
+        final Intent intent = new Intent(r.intent);
+        intent.setComponent(r.curComponent);
+        boolean started = false;
+        try {
+            mService.notifyPackageUse(r.curComponent.getPackageName(),
+                                      PackageManager.NOTIFY_PACKAGE_USE_BROADCAST_RECEIVER);
+            app.thread.scheduleReceiver(intent, r.curReceiver,
+                    mService.compatibilityInfoForPackage(r.curReceiver.applicationInfo),
+                    r.resultCode, r.resultData, r.resultExtras, false, r.userId,
+                    app.getReportedProcState());
+            started = true;
+        } finally {
+            if (!started) {
+                mFanOutReceivers.remove(app);
+                mHandler.removeMessages(BROADCAST_FAN_OUT_TIMEOUT_MSG, fo);
+                app.curReceivers.remove(r);
+            }
+        }
+        mFanOutCount++;
+
+        // Nothing waits for this receiver; go on with the next one right away.
+        r.state = BroadcastRecord.IDLE;
+        r.curComponent = null;
+        r.curReceiver = null;
+        scheduleBroadcastsLocked();
+    }
+
+    /**
+     * Records {@code fo} as in flight until its process finishes it or it times out.
+     */
+    void trackFanOutLocked(FanOutReceiver fo) {
+        mFanOutReceivers.put(fo.mApp, fo);
+        fo.mApp.curReceivers.add(fo.mRecord);
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(BROADCAST_FAN_OUT_TIMEOUT_MSG, fo),
+                fo.mReceiverTime + mConstants.TIMEOUT);
+    }
+
+    /**
+     * Whether the next receiver of {@code r} is hosted by a process that has not finished a
+     * fanned out delivery yet.  Its finish would be ambiguous, so the queue waits for it.
+     */
+    private boolean isWaitingForFanOutLocked(BroadcastRecord r) {
+        if (mFanOutReceivers.isEmpty() || r.nextReceiver >= r.receivers.size()) {
+            return false;
+        }
+        final Object next = r.receivers.get(r.nextReceiver);
+        if (!(next instanceof ResolveInfo)) {
+            return false;
+        }
+        final ActivityInfo info = ((ResolveInfo) next).activityInfo;
+        for (int i = mFanOutReceivers.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = mFanOutReceivers.keyAt(i);
+            if (app.uid == info.applicationInfo.uid && app.processName.equals(info.processName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finishes the fanned out delivery that {@code receiver}, an application thread, was
+     * handling.  Returns false if there is none.
+     */
+    public boolean finishFanOutReceiverLocked(IBinder receiver) {
+        for (int i = mFanOutReceivers.size() - 1; i >= 0; i--) {
+            final FanOutReceiver fo = mFanOutReceivers.valueAt(i);
+            if (fo.mReceiver == receiver) {
+                mFanOutReceivers.removeAt(i);
+                mHandler.removeMessages(BROADCAST_FAN_OUT_TIMEOUT_MSG, fo);
+                finishFanOutLocked(fo);
+                scheduleBroadcastsLocked();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void finishFanOutLocked(FanOutReceiver fo) {
+        final BroadcastRecord r = fo.mRecord;
+        final ProcessRecord app = fo.mApp;
+        final long elapsed = SystemClock.uptimeMillis() - fo.mReceiverTime;
+        r.duration[fo.mIndex] = elapsed;
+        app.curReceivers.remove(r);
+        if (r.allowBackgroundActivityStarts) {
+            if (elapsed > mConstants.ALLOW_BG_ACTIVITY_START_TIMEOUT) {
+                app.removeAllowBackgroundActivityStartsToken(r);
+            } else {
+                postActivityStartTokenRemoval(app, r, fo.mReceiverTime);
+            }
+        }
+        if (mConstants.SLOW_TIME > 0 && elapsed > mConstants.SLOW_TIME
+                && !UserHandle.isCore(app.uid)) {
+            if (DEBUG_BROADCAST_DEFERRAL) {
+                Slog.i(TAG_BROADCAST, "Fanned out receiver " + fo.mIndex + " was slow: "
+                        + app + " br=" + r);
+            }
+            mDispatcher.startDeferring(app.uid);
+        }
+    }
+
+    final void fanOutTimeoutLocked(FanOutReceiver fo) {
+        if (mFanOutReceivers.get(fo.mApp) != fo) {
+            return;
+        }
+        mFanOutReceivers.remove(fo.mApp);
+        final BroadcastRecord r = fo.mRecord;
+        Slog.w(TAG, "Timeout of fanned out broadcast " + r + " - app=" + fo.mApp);
+        r.delivery[fo.mIndex] = BroadcastRecord.DELIVERY_TIMEOUT;
+        finishFanOutLocked(fo);
+        scheduleBroadcastsLocked();
+        if (!fo.mApp.isDebugging()) {
+            mHandler.post(new AppNotResponding(fo.mApp, "Broadcast of " + r.intent.toString()));
+        }
+    }
+
     public boolean sendPendingBroadcastsLocked(ProcessRecord app) {
         boolean didSomething = false;
         final BroadcastRecord br = mPendingBroadcast;
@@ -380,6 +591,13 @@ public final class BroadcastQueue {
 
     // Skip the current receiver, if any, that is in flight to the given process
     public void skipCurrentReceiverLocked(ProcessRecord app) {
+        final FanOutReceiver fo = mFanOutReceivers.remove(app);
+        if (fo != null) {
+            mHandler.removeMessages(BROADCAST_FAN_OUT_TIMEOUT_MSG, fo);
+            finishFanOutLocked(fo);
+            scheduleBroadcastsLocked();
+        }
+
         BroadcastRecord r = null;
         final BroadcastRecord curActive = mDispatcher.getActiveBroadcastLocked();
         if (curActive != null && curActive.curApp == app) {
@@ -437,7 +655,8 @@ public final class BroadcastQueue {
         return next;
     }
 
-    private void postActivityStartTokenRemoval(ProcessRecord app, BroadcastRecord r) {
+    private void postActivityStartTokenRemoval(ProcessRecord app, BroadcastRecord r,
+            long receiverTime) {
         // the receiver had run for less than allowed bg activity start timeout,
         // so allow the process to still start activities from bg for some more time
         String msgToken = (app.toShortString() + r.toString()).intern();
@@ -447,7 +666,7 @@ public final class BroadcastQueue {
         // ...then schedule the removal of the token after the extended timeout
         mHandler.postAtTime(() -> {
             app.removeAllowBackgroundActivityStartsToken(r);
-        }, msgToken, (r.receiverTime + mConstants.ALLOW_BG_ACTIVITY_START_TIMEOUT));
+        }, msgToken, (receiverTime + mConstants.ALLOW_BG_ACTIVITY_START_TIMEOUT));
     }
 
     public boolean finishReceiverLocked(BroadcastRecord r, int resultCode,
@@ -467,7 +686,7 @@ public final class BroadcastQueue {
                 r.curApp.removeAllowBackgroundActivityStartsToken(r);
             } else {
                 // It gets more time; post the removal to happen at the appropriate moment
-                postActivityStartTokenRemoval(r.curApp, r);
+                postActivityStartTokenRemoval(r.curApp, r, r.receiverTime);
             }
         }
         // If we're abandoning this broadcast before any receivers were actually spun up,
@@ -987,6 +1206,7 @@ public final class BroadcastQueue {
                 if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
                         "Delivering non-ordered on [" + mQueueName + "] to registered "
                         + target + ": " + r);
+                noteDispatchLatencyLocked(r);
                 deliverToRegisteredReceiverLocked(r, (BroadcastFilter)target, false, i);
             }
             addBroadcastToHistoryLocked(r);
@@ -1239,6 +1459,12 @@ public final class BroadcastQueue {
             }
         } while (r == null);
 
+        if (isWaitingForFanOutLocked(r)) {
+            if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Next receiver of " + r
+                    + " waits for a fanned out delivery [" + mQueueName + "]");
+            return;
+        }
+
         // Get the next receiver...
         int recIdx = r.nextReceiver++;
 
@@ -1285,6 +1511,7 @@ public final class BroadcastQueue {
                     "Delivering ordered ["
                     + mQueueName + "] to registered "
                     + filter + ": " + r);
+            noteDispatchLatencyLocked(r);
             deliverToRegisteredReceiverLocked(r, filter, r.ordered, recIdx);
             if (r.receiver == null || !r.ordered) {
                 // The receiver has already finished, so schedule to
@@ -1575,6 +1802,7 @@ public final class BroadcastQueue {
             return;
         }
         r.manifestCount++;
+        noteDispatchLatencyLocked(r);
 
         r.delivery[recIdx] = BroadcastRecord.DELIVERY_DELIVERED;
         r.state = BroadcastRecord.APP_RECEIVE;
@@ -1607,7 +1835,11 @@ public final class BroadcastQueue {
                 app.addPackage(info.activityInfo.packageName,
                         info.activityInfo.applicationInfo.longVersionCode, mService.mProcessStats);
                 maybeAddAllowBackgroundActivityStartsToken(app, r);
-                processCurBroadcastLocked(r, app, skipOomAdj);
+                if (canFanOutLocked(r, app)) {
+                    fanOutCurBroadcastLocked(r, app, recIdx);
+                } else {
+                    processCurBroadcastLocked(r, app, skipOomAdj);
+                }
                 return;
             } catch (RemoteException e) {
                 Slog.w(TAG, "Exception when sending broadcast to "
@@ -1662,6 +1894,11 @@ public final class BroadcastQueue {
         mPendingBroadcastRecvIndex = recIdx;
     }
 
+    private void noteDispatchLatencyLocked(BroadcastRecord r) {
+        final long latency = System.currentTimeMillis() - r.enqueueClockTime;
+        mDispatchLatencyHistogram.add((int) Math.min(latency, Integer.MAX_VALUE));
+    }
+
     private void maybeAddAllowBackgroundActivityStartsToken(ProcessRecord proc, BroadcastRecord r) {
         if (r == null || proc == null || !r.allowBackgroundActivityStarts) {
             return;
@@ -1993,6 +2230,20 @@ public final class BroadcastQueue {
 
         mConstants.dump(pw);
 
+        pw.println();
+        pw.println("  Dispatch stats [" + mQueueName + "]:");
+        pw.println("    replaced=" + mReplacedCount + " fannedOut=" + mFanOutCount
+                + " fanOutInFlight=" + mFanOutReceivers.size());
+        for (int j = 0; j < mFanOutReceivers.size(); j++) {
+            final FanOutReceiver fo = mFanOutReceivers.valueAt(j);
+            pw.print("      "); pw.print(fo.mApp.toShortString());
+            pw.print(" started "); TimeUtils.formatDuration(fo.mReceiverTime,
+                    SystemClock.uptimeMillis(), pw);
+            pw.print(": "); pw.println(fo.mRecord);
+        }
+        mQueueDepthHistogram.dump(pw, "    queue depth: ");
+        mDispatchLatencyHistogram.dump(pw, "    dispatch latency (ms): ");
+
         int i;
         boolean printed = false;
 
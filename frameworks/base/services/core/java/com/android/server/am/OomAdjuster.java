@@ -159,6 +159,30 @@ public final class OomAdjuster {
 
     private final ArraySet<BroadcastQueue> mTmpBroadcastQueue = new ArraySet();
 
+    /**
+     * The longest a full update may be skipped while partial updates run. Partial updates never
+     * hand out cached slots or enforce the cached and empty process limits, so a full update
+     * still runs at least this often.
+     */
+    static final long FULL_UPDATE_INTERVAL_MS = 10 * 1000;
+
+    /**
+     * Processes whose state changed since the last update, see
+     * {@link #enqueueOomAdjTargetLocked}.
+     */
+    @GuardedBy("mService")
+    private final ArraySet<ProcessRecord> mPendingProcessSet = new ArraySet<>();
+    private final ArrayList<ProcessRecord> mTmpProcessList = new ArrayList<>();
+    private final ArraySet<ProcessRecord> mTmpReachable = new ArraySet<>();
+
+    /** Uptime of the last full update. */
+    @VisibleForTesting
+    long mLastFullUpdateTime;
+
+    /** Counters and timings of the updates, per reason. */
+    @GuardedBy("mService")
+    private final ArrayMap<String, UpdateStats> mUpdateStats = new ArrayMap<>();
+
     private final ActivityManagerService mService;
     private final ProcessList mProcessList;
 
@@ -243,12 +267,182 @@ public final class OomAdjuster {
         return applyOomAdjLocked(app, doingAll, now, SystemClock.elapsedRealtime());
     }
 
+    /**
+     * Marks {@code app} as changed, to be updated by the next
+     * {@link #updateOomAdjPendingTargetsLocked} together with every process it affects.
+     */
+    @GuardedBy("mService")
+    void enqueueOomAdjTargetLocked(ProcessRecord app) {
+        if (app != null) {
+            mPendingProcessSet.add(app);
+        }
+    }
+
+    /**
+     * Updates the processes marked by {@link #enqueueOomAdjTargetLocked} and the processes they
+     * can change: the hosts of the services they bind to and of the providers they use, followed
+     * transitively. Does a full update instead when the last one is older than
+     * {@link #FULL_UPDATE_INTERVAL_MS}, and falls back to one when a process enters or leaves
+     * the cached range, changes the state of its uid or is part of a binding cycle.
+     */
+    @GuardedBy("mService")
+    void updateOomAdjPendingTargetsLocked(String oomAdjReason) {
+        if (!updateOomAdjPendingTargetsPartialLocked(oomAdjReason, SystemClock.uptimeMillis())) {
+            updateOomAdjLocked(oomAdjReason);
+        }
+    }
+
+    /**
+     * The partial part of {@link #updateOomAdjPendingTargetsLocked}. Returns false, having
+     * applied nothing, if a full update is needed instead.
+     */
+    @VisibleForTesting
+    @GuardedBy("mService")
+    boolean updateOomAdjPendingTargetsPartialLocked(String oomAdjReason, long now) {
+        if (mPendingProcessSet.isEmpty()) {
+            return true;
+        }
+        final UpdateStats stats = getUpdateStatsLocked(oomAdjReason);
+        if (now - mLastFullUpdateTime > FULL_UPDATE_INTERVAL_MS) {
+            mPendingProcessSet.clear();
+            stats.periodicFullUpdates++;
+            return false;
+        }
+        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, oomAdjReason);
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final ArrayList<ProcessRecord> processes = mTmpProcessList;
+        collectReachableProcessesLocked(mPendingProcessSet, processes);
+        mPendingProcessSet.clear();
+        final int count = processes.size();
+        final boolean updated = updateOomAdjPartialLocked(processes, now);
+        processes.clear();
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+        if (!updated) {
+            stats.fallbacks++;
+            return false;
+        }
+        stats.partialUpdates++;
+        stats.partialProcesses += count;
+        stats.partialNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+        return true;
+    }
+
+    /**
+     * Puts {@code seeds} and every process reachable from them through service bindings and
+     * provider connections into {@code out}, seeds first. Dead processes are left out.
+     */
+    @VisibleForTesting
+    void collectReachableProcessesLocked(ArraySet<ProcessRecord> seeds,
+            ArrayList<ProcessRecord> out) {
+        final ArraySet<ProcessRecord> reachable = mTmpReachable;
+        for (int i = 0; i < seeds.size(); i++) {
+            addReachableLocked(seeds.valueAt(i), reachable, out);
+        }
+        for (int i = 0; i < out.size(); i++) {
+            final ProcessRecord pr = out.get(i);
+            for (int j = pr.connections.size() - 1; j >= 0; j--) {
+                final ConnectionRecord cr = pr.connections.valueAt(j);
+                // A binding that waives priority does not change the host, unless it
+                // still ties the host to the client's activities.
+                if ((cr.flags & (Context.BIND_WAIVE_PRIORITY | Context.BIND_TREAT_LIKE_ACTIVITY
+                        | Context.BIND_ADJUST_WITH_ACTIVITY)) == Context.BIND_WAIVE_PRIORITY) {
+                    continue;
+                }
+                addReachableLocked(cr.binding.service.app, reachable, out);
+            }
+            for (int j = pr.conProviders.size() - 1; j >= 0; j--) {
+                addReachableLocked(pr.conProviders.get(j).provider.proc, reachable, out);
+            }
+        }
+        reachable.clear();
+    }
+
+    private static void addReachableLocked(ProcessRecord app, ArraySet<ProcessRecord> reachable,
+            ArrayList<ProcessRecord> out) {
+        if (app != null && app.thread != null && !app.killedByAm && reachable.add(app)) {
+            out.add(app);
+        }
+    }
+
+    /**
+     * Computes and applies {@code processes} in order. Returns false, having applied nothing,
+     * if the result needs a full update.
+     */
+    @VisibleForTesting
+    @GuardedBy("mService")
+    boolean updateOomAdjPartialLocked(ArrayList<ProcessRecord> processes, long now) {
+        final ProcessRecord TOP_APP = mService.getTopAppLocked();
+        mAdjSeq++;
+        final int N = processes.size();
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord app = processes.get(i);
+            final boolean wasCached = app.cached;
+            final int prevProcState = app.getCurProcState();
+            // Like the single process update, a cached process keeps its slot.
+            final int cachedAdj = app.getCurRawAdj() >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? app.getCurRawAdj() : ProcessList.UNKNOWN_ADJ;
+            app.containsCycle = false;
+            computeOomAdjLocked(app, cachedAdj, TOP_APP, false, now, false);
+            if (app.containsCycle || wasCached != app.cached
+                    || app.getCurRawAdj() == ProcessList.UNKNOWN_ADJ
+                    || mayChangeUidStateLocked(app, prevProcState)) {
+                return false;
+            }
+        }
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        for (int i = 0; i < N; i++) {
+            applyOomAdjLocked(processes.get(i), false, now, nowElapsed);
+        }
+        return true;
+    }
+
+    /**
+     * Whether the new proc state of {@code app} may change the state of its uid, which only a
+     * full update recomputes: it is above the uid's, or the process may have held the uid up.
+     */
+    private static boolean mayChangeUidStateLocked(ProcessRecord app, int prevProcState) {
+        final UidRecord uidRec = app.uidRecord;
+        final int procState = app.getCurProcState();
+        if (uidRec == null || procState == prevProcState) {
+            return false;
+        }
+        return procState < uidRec.getCurProcState() || prevProcState <= uidRec.getCurProcState();
+    }
+
+    @GuardedBy("mService")
+    private UpdateStats getUpdateStatsLocked(String oomAdjReason) {
+        UpdateStats stats = mUpdateStats.get(oomAdjReason);
+        if (stats == null) {
+            stats = new UpdateStats();
+            mUpdateStats.put(oomAdjReason, stats);
+        }
+        return stats;
+    }
+
+    @GuardedBy("mService")
+    void dumpUpdateStatsLocked(PrintWriter pw) {
+        pw.println("OOM ADJ UPDATES (dumpsys activity oom):");
+        for (int i = 0; i < mUpdateStats.size(); i++) {
+            final UpdateStats stats = mUpdateStats.valueAt(i);
+            pw.print("  "); pw.print(mUpdateStats.keyAt(i)); pw.println(":");
+            pw.print("    full: "); pw.print(stats.fullUpdates);
+            pw.print(" in "); pw.print(stats.fullNanos / 1000000); pw.print("ms");
+            pw.print(" (periodic="); pw.print(stats.periodicFullUpdates);
+            pw.print(" fallback="); pw.print(stats.fallbacks); pw.println(")");
+            pw.print("    partial: "); pw.print(stats.partialUpdates);
+            pw.print(" in "); pw.print(stats.partialNanos / 1000000); pw.print("ms");
+            pw.print(", "); pw.print(stats.partialProcesses); pw.println(" processes");
+        }
+    }
+
     @GuardedBy("mService")
     void updateOomAdjLocked(String oomAdjReason) {
         Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, oomAdjReason);
         mService.mOomAdjProfiler.oomAdjStarted();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final ProcessRecord TOP_APP = mService.getTopAppLocked();
         final long now = SystemClock.uptimeMillis();
+        mLastFullUpdateTime = now;
         final long nowElapsed = SystemClock.elapsedRealtime();
         final long oldTime = now - ProcessList.MAX_EMPTY_TIME;
         final int N = mProcessList.getLruSizeLocked();
@@ -630,10 +824,26 @@ public final class OomAdjuster {
                 Slog.d(TAG_OOM_ADJ, "Did OOM ADJ in " + duration + "ms");
             }
         }
+        final UpdateStats stats = getUpdateStatsLocked(oomAdjReason);
+        stats.fullUpdates++;
+        stats.fullNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
         mService.mOomAdjProfiler.oomAdjEnded();
         Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
     }
 
+    /** Update counts and time spent for one reason. */
+    private static final class UpdateStats {
+        int fullUpdates;
+        long fullNanos;
+        // Full updates that replaced a partial one because the last full one was too old.
+        int periodicFullUpdates;
+        // Partial updates whose result needed a full update.
+        int fallbacks;
+        int partialUpdates;
+        long partialNanos;
+        long partialProcesses;
+    }
+
     private final ComputeOomAdjWindowCallback mTmpComputeOomAdjWindowCallback =
             new ComputeOomAdjWindowCallback();
 
@@ -758,7 +968,8 @@ public final class OomAdjuster {
         }
     }
 
-    private final boolean computeOomAdjLocked(ProcessRecord app, int cachedAdj,
+    @VisibleForTesting
+    final boolean computeOomAdjLocked(ProcessRecord app, int cachedAdj,
             ProcessRecord TOP_APP, boolean doingAll, long now, boolean cycleReEval) {
         if (mAdjSeq == app.adjSeq) {
             if (app.adjSeq == app.completedAdjSeq) {
@@ -34,7 +34,10 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.UserIdInt;
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ParceledListSlice;
 import android.content.res.Resources;
@@ -55,12 +58,14 @@ import android.hardware.display.DisplayedContentSample;
 import android.hardware.display.DisplayedContentSamplingAttributes;
 import android.hardware.display.IDisplayManager;
 import android.hardware.display.IDisplayManagerCallback;
+import android.hardware.display.IUIDisplayCallback;
 import android.hardware.display.IVirtualDisplayCallback;
 import android.hardware.display.WifiDisplayStatus;
 import android.hardware.input.InputManagerInternal;
 import android.media.projection.IMediaProjection;
 import android.media.projection.IMediaProjectionManager;
 import android.os.Binder;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.IBinder.DeathRecipient;
@@ -183,6 +188,9 @@ public final class DisplayManagerService extends SystemService {
     /** Applens: start */
     private OffScreenDisplayAdapter mOffScreenDisplayAdapter;
     private UIDisplayAdapter mUIDisplayAdapter;
+    // Holds the loading display up until the launched lens apps are ready.
+    private final LensLaunchBarrier mLensLaunchBarrier;
+    private final LensPreloadPredictor mLensPredictor = new LensPreloadPredictor();
     /** Applens: end */
 
     // The synchronization root for the display manager.
@@ -221,9 +229,6 @@ public final class DisplayManagerService extends SystemService {
     private final SparseArray<LogicalDisplay> mLogicalDisplays =
             new SparseArray<LogicalDisplay>();
 
-    /** applens: start */
-    private final SparseArray<LogicalDisplay> mUiDisplays = new SparseArray<LogicalDisplay>();
-    /** applens: end */
     private int mNextNonDefaultDisplayId = Display.DEFAULT_DISPLAY + 1;
 
     // List of all display transaction listeners.
@@ -324,6 +329,12 @@ public final class DisplayManagerService extends SystemService {
         mInjector = injector;
         mContext = context;
         mHandler = new DisplayManagerHandler(DisplayThread.get().getLooper());
+        mLensLaunchBarrier = new LensLaunchBarrier(mSyncRoot, mHandler,
+                LensLaunchBarrier.DEFAULT_TIMEOUT_MILLIS, () -> {
+                    if (mUIDisplayAdapter != null) {
+                        mUIDisplayAdapter.hideLoadingDisplay();
+                    }
+                });
         mUiHandler = UiThread.getHandler();
         mDisplayAdapterListener = new DisplayAdapterListener();
         mDisplayModeDirector = new DisplayModeDirector(context, mHandler);
@@ -866,12 +877,34 @@ public final class DisplayManagerService extends SystemService {
 
     /** Applens: start */
     private void registerUIDisplayAdapterLocked() {
+        LensSnapshotPersister snapshots = new LensSnapshotPersister(
+                Environment::getDataSystemCeDirectory);
+        snapshots.start();
+        // Registering calls into the activity manager, so don't do it holding the sync root.
+        mHandler.post(() -> registerLensSnapshotCleanup(snapshots));
         mUIDisplayAdapter = new UIDisplayAdapter(
-                mSyncRoot, mContext, mHandler, mDisplayAdapterListener, mUiHandler);
+                mSyncRoot, mContext, mHandler, mDisplayAdapterListener, mUiHandler, snapshots);
 
         registerDisplayAdapterLocked(mUIDisplayAdapter);
     }
 
+    // Drops the stored frames of lens targets whose package is removed.
+    private void registerLensSnapshotCleanup(LensSnapshotPersister snapshots) {
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mContext.registerReceiverAsUser(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)
+                        || intent.getData() == null) {
+                    return;
+                }
+                snapshots.removeSnapshots(getSendingUserId(),
+                        intent.getData().getSchemeSpecificPart());
+            }
+        }, UserHandle.ALL, filter, null, mHandler);
+    }
+
     private void registerOffScreenDisplayAdapterLocked() {
         mOffScreenDisplayAdapter = new OffScreenDisplayAdapter(
                 mSyncRoot, mContext, mHandler, mDisplayAdapterListener, mUiHandler);
@@ -1058,17 +1091,8 @@ public final class DisplayManagerService extends SystemService {
         }
         Slog.w("LENS", device.getNameLocked()+" added!");
         /** applens: start */
-        if (device.getNameLocked().substring(0,4).equals("UI #")) {
-            Slog.w("sunjae", device.getNameLocked()+" Added");
-            int uiNum = Integer.parseInt(device.getNameLocked().substring(device.getNameLocked().length() -1));
-            mUIDisplayAdapter.setDisplayId(displayId, uiNum);
-            mUiDisplays.put(uiNum, display);
-
-        } else if (device.getNameLocked().length() > 8 && device.getNameLocked().substring(0,8).equals("MirrorUI")) {
-            Slog.w("sunjae", device.getNameLocked()+" Added");
-            int uiNum = Integer.parseInt(device.getNameLocked().substring(device.getNameLocked().length() -1)) +4;
-            mUIDisplayAdapter.setDisplayId(displayId, uiNum);
-            mUiDisplays.put(uiNum, display);
+        if (device.getAdapterLocked() == mUIDisplayAdapter) {
+            mUIDisplayAdapter.onLogicalDisplayAddedLocked(device, displayId);
         }
         /** applens: end */
 
@@ -1411,18 +1435,7 @@ public final class DisplayManagerService extends SystemService {
                 display = null;
             }
             if (display == null) {
-                /** applens: start */
-                String deviceName = device.getNameLocked();
-                if (deviceName.length() > 8) {
-                    if (deviceName.substring(0,8).equals("MirrorUI")) {
-                        int uiNum = Integer.parseInt(deviceName.substring(deviceName.length() -1));
-    
-                        display = mUiDisplays.get(uiNum);
-                    }
-                } else {
-                    /** applens: end */
-                    display = mLogicalDisplays.get(Display.DEFAULT_DISPLAY);
-                }
+                display = mLogicalDisplays.get(Display.DEFAULT_DISPLAY);
             }
         }
 
@@ -1603,6 +1616,14 @@ public final class DisplayManagerService extends SystemService {
                 display.dumpLocked(ipw);
             }
 
+            pw.println();
+            pw.println("Lens Launch Barrier:");
+            mLensLaunchBarrier.dumpLocked(pw, "  ");
+
+            pw.println();
+            pw.println("Lens Preload Predictor:");
+            mLensPredictor.dumpLocked(pw, "  ", SystemClock.elapsedRealtime());
+
             pw.println();
             mDisplayModeDirector.dump(pw);
 
@@ -1988,17 +2009,39 @@ public final class DisplayManagerService extends SystemService {
         }
 
         /**Applens: start */
-        private int mNumAppLaunched = 0;
-        private int mNumAppReady = 0;
-        boolean readyToSwitch = true;
-//      booelan readyToSwitch = false;
         public int createOffScreenDisplay(int numApp) {
-            mNumAppLaunched = numApp;
-           return mOffScreenDisplayAdapter.createOffScreenDisplay();
+            synchronized (mSyncRoot) {
+                mLensLaunchBarrier.expectLocked(numApp);
+                mLensPredictor.noteAppCountLocked(numApp);
+                return mOffScreenDisplayAdapter.createOffScreenDisplay();
+            }
         }
 
         public void createLoadingDisplay(int width, int height) {
-            mUIDisplayAdapter.createLoadingDisplay(width, height);
+            final String target;
+            final int appCount;
+            synchronized (mSyncRoot) {
+                target = mLensPredictor.predictTargetLocked(SystemClock.elapsedRealtime());
+                appCount = mLensPredictor.predictAppCountLocked();
+            }
+            mUIDisplayAdapter.createLoadingDisplay(width, height, target,
+                    UserHandle.getCallingUserId());
+            if (target != null) {
+                mOffScreenDisplayAdapter.prewarmOffScreenDisplays(appCount);
+            } else {
+                // Nothing to start ahead for, so don't hold full screen buffers for it.
+                mOffScreenDisplayAdapter.releaseSpareOffScreenDisplays();
+            }
+        }
+
+        /** Returns the likely target of the next lens, for the launcher to start ahead. */
+        public String getPredictedLensTarget() {
+            // The prediction tells which app is used the most.
+            mContext.enforceCallingOrSelfPermission(Manifest.permission.OBSERVE_APP_USAGE,
+                    "Permission required to get the predicted lens target");
+            synchronized (mSyncRoot) {
+                return mLensPredictor.predictTargetLocked(SystemClock.elapsedRealtime());
+            }
         }
 
         public int createUIDisplay(int width, int height) {
@@ -2009,13 +2052,38 @@ public final class DisplayManagerService extends SystemService {
             return id;
         }
 
+        public void createUIDisplays(int[] sizes, IUIDisplayCallback callback) {
+            if (sizes == null || callback == null) {
+                throw new IllegalArgumentException("sizes and callback must not be null");
+            }
+            final String target = getLensTarget(Binder.getCallingUid());
+            if (target != null) {
+                synchronized (mSyncRoot) {
+                    mLensPredictor.noteLaunchLocked(target, SystemClock.elapsedRealtime());
+                }
+            }
+            mUIDisplayAdapter.createUIDisplays(sizes, callback, target,
+                    UserHandle.getCallingUserId());
+        }
+
+        // Lenses are told apart by the app that shows them.
+        private String getLensTarget(int uid) {
+            final long token = Binder.clearCallingIdentity();
+            try {
+                return mContext.getPackageManager().getNameForUid(uid);
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
+
         public void dismissLoadingDisplay() {
             mUIDisplayAdapter.dismissLoadingDisplay();
         }
 
         public void dismissUIDisplay() {
-            mNumAppReady = 0;
-            readyToSwitch = false;
+            synchronized (mSyncRoot) {
+                mLensLaunchBarrier.resetLocked();
+            }
             mUIDisplayAdapter.dismissUIDisplay();
             mOffScreenDisplayAdapter.dismissOffScreenDisplay();
         }
@@ -2055,12 +2123,9 @@ public final class DisplayManagerService extends SystemService {
         }
 
         public void hideLoadingDisplay() {
-            mNumAppReady++;
-            if (mNumAppReady == mNumAppLaunched) {
-                readyToSwitch = true;
+            synchronized (mSyncRoot) {
+                mLensLaunchBarrier.readyLocked(Binder.getCallingPid(), Binder.getCallingUid());
             }
-            if (readyToSwitch)
-                mUIDisplayAdapter.hideLoadingDisplay(); 
         }
 
         public void hideUIDisplay() {
@@ -2076,13 +2141,20 @@ public final class DisplayManagerService extends SystemService {
         }
 
         public void showUIDisplay() {
-            if (readyToSwitch)
-                mUIDisplayAdapter.showUIDisplay();
+            // Held across the check so a launch cannot start in between.
+            synchronized (mSyncRoot) {
+                if (mLensLaunchBarrier.isOpenLocked()) {
+                    mUIDisplayAdapter.showUIDisplay();
+                }
+            }
         }
 
         public void showUIDisplayId(int id) {
-            if (readyToSwitch)
-                mUIDisplayAdapter.showUIDisplayId(id);
+            synchronized (mSyncRoot) {
+                if (mLensLaunchBarrier.isOpenLocked()) {
+                    mUIDisplayAdapter.showUIDisplayId(id);
+                }
+            }
         }
         
         public void hideOffScreenDisplay() {
@@ -2446,6 +2518,18 @@ public final class DisplayManagerService extends SystemService {
             }
         }
 
+        int getPrimaryUIDisplayCount() {
+            return mUIDisplayAdapter.getPrimaryUIDisplayCount();
+        }
+
+        /** Runs the lens display benchmark; blocks until it is done. */
+        boolean runLensBenchmark(PrintWriter pw, int numDisplays, int iterations, int width,
+                int height) {
+            // The benchmark reads the logical display count with the sync root held.
+            return new UIDisplayBenchmark(mUIDisplayAdapter, mSyncRoot,
+                    () -> mLogicalDisplays.size()).run(pw, numDisplays, iterations, width, height);
+        }
+
         private boolean validatePackageName(int uid, String packageName) {
             if (packageName != null) {
                 String[] packageNames = mContext.getPackageManager().getPackagesForUid(uid);
@@ -51,6 +51,21 @@ class DisplayManagerShellCommand extends ShellCommand {
                 return setDisplayWhiteBalanceLoggingEnabled(false);
             case "dwb-set-cct":
                 return setAmbientColorTemperatureOverride();
+            case "lens-create":
+                return createLensDisplays();
+            case "lens-relayout":
+                return relayoutLensDisplays();
+            case "lens-show":
+                mService.showUIDisplay();
+                return 0;
+            case "lens-hide":
+                mService.hideUIDisplay();
+                return 0;
+            case "lens-dismiss":
+                mService.dismissUIDisplay();
+                return 0;
+            case "lens-benchmark":
+                return runLensBenchmark();
             default:
                 return handleDefaultCommands(cmd);
         }
@@ -77,6 +92,19 @@ class DisplayManagerShellCommand extends ShellCommand {
         pw.println("    Disable display white-balance logging.");
         pw.println("  dwb-set-cct CCT");
         pw.println("    Sets the ambient color temperature override to CCT (use -1 to disable).");
+        pw.println("  lens-create WIDTH HEIGHT [COUNT]");
+        pw.println("    Create COUNT (default 1) lens UI displays, each with its mirror.");
+        pw.println("  lens-relayout X Y SCALE");
+        pw.println("    Move and scale the windows of all lens UI displays.");
+        pw.println("  lens-show");
+        pw.println("    Show the lens UI displays.");
+        pw.println("  lens-hide");
+        pw.println("    Hide the lens UI displays.");
+        pw.println("  lens-dismiss");
+        pw.println("    Dismiss the lens UI displays and the off-screen display.");
+        pw.println("  lens-benchmark [-n DISPLAYS] [-i ITERATIONS] [-s WIDTHxHEIGHT]");
+        pw.println("    Create and dismiss DISPLAYS (default 4) lens UI displays ITERATIONS");
+        pw.println("    (default 1000) times and report latency percentiles and leaks.");
         pw.println();
         Intent.printIntentArgsHelp(pw , "");
     }
@@ -131,4 +159,114 @@ class DisplayManagerShellCommand extends ShellCommand {
         mService.setAmbientColorTemperatureOverride(cct);
         return 0;
     }
+
+    private int createLensDisplays() {
+        final int width = getNextIntArg("width");
+        final int height = getNextIntArg("height");
+        final String countText = getNextArg();
+        final int count = countText != null ? parseInt(countText, "count") : 1;
+        if (width <= 0 || height <= 0 || count <= 0) {
+            getErrPrintWriter().println("Error: WIDTH, HEIGHT and COUNT should be positive");
+            return 1;
+        }
+        final PrintWriter pw = getOutPrintWriter();
+        for (int i = 0; i < count; i++) {
+            pw.println("Created lens UI display " + mService.createUIDisplay(width, height));
+        }
+        return 0;
+    }
+
+    private int relayoutLensDisplays() {
+        final String xText = getNextArg();
+        final String yText = getNextArg();
+        final String scaleText = getNextArg();
+        if (xText == null || yText == null || scaleText == null) {
+            getErrPrintWriter().println("Error: expected X Y SCALE");
+            return 1;
+        }
+        final float x;
+        final float y;
+        final float scale;
+        try {
+            x = Float.parseFloat(xText);
+            y = Float.parseFloat(yText);
+            scale = Float.parseFloat(scaleText);
+        } catch (NumberFormatException e) {
+            getErrPrintWriter().println("Error: X, Y and SCALE should be numbers");
+            return 1;
+        }
+        final int count = mService.getPrimaryUIDisplayCount();
+        if (count == 0) {
+            getErrPrintWriter().println("Error: no lens UI displays");
+            return 1;
+        }
+        // left, right, top, bottom, scale per display, as the lens sends them.
+        final float[] args = new float[count * 5];
+        for (int i = 0; i < count; i++) {
+            args[i * 5] = x;
+            args[i * 5 + 1] = x;
+            args[i * 5 + 2] = y;
+            args[i * 5 + 3] = y;
+            args[i * 5 + 4] = scale;
+        }
+        mService.relayoutUIDisplay(args, 0);
+        return 0;
+    }
+
+    private int runLensBenchmark() {
+        int numDisplays = 4;
+        int iterations = 1000;
+        int width = 720;
+        int height = 480;
+        String opt;
+        while ((opt = getNextOption()) != null) {
+            switch (opt) {
+                case "-n":
+                    numDisplays = getNextIntArg("display count");
+                    break;
+                case "-i":
+                    iterations = getNextIntArg("iteration count");
+                    break;
+                case "-s": {
+                    final String size = getNextArgRequired();
+                    final int x = size.indexOf('x');
+                    if (x < 0) {
+                        getErrPrintWriter().println("Error: size should be WIDTHxHEIGHT");
+                        return 1;
+                    }
+                    width = parseInt(size.substring(0, x), "width");
+                    height = parseInt(size.substring(x + 1), "height");
+                    break;
+                }
+                default:
+                    getErrPrintWriter().println("Error: unknown option " + opt);
+                    return 1;
+            }
+        }
+        if (numDisplays <= 0 || iterations <= 0 || width <= 0 || height <= 0) {
+            getErrPrintWriter().println("Error: counts and size should be positive");
+            return 1;
+        }
+        return mService.runLensBenchmark(getOutPrintWriter(), numDisplays, iterations, width,
+                height) ? 0 : 1;
+    }
+
+    /** Returns the next argument as an int, or -1 after printing an error. */
+    private int getNextIntArg(String name) {
+        final String text = getNextArg();
+        if (text == null) {
+            getErrPrintWriter().println("Error: no " + name + " specified");
+            return -1;
+        }
+        return parseInt(text, name);
+    }
+
+    private int parseInt(String text, String name) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            getErrPrintWriter().println("Error: " + name + " should be a number");
+            return -1;
+        }
+    }
 }
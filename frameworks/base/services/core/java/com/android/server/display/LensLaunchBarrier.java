@@ -0,0 +1,160 @@
+package com.android.server.display;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Readiness barrier for the apps a lens launches on off-screen displays.
+ *
+ * The launcher announces how many apps it is starting; each app reports ready once its UI has
+ * migrated. Apps are told apart by their process, so repeated reports from one app count once.
+ * The barrier completes when every app is ready or when the deadline passes, whichever comes
+ * first, and runs the completion callback exactly once. Guarded by the display manager's sync
+ * root; the callback runs with the lock held.
+ *
+ * @hide
+ */
+final class LensLaunchBarrier {
+    private static final String TAG = "APPLENS(Launch)";
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_WAITING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_TIMED_OUT = 3;
+
+    private final Object mLock;
+    private final Handler mHandler;
+    private final Runnable mOnComplete;
+    private final long mTimeoutMillis;
+
+    private int mState = STATE_IDLE;
+    // Bumped per launch so a deadline that already fired cannot end a later launch.
+    private int mGeneration;
+    private int mExpected;
+    private long mStartMillis;
+    private long mCompleteMillis;
+    // Ready apps by pid.
+    private final SparseArray<ReadyApp> mReady = new SparseArray<ReadyApp>();
+
+    LensLaunchBarrier(Object lock, Handler handler, long timeoutMillis, Runnable onComplete) {
+        mLock = lock;
+        mHandler = handler;
+        mTimeoutMillis = timeoutMillis;
+        mOnComplete = onComplete;
+    }
+
+    /**
+     * Expects {@code numApps} apps. Starts a new launch and its deadline unless one is already
+     * waiting, in which case only the expected count is updated.
+     */
+    void expectLocked(int numApps) {
+        if (mState != STATE_WAITING) {
+            mReady.clear();
+            mStartMillis = SystemClock.uptimeMillis();
+            mCompleteMillis = 0;
+            mState = STATE_WAITING;
+            final int generation = ++mGeneration;
+            mHandler.postAtTime(() -> onDeadline(generation), this,
+                    mStartMillis + mTimeoutMillis);
+        }
+        mExpected = numApps;
+        checkCompleteLocked();
+    }
+
+    /** Records that the app in process {@code pid} is ready. */
+    void readyLocked(int pid, int uid) {
+        if (mState != STATE_WAITING) {
+            // Late or unsolicited; the loading display is already gone.
+            return;
+        }
+        if (mReady.get(pid) == null) {
+            mReady.put(pid, new ReadyApp(uid, SystemClock.uptimeMillis() - mStartMillis));
+        }
+        checkCompleteLocked();
+    }
+
+    /**
+     * Cancels the launch, e.g. after the lens was torn down. The next launch starts its own
+     * deadline when it calls {@link #expectLocked}.
+     */
+    void resetLocked() {
+        mHandler.removeCallbacksAndMessages(this);
+        mReady.clear();
+        mExpected = 0;
+        mState = STATE_IDLE;
+    }
+
+    /** Returns whether the UI displays may be shown, i.e. no launch is still waiting. */
+    boolean isOpenLocked() {
+        return mState != STATE_WAITING;
+    }
+
+    private void onDeadline(int generation) {
+        synchronized (mLock) {
+            if (mState == STATE_WAITING && mGeneration == generation) {
+                Slog.w(TAG, "deadline passed with " + mReady.size() + "/" + mExpected
+                        + " apps ready");
+                completeLocked(STATE_TIMED_OUT);
+            }
+        }
+    }
+
+    private void checkCompleteLocked() {
+        if (mState == STATE_WAITING && mReady.size() >= mExpected) {
+            completeLocked(STATE_DONE);
+        }
+    }
+
+    private void completeLocked(int state) {
+        mHandler.removeCallbacksAndMessages(this);
+        mState = state;
+        mCompleteMillis = SystemClock.uptimeMillis() - mStartMillis;
+        Slog.i(TAG, (state == STATE_DONE ? "all apps ready" : "timed out") + " after "
+                + mCompleteMillis + "ms: " + mReady.size() + "/" + mExpected);
+        mOnComplete.run();
+    }
+
+    void dumpLocked(PrintWriter pw, String prefix) {
+        pw.println(prefix + "state=" + stateToString(mState) + " expected=" + mExpected
+                + " ready=" + mReady.size() + " timeout=" + mTimeoutMillis + "ms");
+        if (mCompleteMillis > 0) {
+            pw.println(prefix + "completedAfter=" + mCompleteMillis + "ms");
+        }
+        for (int i = 0; i < mReady.size(); i++) {
+            ReadyApp app = mReady.valueAt(i);
+            pw.println(prefix + "  pid=" + mReady.keyAt(i) + " uid=" + app.mUid
+                    + " readyAfter=" + app.mReadyMillis + "ms");
+        }
+    }
+
+    private static String stateToString(int state) {
+        switch (state) {
+            case STATE_IDLE:
+                return "IDLE";
+            case STATE_WAITING:
+                return "WAITING";
+            case STATE_DONE:
+                return "DONE";
+            case STATE_TIMED_OUT:
+                return "TIMED_OUT";
+            default:
+                return Integer.toString(state);
+        }
+    }
+
+    private static final class ReadyApp {
+        final int mUid;
+        final long mReadyMillis;
+
+        ReadyApp(int uid, long readyMillis) {
+            mUid = uid;
+            mReadyMillis = readyMillis;
+        }
+    }
+}
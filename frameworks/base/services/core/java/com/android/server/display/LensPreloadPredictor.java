@@ -0,0 +1,107 @@
+package com.android.server.display;
+
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+
+/**
+ * Predicts the next lens from the recent ones, so its displays and snapshots can be made ready
+ * before the launcher asks for them.
+ *
+ * Each lens target has a score that grows by one per lens and halves every
+ * {@link #HALF_LIFE_MILLIS}; the target with the highest score is the prediction. The number of
+ * apps of the next lens is predicted to be that of the last one. Guarded by the display
+ * manager's sync root.
+ *
+ * @hide
+ */
+final class LensPreloadPredictor {
+    static final long HALF_LIFE_MILLIS = 6 * 60 * 60 * 1000L;
+    // Targets tracked at most; the lowest score is forgotten first.
+    static final int MAX_TARGETS = 16;
+
+    private final ArrayMap<String, Usage> mUsage = new ArrayMap<String, Usage>();
+    private int mLastAppCount;
+    // How often the target of a lens was the prediction made just before it.
+    private int mHits;
+    private int mMisses;
+
+    /** Records a lens of {@code target} at {@code nowMillis}, an elapsed realtime. */
+    void noteLaunchLocked(String target, long nowMillis) {
+        final String predicted = predictTargetLocked(nowMillis);
+        if (predicted != null) {
+            if (predicted.equals(target)) {
+                mHits++;
+            } else {
+                mMisses++;
+            }
+        }
+        Usage usage = mUsage.get(target);
+        if (usage == null) {
+            if (mUsage.size() >= MAX_TARGETS) {
+                mUsage.removeAt(lowestIndexLocked(nowMillis));
+            }
+            usage = new Usage();
+            mUsage.put(target, usage);
+        }
+        usage.mScore = usage.scoreAt(nowMillis) + 1;
+        usage.mUpdateMillis = nowMillis;
+        usage.mLaunches++;
+    }
+
+    /** Records that the lens being started runs {@code count} apps. */
+    void noteAppCountLocked(int count) {
+        mLastAppCount = count;
+    }
+
+    /** Returns the most likely target of the next lens, or null before the first lens. */
+    String predictTargetLocked(long nowMillis) {
+        String best = null;
+        double bestScore = 0;
+        for (int i = 0; i < mUsage.size(); i++) {
+            double score = mUsage.valueAt(i).scoreAt(nowMillis);
+            if (best == null || score > bestScore) {
+                best = mUsage.keyAt(i);
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /** Returns the number of apps the next lens is likely to run. */
+    int predictAppCountLocked() {
+        return mLastAppCount;
+    }
+
+    private int lowestIndexLocked(long nowMillis) {
+        int lowest = 0;
+        for (int i = 1; i < mUsage.size(); i++) {
+            if (mUsage.valueAt(i).scoreAt(nowMillis) < mUsage.valueAt(lowest).scoreAt(nowMillis)) {
+                lowest = i;
+            }
+        }
+        return lowest;
+    }
+
+    void dumpLocked(PrintWriter pw, String prefix, long nowMillis) {
+        pw.println(prefix + "prediction=" + predictTargetLocked(nowMillis)
+                + " appCount=" + mLastAppCount + " hits=" + mHits + " misses=" + mMisses);
+        for (int i = 0; i < mUsage.size(); i++) {
+            Usage usage = mUsage.valueAt(i);
+            pw.println(prefix + "  " + mUsage.keyAt(i) + ": score="
+                    + String.format("%.2f", usage.scoreAt(nowMillis))
+                    + " launches=" + usage.mLaunches);
+        }
+    }
+
+    private static final class Usage {
+        double mScore;
+        long mUpdateMillis;
+        int mLaunches;
+
+        double scoreAt(long nowMillis) {
+            final long age = Math.max(nowMillis - mUpdateMillis, 0);
+            return mScore * Math.pow(0.5, (double) age / HALF_LIFE_MILLIS);
+        }
+    }
+}
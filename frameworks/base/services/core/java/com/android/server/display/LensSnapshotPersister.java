@@ -0,0 +1,362 @@
+package com.android.server.display;
+
+import static android.graphics.Bitmap.CompressFormat.JPEG;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.LruCache;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Stores the last frame of each UI display of a lens target, so the loading display of the next
+ * lens of that target can show it while the app warms up.
+ *
+ * Frames are kept as JPEGs, one per slot, in a directory per target under the credential
+ * encrypted system directory of the user, and written by one background thread, like
+ * {@link com.android.server.wm.TaskSnapshotPersister} does for tasks.
+ * A newer frame of a slot replaces one still waiting in the queue. Loads run on the same thread,
+ * so they see every earlier write, and the frames of the last few targets stay in memory.
+ *
+ * @hide
+ */
+final class LensSnapshotPersister {
+    private static final String TAG = "APPLENS(Snapshot)";
+
+    private static final String SNAPSHOTS_DIRNAME = "lens_snapshots";
+    private static final String BITMAP_EXTENSION = ".jpg";
+    private static final int QUALITY = 95;
+    // Slots per target; frames of higher slots are not stored.
+    static final int MAX_SLOTS = 8;
+    // Targets whose frames are kept in memory.
+    private static final int MAX_CACHED_TARGETS = 2;
+
+    /** Receives the frames of a target, in slot order. Empty if there are none. */
+    interface Callback {
+        void onSnapshotsLoaded(String target, Bitmap[] frames);
+    }
+
+    interface DirectoryResolver {
+        File getSystemDirectoryForUser(int userId);
+    }
+
+    private final Object mLock = new Object();
+    private final DirectoryResolver mDirectoryResolver;
+    @GuardedBy("mLock")
+    private final ArrayDeque<QueueItem> mQueue = new ArrayDeque<QueueItem>();
+    @GuardedBy("mLock")
+    private boolean mQueueIdling;
+    // Frames by slot, per user and target.
+    private final LruCache<String, Bitmap[]> mCache = new LruCache<String, Bitmap[]>(
+            MAX_CACHED_TARGETS);
+    private boolean mStarted;
+
+    @GuardedBy("mLock")
+    private int mWrites;
+    @GuardedBy("mLock")
+    private int mReplacedWrites;
+    @GuardedBy("mLock")
+    private int mLoads;
+    @GuardedBy("mLock")
+    private int mCacheHits;
+
+    LensSnapshotPersister(DirectoryResolver resolver) {
+        mDirectoryResolver = resolver;
+    }
+
+    /** Starts the writer thread. */
+    void start() {
+        if (!mStarted) {
+            mStarted = true;
+            mPersister.start();
+        }
+    }
+
+    /**
+     * Stores {@code frame} as the last frame of slot {@code slot} of {@code target} for user
+     * {@code userId}.
+     */
+    void persistSnapshot(int userId, String target, int slot, Bitmap frame) {
+        if (slot < 0 || slot >= MAX_SLOTS) {
+            return;
+        }
+        synchronized (mLock) {
+            Bitmap[] frames = mCache.get(getCacheKey(userId, target));
+            if (frames != null) {
+                frames[slot] = frame;
+            }
+            for (Iterator<QueueItem> it = mQueue.iterator(); it.hasNext(); ) {
+                QueueItem item = it.next();
+                if (item instanceof StoreItem
+                        && ((StoreItem) item).replaces(userId, target, slot)) {
+                    it.remove();
+                    mReplacedWrites++;
+                }
+            }
+            sendToQueueLocked(new StoreItem(userId, target, slot, frame));
+        }
+    }
+
+    /** Drops the frames of slots from {@code count} on, which the target's lens no longer has. */
+    void trimSnapshots(int userId, String target, int count) {
+        synchronized (mLock) {
+            Bitmap[] frames = mCache.get(getCacheKey(userId, target));
+            if (frames != null) {
+                for (int i = Math.max(count, 0); i < MAX_SLOTS; i++) {
+                    frames[i] = null;
+                }
+            }
+            sendToQueueLocked(new TrimItem(userId, target, count));
+        }
+    }
+
+    /** Drops all frames of {@code target}, whose package was removed for user {@code userId}. */
+    void removeSnapshots(int userId, String target) {
+        synchronized (mLock) {
+            mCache.remove(getCacheKey(userId, target));
+            for (Iterator<QueueItem> it = mQueue.iterator(); it.hasNext(); ) {
+                QueueItem item = it.next();
+                if (item instanceof StoreItem && ((StoreItem) item).isFor(userId, target)) {
+                    it.remove();
+                }
+            }
+            sendToQueueLocked(new RemoveItem(userId, target));
+        }
+    }
+
+    /**
+     * Loads the frames of {@code target} for user {@code userId} and posts them to
+     * {@code callback} on {@code handler}.
+     */
+    void loadSnapshots(int userId, String target, Handler handler, Callback callback) {
+        synchronized (mLock) {
+            Bitmap[] frames = mCache.get(getCacheKey(userId, target));
+            if (frames != null) {
+                mCacheHits++;
+                final Bitmap[] loaded = compact(frames);
+                handler.post(() -> callback.onSnapshotsLoaded(target, loaded));
+                return;
+            }
+            sendToQueueLocked(new LoadItem(userId, target, handler, callback));
+        }
+    }
+
+    @VisibleForTesting
+    void waitForQueueEmpty() {
+        while (true) {
+            synchronized (mLock) {
+                if (mQueue.isEmpty() && mQueueIdling) {
+                    return;
+                }
+            }
+            SystemClock.sleep(10);
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "queued=" + mQueue.size() + " writes=" + mWrites
+                    + " replacedWrites=" + mReplacedWrites);
+            pw.println(prefix + "loads=" + mLoads + " cacheHits=" + mCacheHits
+                    + " cachedTargets=" + mCache.size());
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void sendToQueueLocked(QueueItem item) {
+        mQueue.offer(item);
+        mLock.notifyAll();
+    }
+
+    private static Bitmap[] compact(Bitmap[] frames) {
+        ArrayList<Bitmap> list = new ArrayList<Bitmap>();
+        for (Bitmap frame : frames) {
+            if (frame != null) {
+                list.add(frame);
+            }
+        }
+        return list.toArray(new Bitmap[list.size()]);
+    }
+
+    private static String getCacheKey(int userId, String target) {
+        return userId + "/" + target;
+    }
+
+    private File getDirectory(int userId, String target) {
+        // Shared user names carry a colon; keep the directory name plain.
+        return new File(new File(mDirectoryResolver.getSystemDirectoryForUser(userId),
+                SNAPSHOTS_DIRNAME), target.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    @VisibleForTesting
+    File getBitmapFile(int userId, String target, int slot) {
+        return new File(getDirectory(userId, target), slot + BITMAP_EXTENSION);
+    }
+
+    private final Thread mPersister = new Thread("LensSnapshotPersister") {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                QueueItem next;
+                synchronized (mLock) {
+                    next = mQueue.poll();
+                }
+                if (next != null) {
+                    next.run();
+                }
+                synchronized (mLock) {
+                    if (!mQueue.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        mQueueIdling = true;
+                        mLock.wait();
+                        mQueueIdling = false;
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        }
+    };
+
+    private abstract static class QueueItem {
+        abstract void run();
+    }
+
+    private final class StoreItem extends QueueItem {
+        private final int mUserId;
+        private final String mTarget;
+        private final int mSlot;
+        private final Bitmap mFrame;
+
+        StoreItem(int userId, String target, int slot, Bitmap frame) {
+            mUserId = userId;
+            mTarget = target;
+            mSlot = slot;
+            mFrame = frame;
+        }
+
+        boolean isFor(int userId, String target) {
+            return mUserId == userId && mTarget.equals(target);
+        }
+
+        boolean replaces(int userId, String target, int slot) {
+            return mSlot == slot && isFor(userId, target);
+        }
+
+        @Override
+        void run() {
+            final File dir = getDirectory(mUserId, mTarget);
+            if (!dir.exists() && !dir.mkdirs()) {
+                Slog.e(TAG, "Unable to create " + dir);
+                return;
+            }
+            final AtomicFile file = new AtomicFile(getBitmapFile(mUserId, mTarget, mSlot));
+            FileOutputStream fos = null;
+            try {
+                fos = file.startWrite();
+                mFrame.compress(JPEG, QUALITY, fos);
+                file.finishWrite(fos);
+            } catch (IOException e) {
+                file.failWrite(fos);
+                Slog.e(TAG, "Unable to persist " + file.getBaseFile(), e);
+                return;
+            }
+            synchronized (mLock) {
+                mWrites++;
+            }
+        }
+    }
+
+    private final class TrimItem extends QueueItem {
+        private final int mUserId;
+        private final String mTarget;
+        private final int mCount;
+
+        TrimItem(int userId, String target, int count) {
+            mUserId = userId;
+            mTarget = target;
+            mCount = count;
+        }
+
+        @Override
+        void run() {
+            for (int i = Math.max(mCount, 0); i < MAX_SLOTS; i++) {
+                getBitmapFile(mUserId, mTarget, i).delete();
+            }
+        }
+    }
+
+    private final class RemoveItem extends QueueItem {
+        private final int mUserId;
+        private final String mTarget;
+
+        RemoveItem(int userId, String target) {
+            mUserId = userId;
+            mTarget = target;
+        }
+
+        @Override
+        void run() {
+            final File dir = getDirectory(mUserId, mTarget);
+            if (dir.exists()) {
+                FileUtils.deleteContentsAndDir(dir);
+            }
+        }
+    }
+
+    private final class LoadItem extends QueueItem {
+        private final int mUserId;
+        private final String mTarget;
+        private final Handler mHandler;
+        private final Callback mCallback;
+
+        LoadItem(int userId, String target, Handler handler, Callback callback) {
+            mUserId = userId;
+            mTarget = target;
+            mHandler = handler;
+            mCallback = callback;
+        }
+
+        @Override
+        void run() {
+            final Bitmap[] frames = new Bitmap[MAX_SLOTS];
+            for (int i = 0; i < MAX_SLOTS; i++) {
+                File file = getBitmapFile(mUserId, mTarget, i);
+                if (file.exists()) {
+                    frames[i] = BitmapFactory.decodeFile(file.getPath());
+                }
+            }
+            final Bitmap[] loaded;
+            synchronized (mLock) {
+                mLoads++;
+                // A frame stored while we were reading is newer than the file we read.
+                final String key = getCacheKey(mUserId, mTarget);
+                Bitmap[] cached = mCache.get(key);
+                if (cached != null) {
+                    loaded = compact(cached);
+                } else {
+                    mCache.put(key, frames);
+                    loaded = compact(frames);
+                }
+            }
+            mHandler.post(() -> mCallback.onSnapshotsLoaded(mTarget, loaded));
+        }
+    }
+}
@@ -13,6 +13,7 @@ import android.graphics.SurfaceTexture;
 import android.os.Handler;
 import android.os.IBinder;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -23,12 +24,24 @@ final class OffScreenDisplayAdapter extends DisplayAdapter {
     
     private static final String UNIQUE_ID_PREFIX = "OffScreen:";
 
+    // Off-screen displays kept ready for the next lens at most. Each holds a full screen buffer.
+    private static final int MAX_SPARE_DISPLAYS = 2;
+    // Spares not taken by a lens within this time are released.
+    private static final long SPARE_IDLE_TIMEOUT_MS = 30 * 1000;
+
     private final Handler mUIHandler;
     private static boolean mDefaultVisible = false;
     private Context mContext;
     private int numApp = -1;
     private final ArrayList<OffScreenDisplayHandle> mOffScreens = 
         new ArrayList<OffScreenDisplayHandle>();
+    // Displays created ahead of use, handed out before new ones are made.
+    private final ArrayList<OffScreenDisplayHandle> mSpares =
+        new ArrayList<OffScreenDisplayHandle>();
+    // Spares outlive a lens, so device numbers are not reused like app numbers.
+    private int mNextDeviceNumber;
+    private int mSpareHits;
+    private int mSpareReleases;
 
     public OffScreenDisplayAdapter(DisplayManagerService.SyncRoot syncRoot,
             Context context, Handler handler, Listener listener, Handler uiHandler) {
@@ -42,17 +55,68 @@ final class OffScreenDisplayAdapter extends DisplayAdapter {
         super.registerLocked();
     }
 
+    @Override
+    public void dumpLocked(PrintWriter pw) {
+        super.dumpLocked(pw);
+        pw.println("mOffScreens: size=" + mOffScreens.size());
+        pw.println("mSpares: size=" + mSpares.size() + " hits=" + mSpareHits
+                + " released=" + mSpareReleases);
+    }
+
     public void setDefaultVisibility(boolean visible) {
         mDefaultVisible = visible;
     }
 
     public int createOffScreenDisplay() {
-        numApp++;
-        updateOffScreenDisplayDevices();
-        Slog.w(TAG, "createOffScreenDisplay");
-        return mOffScreens.size();
+        synchronized (getSyncRoot()) {
+            numApp++;
+            if (!mSpares.isEmpty()) {
+                mOffScreens.add(mSpares.remove(mSpares.size() - 1));
+                mSpareHits++;
+            } else {
+                updateOffScreenDisplayDevicesLocked();
+            }
+            Slog.w(TAG, "createOffScreenDisplay");
+            return mOffScreens.size();
+        }
+    }
+
+    /**
+     * Creates off-screen displays ahead of use until {@code count} of them, at most
+     * {@link #MAX_SPARE_DISPLAYS}, are ready for the next lens. Spares still unused after
+     * {@link #SPARE_IDLE_TIMEOUT_MS} are released.
+     */
+    public void prewarmOffScreenDisplays(int count) {
+        synchronized (getSyncRoot()) {
+            final int target = Math.min(count, MAX_SPARE_DISPLAYS);
+            while (mSpares.size() < target) {
+                final int number = mNextDeviceNumber++;
+                mSpares.add(new OffScreenDisplayHandle("OffScreen spare #" + number,
+                        createModeLocked(), number));
+            }
+            getHandler().removeCallbacks(mReleaseSparesRunnable);
+            if (!mSpares.isEmpty()) {
+                getHandler().postDelayed(mReleaseSparesRunnable, SPARE_IDLE_TIMEOUT_MS);
+            }
+        }
+    }
+
+    /**
+     * Dismisses the off-screen displays created ahead of use.
+     */
+    public void releaseSpareOffScreenDisplays() {
+        synchronized (getSyncRoot()) {
+            getHandler().removeCallbacks(mReleaseSparesRunnable);
+            mSpareReleases += mSpares.size();
+            for (OffScreenDisplayHandle spare : mSpares) {
+                spare.dismissLocked();
+            }
+            mSpares.clear();
+        }
     }
 
+    private final Runnable mReleaseSparesRunnable = this::releaseSpareOffScreenDisplays;
+
     public void hideOffScreenDisplay() {
         for (OffScreenDisplayHandle off : mOffScreens) {
             off.hideLocked();
@@ -65,13 +129,7 @@ final class OffScreenDisplayAdapter extends DisplayAdapter {
         }
     }
 
-    private void updateOffScreenDisplayDevices() {
-        synchronized(getSyncRoot()){
-            updateOffScreenDisplayDevicesLocked();
-        }
-    }
-
-    private void updateOffScreenDisplayDevicesLocked() {
+    private OffScreenMode createModeLocked() {
         int width = 1440;
         int height = 3040;
 
@@ -81,17 +139,23 @@ final class OffScreenDisplayAdapter extends DisplayAdapter {
 
         int densityDpi = metrics.densityDpi;
 
-        OffScreenMode mode = new OffScreenMode(width, height, densityDpi);
+        return new OffScreenMode(width, height, densityDpi);
+    }
+
+    private void updateOffScreenDisplayDevicesLocked() {
         String name = "OffScreen #" + numApp;
         Slog.w(TAG, "creating "+name);
-        mOffScreens.add(new OffScreenDisplayHandle(name, mode, numApp));
+        mOffScreens.add(new OffScreenDisplayHandle(name, createModeLocked(), mNextDeviceNumber++));
     }
 
     public void dismissOffScreenDisplay() {
-        for (OffScreenDisplayHandle off : mOffScreens) {
-            off.dismissLocked();
+        synchronized (getSyncRoot()) {
+            for (OffScreenDisplayHandle off : mOffScreens) {
+                off.dismissLocked();
+            }
+            mOffScreens.clear();
+            numApp = -1;
         }
-        numApp = -1;
     }
 
     private class OffScreenDisplayDevice extends DisplayDevice {
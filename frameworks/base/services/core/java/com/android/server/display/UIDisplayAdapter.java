@@ -1,20 +1,27 @@
 package com.android.server.display;
 
 import android.app.Activity;
+import android.applens.LensStageStats;
 import android.content.Context;
+import android.hardware.display.IUIDisplayCallback;
 import android.os.Handler;
 import android.os.IBinder;
 import android.util.DisplayMetrics;
 import android.util.Slog;
 import android.view.Display;
 import android.view.Gravity;
+import android.view.PixelCopy;
 import android.view.Surface;
 import android.view.SurfaceControl;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
-import android.os.Handler;
-import android.os.IBinder;
+import android.os.RemoteException;
 import android.util.SparseArray;
+import android.view.Choreographer;
 
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -26,20 +33,80 @@ final class UIDisplayAdapter extends DisplayAdapter {
     
     private static final String UNIQUE_ID_PREFIX = "UIDisplay";
 
+    // Refresh rate a lens display reports while its content produces no frames.
+    private static final float IDLE_REFRESH_RATE = 10f;
+
+    // Released displays kept alive for the next lens, each with its mirror.
+    private static final int MAX_POOLED_DISPLAYS = 4;
+    // Displays created ahead of the first lens, while the loading display is up.
+    private static final int PREWARM_DISPLAYS = 1;
+    // Size of stored frames relative to their display.
+    private static final float SNAPSHOT_SCALE = 0.5f;
+
     private final Handler mUIHandler;
     private static boolean mDefaultVisible = false;
     private Context mContext;
-    private int numUi = -1;
-    private final SparseArray<UIDisplayHandle> mUIDisps = 
-        new SparseArray<UIDisplayHandle>();
+    private int mNextDeviceNumber;
+
+    // Primary displays of the current lens, indexed by slot. Mirrors hang off their primary.
+    private final ArrayList<UIDisplayHandle> mUIDisps = new ArrayList<UIDisplayHandle>();
+    // Primary displays by logical display ID. Mirrors are windows only and have none.
+    private final SparseArray<UIDisplayHandle> mDispsById = new SparseArray<UIDisplayHandle>();
+    private final ArrayList<UIDisplayHandle> mPool = new ArrayList<UIDisplayHandle>();
 
     private UIDisplayHandle mLoadingDisp;
+    // Target whose frames the loading display shows or is loading, null if none.
+    private String mLoadingTarget;
+    private int mLoadingUserId;
+    private final LensSnapshotPersister mSnapshots;
+
+    // Surface textures handed to us by windows and display devices created from them, minus the
+    // ones destroyed since. Used to spot leaks.
+    private int mLiveSurfaceTextures;
+    private int mLiveDevices;
+
+    private final LensStageStats mStats = new LensStageStats();
+
+    // Handles whose window position or scale changed since the last frame. All of them are
+    // applied together by one frame callback on the UI thread.
+    private final ArrayList<UIDisplayHandle> mPendingRelayouts = new ArrayList<UIDisplayHandle>();
+    private boolean mRelayoutScheduled;
+    private long mRelayoutRequests;
+    private long mRelayoutFrames;
 
     public UIDisplayAdapter(DisplayManagerService.SyncRoot syncRoot,
-            Context context, Handler handler, Listener listener, Handler uiHandler) {
+            Context context, Handler handler, Listener listener, Handler uiHandler,
+            LensSnapshotPersister snapshots) {
         super(syncRoot, context, handler, listener, TAG);
         mContext = context;
         mUIHandler = uiHandler;
+        mSnapshots = snapshots;
+    }
+
+    @Override
+    public void dumpLocked(PrintWriter pw) {
+        super.dumpLocked(pw);
+
+        pw.println("mUIDisps: size=" + mUIDisps.size());
+        for (UIDisplayHandle handle : mUIDisps) {
+            handle.dumpLocked(pw);
+            if (handle.mMirror != null) {
+                handle.mMirror.dumpLocked(pw);
+            }
+        }
+        pw.println("mPool: size=" + mPool.size());
+        pw.println("live: " + mLiveSurfaceTextures + " surface textures, " + mLiveDevices
+                + " devices");
+        pw.println("relayouts: " + mRelayoutRequests + " requests in " + mRelayoutFrames
+                + " frames");
+        pw.println("lens stages:");
+        mStats.dump(pw, "  ");
+        pw.println("snapshots: loadingTarget=" + mLoadingTarget + " userId=" + mLoadingUserId);
+        mSnapshots.dump(pw, "  ");
+        pw.println("mDispsById: size=" + mDispsById.size());
+        for (int i = 0; i < mDispsById.size(); i++) {
+            pw.println("  " + mDispsById.keyAt(i) + " -> " + mDispsById.valueAt(i).mName);
+        }
     }
 
     @Override
@@ -51,62 +118,158 @@ final class UIDisplayAdapter extends DisplayAdapter {
         mDefaultVisible = visible;
     }
 
-    public void createLoadingDisplay(int width, int height) {
-        updateLoadingDisplayDevices(width, height);
+    /**
+     * Creates the loading display. It shows the last frames of {@code predictedTarget} for user
+     * {@code userId}, the likely target of the coming lens, until {@link #createUIDisplays} names
+     * the real one.
+     */
+    public void createLoadingDisplay(int width, int height, String predictedTarget, int userId) {
+        synchronized (getSyncRoot()) {
+            updateLoadingDisplayDevicesLocked(width, height);
+            showSnapshotsOnLoadingLocked(predictedTarget, userId);
+        }
+        prewarmUIDisplays(width, height);
         Slog.w(TAG, "createLoadingDisplay");
     }
 
-    public int createUIDisplay(int width, int height) {
-        numUi++;
-        updateUIDisplayDevices(width, height);
-        // max numUi = 4
-        Slog.w(TAG, "createUIDisplay");
-        return numUi;
+    /**
+     * Creates one UI display and its mirror window per {@code width, height} pair of {@code sizes},
+     * reusing pooled displays where possible. {@code callback} is told about each primary
+     * display once its logical display exists. The last frames of the displays are stored for
+     * {@code target} of user {@code userId}, if not null.
+     */
+    public void createUIDisplays(int[] sizes, IUIDisplayCallback callback, String target,
+            int userId) {
+        synchronized (getSyncRoot()) {
+            int densityDpi = mContext.getResources().getDisplayMetrics().densityDpi;
+            for (int i = 0; i + 1 < sizes.length; i += 2) {
+                UIMode mode = new UIMode(sizes[i], sizes[i + 1], densityDpi);
+                UIDisplayHandle primary = acquireUIDisplayLocked(mode, true);
+                primary.mTarget = target;
+                primary.mTargetUserId = userId;
+                primary.notifyWhenAddedLocked(callback, i / 2);
+            }
+            if (target != null) {
+                mSnapshots.trimSnapshots(userId, target, sizes.length / 2);
+                showSnapshotsOnLoadingLocked(target, userId);
+            }
+        }
     }
 
-    public int createRightUIDisplay(int width, int height) {
-        updateRightUIDisplayDevices(width, height);
-        return numUi + 4;
+    private void showSnapshotsOnLoadingLocked(String target, int userId) {
+        if (mLoadingDisp == null || target == null
+                || (target.equals(mLoadingTarget) && userId == mLoadingUserId)) {
+            return;
+        }
+        mLoadingTarget = target;
+        mLoadingUserId = userId;
+        mSnapshots.loadSnapshots(userId, target, mUIHandler, (loadedTarget, frames) -> {
+            synchronized (getSyncRoot()) {
+                // The prediction may have been replaced by the real target meanwhile.
+                if (mLoadingDisp != null && loadedTarget.equals(mLoadingTarget)
+                        && userId == mLoadingUserId) {
+                    mLoadingDisp.setSnapshotsLocked(frames);
+                }
+            }
+        });
+    }
+
+    private UIDisplayHandle acquireUIDisplayLocked(UIMode mode, boolean withMirror) {
+        final int slot = mUIDisps.size();
+        UIDisplayHandle primary;
+        if (!mPool.isEmpty()) {
+            primary = mPool.remove(mPool.size() - 1);
+            primary.reuseLocked(mode, slot);
+        } else {
+            primary = new UIDisplayHandle(getHandleName(slot, false), mode, slot, null);
+        }
+        mUIDisps.add(primary);
+        if (withMirror) {
+            addMirrorLocked(primary, mode);
+        }
+        return primary;
     }
 
-    public int getIdFromName(String deviceName) {
-        return Integer.parseInt(deviceName.substring(deviceName.length() -1));
+    private static String getHandleName(int slot, boolean mirror) {
+        return (mirror ? "MirrorUI #" : "UI #") + slot;
     }
 
-    public void setDisplayId(int displayId, int uiNum) {
-        if (mUIDisps.get(uiNum) == null) {
+    private void addMirrorLocked(UIDisplayHandle primary, UIMode mode) {
+        if (primary.mMirror != null) {
+            primary.mMirror.reuseLocked(mode, primary.mSlot);
         } else {
-            mUIDisps.get(uiNum).setDisplayId(displayId);
+            primary.mMirror = new UIDisplayHandle(getHandleName(primary.mSlot, true), mode,
+                    primary.mSlot, primary);
         }
-        
     }
-    
-    public int getLeftUIDisplay(String deviceName) {
-        if (deviceName.length() > 8) {
-            if (!deviceName.substring(0,8).equals("MirrorUI")) {
-                return -1;
+
+    /**
+     * Copies the last frame of {@code surface}, scaled to {@code width} by {@code height}, and
+     * stores it as the frame of {@code slot} of {@code target}. The copy runs on the background
+     * thread rather than the UI thread; {@code surface} is released once it is done.
+     */
+    private void captureSnapshot(Surface surface, int width, int height, int userId,
+            String target, int slot) {
+        final Handler handler = BackgroundThread.getHandler();
+        handler.post(() -> {
+            final Bitmap frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            try {
+                PixelCopy.request(surface, frame, result -> {
+                    surface.release();
+                    if (result == PixelCopy.SUCCESS) {
+                        mSnapshots.persistSnapshot(userId, target, slot, frame);
+                    }
+                }, handler);
+            } catch (IllegalArgumentException e) {
+                // The surface was abandoned along with its display.
+                surface.release();
             }
+        });
+    }
 
-            int uiNum = Integer.parseInt(deviceName.substring(deviceName.length() -1)) - 4;
-            if (mUIDisps.indexOfKey(uiNum) >= 0) {
-                return mUIDisps.get(uiNum).getDisplayId();
+    private void prewarmUIDisplays(int width, int height) {
+        synchronized (getSyncRoot()) {
+            if (!mPool.isEmpty() || !mUIDisps.isEmpty()) {
+                return;
+            }
+            int densityDpi = mContext.getResources().getDisplayMetrics().densityDpi;
+            UIMode mode = new UIMode(width, height, densityDpi);
+            for (int i = 0; i < PREWARM_DISPLAYS; i++) {
+                UIDisplayHandle primary = new UIDisplayHandle(getHandleName(i, false), mode, i,
+                        null);
+                primary.mMirror = new UIDisplayHandle(getHandleName(i, true), mode, i, primary);
+                primary.releaseLocked();
+                mPool.add(primary);
             }
         }
-        return -1;
     }
-/** 
-    public int getLeftUIDisplayId(int rightDisplayId) {
-        for (UIDisplayHandle uiDisp : mUIDisps) {
-            if (uiDisp.getDisplayId() == rightDisplayId) {
-                uiDisp.
-            }    
+
+    /** Returns the slot of the new display. */
+    public int createUIDisplay(int width, int height) {
+        synchronized (getSyncRoot()) {
+            updateUIDisplayDevicesLocked(width, height);
+            Slog.w(TAG, "createUIDisplay");
+            return mUIDisps.size() - 1;
         }
     }
-*/
 
-    private void updateLoadingDisplayDevices(int width, int height) {
-        synchronized(getSyncRoot()) {
-            updateLoadingDisplayDevicesLocked(width, height);
+    /** Adds a mirror to the last display; returns its slot. */
+    public int createRightUIDisplay(int width, int height) {
+        synchronized (getSyncRoot()) {
+            updateRightUIDisplayDevicesLocked(width, height);
+            return mUIDisps.size() - 1;
+        }
+    }
+
+    /**
+     * Records that {@code device} got logical display {@code displayId}. Does nothing for
+     * devices of other adapters.
+     */
+    public void onLogicalDisplayAddedLocked(DisplayDevice device, int displayId) {
+        if (device instanceof UIDisplayDevice) {
+            UIDisplayHandle handle = ((UIDisplayDevice) device).mHandle;
+            mDispsById.put(displayId, handle);
+            handle.setDisplayId(displayId);
         }
     }
 
@@ -117,186 +280,261 @@ final class UIDisplayAdapter extends DisplayAdapter {
             UIMode mode = new UIMode(width, height, densityDpi);
             String name = "UI Loading";
 
-            mLoadingDisp = new UIDisplayHandle(name, mode, -1);
+            mLoadingDisp = new UIDisplayHandle(name, mode, -1, null);
         }
     }
 
-    private void updateUIDisplayDevices(int width, int height) {
-        synchronized(getSyncRoot()){
-            updateUIDisplayDevicesLocked(width, height);
-        }
-    }
-    private void updateRightUIDisplayDevices(int width, int height) {
-        synchronized(getSyncRoot()) {
-            updateRightUIDisplayDevicesLocked(width, height);
-        }
-    }
     private void updateUIDisplayDevicesLocked(int width, int height) {
-        //iint width = 1440;
-        //int height = 3040;
-
         DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
-        //int width = metrics.widthPixels;
-        //int height = metrics.heightPixels;
-//        int width = metrics.widthPixels;
-//        int height = metrics.heightPixels;
-
         int densityDpi = metrics.densityDpi;
 
-        ArrayList<UIMode> modes = new ArrayList<>();
         UIMode leftMode = new UIMode(width, height, densityDpi);
-        modes.add(leftMode);
-
-
-        String leftName = "UI #" + numUi;
-        Slog.w("sunjae", "numUI = "+numUi);
-        mUIDisps.put(numUi,new UIDisplayHandle(leftName, leftMode, numUi));
+        acquireUIDisplayLocked(leftMode, false);
     }
 
     private void updateRightUIDisplayDevicesLocked(int width, int height) {
+        if (mUIDisps.isEmpty()) {
+            return;
+        }
         DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
         int densityDpi = metrics.densityDpi;
 
         UIMode rightMode = new UIMode(width, height, densityDpi);
-
-        String rightName = "MirrorUI #" + numUi;
-        mUIDisps.put(4+numUi, new UIDisplayHandle(rightName, rightMode, 4+numUi));
+        addMirrorLocked(mUIDisps.get(mUIDisps.size() - 1), rightMode);
     }
-/*
-    public void relayoutUIDisplay(int x, int y, float scale) {
-        synchronized(getSyncRoot()){
-            relayoutUIDisplayLocked(x,y,scale);
-        }
-    }
-*/
 
     public void hideUIDisplay() {
-       int size = mUIDisps.size();
-        for (int i = 0; i < size; i++) {
-            mUIDisps.get(i).hideLocked();
-            if (mUIDisps.indexOfKey(i+4) >= 0) 
-                mUIDisps.get((i) + 4).hideLocked();
+        synchronized (getSyncRoot()) {
+            int size = mUIDisps.size();
+            for (int i = 0; i < size; i++) {
+                UIDisplayHandle primary = mUIDisps.get(i);
+                primary.hideLocked();
+                if (primary.mMirror != null)
+                    primary.mMirror.hideLocked();
+            }
         }
-
     }
 
     public void hideUIDisplayId(int id) {
-        int size = mUIDisps.size();
-        if (id <= size) {
-            for (int i = 0; i < id; i++) {
-                mUIDisps.get(i).hideLocked();
+        synchronized (getSyncRoot()) {
+            int size = mUIDisps.size();
+            if (id <= size) {
+                for (int i = 0; i < id; i++) {
+                    mUIDisps.get(i).hideLocked();
+                }
             }
         }
     }
 
     public void hideLoadingDisplay() {
-        if (mLoadingDisp != null)
-            mLoadingDisp.hideLocked();
+        synchronized (getSyncRoot()) {
+            if (mLoadingDisp != null)
+                mLoadingDisp.hideLocked();
+        }
+    }
+
+    /** Returns the number of primary UI displays of the current lens. */
+    public int getPrimaryUIDisplayCount() {
+        synchronized (getSyncRoot()) {
+            return mUIDisps.size();
+        }
+    }
+
+    int getLiveSurfaceTextureCountLocked() {
+        return mLiveSurfaceTextures;
+    }
+
+    int getLiveDeviceCountLocked() {
+        return mLiveDevices;
+    }
+
+    /**
+     * Waits until the UI thread has run everything posted so far, e.g. the windows of a dismiss.
+     * Returns false on timeout. Must not be called with the sync root held.
+     */
+    boolean waitForUiThread(long timeoutMillis) {
+        return mUIHandler.runWithScissors(() -> { }, timeoutMillis);
     }
 
+    /** Returns the number of UI display windows of the current lens, mirrors included. */
     public int getUIDisplayCount() {
-        // for right display
-        //int size = (mUIDisps.size() /2);
-        int size = mUIDisps.size();
-        return size;
+        synchronized (getSyncRoot()) {
+            int size = mUIDisps.size();
+            int count = size;
+            for (int i = 0; i < size; i++) {
+                if (mUIDisps.get(i).mMirror != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
     }
 
     public void relayoutUIDisplay(List<float[]> args, int id) {
         DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
-        int dispSize =( mUIDisps.size() /2);
-        int argSize = args.size();
-        if (dispSize != argSize) {
-//            Slog.w("LENS", "#"+dispSize+" display, #"+argSize+" args not matching");
-            return;
+        synchronized (getSyncRoot()) {
+            int dispSize = mUIDisps.size();
+            int argSize = args.size();
+            if (dispSize != argSize) {
+                return;
+            }
+            for (int i = 0; i < dispSize; i++) {
+                float[] arg = args.get(i);
+                float left = arg[0];
+                float right = arg[1];
+                float top = arg[2];
+                float bottom = arg[3];
+                float scale = arg[4];
+
+                UIDisplayHandle primary = mUIDisps.get(i);
+                primary.relayoutLocked(left, right, bottom, top, scale, id);
+                if (primary.mMirror != null) {
+                    primary.mMirror.relayoutLocked(left+(int)(metrics.widthPixels/2),
+                            right+(int)(metrics.widthPixels/2), bottom, top,  scale, id);
+                }
+            }
         }
-        for (int i = 0; i < dispSize; i++) {
-            float[] arg = args.get(i);
-            float left = arg[0];
-            float right = arg[1];
-            float top = arg[2];
-            float bottom = arg[3];
-            float scale = arg[4];
+    }
 
-            mUIDisps.get(i).relayoutLocked(left, right, bottom, top, scale, id);
-            if (mUIDisps.indexOfKey(i+4) >= 0) {
-                mUIDisps.get((i) + 4).relayoutLocked(left+(int)(metrics.widthPixels/2), 
-                        right+(int)(metrics.widthPixels/2), bottom, top,  scale, id);
-            }
+    private void scheduleRelayoutLocked(UIDisplayHandle handle) {
+        mRelayoutRequests++;
+        if (!mPendingRelayouts.contains(handle)) {
+            mPendingRelayouts.add(handle);
+        }
+        if (!mRelayoutScheduled) {
+            mRelayoutScheduled = true;
+            // The choreographer belongs to the UI thread, so the callback is posted from there.
+            mUIHandler.post(mScheduleRelayoutRunnable);
         }
     }
 
+    private final Runnable mScheduleRelayoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mRelayoutFrameCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback mRelayoutFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            synchronized (getSyncRoot()) {
+                mRelayoutScheduled = false;
+                mRelayoutFrames++;
+                // Every window is updated in this frame, so a multi-display move never shows
+                // some windows at their old position.
+                final int size = mPendingRelayouts.size();
+                for (int i = 0; i < size; i++) {
+                    mPendingRelayouts.get(i).applyRelayoutLocked();
+                }
+                mPendingRelayouts.clear();
+            }
+        }
+    };
+
     public void resizeUIDisplay(boolean mode) {
-       int size = mUIDisps.size();
-        for (int i = 0; i < size; i++) {
-            mUIDisps.get(i).resizeLocked(mode);
+        synchronized (getSyncRoot()) {
+            int size = mUIDisps.size();
+            for (int i = 0; i < size; i++) {
+                UIDisplayHandle primary = mUIDisps.get(i);
+                primary.resizeLocked(mode);
+                if (primary.mMirror != null)
+                    primary.mMirror.resizeLocked(mode);
+            }
         }
     }
 
     public void showUIDisplay() {
         Slog.w("sunjae", "showUI, Adapter");
-       int size = (mUIDisps.size()/2);
-        for (int i = 0; i < size; i++) {
-            mUIDisps.get(i).visualizeLocked();
-            if (mUIDisps.indexOfKey(i+4) >= 0) 
-                mUIDisps.get((i) + 4).visualizeLocked();
+        synchronized (getSyncRoot()) {
+            int size = mUIDisps.size();
+            for (int i = 0; i < size; i++) {
+                UIDisplayHandle primary = mUIDisps.get(i);
+                primary.visualizeLocked();
+                if (primary.mMirror != null)
+                    primary.mMirror.visualizeLocked();
+            }
         }
     }
 
     public void showUIDisplayId(int id) {
-        int size = mUIDisps.size();
-        if (id <= size) {
-            for (int i = 0; i < id; i++) {
-                mUIDisps.get(i).visualizeLocked();
+        synchronized (getSyncRoot()) {
+            int size = mUIDisps.size();
+            if (id <= size) {
+                for (int i = 0; i < id; i++) {
+                    mUIDisps.get(i).visualizeLocked();
+                }
             }
         }
     }
 
     public void showLoadingDisplay() {
-        if (mLoadingDisp != null)
-            mLoadingDisp.visualizeLocked();
+        synchronized (getSyncRoot()) {
+            if (mLoadingDisp != null)
+                mLoadingDisp.visualizeLocked();
+        }
     }
 
+    /**
+     * Releases the displays of the current lens. Up to {@link #MAX_POOLED_DISPLAYS} of them are
+     * hidden and kept, with their mirrors, for reuse; the rest are dismissed.
+     */
     public void dismissUIDisplay() {
-        int size = mUIDisps.size();
-        for (int i = 0; i < size; i++) {
-            mUIDisps.get(i).dismissLocked();
-            if (mUIDisps.indexOfKey(i+4) >= 0)
-                mUIDisps.get(i+4).dismissLocked();
+        synchronized (getSyncRoot()) {
+            int size = mUIDisps.size();
+            for (int i = 0; i < size; i++) {
+                UIDisplayHandle primary = mUIDisps.get(i);
+                if (mPool.size() < MAX_POOLED_DISPLAYS) {
+                    primary.releaseLocked();
+                    mPool.add(primary);
+                } else {
+                    primary.dismissLocked();
+                }
+            }
+            mUIDisps.clear();
         }
-        mUIDisps.clear();   
-       numUi = -1; 
     }
 
     public void dismissLoadingDisplay() {
-        if (mLoadingDisp != null) {
-            mLoadingDisp.dismissLocked();
-            mLoadingDisp = null;
+        synchronized (getSyncRoot()) {
+            if (mLoadingDisp != null) {
+                mLoadingDisp.dismissLocked();
+                mLoadingDisp = null;
+                mLoadingTarget = null;
+            }
         }
     }
 
     private class UIDisplayDevice extends DisplayDevice {
-        private final String mName;
+        private String mName;
         private final float mRefreshRate;
         private final long mDisplayPresentationDeadlineNanos;
-        private final UIMode mRawMode;
-        private final Display.Mode mMode;
+        private UIMode mRawMode;
+        private Display.Mode mMode;
+        // Reported instead of mMode while the content is idle.
+        private Display.Mode mIdleMode;
+        private boolean mIdle;
 
         private int mState;
         private SurfaceTexture mSurfaceTexture;
         private Surface mSurface;
         private DisplayDeviceInfo mInfo;
-        private int mActiveMode;
+        private final UIDisplayHandle mHandle;
 
         public UIDisplayDevice(IBinder displayToken, String name, UIMode mode, 
                  float  refreshRate, long presentationDeadlineNanos, int state,
-                SurfaceTexture surfaceTexture, int number) {
+                SurfaceTexture surfaceTexture, int number, UIDisplayHandle handle) {
             super(UIDisplayAdapter.this, displayToken, UNIQUE_ID_PREFIX + number);
+            mHandle = handle;
             mName = name;
             mRefreshRate = refreshRate;
             mDisplayPresentationDeadlineNanos = presentationDeadlineNanos;
             mSurfaceTexture = surfaceTexture;
             mRawMode = mode;
             mMode = createMode(mode.mWidth, mode.mHeight, refreshRate);
+            mIdleMode = createMode(mode.mWidth, mode.mHeight,
+                    Math.min(IDLE_REFRESH_RATE, refreshRate));
             mState = state;    
         }
 
@@ -314,6 +552,30 @@ final class UIDisplayAdapter extends DisplayAdapter {
             mInfo = null;
         }
 
+        public void setNameLocked(String name) {
+            mName = name;
+            mInfo = null;
+        }
+
+        public void setModeLocked(UIMode mode) {
+            mRawMode = mode;
+            mMode = createMode(mode.mWidth, mode.mHeight, mRefreshRate);
+            mIdleMode = createMode(mode.mWidth, mode.mHeight,
+                    Math.min(IDLE_REFRESH_RATE, mRefreshRate));
+            mIdle = false;
+            mInfo = null;
+        }
+
+        /** Switches to the idle or the full rate mode. Returns true if that changed the info. */
+        public boolean setIdleLocked(boolean idle) {
+            if (mIdle == idle) {
+                return false;
+            }
+            mIdle = idle;
+            mInfo = null;
+            return true;
+        }
+
         @Override
         public boolean hasStableUniqueId() {
             return false;
@@ -332,7 +594,7 @@ final class UIDisplayAdapter extends DisplayAdapter {
         @Override
         public DisplayDeviceInfo getDisplayDeviceInfoLocked() {
             if (mInfo == null) {
-                Display.Mode mode = mMode;
+                Display.Mode mode = mIdle ? mIdleMode : mMode;
                 UIMode rawMode = mRawMode;
                 mInfo = new DisplayDeviceInfo();
                 mInfo.name = mName;
@@ -340,13 +602,13 @@ final class UIDisplayAdapter extends DisplayAdapter {
                 mInfo.width = mode.getPhysicalWidth();
                 mInfo.height = mode.getPhysicalHeight();
                 mInfo.modeId = mode.getModeId();
-                mInfo.defaultModeId = mode.getModeId();
-                mInfo.supportedModes = new Display.Mode[] {mMode};
+                mInfo.defaultModeId = mMode.getModeId();
+                mInfo.supportedModes = new Display.Mode[] {mMode, mIdleMode};
                 mInfo.densityDpi = rawMode.mDensityDpi;
                 mInfo.xDpi = rawMode.mDensityDpi;
                 mInfo.yDpi = rawMode.mDensityDpi;
                 mInfo.presentationDeadlineNanos = mDisplayPresentationDeadlineNanos +
-                    1000000000L / (int) mRefreshRate;
+                    (long) (1000000000L / mode.getRefreshRate());
                 mInfo.flags = DisplayDeviceInfo.FLAG_PRESENTATION;
                 mInfo.type = Display.TYPE_OVERLAY;
                 mInfo.touch = DisplayDeviceInfo.TOUCH_VIRTUAL;
@@ -370,12 +632,24 @@ final class UIDisplayAdapter extends DisplayAdapter {
     private final class UIDisplayHandle implements UIDisplayWindow.Listener {
         private static final int DEFAULT_MODE_INDEX = 0;
 
-        private final String mName;
-        private final UIMode mMode;
-        private final int mNumber;
+        // Follows the slot, as a pooled handle is reused for whichever slot is free.
+        private String mName;
+        private UIMode mMode;
+        private final int mDeviceNumber;
+        // Position in the lens, -1 for the loading display. A mirror shares its primary's slot.
+        private int mSlot;
+        // The display this one mirrors, null for primaries.
+        private final UIDisplayHandle mPrimary;
+        private UIDisplayHandle mMirror;
 
         private UIDisplayWindow mWindow;
         private UIDisplayDevice mDevice;
+        private int mDisplayId = Display.INVALID_DISPLAY;
+        private IUIDisplayCallback mCallback;
+        private int mCallbackIndex;
+        // Start of the pending createUIDisplay / displayAdded stage, 0 if none.
+        private long mCreateStartNanos;
+        private long mAddedStartNanos;
 
         private float mX;
         private float mY;
@@ -384,27 +658,118 @@ final class UIDisplayAdapter extends DisplayAdapter {
         private boolean mIsRight = false;
         private boolean mIsLoading;
         private boolean mResizeMode = false;
+        // Set once the handle is dismissed; a show that is already running drops its window.
+        private boolean mDismissed;
+        // Lens target whose frames this display shows, null if they are not stored.
+        private String mTarget;
+        private int mTargetUserId;
+        // Frames shown over the content of the loading display.
+        private Bitmap[] mSnapshotFrames;
 
 
-        public UIDisplayHandle(String name, UIMode mode, int number) {
+        public UIDisplayHandle(String name, UIMode mode, int slot, UIDisplayHandle primary) {
             mName = name;
             mMode = mode;
-            mNumber = number;
-            mIsRight = number > 3 ? false : true;
-            mIsLoading = number < 0 ? true : false;
+            mSlot = slot;
+            mPrimary = primary;
+            mDeviceNumber = mNextDeviceNumber++;
+            mIsRight = primary == null;
+            mIsLoading = slot < 0;
+            beginCreateLocked();
 
             showLocked();
         }
 
         public int getNumber() {
-            return mNumber;
+            return mSlot;
+        }
+
+        public void dumpLocked(PrintWriter pw) {
+            pw.println("  " + mName + ":");
+            pw.println("    mSlot=" + mSlot);
+            pw.println("    mDisplayId=" + mDisplayId);
+            pw.println("    mMode=" + mMode.mWidth + "x" + mMode.mHeight);
+            pw.println("    mPrimary=" + (mPrimary != null ? mPrimary.mName : null));
+            if (mWindow != null) {
+                mWindow.dump(pw, "    ");
+            }
         }
         public int getDisplayId() {
-            return mWindow.getDisplayId();
+            return mDisplayId;
         }
 
         public void setDisplayId(int displayId) {
-            mWindow.setDisplayId(displayId);
+            if (mAddedStartNanos != 0) {
+                mStats.endAsync(LensStageStats.STAGE_DISPLAY_ADDED, mDeviceNumber,
+                        mAddedStartNanos);
+                mAddedStartNanos = 0;
+            }
+            mDisplayId = displayId;
+            if (mWindow != null) {
+                mWindow.setDisplayId(displayId);
+            }
+            dispatchAddedLocked();
+        }
+
+        private void notifyWhenAddedLocked(IUIDisplayCallback callback, int index) {
+            mCallback = callback;
+            mCallbackIndex = index;
+            dispatchAddedLocked();
+        }
+
+        private void dispatchAddedLocked() {
+            if (mCallback == null || mDisplayId == Display.INVALID_DISPLAY) {
+                return;
+            }
+            final IUIDisplayCallback callback = mCallback;
+            final int index = mCallbackIndex;
+            final int displayId = mDisplayId;
+            mCallback = null;
+            getHandler().post(() -> {
+                try {
+                    callback.onUIDisplayAdded(index, displayId);
+                } catch (RemoteException e) {
+                    Slog.w(TAG, "failed to report UI display " + displayId, e);
+                }
+            });
+        }
+
+        // Only lens displays are timed, not mirrors or the loading display.
+        private void beginCreateLocked() {
+            if (mPrimary == null && !mIsLoading) {
+                mCreateStartNanos = LensStageStats.beginAsync(LensStageStats.STAGE_CREATE_DISPLAY,
+                        mDeviceNumber);
+            }
+        }
+
+        private void endCreateLocked() {
+            if (mCreateStartNanos != 0) {
+                mStats.endAsync(LensStageStats.STAGE_CREATE_DISPLAY, mDeviceNumber,
+                        mCreateStartNanos);
+                mCreateStartNanos = 0;
+            }
+        }
+
+        private void reuseLocked(UIMode mode, int slot) {
+            beginCreateLocked();
+            mMode = mode;
+            mSlot = slot;
+            mName = getHandleName(slot, mPrimary != null);
+            if (mDevice != null) {
+                mDevice.setNameLocked(mName);
+                mDevice.setModeLocked(mode);
+                sendDisplayDeviceEventLocked(mDevice, DISPLAY_DEVICE_EVENT_CHANGED);
+            }
+            mUIHandler.post(mReuseRunnable);
+        }
+
+        private void releaseLocked() {
+            mCallback = null;
+            mTarget = null;
+            hideLocked();
+            if (mMirror != null) {
+                mMirror.releaseLocked();
+            }
         }
 
         public boolean isRight() {
@@ -424,34 +789,38 @@ final class UIDisplayAdapter extends DisplayAdapter {
                         mY = top;
                         mScale = scale;
                         break;
-                    case 2:
-                        switch (mNumber%4) {
-                            case 0:
-                                mX = left - 200;
-                                mY = top ;
-                                mScale = 0.3f;
-                                break;
-                            case 1:
-                                mX = left - 400;
-                                mY = top + 400;
-                                mScale = scale;
-                                break;
-                            case 2:
-                                mX = (right)+200;
-                                mY = top;
-                                mScale = 0.3f;
-                            case 3:
-                                mX = (right)+200;
-                                mY = top+400;
-                                mScale = scale;
-                        }
+                    case 2: {
+                        // Two columns beside the content, filled top to bottom, so that no two
+                        // slots share a position however many displays the lens has. The left
+                        // column takes the extra display of an odd count.
+                        final int count = Math.max(mUIDisps.size(), mSlot + 1);
+                        final int leftCount = (count + 1) / 2;
+                        final boolean leftColumn = mSlot < leftCount;
+                        final int row = leftColumn ? mSlot : mSlot - leftCount;
+                        final boolean small = row % 2 == 0;
+                        mX = leftColumn ? left - (small ? 200 : 400) : right + 200;
+                        mY = top + row * 400;
+                        mScale = small ? 0.3f : scale;
                         break;
+                    }
                     case 3:
                         break;
                     case 4: 
                         break;
                 }
-                mUIHandler.post(mRelayoutRunnable);
+                scheduleRelayoutLocked(this);
+            }
+        }
+
+        // Called on the UI thread.
+        private void applyRelayoutLocked() {
+            if (mWindow == null) {
+                return;
+            }
+            if (mScaleY > 0) {
+                mWindow.relayoutUIDisplay(mX, mY, mScale, mScaleY);
+            } else {
+                mWindow.relayoutUIDisplay(mX, mY, mScale);
             }
         }
 
@@ -459,6 +828,11 @@ final class UIDisplayAdapter extends DisplayAdapter {
             mUIHandler.post(mHideRunnable);
         }
 
+        private void setSnapshotsLocked(Bitmap[] frames) {
+            mSnapshotFrames = frames;
+            mUIHandler.post(mSnapshotRunnable);
+        }
+
         private void visualizeLocked() {
             mUIHandler.post(mVisualizeRunnable);
         }
@@ -471,16 +845,25 @@ final class UIDisplayAdapter extends DisplayAdapter {
             mUIHandler.post(mResizeRunnable);
         }
         private void dismissLocked() {
+            mDismissed = true;
             mUIHandler.removeCallbacks(mShowRunnable);
             mUIHandler.post(mDismissRunnable);
+            if (mMirror != null) {
+                mMirror.dismissLocked();
+            }
         }
 
         @Override
         public void onWindowCreated(SurfaceTexture surfaceTexture, float refreshRate, long presentationDeadlineNanos, int state){
             synchronized(getSyncRoot()) {
                 IBinder displayToken = SurfaceControl.createDisplay(mName, false /* secure? */);
+                endCreateLocked();
+                mAddedStartNanos = LensStageStats.beginAsync(LensStageStats.STAGE_DISPLAY_ADDED,
+                        mDeviceNumber);
+                mLiveSurfaceTextures++;
                 mDevice = new UIDisplayDevice(displayToken, mName, mMode, refreshRate, presentationDeadlineNanos,
-                        state, surfaceTexture, mNumber);
+                        state, surfaceTexture, mDeviceNumber, this);
+                mLiveDevices++;
                sendDisplayDeviceEventLocked(mDevice, DISPLAY_DEVICE_EVENT_ADDED);
             }
         }
@@ -491,7 +874,12 @@ final class UIDisplayAdapter extends DisplayAdapter {
                 if (mDevice != null) {
                     mDevice.destroyLocked();
                     sendDisplayDeviceEventLocked(mDevice, DISPLAY_DEVICE_EVENT_REMOVED);
+                    mDevice = null;
+                    mLiveDevices--;
+                    mDispsById.remove(mDisplayId);
+                    mDisplayId = Display.INVALID_DISPLAY;
                 }
+                mLiveSurfaceTextures--;
             }
         }
 
@@ -505,6 +893,43 @@ final class UIDisplayAdapter extends DisplayAdapter {
             }
         }
 
+        @Override
+        public void onContentIdleChanged(boolean idle) {
+            UIDisplayWindow window = null;
+            Surface surface = null;
+            String target = null;
+            int userId = 0;
+            int slot = 0;
+            int width = 0;
+            int height = 0;
+            synchronized (getSyncRoot()) {
+                // The loading display animates on its own schedule, keep it at full rate.
+                if (mDevice != null && !mIsLoading && mDevice.setIdleLocked(idle)) {
+                    sendDisplayDeviceEventLocked(mDevice, DISPLAY_DEVICE_EVENT_CHANGED);
+                }
+                if (idle && mTarget != null && mDevice != null
+                        && mDevice.mSurfaceTexture != null) {
+                    window = mWindow;
+                    // A surface of our own, so the copy survives the device going away.
+                    surface = new Surface(mDevice.mSurfaceTexture);
+                    target = mTarget;
+                    userId = mTargetUserId;
+                    slot = mSlot;
+                    width = Math.max((int) (mMode.mWidth * SNAPSHOT_SCALE), 1);
+                    height = Math.max((int) (mMode.mHeight * SNAPSHOT_SCALE), 1);
+                }
+            }
+            // Content that just went idle shows a settled frame; keep it for the next lens
+            // unless it is the frame that was kept last time.
+            if (surface != null) {
+                if (window != null && window.hasNewFrame()) {
+                    captureSnapshot(surface, width, height, userId, target, slot);
+                } else {
+                    surface.release();
+                }
+            }
+        }
+
         private final Runnable mResizeRunnable = new Runnable() {
             @Override
             public void run() {
@@ -512,7 +937,27 @@ final class UIDisplayAdapter extends DisplayAdapter {
                 UIMode mode = mMode;
                 synchronized(getSyncRoot()) {
                     window = mWindow;
-                    window.setResizeMode(mResizeMode);
+                    if (window != null) {
+                        window.setResizeMode(mResizeMode);
+                    }
+                }
+            }
+        };
+
+        private final Runnable mReuseRunnable = new Runnable() {
+            @Override
+            public void run() {
+                UIDisplayWindow window;
+                UIMode mode;
+                synchronized (getSyncRoot()) {
+                    window = mWindow;
+                    mode = mMode;
+                }
+                if (window != null) {
+                    window.reuse(mode.mWidth, mode.mHeight, mode.mDensityDpi, mDefaultVisible);
+                }
+                synchronized (getSyncRoot()) {
+                    endCreateLocked();
                 }
             }
         };
@@ -520,13 +965,43 @@ final class UIDisplayAdapter extends DisplayAdapter {
         private final Runnable mShowRunnable = new Runnable() {
             @Override
             public void run() {
-                UIMode mode = mMode;
+                UIMode mode;
+                UIDisplayWindow source = null;
+                synchronized (getSyncRoot()) {
+                    if (mDismissed) {
+                        return;
+                    }
+                    mode = mMode;
+                    if (mPrimary != null) {
+                        source = mPrimary.mWindow;
+                    }
+                }
                 UIDisplayWindow window = new UIDisplayWindow(getContext(), mName, mode.mWidth, mode.mHeight,
-                        mode.mDensityDpi, mDefaultVisible, false, mIsRight, mIsLoading, UIDisplayHandle.this);
+                        mode.mDensityDpi, mDefaultVisible, false, mIsRight, mIsLoading, UIDisplayHandle.this,
+                        source);
                 window.show();
+                if (source != null) {
+                    source.setMirror(window);
+                }
 
+                boolean dismissed;
+                Bitmap[] frames = null;
                 synchronized (getSyncRoot()) {
-                    mWindow = window;
+                    dismissed = mDismissed;
+                    if (!dismissed) {
+                        mWindow = window;
+                        frames = mSnapshotFrames;
+                    }
+                }
+                if (frames != null) {
+                    window.setSnapshots(frames);
+                }
+                if (dismissed) {
+                    // Dismissed while the window was being made; the dismiss saw no window.
+                    if (source != null) {
+                        source.setMirror(null);
+                    }
+                    window.dismiss();
                 }
             }
         };
@@ -537,45 +1012,55 @@ final class UIDisplayAdapter extends DisplayAdapter {
                 UIDisplayWindow window;
                 synchronized(getSyncRoot()) {
                     window = mWindow;
-                    window.showUIDisplay();
+                    if (window != null) {
+                        window.showUIDisplay();
+                    }
                 }
             }
         };
         
-        private final Runnable mHideRunnable = new Runnable() {
+        private final Runnable mSnapshotRunnable = new Runnable() {
             @Override
             public void run() {
                 UIDisplayWindow window;
-                synchronized(getSyncRoot()) {
+                Bitmap[] frames;
+                synchronized (getSyncRoot()) {
                     window = mWindow;
-                    window.hideUIDisplay();
+                    frames = mSnapshotFrames;
+                }
+                if (window != null) {
+                    window.setSnapshots(frames);
                 }
             }
         };
 
-        private final Runnable mRelayoutRunnable = new Runnable() {
+        private final Runnable mHideRunnable = new Runnable() {
             @Override
             public void run() {
                 UIDisplayWindow window;
-                synchronized (getSyncRoot()){
+                synchronized(getSyncRoot()) {
                     window = mWindow;
-                    if (mWindow != null) {
-                        if (mScaleY>0)
-                            window.relayoutUIDisplay(mX,mY, mScale, mScaleY);
-                        else
-                            window.relayoutUIDisplay(mX, mY, mScale);
+                    if (window != null) {
+                        window.hideUIDisplay();
                     }
                 }
             }
         };
-        
+
         private final Runnable mDismissRunnable = new Runnable() {
             @Override
             public void run() {
                 UIDisplayWindow window;
+                UIDisplayWindow source = null;
                 synchronized (getSyncRoot()) {
                     window = mWindow;
                     mWindow = null;
+                    if (mPrimary != null) {
+                        source = mPrimary.mWindow;
+                    }
+                }
+                if (source != null) {
+                    source.setMirror(null);
                 }
                 if (window != null) {
                     Slog.w("sunjae", "dismiss Windows!!");
@@ -0,0 +1,137 @@
+package com.android.server.display;
+
+import android.hardware.display.IUIDisplayCallback;
+import android.os.SystemClock;
+import android.os.UserHandle;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Create / dismiss stress benchmark of the lens UI displays, run by
+ * {@code cmd display lens-benchmark}.
+ *
+ * Each cycle creates a set of UI displays with their mirrors, waits until every logical display
+ * exists, dismisses them and waits until the UI thread has handled the dismiss. Latency
+ * percentiles are reported for both halves. Live surface textures, display devices and logical
+ * displays are sampled after the first cycle, once the pool is warm, and again at the end; any
+ * growth is reported as a leak.
+ *
+ * @hide
+ */
+final class UIDisplayBenchmark {
+    // How long one step may take before the run is abandoned.
+    private static final long STEP_TIMEOUT_MILLIS = 5000;
+
+    private final UIDisplayAdapter mAdapter;
+    private final DisplayManagerService.SyncRoot mSyncRoot;
+    private final IntSupplier mLogicalDisplayCount;
+
+    UIDisplayBenchmark(UIDisplayAdapter adapter, DisplayManagerService.SyncRoot syncRoot,
+            IntSupplier logicalDisplayCount) {
+        mAdapter = adapter;
+        mSyncRoot = syncRoot;
+        mLogicalDisplayCount = logicalDisplayCount;
+    }
+
+    /** Runs {@code iterations} cycles of {@code numDisplays} displays. Returns false on failure. */
+    boolean run(PrintWriter pw, int numDisplays, int iterations, int width, int height) {
+        if (mAdapter.getPrimaryUIDisplayCount() != 0) {
+            pw.println("Error: a lens is showing UI displays, dismiss it first");
+            return false;
+        }
+        final int[] sizes = new int[numDisplays * 2];
+        for (int i = 0; i < numDisplays; i++) {
+            sizes[i * 2] = width;
+            sizes[i * 2 + 1] = height;
+        }
+        final long[] createNanos = new long[iterations];
+        final long[] dismissNanos = new long[iterations];
+        int[] baseline = null;
+        for (int i = 0; i < iterations; i++) {
+            final CountDownLatch added = new CountDownLatch(numDisplays);
+            final long start = SystemClock.elapsedRealtimeNanos();
+            mAdapter.createUIDisplays(sizes, new IUIDisplayCallback.Stub() {
+                @Override
+                public void onUIDisplayAdded(int index, int displayId) {
+                    added.countDown();
+                }
+            }, null /* target */, UserHandle.USER_SYSTEM);
+            if (!await(added)) {
+                pw.println("Error: cycle " + i + ": " + added.getCount() + " of " + numDisplays
+                        + " displays not added after " + STEP_TIMEOUT_MILLIS + "ms");
+                mAdapter.dismissUIDisplay();
+                return false;
+            }
+            final long created = SystemClock.elapsedRealtimeNanos();
+            createNanos[i] = created - start;
+
+            mAdapter.dismissUIDisplay();
+            if (!mAdapter.waitForUiThread(STEP_TIMEOUT_MILLIS)) {
+                pw.println("Error: cycle " + i + ": dismiss not handled after "
+                        + STEP_TIMEOUT_MILLIS + "ms");
+                return false;
+            }
+            dismissNanos[i] = SystemClock.elapsedRealtimeNanos() - created;
+            if (i == 0) {
+                baseline = sample();
+            }
+        }
+        final int[] end = sample();
+
+        pw.println("lens-benchmark: " + iterations + " cycles of " + numDisplays + " displays "
+                + width + "x" + height);
+        printPercentiles(pw, "create", createNanos);
+        printPercentiles(pw, "dismiss", dismissNanos);
+        printLeak(pw, "surface textures", baseline[0], end[0]);
+        printLeak(pw, "display devices", baseline[1], end[1]);
+        printLeak(pw, "logical displays", baseline[2], end[2]);
+        return true;
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(STEP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private int[] sample() {
+        synchronized (mSyncRoot) {
+            return new int[] {
+                    mAdapter.getLiveSurfaceTextureCountLocked(),
+                    mAdapter.getLiveDeviceCountLocked(),
+                    mLogicalDisplayCount.getAsInt(),
+            };
+        }
+    }
+
+    private static void printPercentiles(PrintWriter pw, String name, long[] nanos) {
+        long[] sorted = Arrays.copyOf(nanos, nanos.length);
+        Arrays.sort(sorted);
+        pw.println("  " + name + ": p50=" + millis(percentile(sorted, 50))
+                + " p90=" + millis(percentile(sorted, 90))
+                + " p99=" + millis(percentile(sorted, 99))
+                + " max=" + millis(sorted[sorted.length - 1]));
+    }
+
+    /** Returns the nearest-rank percentile of {@code sorted}. */
+    static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1000000.0);
+    }
+
+    private static void printLeak(PrintWriter pw, String name, int baseline, int end) {
+        pw.println("  " + name + ": " + baseline + " -> " + end
+                + (end > baseline ? " (leaked " + (end - baseline) + ")" : ""));
+    }
+}
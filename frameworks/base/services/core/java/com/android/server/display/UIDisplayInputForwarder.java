@@ -0,0 +1,133 @@
+package com.android.server.display;
+
+import android.graphics.Matrix;
+import android.hardware.input.InputManager;
+import android.hardware.input.InputManagerInternal;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.MotionEvent;
+
+import com.android.server.LocalServices;
+
+import java.io.PrintWriter;
+
+/**
+ * Forwards touches on a {@link UIDisplayWindow} to the lens display it shows.
+ *
+ * Move samples are coalesced into one event per frame, keeping every sample as history, and
+ * injected in-process through {@link InputManagerInternal}. Other actions flush the pending move
+ * and go out immediately so ordering is preserved. Events come from the MotionEvent pool and are
+ * recycled after injection; the window-to-display transform is a matrix updated only when the
+ * window is scaled. Must be used on the window's looper thread.
+ *
+ * The dump shows the forward delay, from the oldest sample of an event reaching the forwarder to
+ * its injection, and the time the inject call takes. Injection is asynchronous, so dispatch to
+ * the app is not acknowledged here; its latency is part of the input dispatcher's own stats.
+ *
+ * @hide
+ */
+final class UIDisplayInputForwarder implements Choreographer.FrameCallback {
+    private final InputManagerInternal mInputManagerInternal;
+    private final Choreographer mChoreographer;
+    private final Matrix mTransform = new Matrix();
+
+    private int mDisplayId = Display.INVALID_DISPLAY;
+    private MotionEvent mPendingMove;
+
+    // Stats, guarded by this.
+    private long mInjectedEvents;
+    private long mForwardedSamples;
+    private long mTotalForwardDelayMillis;
+    private long mMaxForwardDelayMillis;
+    private long mTotalInjectNanos;
+
+    UIDisplayInputForwarder() {
+        mInputManagerInternal = LocalServices.getService(InputManagerInternal.class);
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    void setDisplayId(int displayId) {
+        if (mDisplayId != displayId) {
+            flush();
+            mDisplayId = displayId;
+        }
+    }
+
+    /** Sets the scale of the window content; coordinates are divided by it. */
+    void setScale(float scaleX, float scaleY) {
+        mTransform.setScale(1f / scaleX, 1f / scaleY);
+    }
+
+    /** Forwards {@code event}, which stays owned by the caller. */
+    void forward(MotionEvent event) {
+        if (mDisplayId == Display.INVALID_DISPLAY) {
+            return;
+        }
+        MotionEvent copy = MotionEvent.obtain(event);
+        copy.transform(mTransform);
+        copy.setDisplayId(mDisplayId);
+
+        if (copy.getActionMasked() == MotionEvent.ACTION_MOVE) {
+            if (mPendingMove != null && mPendingMove.addBatch(copy)) {
+                copy.recycle();
+            } else {
+                flush();
+                mPendingMove = copy;
+                mChoreographer.postFrameCallback(this);
+            }
+            return;
+        }
+        flush();
+        inject(copy);
+    }
+
+    /** Injects the pending move, if any. */
+    void flush() {
+        if (mPendingMove != null) {
+            mChoreographer.removeFrameCallback(this);
+            MotionEvent move = mPendingMove;
+            mPendingMove = null;
+            inject(move);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        flush();
+    }
+
+    private void inject(MotionEvent event) {
+        final int samples = event.getHistorySize() + 1;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        mInputManagerInternal.injectInputEvent(event, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC);
+        final long injectNanos = SystemClock.elapsedRealtimeNanos() - start;
+        // Time from the oldest sample in the event reaching us to its injection, which includes
+        // the wait for the frame a move was coalesced to.
+        final long forwardDelay = SystemClock.uptimeMillis()
+                - (samples > 1 ? event.getHistoricalEventTime(0) : event.getEventTime());
+        event.recycle();
+
+        synchronized (this) {
+            mInjectedEvents++;
+            mForwardedSamples += samples;
+            mTotalForwardDelayMillis += forwardDelay;
+            mMaxForwardDelayMillis = Math.max(mMaxForwardDelayMillis, forwardDelay);
+            mTotalInjectNanos += injectNanos;
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (this) {
+            pw.println(prefix + "injectedEvents=" + mInjectedEvents
+                    + " forwardedSamples=" + mForwardedSamples);
+            if (mInjectedEvents > 0) {
+                pw.println(prefix + "forwardDelay: avg="
+                        + (mTotalForwardDelayMillis / mInjectedEvents)
+                        + "ms max=" + mMaxForwardDelayMillis + "ms"
+                        + " injectCall: avg=" + (mTotalInjectNanos / mInjectedEvents / 1000)
+                        + "us");
+            }
+        }
+    }
+}
@@ -3,9 +3,12 @@ package com.android.server.display;
 import com.android.internal.util.DumpUtils;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
 import android.graphics.SurfaceTexture;
 import android.hardware.display.DisplayManager;
-import android.hardware.input.InputManager;
 import android.util.Slog;
 import android.view.Display;
 import android.view.DisplayInfo;
@@ -13,7 +16,6 @@ import android.view.GestureDetector;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
-import android.view.InputEvent;
 import android.view.ScaleGestureDetector;
 import android.view.TextureView;
 import android.view.ThreadedRenderer;
@@ -21,11 +23,16 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.view.TextureView.SurfaceTextureListener;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.graphics.PixelFormat;
 import android.util.DisplayMetrics;
 import android.os.SystemClock;
 
+import java.io.PrintWriter;
+
 /**@hide*/
 final class UIDisplayWindow {
     private static final String TAG = "UIDisplayWindow";
@@ -51,7 +58,7 @@ final class UIDisplayWindow {
     private final Listener mListener;
     private final DisplayManager mDisplayManager;
     private final WindowManager mWindowManager;
-    private final InputManager mInputManager;
+    private final UIDisplayInputForwarder mInputForwarder;
 
     private final Display mDefaultDisplay;
     private final DisplayInfo mDefaultDisplayInfo = new DisplayInfo();
@@ -59,7 +66,16 @@ final class UIDisplayWindow {
     private View mWindowContent;
     private WindowManager.LayoutParams mWindowParams;
     private TextureView mTextureView;
+    // The TextureView, or the MirrorView of a mirror window. Carries the window's scale.
+    private View mContentView;
+
+    // Set on mirror windows: the window whose texture this one shows, instead of owning a display.
+    private final UIDisplayWindow mMirrorSource;
+    // Set on windows that have a mirror, so it can be redrawn when a frame arrives.
+    private UIDisplayWindow mMirror;
     private TextView mTitleTextView;
+    // Last frames of a lens, shown over the content of the loading window.
+    private View mSnapshotView;
 
     private GestureDetector mGestureDetector;
     private ScaleGestureDetector mScaleGestureDetector;
@@ -83,18 +99,36 @@ final class UIDisplayWindow {
     private boolean mIsLoading;
     private boolean mResizeMode = false;
 
+    // The content counts as idle once no frame arrived for this long, well past the period of
+    // UI that ticks about once a second, such as a clock or a seek bar.
+    private static final long IDLE_TIMEOUT_MILLIS = 3000;
+    // Idle content counts as active again once this many frames arrived within the window.
+    private static final int ACTIVE_FRAMES = 3;
+    private static final long ACTIVE_WINDOW_MILLIS = 500;
+    private long mLastFrameTime;
+    private boolean mContentIdle;
+    private boolean mIdleCheckPosted;
+    private long mFrameCount;
+    private int mIdleTransitions;
+    // Frames that arrived while idle, counted from mActiveWindowStart.
+    private int mActiveFrames;
+    private long mActiveWindowStart;
+    // mFrameCount when hasNewFrame() last returned true.
+    private long mLastNewFrameCount;
+
     public UIDisplayWindow(Context context, String name,
             int width, int height, int densityDpi, boolean visible,boolean secure, boolean isRight, boolean isLoading,
-            Listener listener) {
+            Listener listener, UIDisplayWindow mirrorSource) {
         ThreadedRenderer.disableVsync();
         mContext = context;
+        mMirrorSource = mirrorSource;
         mName = name;
         mSecure = secure;
         mListener = listener;
 
         mDisplayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
         mWindowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        mInputManager = (InputManager) context.getSystemService(Context.INPUT_SERVICE);
+        mInputForwarder = new UIDisplayInputForwarder();
         if (!visible || isLoading) {
             WINDOW_ALPHA = 0.0f;
         } else {
@@ -116,6 +150,19 @@ final class UIDisplayWindow {
 
     public void setDisplayId(int displayId) {
         mDisplayId = displayId;
+        mInputForwarder.setDisplayId(displayId);
+        if (mMirror != null) {
+            // Touches on the mirror go to the display it shows.
+            mMirror.setDisplayId(displayId);
+        }
+    }
+
+    /** Sets the window that shows this window's texture, or null. */
+    public void setMirror(UIDisplayWindow mirror) {
+        mMirror = mirror;
+        if (mirror != null) {
+            mirror.setDisplayId(mDisplayId);
+        }
     }
     
     public void show() {
@@ -134,6 +181,9 @@ final class UIDisplayWindow {
      }
 
     public void dismiss() {
+        mInputForwarder.flush();
+        mWindowContent.removeCallbacks(mIdleCheck);
+        mIdleCheckPosted = false;
         if (mWindowVisible) {
             mDisplayManager.unregisterDisplayListener(mDisplayListener);
             mWindowManager.removeView(mWindowContent);
@@ -148,6 +198,24 @@ final class UIDisplayWindow {
         resize(width, height, densityDpi, true);
     }
 
+    /**
+     * Prepares a pooled window for another lens: resizes the texture, which reallocates the
+     * display's buffers, and drops the placement and touch state of the previous lens.
+     */
+    public void reuse(int width, int height, int densityDpi, boolean visible) {
+        mContentView.getLayoutParams().width = width;
+        mContentView.getLayoutParams().height = height;
+        mContentView.requestLayout();
+        mIsDefSet = false;
+        mWindowScaleX = INITIAL_SCALE;
+        mWindowScaleY = INITIAL_SCALE;
+        clearLiveState();
+        WINDOW_ALPHA = visible ? 1.0f : 0.0f;
+        mWindowParams.alpha = WINDOW_ALPHA;
+        mWindowParams.flags &= ~WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE;
+        resize(width, height, densityDpi);
+    }
+
     private void resize(int width, int height, int densityDpi, boolean doLayout) {
         mWidth = width;
         mHeight = height;
@@ -159,12 +227,54 @@ final class UIDisplayWindow {
 
     public void relayout() {
         if (mWindowVisible) {
+            // Position and alpha are window attributes and scale invalidates the content view
+            // itself, so the window is only redrawn when the texture has a new frame.
             updateWindowParams();
             mWindowManager.updateViewLayout(mWindowContent, mWindowParams);
-            mWindowContent.invalidate();
         }
     }
     
+    /** Returns true once the display has produced a frame. Must be called on the UI thread. */
+    public boolean hasFrame() {
+        return mTextureView != null && mTextureView.isAvailable() && mFrameCount != 0;
+    }
+
+    /**
+     * Returns true if the display has produced a frame since the last call that returned true.
+     * Must be called on the UI thread.
+     */
+    public boolean hasNewFrame() {
+        if (!hasFrame() || mFrameCount == mLastNewFrameCount) {
+            return false;
+        }
+        mLastNewFrameCount = mFrameCount;
+        return true;
+    }
+
+    /** Shows {@code frames} top to bottom over the window content, or nothing if empty. */
+    public void setSnapshots(Bitmap[] frames) {
+        final ViewGroup content = (ViewGroup) mWindowContent;
+        if (mSnapshotView != null) {
+            content.removeView(mSnapshotView);
+            mSnapshotView = null;
+        }
+        if (frames == null || frames.length == 0) {
+            return;
+        }
+        LinearLayout column = new LinearLayout(mContext);
+        column.setOrientation(LinearLayout.VERTICAL);
+        for (Bitmap frame : frames) {
+            ImageView image = new ImageView(mContext);
+            image.setScaleType(ImageView.ScaleType.FIT_CENTER);
+            image.setImageBitmap(frame);
+            column.addView(image, new LinearLayout.LayoutParams(
+                    LinearLayout.LayoutParams.MATCH_PARENT, 0, 1f));
+        }
+        content.addView(column, new FrameLayout.LayoutParams(
+                FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+        mSnapshotView = column;
+    }
+
     private boolean updateDefaultDisplayInfo() {
         if (!mDefaultDisplay.getDisplayInfo(mDefaultDisplayInfo)) {
             Slog.w(TAG, "no default display to draw on");
@@ -182,12 +292,23 @@ final class UIDisplayWindow {
 
         mTextureView = (TextureView)mWindowContent.findViewById(
                 com.android.internal.R.id.overlay_display_window_texture);
-        mTextureView.setPivotX(0);
-        mTextureView.setPivotY(0);
-        mTextureView.getLayoutParams().width = mWidth;
-        mTextureView.getLayoutParams().height = mHeight;
-        mTextureView.setOpaque(true); //false
-        mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        if (mMirrorSource == null) {
+            mTextureView.setOpaque(true); //false
+            mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+            mContentView = mTextureView;
+        } else {
+            // No SurfaceTexture and no display of our own: draw the source's texture layer.
+            ViewGroup parent = (ViewGroup) mTextureView.getParent();
+            ViewGroup.LayoutParams params = mTextureView.getLayoutParams();
+            parent.removeView(mTextureView);
+            mTextureView = null;
+            mContentView = new MirrorView(mContext, mMirrorSource);
+            parent.addView(mContentView, params);
+        }
+        mContentView.setPivotX(0);
+        mContentView.setPivotY(0);
+        mContentView.getLayoutParams().width = mWidth;
+        mContentView.getLayoutParams().height = mHeight;
 
         mWindowParams = new WindowManager.LayoutParams(WindowManager.LayoutParams.TYPE_DISPLAY_OVERLAY, 
                 WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN 
@@ -295,8 +416,9 @@ final class UIDisplayWindow {
         mTextureView.getLayoutParams().height = mHeight;
         */
         Slog.w("sunjae", "liveScale="+mLiveScale+" "+" scaleX="+scaleX);
-        mTextureView.setScaleX(scaleX);
-        mTextureView.setScaleY(scaleY);
+        mContentView.setScaleX(scaleX);
+        mContentView.setScaleY(scaleY);
+        mInputForwarder.setScale(mWindowScaleX, mWindowScaleY);
         int width = (int)(mWidth * scaleX);
         int height = (int)(mHeight * scaleY);
 
@@ -314,8 +436,9 @@ final class UIDisplayWindow {
     private void saveWindowParams() {
         mWindowX = mWindowParams.x;
         mWindowY = mWindowParams.y;
-        mWindowScaleX = mTextureView.getScaleX();
-        mWindowScaleY = mTextureView.getScaleY();
+        mWindowScaleX = mContentView.getScaleX();
+        mWindowScaleY = mContentView.getScaleY();
+        mInputForwarder.setScale(mWindowScaleX, mWindowScaleY);
         clearLiveState();
     }
 
@@ -371,40 +494,56 @@ final class UIDisplayWindow {
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
+            if (mMirror != null) {
+                mMirror.mContentView.invalidate();
+            }
+            onFrame();
         }
     };
 
-    private long lastTouchDown;
+    private void onFrame() {
+        mFrameCount++;
+        mLastFrameTime = SystemClock.uptimeMillis();
+        if (mContentIdle) {
+            // A single frame, such as a clock ticking, leaves the content idle.
+            if (mLastFrameTime - mActiveWindowStart > ACTIVE_WINDOW_MILLIS) {
+                mActiveWindowStart = mLastFrameTime;
+                mActiveFrames = 0;
+            }
+            if (++mActiveFrames < ACTIVE_FRAMES) {
+                return;
+            }
+            mContentIdle = false;
+            mListener.onContentIdleChanged(false);
+        }
+        if (!mIdleCheckPosted) {
+            mIdleCheckPosted = true;
+            mWindowContent.postDelayed(mIdleCheck, IDLE_TIMEOUT_MILLIS);
+        }
+    }
+
+    // Posted at most once at a time rather than rescheduled on every frame.
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            final long idleFor = SystemClock.uptimeMillis() - mLastFrameTime;
+            if (idleFor < IDLE_TIMEOUT_MILLIS) {
+                mWindowContent.postDelayed(this, IDLE_TIMEOUT_MILLIS - idleFor);
+                return;
+            }
+            mIdleCheckPosted = false;
+            mContentIdle = true;
+            mActiveFrames = 0;
+            mIdleTransitions++;
+            mListener.onContentIdleChanged(true);
+        }
+    };
 
     private final View.OnTouchListener mOnTouchListener = new View.OnTouchListener() {
         @Override
         public boolean onTouch(View view, MotionEvent event) {
-            Slog.w("sunjae", "touch on window!! resizemode=" +  mResizeMode);
-
             if (!mResizeMode) {
-                float oldX = event.getX();
-                float oldY = event.getY();
-                float newX = oldX / mWindowScaleX;
-                float newY = oldY / mWindowScaleY;
-    //            event.setLocation(newX, newY);
-                Slog.w("sunjae", "newX = " + newX + "newY = " + newY + "mWindowScale = " + mWindowScaleY + "action = " + event.getAction() + "displayID = "+mDisplayId);
-
-
-                long now = SystemClock.uptimeMillis();
-                int action = event.getAction();
-
-                if (action == MotionEvent.ACTION_DOWN) {
-                    lastTouchDown = now;
-                } 
-                
-    //            MotionEvent newEvent = MotionEvent.obtain(lastTouchDown, now, action, newX, newY,0);
-                MotionEvent newEvent = MotionEvent.obtainNoHistory(event);
-                newEvent.setLocation(newX, newY);            
-                ((InputEvent)newEvent).setDisplayId(mDisplayId);
-                mInputManager.injectInputEvent(newEvent, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC);
-                
-    //            mInputManager.injectInputEvent(event, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC);
-                
+                mInputForwarder.forward(event);
                 return true;
             } else {
                 final float oldX = event.getX();
@@ -448,10 +587,50 @@ final class UIDisplayWindow {
         }
     };
 
+    /**
+     * Draws the TextureView of another window. The source's layer is produced once by the lens
+     * display and only drawn again here, so the mirror costs no second display, SurfaceTexture
+     * or composition pass.
+     */
+    private static final class MirrorView extends View {
+        private final UIDisplayWindow mSource;
+
+        MirrorView(Context context, UIDisplayWindow source) {
+            super(context);
+            mSource = source;
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            TextureView source = mSource.mTextureView;
+            if (!(canvas instanceof RecordingCanvas) || source == null
+                    || !source.isAttachedToWindow()) {
+                return;
+            }
+            RenderNode renderNode = source.updateDisplayListIfDirty();
+            if (renderNode.hasDisplayList()) {
+                // The node carries the source's own position and scale; ours is on this view.
+                canvas.save();
+                canvas.scale(1f / source.getScaleX(), 1f / source.getScaleY());
+                canvas.translate(-source.getLeft(), -source.getTop());
+                ((RecordingCanvas) canvas).drawRenderNode(renderNode);
+                canvas.restore();
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "frames=" + mFrameCount + " contentIdle=" + mContentIdle
+                + " idleTransitions=" + mIdleTransitions);
+        mInputForwarder.dump(pw, prefix);
+    }
+
     public interface Listener {
         public void onWindowCreated(SurfaceTexture surfaceTexture, float refreshRate, long presentationDeadlineNanos, int state);
         public void onWindowDestroyed();
         public void onStateChanged(int state);
+        /** Called when the display content stops or starts producing frames. */
+        public void onContentIdleChanged(boolean idle);
     }
 
 }
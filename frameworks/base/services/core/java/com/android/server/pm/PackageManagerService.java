@@ -179,6 +179,7 @@ import android.content.pm.PackageParser.PackageParserException;
 import android.content.pm.PackageParser.ParseFlags;
 import android.content.pm.PackageParser.SigningDetails;
 import android.content.pm.PackageParser.SigningDetails.SignatureSchemeVersion;
+import android.content.pm.PackageParserCacheFile;
 import android.content.pm.PackageStats;
 import android.content.pm.PackageUserState;
 import android.content.pm.ParceledListSlice;
@@ -2608,76 +2609,82 @@ public class PackageManagerService extends IPackageManager.Stub
             // any apps.)
             // For security and version matching reason, only consider overlay packages if they
             // reside in the right directory.
-            scanDirTracedLI(new File(VENDOR_OVERLAY_DIR),
+            final List<BootScanDir> overlayScanDirs = new ArrayList<>();
+            overlayScanDirs.add(new BootScanDir(new File(VENDOR_OVERLAY_DIR),
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_VENDOR,
-                    0);
-            scanDirTracedLI(new File(PRODUCT_OVERLAY_DIR),
+                    | SCAN_AS_VENDOR));
+            overlayScanDirs.add(new BootScanDir(new File(PRODUCT_OVERLAY_DIR),
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_PRODUCT,
-                    0);
-            scanDirTracedLI(new File(PRODUCT_SERVICES_OVERLAY_DIR),
+                    | SCAN_AS_PRODUCT));
+            overlayScanDirs.add(new BootScanDir(new File(PRODUCT_SERVICES_OVERLAY_DIR),
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_PRODUCT_SERVICES,
-                    0);
-            scanDirTracedLI(new File(ODM_OVERLAY_DIR),
+                    | SCAN_AS_PRODUCT_SERVICES));
+            overlayScanDirs.add(new BootScanDir(new File(ODM_OVERLAY_DIR),
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_ODM,
-                    0);
-            scanDirTracedLI(new File(OEM_OVERLAY_DIR),
+                    | SCAN_AS_ODM));
+            overlayScanDirs.add(new BootScanDir(new File(OEM_OVERLAY_DIR),
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_OEM,
-                    0);
+                    | SCAN_AS_OEM));
+
+            final long overlayScanStart = SystemClock.uptimeMillis();
+            try (ParallelPackageParser overlayParser = newParallelPackageParser()) {
+                submitBootScanDirs(overlayParser, overlayScanDirs, 0);
+                for (int i = 0; i < overlayScanDirs.size(); i++) {
+                    scanDirTracedLI(overlayParser, overlayScanDirs.get(i));
+                }
+            }
+            logBootScanTimings("overlay", overlayScanDirs,
+                    SystemClock.uptimeMillis() - overlayScanStart);
 
             mParallelPackageParserCallback.findStaticOverlayPackages();
 
+            // Packages of all system directories, and of the data directory, are parsed together
+            // by one pool of parsing threads. The system directories are scanned in order as
+            // their packages become ready, while the data directory is only scanned after system
+            // packages that no longer exist have been pruned. Parsing only runs a bounded number
+            // of packages ahead of scanning.
+            final List<BootScanDir> systemScanDirs = new ArrayList<>();
+
             // Find base frameworks (resource packages without code).
-            scanDirTracedLI(frameworkDir,
+            systemScanDirs.add(new BootScanDir(frameworkDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_NO_DEX
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_PRIVILEGED,
-                    0);
-            if (!mPackages.containsKey("android")) {
-                throw new IllegalStateException(
-                        "Failed to load frameworks package; check log for warnings");
-            }
+                    | SCAN_AS_PRIVILEGED));
 
             // Collect privileged system packages.
             final File privilegedAppDir = new File(Environment.getRootDirectory(), "priv-app");
-            scanDirTracedLI(privilegedAppDir,
+            systemScanDirs.add(new BootScanDir(privilegedAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_PRIVILEGED,
-                    0);
+                    | SCAN_AS_PRIVILEGED));
 
             // Collect ordinary system packages.
             final File systemAppDir = new File(Environment.getRootDirectory(), "app");
-            scanDirTracedLI(systemAppDir,
+            systemScanDirs.add(new BootScanDir(systemAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
-                    | SCAN_AS_SYSTEM,
-                    0);
+                    | SCAN_AS_SYSTEM));
 
             // Collect privileged vendor packages.
             File privilegedVendorAppDir = new File(Environment.getVendorDirectory(), "priv-app");
@@ -2686,14 +2693,13 @@ public class PackageManagerService extends IPackageManager.Stub
             } catch (IOException e) {
                 // failed to look up canonical path, continue with original one
             }
-            scanDirTracedLI(privilegedVendorAppDir,
+            systemScanDirs.add(new BootScanDir(privilegedVendorAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
                     | SCAN_AS_VENDOR
-                    | SCAN_AS_PRIVILEGED,
-                    0);
+                    | SCAN_AS_PRIVILEGED));
 
             // Collect ordinary vendor packages.
             File vendorAppDir = new File(Environment.getVendorDirectory(), "app");
@@ -2702,13 +2708,12 @@ public class PackageManagerService extends IPackageManager.Stub
             } catch (IOException e) {
                 // failed to look up canonical path, continue with original one
             }
-            scanDirTracedLI(vendorAppDir,
+            systemScanDirs.add(new BootScanDir(vendorAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_VENDOR,
-                    0);
+                    | SCAN_AS_VENDOR));
 
             // Collect privileged odm packages. /odm is another vendor partition
             // other than /vendor.
@@ -2719,14 +2724,13 @@ public class PackageManagerService extends IPackageManager.Stub
             } catch (IOException e) {
                 // failed to look up canonical path, continue with original one
             }
-            scanDirTracedLI(privilegedOdmAppDir,
+            systemScanDirs.add(new BootScanDir(privilegedOdmAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
                     | SCAN_AS_VENDOR
-                    | SCAN_AS_PRIVILEGED,
-                    0);
+                    | SCAN_AS_PRIVILEGED));
 
             // Collect ordinary odm packages. /odm is another vendor partition
             // other than /vendor.
@@ -2736,23 +2740,21 @@ public class PackageManagerService extends IPackageManager.Stub
             } catch (IOException e) {
                 // failed to look up canonical path, continue with original one
             }
-            scanDirTracedLI(odmAppDir,
+            systemScanDirs.add(new BootScanDir(odmAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_VENDOR,
-                    0);
+                    | SCAN_AS_VENDOR));
 
             // Collect all OEM packages.
             final File oemAppDir = new File(Environment.getOemDirectory(), "app");
-            scanDirTracedLI(oemAppDir,
+            systemScanDirs.add(new BootScanDir(oemAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_OEM,
-                    0);
+                    | SCAN_AS_OEM));
 
             // Collected privileged /product packages.
             File privilegedProductAppDir = new File(Environment.getProductDirectory(), "priv-app");
@@ -2761,14 +2763,13 @@ public class PackageManagerService extends IPackageManager.Stub
             } catch (IOException e) {
                 // failed to look up canonical path, continue with original one
             }
-            scanDirTracedLI(privilegedProductAppDir,
+            systemScanDirs.add(new BootScanDir(privilegedProductAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
                     | SCAN_AS_PRODUCT
-                    | SCAN_AS_PRIVILEGED,
-                    0);
+                    | SCAN_AS_PRIVILEGED));
 
             // Collect ordinary /product packages.
             File productAppDir = new File(Environment.getProductDirectory(), "app");
@@ -2777,13 +2778,12 @@ public class PackageManagerService extends IPackageManager.Stub
             } catch (IOException e) {
                 // failed to look up canonical path, continue with original one
             }
-            scanDirTracedLI(productAppDir,
+            systemScanDirs.add(new BootScanDir(productAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_PRODUCT,
-                    0);
+                    | SCAN_AS_PRODUCT));
 
             // Collected privileged /product_services packages.
             File privilegedProductServicesAppDir =
@@ -2794,14 +2794,13 @@ public class PackageManagerService extends IPackageManager.Stub
             } catch (IOException e) {
                 // failed to look up canonical path, continue with original one
             }
-            scanDirTracedLI(privilegedProductServicesAppDir,
+            systemScanDirs.add(new BootScanDir(privilegedProductServicesAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
                     | SCAN_AS_PRODUCT_SERVICES
-                    | SCAN_AS_PRIVILEGED,
-                    0);
+                    | SCAN_AS_PRIVILEGED));
 
             // Collect ordinary /product_services packages.
             File productServicesAppDir = new File(Environment.getProductServicesDirectory(), "app");
@@ -2810,116 +2809,146 @@ public class PackageManagerService extends IPackageManager.Stub
             } catch (IOException e) {
                 // failed to look up canonical path, continue with original one
             }
-            scanDirTracedLI(productServicesAppDir,
+            systemScanDirs.add(new BootScanDir(productServicesAppDir,
                     mDefParseFlags
                     | PackageParser.PARSE_IS_SYSTEM_DIR,
                     scanFlags
                     | SCAN_AS_SYSTEM
-                    | SCAN_AS_PRODUCT_SERVICES,
-                    0);
+                    | SCAN_AS_PRODUCT_SERVICES));
+
+            final BootScanDir dataScanDir = mOnlyCore ? null
+                    : new BootScanDir(sAppInstallDir, 0, scanFlags | SCAN_REQUIRE_KNOWN);
 
-            // Prune any system packages that no longer exist.
             final List<String> possiblyDeletedUpdatedSystemApps = new ArrayList<>();
             // Stub packages must either be replaced with full versions in the /data
             // partition or be disabled.
             final List<String> stubSystemApps = new ArrayList<>();
-            if (!mOnlyCore) {
-                // do this first before mucking with mPackages for the "expecting better" case
-                final Iterator<PackageParser.Package> pkgIterator = mPackages.values().iterator();
-                while (pkgIterator.hasNext()) {
-                    final PackageParser.Package pkg = pkgIterator.next();
-                    if (pkg.isStub) {
-                        stubSystemApps.add(pkg.packageName);
+            final long systemScanTime;
+            final int systemPackagesCount;
+            final int cachedSystemApps;
+            final long systemScanStart = SystemClock.uptimeMillis();
+            try (ParallelPackageParser appParser = newParallelPackageParser()) {
+                submitBootScanDirs(appParser, systemScanDirs, 0);
+                if (dataScanDir != null) {
+                    submitBootScanDir(appParser, dataScanDir, systemScanDirs.size());
+                }
+                for (int i = 0; i < systemScanDirs.size(); i++) {
+                    scanDirTracedLI(appParser, systemScanDirs.get(i));
+                    // The frameworks directory is scanned first.
+                    if (i == 0 && !mPackages.containsKey("android")) {
+                        throw new IllegalStateException(
+                                "Failed to load frameworks package; check log for warnings");
+                    }
+                }
+                logBootScanTimings("system", systemScanDirs,
+                        SystemClock.uptimeMillis() - systemScanStart);
+
+                // Prune any system packages that no longer exist.
+                if (!mOnlyCore) {
+                    // do this first before mucking with mPackages for the "expecting better" case
+                    final Iterator<PackageParser.Package> pkgIterator =
+                            mPackages.values().iterator();
+                    while (pkgIterator.hasNext()) {
+                        final PackageParser.Package pkg = pkgIterator.next();
+                        if (pkg.isStub) {
+                            stubSystemApps.add(pkg.packageName);
+                        }
                     }
-                }
 
-                final Iterator<PackageSetting> psit = mSettings.mPackages.values().iterator();
-                while (psit.hasNext()) {
-                    PackageSetting ps = psit.next();
+                    final Iterator<PackageSetting> psit = mSettings.mPackages.values().iterator();
+                    while (psit.hasNext()) {
+                        PackageSetting ps = psit.next();
 
-                    /*
-                     * If this is not a system app, it can't be a
-                     * disable system app.
-                     */
-                    if ((ps.pkgFlags & ApplicationInfo.FLAG_SYSTEM) == 0) {
-                        continue;
-                    }
-
-                    /*
-                     * If the package is scanned, it's not erased.
-                     */
-                    final PackageParser.Package scannedPkg = mPackages.get(ps.name);
-                    if (scannedPkg != null) {
                         /*
-                         * If the system app is both scanned and in the
-                         * disabled packages list, then it must have been
-                         * added via OTA. Remove it from the currently
-                         * scanned package so the previously user-installed
-                         * application can be scanned.
+                         * If this is not a system app, it can't be a
+                         * disable system app.
                          */
-                        if (mSettings.isDisabledSystemPackageLPr(ps.name)) {
-                            logCriticalInfo(Log.WARN,
-                                    "Expecting better updated system app for " + ps.name
-                                    + "; removing system app.  Last known"
-                                    + " codePath=" + ps.codePathString
-                                    + ", versionCode=" + ps.versionCode
-                                    + "; scanned versionCode=" + scannedPkg.getLongVersionCode());
-                            removePackageLI(scannedPkg, true);
-                            mExpectingBetter.put(ps.name, ps.codePath);
+                        if ((ps.pkgFlags & ApplicationInfo.FLAG_SYSTEM) == 0) {
+                            continue;
                         }
 
-                        continue;
-                    }
+                        /*
+                         * If the package is scanned, it's not erased.
+                         */
+                        final PackageParser.Package scannedPkg = mPackages.get(ps.name);
+                        if (scannedPkg != null) {
+                            /*
+                             * If the system app is both scanned and in the
+                             * disabled packages list, then it must have been
+                             * added via OTA. Remove it from the currently
+                             * scanned package so the previously user-installed
+                             * application can be scanned.
+                             */
+                            if (mSettings.isDisabledSystemPackageLPr(ps.name)) {
+                                logCriticalInfo(Log.WARN,
+                                        "Expecting better updated system app for " + ps.name
+                                        + "; removing system app.  Last known"
+                                        + " codePath=" + ps.codePathString
+                                        + ", versionCode=" + ps.versionCode
+                                        + "; scanned versionCode="
+                                        + scannedPkg.getLongVersionCode());
+                                removePackageLI(scannedPkg, true);
+                                mExpectingBetter.put(ps.name, ps.codePath);
+                            }
 
-                    if (!mSettings.isDisabledSystemPackageLPr(ps.name)) {
-                        psit.remove();
-                        logCriticalInfo(Log.WARN, "System package " + ps.name
-                                + " no longer exists; it's data will be wiped");
-                        // Actual deletion of code and data will be handled by later
-                        // reconciliation step
-                    } else {
-                        // we still have a disabled system package, but, it still might have
-                        // been removed. check the code path still exists and check there's
-                        // still a package. the latter can happen if an OTA keeps the same
-                        // code path, but, changes the package name.
-                        final PackageSetting disabledPs =
-                                mSettings.getDisabledSystemPkgLPr(ps.name);
-                        if (disabledPs.codePath == null || !disabledPs.codePath.exists()
-                                || disabledPs.pkg == null) {
-                            possiblyDeletedUpdatedSystemApps.add(ps.name);
+                            continue;
+                        }
+
+                        if (!mSettings.isDisabledSystemPackageLPr(ps.name)) {
+                            psit.remove();
+                            logCriticalInfo(Log.WARN, "System package " + ps.name
+                                    + " no longer exists; it's data will be wiped");
+                            // Actual deletion of code and data will be handled by later
+                            // reconciliation step
                         } else {
-                            // We're expecting that the system app should remain disabled, but add
-                            // it to expecting better to recover in case the data version cannot
-                            // be scanned.
-                            mExpectingBetter.put(disabledPs.name, disabledPs.codePath);
+                            // we still have a disabled system package, but, it still might have
+                            // been removed. check the code path still exists and check there's
+                            // still a package. the latter can happen if an OTA keeps the same
+                            // code path, but, changes the package name.
+                            final PackageSetting disabledPs =
+                                    mSettings.getDisabledSystemPkgLPr(ps.name);
+                            if (disabledPs.codePath == null || !disabledPs.codePath.exists()
+                                    || disabledPs.pkg == null) {
+                                possiblyDeletedUpdatedSystemApps.add(ps.name);
+                            } else {
+                                // We're expecting that the system app should remain disabled,
+                                // but add it to expecting better to recover in case the data
+                                // version cannot be scanned.
+                                mExpectingBetter.put(disabledPs.name, disabledPs.codePath);
+                            }
                         }
                     }
                 }
-            }
 
-            //delete tmp files
-            deleteTempPackageFiles();
+                //delete tmp files
+                deleteTempPackageFiles();
 
-            final int cachedSystemApps = PackageParser.sCachedPackageReadCount.get();
+                cachedSystemApps = getCachedPackageCount(overlayScanDirs)
+                        + getCachedPackageCount(systemScanDirs);
 
-            // Remove any shared userIDs that have no associated packages
-            mSettings.pruneSharedUsersLPw();
-            final long systemScanTime = SystemClock.uptimeMillis() - startTime;
-            final int systemPackagesCount = mPackages.size();
-            Slog.i(TAG, "Finished scanning system apps. Time: " + systemScanTime
-                    + " ms, packageCount: " + systemPackagesCount
-                    + " , timePerPackage: "
-                    + (systemPackagesCount == 0 ? 0 : systemScanTime / systemPackagesCount)
-                    + " , cached: " + cachedSystemApps);
-            if (mIsUpgrade && systemPackagesCount > 0) {
-                MetricsLogger.histogram(null, "ota_package_manager_system_app_avg_scan_time",
-                        ((int) systemScanTime) / systemPackagesCount);
+                // Remove any shared userIDs that have no associated packages
+                mSettings.pruneSharedUsersLPw();
+                systemScanTime = SystemClock.uptimeMillis() - startTime;
+                systemPackagesCount = mPackages.size();
+                Slog.i(TAG, "Finished scanning system apps. Time: " + systemScanTime
+                        + " ms, packageCount: " + systemPackagesCount
+                        + " , timePerPackage: "
+                        + (systemPackagesCount == 0 ? 0 : systemScanTime / systemPackagesCount)
+                        + " , cached: " + cachedSystemApps);
+                if (mIsUpgrade && systemPackagesCount > 0) {
+                    MetricsLogger.histogram(null, "ota_package_manager_system_app_avg_scan_time",
+                            ((int) systemScanTime) / systemPackagesCount);
+                }
+                if (!mOnlyCore) {
+                    EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_DATA_SCAN_START,
+                            SystemClock.uptimeMillis());
+                    final long dataScanStart = SystemClock.uptimeMillis();
+                    scanDirTracedLI(appParser, dataScanDir);
+                    logBootScanTimings("data", Collections.singletonList(dataScanDir),
+                            SystemClock.uptimeMillis() - dataScanStart);
+                }
             }
             if (!mOnlyCore) {
-                EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_DATA_SCAN_START,
-                        SystemClock.uptimeMillis());
-                scanDirTracedLI(sAppInstallDir, 0, scanFlags | SCAN_REQUIRE_KNOWN, 0);
-
                 // Remove disable package settings for updated system apps that were
                 // removed via an OTA. If the update is no longer present, remove the
                 // app completely. Otherwise, revoke their system privileges.
@@ -3082,8 +3111,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 // This must be done last to ensure all stubs are replaced or disabled.
                 installSystemStubPackages(stubSystemApps, scanFlags);
 
-                final int cachedNonSystemApps = PackageParser.sCachedPackageReadCount.get()
-                                - cachedSystemApps;
+                final int cachedNonSystemApps = dataScanDir.cachedCount;
 
                 final long dataScanTime = SystemClock.uptimeMillis() - systemScanTime - startTime;
                 final int dataPackagesCount = mPackages.size() - systemPackagesCount;
@@ -4816,6 +4844,8 @@ public class PackageManagerService extends IPackageManager.Stub
 
             // 3. Consider parsed APK data (aggressive only)
             if (internalVolume && aggressive) {
+                // The cache file stays mapped, and so takes up space, until it is cleared.
+                PackageParserCacheFile.clear(mCacheDir);
                 FileUtils.deleteContents(mCacheDir);
                 if (file.getUsableSpace() >= bytes) return;
             }
@@ -9008,80 +9038,172 @@ public class PackageManagerService extends IPackageManager.Stub
         return finalList;
     }
 
-    private void scanDirTracedLI(File scanDir, final int parseFlags, int scanFlags, long currentTime) {
-        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "scanDir [" + scanDir.getAbsolutePath() + "]");
-        try {
-            scanDirLI(scanDir, parseFlags, scanFlags, currentTime);
-        } finally {
-            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+    /**
+     * A directory of packages scanned at boot, and where the time scanning it went.
+     */
+    private static final class BootScanDir {
+        final File dir;
+        final int parseFlags;
+        final int scanFlags;
+        // Batch the packages of the directory are parsed in.
+        int batch;
+        int fileCount;
+        // Number of packages that were read from the package cache.
+        int cachedCount;
+        // Time spent parsing, summed over the parsing threads.
+        long parseTime;
+        // Time the scanning thread waited for packages to be parsed.
+        long waitTime;
+        // Time spent scanning parsed packages.
+        long scanTime;
+
+        BootScanDir(File dir, int parseFlags, int scanFlags) {
+            this.dir = dir;
+            this.parseFlags = parseFlags;
+            this.scanFlags = scanFlags;
+        }
+    }
+
+    private ParallelPackageParser newParallelPackageParser() {
+        return new ParallelPackageParser(mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
+                mParallelPackageParserCallback);
+    }
+
+    /**
+     * Submits the packages of each directory for parsing, so that all of them are parsed
+     * together. The directories are then scanned in order with {@link #scanDirTracedLI}.
+     */
+    private void submitBootScanDirs(ParallelPackageParser parallelPackageParser,
+            List<BootScanDir> scanDirs, int firstBatch) {
+        for (int i = 0; i < scanDirs.size(); i++) {
+            submitBootScanDir(parallelPackageParser, scanDirs.get(i), firstBatch + i);
         }
     }
 
-    private void scanDirLI(File scanDir, int parseFlags, int scanFlags, long currentTime) {
-        final File[] files = scanDir.listFiles();
+    private void submitBootScanDir(ParallelPackageParser parallelPackageParser,
+            BootScanDir scanDir, int batch) {
+        scanDir.batch = batch;
+        final File[] files = scanDir.dir.listFiles();
         if (ArrayUtils.isEmpty(files)) {
-            Log.d(TAG, "No files in app dir " + scanDir);
+            Log.d(TAG, "No files in app dir " + scanDir.dir);
             return;
         }
 
         if (DEBUG_PACKAGE_SCANNING) {
-            Log.d(TAG, "Scanning app dir " + scanDir + " scanFlags=" + scanFlags
-                    + " flags=0x" + Integer.toHexString(parseFlags));
-        }
-        try (ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
-                mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback)) {
-            // Submit files for parsing in parallel
-            int fileCount = 0;
-            for (File file : files) {
-                final boolean isPackage = (isApkFile(file) || file.isDirectory())
-                        && !PackageInstallerService.isStageName(file.getName());
-                if (!isPackage) {
-                    // Ignore entries which are not packages
-                    continue;
-                }
-                parallelPackageParser.submit(file, parseFlags);
-                fileCount++;
+            Log.d(TAG, "Scanning app dir " + scanDir.dir + " scanFlags=" + scanDir.scanFlags
+                    + " flags=0x" + Integer.toHexString(scanDir.parseFlags));
+        }
+        for (File file : files) {
+            final boolean isPackage = (isApkFile(file) || file.isDirectory())
+                    && !PackageInstallerService.isStageName(file.getName());
+            if (!isPackage) {
+                // Ignore entries which are not packages
+                continue;
             }
+            parallelPackageParser.submit(file, scanDir.parseFlags, batch);
+            scanDir.fileCount++;
+        }
+    }
 
-            // Process results one by one
-            for (; fileCount > 0; fileCount--) {
-                ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
-                Throwable throwable = parseResult.throwable;
-                int errorCode = PackageManager.INSTALL_SUCCEEDED;
+    private void scanDirTracedLI(ParallelPackageParser parallelPackageParser,
+            BootScanDir scanDir) {
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER,
+                "scanDir [" + scanDir.dir.getAbsolutePath() + "]");
+        try {
+            scanDirLI(parallelPackageParser, scanDir);
+        } finally {
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+    }
 
-                if (throwable == null) {
-                    // TODO(toddke): move lower in the scan chain
-                    // Static shared libraries have synthetic package names
-                    if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
-                        renameStaticSharedLibraryPackage(parseResult.pkg);
-                    }
-                    try {
-                        scanPackageChildLI(parseResult.pkg, parseFlags, scanFlags,
-                                currentTime, null);
-                    } catch (PackageManagerException e) {
-                        errorCode = e.error;
-                        Slog.w(TAG, "Failed to scan " + parseResult.scanFile + ": " + e.getMessage());
-                    }
-                } else if (throwable instanceof PackageParser.PackageParserException) {
-                    PackageParser.PackageParserException e = (PackageParser.PackageParserException)
-                            throwable;
+    /**
+     * Scans the packages of a directory submitted with {@link #submitBootScanDir}, one by one as
+     * they are parsed.
+     */
+    private void scanDirLI(ParallelPackageParser parallelPackageParser, BootScanDir scanDir) {
+        final int parseFlags = scanDir.parseFlags;
+        final int scanFlags = scanDir.scanFlags;
+        for (int fileCount = scanDir.fileCount; fileCount > 0; fileCount--) {
+            final long waitStart = SystemClock.uptimeMillis();
+            ParallelPackageParser.ParseResult parseResult =
+                    parallelPackageParser.take(scanDir.batch);
+            final long scanStart = SystemClock.uptimeMillis();
+            scanDir.waitTime += scanStart - waitStart;
+            scanDir.parseTime += parseResult.parseTime;
+            if (parseResult.cached) {
+                scanDir.cachedCount++;
+            }
+            Throwable throwable = parseResult.throwable;
+            int errorCode = PackageManager.INSTALL_SUCCEEDED;
+
+            if (throwable == null) {
+                // TODO(toddke): move lower in the scan chain
+                // Static shared libraries have synthetic package names
+                if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
+                    renameStaticSharedLibraryPackage(parseResult.pkg);
+                }
+                try {
+                    scanPackageChildLI(parseResult.pkg, parseFlags, scanFlags,
+                            0, null);
+                } catch (PackageManagerException e) {
                     errorCode = e.error;
-                    Slog.w(TAG, "Failed to parse " + parseResult.scanFile + ": " + e.getMessage());
-                } else {
-                    throw new IllegalStateException("Unexpected exception occurred while parsing "
-                            + parseResult.scanFile, throwable);
+                    Slog.w(TAG, "Failed to scan " + parseResult.scanFile + ": " + e.getMessage());
                 }
+            } else if (throwable instanceof PackageParser.PackageParserException) {
+                PackageParser.PackageParserException e = (PackageParser.PackageParserException)
+                        throwable;
+                errorCode = e.error;
+                Slog.w(TAG, "Failed to parse " + parseResult.scanFile + ": " + e.getMessage());
+            } else {
+                throw new IllegalStateException("Unexpected exception occurred while parsing "
+                        + parseResult.scanFile, throwable);
+            }
 
-                // Delete invalid userdata apps
-                if ((scanFlags & SCAN_AS_SYSTEM) == 0 &&
-                        errorCode != PackageManager.INSTALL_SUCCEEDED) {
-                    logCriticalInfo(Log.WARN,
-                            "Deleting invalid package at " + parseResult.scanFile);
-                    removeCodePathLI(parseResult.scanFile);
-                }
+            // Delete invalid userdata apps
+            if ((scanFlags & SCAN_AS_SYSTEM) == 0 &&
+                    errorCode != PackageManager.INSTALL_SUCCEEDED) {
+                logCriticalInfo(Log.WARN,
+                        "Deleting invalid package at " + parseResult.scanFile);
+                removeCodePathLI(parseResult.scanFile);
             }
+            scanDir.scanTime += SystemClock.uptimeMillis() - scanStart;
+        }
+    }
+
+    private static int getCachedPackageCount(List<BootScanDir> scanDirs) {
+        int cachedCount = 0;
+        for (int i = 0; i < scanDirs.size(); i++) {
+            cachedCount += scanDirs.get(i).cachedCount;
         }
+        return cachedCount;
+    }
+
+    /**
+     * Logs where the time of a boot scan stage went: parsing, summed over the parsing threads,
+     * waiting for packages to be parsed, and scanning them.
+     */
+    private static void logBootScanTimings(String stage, List<BootScanDir> scanDirs,
+            long elapsedTime) {
+        int packageCount = 0;
+        long parseTime = 0;
+        long waitTime = 0;
+        long scanTime = 0;
+        for (int i = 0; i < scanDirs.size(); i++) {
+            final BootScanDir scanDir = scanDirs.get(i);
+            if (scanDir.fileCount == 0) {
+                continue;
+            }
+            Slog.i(TAG, "Scanned " + scanDir.dir + ": packageCount: " + scanDir.fileCount
+                    + ", parse: " + scanDir.parseTime + " ms, wait: " + scanDir.waitTime
+                    + " ms, scan: " + scanDir.scanTime + " ms");
+            packageCount += scanDir.fileCount;
+            parseTime += scanDir.parseTime;
+            waitTime += scanDir.waitTime;
+            scanTime += scanDir.scanTime;
+        }
+        Slog.i(TAG, "Finished " + stage + " scan stage. Time: " + elapsedTime
+                + " ms, packageCount: " + packageCount + ", parse: " + parseTime
+                + " ms, wait: " + waitTime + " ms, scan: " + scanTime + " ms");
     }
 
     public static void reportSettingsProblem(int priority, String msg) {
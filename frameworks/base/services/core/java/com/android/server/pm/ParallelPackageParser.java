@@ -18,13 +18,18 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
+import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -35,7 +40,13 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
  * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * Parsing starts in submission order and runs at most {@link #QUEUE_CAPACITY} packages ahead
+ * of the earliest submitted package whose result has not been taken yet.</p>
+ * <p>Requests may be grouped into batches, such as the directories scanned at boot, so that
+ * packages of several batches are parsed together while the results of each batch are taken
+ * in turn with {@link #take(int)}. Results of later batches are then kept until taken. Batches
+ * must be taken in the order they were submitted in, so that the earliest untaken package
+ * always belongs to the batch being taken.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
@@ -51,6 +62,21 @@ class ParallelPackageParser implements AutoCloseable {
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
+    // Sequence number of the next submitted package, only used by the submitting thread.
+    private int mNextSequence;
+
+    // Packages with a sequence number below mParseLimit may start parsing.
+    private final Object mParseLock = new Object();
+    @GuardedBy("mParseLock")
+    private int mParseLimit = QUEUE_CAPACITY;
+
+    // Sequence numbers of the taken results, only used by the taking thread.
+    private final BitSet mTaken = new BitSet();
+    private int mFirstUntaken;
+
+    // Results taken from mQueue while waiting for another batch, only used by the taking thread.
+    private final SparseArray<ArrayDeque<ParseResult>> mPendingResults = new SparseArray<>();
+
     private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
             "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
 
@@ -67,6 +93,10 @@ class ParallelPackageParser implements AutoCloseable {
 
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
+        int batch; // Batch the file was submitted in
+        int sequence; // Order the file was submitted in
+        long parseTime; // Time spent parsing, in milliseconds
+        boolean cached; // Whether the package was read from the cache
         Throwable throwable; // Set if an error occurs during parsing
 
         @Override
@@ -74,6 +104,8 @@ class ParallelPackageParser implements AutoCloseable {
             return "ParseResult{" +
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
+                    ", batch=" + batch +
+                    ", cached=" + cached +
                     ", throwable=" + throwable +
                     '}';
         }
@@ -85,6 +117,57 @@ class ParallelPackageParser implements AutoCloseable {
      * @return parsed package
      */
     public ParseResult take() {
+        final ParseResult pr = takeFromQueue();
+        onTaken(pr);
+        return pr;
+    }
+
+    /**
+     * Take the next parsed package of the given batch, waiting if necessary until one appears in
+     * the parsing queue. Parsed packages of other batches are kept for later calls.
+     * @param batch batch the package was submitted in
+     * @return parsed package
+     */
+    public ParseResult take(int batch) {
+        final ArrayDeque<ParseResult> pending = mPendingResults.get(batch);
+        if (pending != null && !pending.isEmpty()) {
+            final ParseResult pr = pending.poll();
+            onTaken(pr);
+            return pr;
+        }
+        while (true) {
+            final ParseResult pr = takeFromQueue();
+            if (pr.batch == batch) {
+                onTaken(pr);
+                return pr;
+            }
+            // Kept results are not taken, so parsing does not run further ahead of them.
+            ArrayDeque<ParseResult> otherPending = mPendingResults.get(pr.batch);
+            if (otherPending == null) {
+                otherPending = new ArrayDeque<>();
+                mPendingResults.put(pr.batch, otherPending);
+            }
+            otherPending.add(pr);
+        }
+    }
+
+    /**
+     * Lets parsing run ahead of the earliest result that is still not taken.
+     */
+    private void onTaken(ParseResult pr) {
+        mTaken.set(pr.sequence);
+        final int firstUntaken = mTaken.nextClearBit(mFirstUntaken);
+        if (firstUntaken == mFirstUntaken) {
+            return;
+        }
+        mFirstUntaken = firstUntaken;
+        synchronized (mParseLock) {
+            mParseLimit = firstUntaken + QUEUE_CAPACITY;
+            mParseLock.notifyAll();
+        }
+    }
+
+    private ParseResult takeFromQueue() {
         try {
             if (mInterruptedInThread != null) {
                 throw new InterruptedException("Interrupted in " + mInterruptedInThread);
@@ -103,8 +186,33 @@ class ParallelPackageParser implements AutoCloseable {
      * @param parseFlags parse falgs
      */
     public void submit(File scanFile, int parseFlags) {
+        submit(scanFile, parseFlags, 0);
+    }
+
+    /**
+     * Submits the file for parsing as part of a batch
+     * @param scanFile file to scan
+     * @param parseFlags parse flags
+     * @param batch batch to take the result from with {@link #take(int)}
+     */
+    public void submit(File scanFile, int parseFlags, int batch) {
+        final int sequence = mNextSequence++;
         mService.submit(() -> {
+            try {
+                synchronized (mParseLock) {
+                    while (sequence >= mParseLimit) {
+                        mParseLock.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mInterruptedInThread = Thread.currentThread().getName();
+                return;
+            }
             ParseResult pr = new ParseResult();
+            pr.batch = batch;
+            pr.sequence = sequence;
+            final long startTime = SystemClock.uptimeMillis();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
             try {
                 PackageParser pp = new PackageParser();
@@ -115,11 +223,13 @@ class ParallelPackageParser implements AutoCloseable {
                 pp.setCallback(mPackageParserCallback);
                 pr.scanFile = scanFile;
                 pr.pkg = parsePackage(pp, scanFile, parseFlags);
+                pr.cached = pp.getCachedReadCount() > 0;
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
+            pr.parseTime = SystemClock.uptimeMillis() - startTime;
             try {
                 mQueue.put(pr);
             } catch (InterruptedException e) {
@@ -910,13 +910,8 @@ class ActivityStack extends ConfigurationContainer {
             activityDisplay.addChild(this, onTop ? POSITION_TOP : POSITION_BOTTOM);
         }
         else {
-            /** end activity
-            for (int taskNdx = mTaskHistory.size() - 1; taskNdx >= 0; --taskNdx) {
-                Slog.w("sunjae", "remove taskid: "+taskNdx);
-                final TaskRecord task = mTaskHistory.get(taskNdx);
-               removeTask(task, "lens", REMOVE_TASK_MODE_DESTROYING);
-            } */
-
+            // Park the stack below the others instead of destroying its tasks. The app leaves
+            // the lens in place and can be moved back onto an off-screen display warm.
             activityDisplay.addChild(this, POSITION_BOTTOM);
         }
         /* applens: end */
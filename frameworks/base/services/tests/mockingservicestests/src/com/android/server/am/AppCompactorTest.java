@@ -116,6 +116,14 @@ public final class AppCompactorTest {
                 AppCompactor.DEFAULT_COMPACT_FULL_RSS_THROTTLE_KB);
         assertThat(mCompactorUnderTest.mFullDeltaRssThrottleKb).isEqualTo(
                 AppCompactor.DEFAULT_COMPACT_FULL_DELTA_RSS_THROTTLE_KB);
+        assertThat(mCompactorUnderTest.mUseAdaptiveCompaction).isEqualTo(
+                AppCompactor.DEFAULT_USE_ADAPTIVE_COMPACTION);
+        assertThat(mCompactorUnderTest.mMinYieldKb).isEqualTo(
+                AppCompactor.DEFAULT_COMPACT_MIN_YIELD_KB);
+        assertThat(mCompactorUnderTest.mMemoryPressureThreshold).isEqualTo(
+                AppCompactor.DEFAULT_COMPACT_MEMORY_PRESSURE);
+        assertThat(mCompactorUnderTest.mCpuPressureThreshold).isEqualTo(
+                AppCompactor.DEFAULT_COMPACT_CPU_PRESSURE);
 
         Set<Integer> expected = new HashSet<>();
         for (String s : TextUtils.split(AppCompactor.DEFAULT_COMPACT_PROC_STATE_THROTTLE, ",")) {
@@ -645,6 +653,81 @@ public final class AppCompactorTest {
         assertThat(mCompactorUnderTest.mProcStateThrottle).containsExactlyElementsIn(expected);
     }
 
+    @Test
+    public void minYieldKb_listensToDeviceConfigChanges() throws InterruptedException {
+        mCompactorUnderTest.init();
+
+        mCountDown = new CountDownLatch(1);
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                AppCompactor.KEY_COMPACT_MIN_YIELD_KB,
+                Long.toString(AppCompactor.DEFAULT_COMPACT_MIN_YIELD_KB + 1), false);
+        assertThat(mCountDown.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(mCompactorUnderTest.mMinYieldKb).isEqualTo(
+                AppCompactor.DEFAULT_COMPACT_MIN_YIELD_KB + 1);
+
+        mCountDown = new CountDownLatch(1);
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                AppCompactor.KEY_COMPACT_MIN_YIELD_KB, "-100", false);
+        assertThat(mCountDown.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(mCompactorUnderTest.mMinYieldKb).isEqualTo(
+                AppCompactor.DEFAULT_COMPACT_MIN_YIELD_KB);
+    }
+
+    @Test
+    public void pressureThresholds_listenToDeviceConfigChangesOutOfRangeValues()
+            throws InterruptedException {
+        mCompactorUnderTest.init();
+
+        mCountDown = new CountDownLatch(1);
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                AppCompactor.KEY_COMPACT_MEMORY_PRESSURE, Float.toString(25.0f), false);
+        assertThat(mCountDown.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(mCompactorUnderTest.mMemoryPressureThreshold).isEqualTo(25.0f);
+
+        mCountDown = new CountDownLatch(1);
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
+                AppCompactor.KEY_COMPACT_CPU_PRESSURE, Float.toString(101.0f), false);
+        assertThat(mCountDown.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(mCompactorUnderTest.mCpuPressureThreshold).isEqualTo(
+                AppCompactor.DEFAULT_COMPACT_CPU_PRESSURE);
+    }
+
+    @Test
+    public void parsePressure() {
+        assertThat(AppCompactor.parsePressure(
+                "some avg10=12.50 avg60=3.00 avg300=1.00 total=12345\n"
+                + "full avg10=1.00 avg60=0.00 avg300=0.00 total=678\n")).isEqualTo(12.5f);
+        assertThat(AppCompactor.parsePressure("")).isEqualTo(-1f);
+        assertThat(AppCompactor.parsePressure("some avg10=foo")).isEqualTo(-1f);
+    }
+
+    @Test
+    public void compactionYield_backsOffWhenUnproductive() {
+        AppCompactor.CompactionYield yield = new AppCompactor.CompactionYield();
+        final long minYieldKb = AppCompactor.DEFAULT_COMPACT_MIN_YIELD_KB;
+
+        // A productive compaction doesn't back off.
+        yield.update(10_000, 50, 1000, minYieldKb);
+        assertThat(yield.mYieldKb).isEqualTo(10_000);
+        assertThat(yield.mBackoffUntil).isEqualTo(0);
+
+        // Unproductive ones back off for twice as long each time, up to the max.
+        yield.update(0, 50, 1000, minYieldKb);
+        assertThat(yield.mBackoffUntil).isEqualTo(1000 + AppCompactor.BACKOFF_BASE);
+        yield.update(0, 50, 1000, minYieldKb);
+        assertThat(yield.mBackoffUntil).isEqualTo(1000 + 2 * AppCompactor.BACKOFF_BASE);
+        for (int i = 0; i < 20; i++) {
+            yield.update(0, 50, 1000, minYieldKb);
+        }
+        assertThat(yield.mBackoffUntil).isEqualTo(1000 + AppCompactor.BACKOFF_MAX);
+        assertThat(yield.mYieldKb).isLessThan(minYieldKb);
+
+        // The next productive one clears the backoff.
+        yield.update(minYieldKb, 50, 1000, minYieldKb);
+        assertThat(yield.mUnproductiveCount).isEqualTo(0);
+        assertThat(yield.mBackoffUntil).isEqualTo(0);
+    }
+
     private class TestInjector extends Injector {
         @Override
         public AppOpsService getAppOpsService(File file, Handler handler) {
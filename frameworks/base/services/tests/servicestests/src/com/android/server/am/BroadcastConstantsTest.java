@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link BroadcastConstants}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:BroadcastConstantsTest
+ */
+@SmallTest
+@Presubmit
+public class BroadcastConstantsTest {
+
+    @Test
+    public void testParseActions() {
+        assertEquals(0, BroadcastConstants.parseActions("").size());
+        assertEquals(2, BroadcastConstants.parseActions(
+                Intent.ACTION_BATTERY_CHANGED + ": " + Intent.ACTION_TIME_TICK + ":").size());
+    }
+
+    @Test
+    public void testIsCoalescedAction() {
+        final BroadcastConstants constants = new BroadcastConstants("test");
+        assertFalse(constants.isCoalescedAction(Intent.ACTION_BATTERY_CHANGED));
+
+        constants.COALESCE_ACTIONS = BroadcastConstants.parseActions(
+                Intent.ACTION_BATTERY_CHANGED);
+        assertTrue(constants.isCoalescedAction(Intent.ACTION_BATTERY_CHANGED));
+        assertFalse(constants.isCoalescedAction(Intent.ACTION_TIME_TICK));
+        assertFalse(constants.isCoalescedAction(null));
+    }
+}
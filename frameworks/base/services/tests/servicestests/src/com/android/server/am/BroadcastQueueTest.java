@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static android.testing.DexmakerShareClassLoaderRule.runWithDexmakerShareClassLoader;
+
+import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.IApplicationThread;
+import android.content.Context;
+import android.content.IIntentReceiver;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.UserHandle;
+import android.os.test.TestLooper;
+
+import com.android.server.wm.ActivityTaskManagerService;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+/**
+ * Test class for {@link BroadcastQueue}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:BroadcastQueueTest
+ */
+public class BroadcastQueueTest {
+    private static final String COALESCED_ACTION = Intent.ACTION_BATTERY_CHANGED;
+    private static final String OTHER_ACTION = Intent.ACTION_TIME_TICK;
+
+    private static Context sContext;
+    private static ActivityManagerService sService;
+
+    private TestLooper mLooper;
+    private BroadcastConstants mConstants;
+    private BroadcastQueue mQueue;
+
+    @BeforeClass
+    public static void setUpOnce() {
+        sContext = getInstrumentation().getTargetContext();
+
+        // We need to run with dexmaker share class loader to make use of
+        // ActivityTaskManagerService from wm package.
+        runWithDexmakerShareClassLoader(() -> {
+            sService = mock(ActivityManagerService.class);
+            sService.mActivityTaskManager = new ActivityTaskManagerService(sContext);
+            sService.mActivityTaskManager.initialize(null, null, sContext.getMainLooper());
+            sService.mAtmInternal = sService.mActivityTaskManager.getAtmInternal();
+        });
+    }
+
+    @Before
+    public void setUp() {
+        // Messages are only looked at, never dispatched, as the service is a mock.
+        mLooper = new TestLooper();
+        mConstants = new BroadcastConstants("test");
+        mConstants.COALESCE_ACTIONS = BroadcastConstants.parseActions(COALESCED_ACTION);
+        mConstants.SLOW_TIME = 0;
+        mQueue = new BroadcastQueue(sService, new Handler(mLooper.getLooper()), "test",
+                mConstants, false);
+    }
+
+    @Test
+    public void testFanOutIsOffByDefault() {
+        assertEquals(0, new BroadcastConstants("default").MAX_FAN_OUT);
+    }
+
+    @Test
+    public void testShouldReplacePending() {
+        final IIntentReceiver resultTo = mock(IIntentReceiver.class);
+        final Intent coalesced = new Intent(COALESCED_ACTION);
+        assertTrue(mQueue.shouldReplacePending(coalesced, false, null));
+        // Ordered broadcasts and result receivers observe every instance.
+        assertFalse(mQueue.shouldReplacePending(coalesced, true, null));
+        assertFalse(mQueue.shouldReplacePending(coalesced, false, resultTo));
+
+        final Intent other = new Intent(OTHER_ACTION);
+        assertFalse(mQueue.shouldReplacePending(other, false, null));
+        other.addFlags(Intent.FLAG_RECEIVER_REPLACE_PENDING);
+        assertTrue(mQueue.shouldReplacePending(other, true, resultTo));
+    }
+
+    @Test
+    public void testCoalescedBroadcastReplacesPending() {
+        mQueue.enqueueParallelBroadcastLocked(createBroadcastRecord(new Intent(OTHER_ACTION), 0));
+        final BroadcastRecord first = createBroadcastRecord(new Intent(COALESCED_ACTION), 0);
+        mQueue.enqueueParallelBroadcastLocked(first);
+
+        final BroadcastRecord second = createBroadcastRecord(new Intent(COALESCED_ACTION), 0);
+        assertSame(first, mQueue.replaceParallelBroadcastLocked(second));
+        assertEquals(2, mQueue.mParallelBroadcasts.size());
+        assertSame(second, mQueue.mParallelBroadcasts.get(1));
+        assertEquals(1, mQueue.mReplacedCount);
+    }
+
+    @Test
+    public void testFinishFanOutReceiver() {
+        final ProcessRecord app = createProcessRecord("app");
+        final BroadcastRecord r = createBroadcastRecord(new Intent(OTHER_ACTION), 1);
+        final BroadcastQueue.FanOutReceiver fo = new BroadcastQueue.FanOutReceiver(r, app, 0);
+        mQueue.trackFanOutLocked(fo);
+        assertTrue(app.curReceivers.contains(r));
+        assertTrue(mQueue.mHandler.hasMessages(BroadcastQueue.BROADCAST_FAN_OUT_TIMEOUT_MSG, fo));
+
+        // Finishes from other processes are not for this delivery.
+        assertFalse(mQueue.finishFanOutReceiverLocked(new Binder()));
+        assertSame(fo, mQueue.mFanOutReceivers.get(app));
+
+        assertTrue(mQueue.finishFanOutReceiverLocked(app.thread.asBinder()));
+        assertTrue(mQueue.mFanOutReceivers.isEmpty());
+        assertFalse(app.curReceivers.contains(r));
+        assertFalse(mQueue.mHandler.hasMessages(BroadcastQueue.BROADCAST_FAN_OUT_TIMEOUT_MSG,
+                fo));
+        assertFalse(mQueue.finishFanOutReceiverLocked(app.thread.asBinder()));
+    }
+
+    @Test
+    public void testFanOutTimeout() {
+        final ProcessRecord app = createProcessRecord("app");
+        final BroadcastRecord r = createBroadcastRecord(new Intent(OTHER_ACTION), 1);
+        final BroadcastQueue.FanOutReceiver fo = new BroadcastQueue.FanOutReceiver(r, app, 0);
+        mQueue.trackFanOutLocked(fo);
+
+        mQueue.fanOutTimeoutLocked(fo);
+        assertTrue(mQueue.mFanOutReceivers.isEmpty());
+        assertFalse(app.curReceivers.contains(r));
+        assertEquals(BroadcastRecord.DELIVERY_TIMEOUT, r.delivery[0]);
+        // The process finishing late finds nothing to finish.
+        assertFalse(mQueue.finishFanOutReceiverLocked(app.thread.asBinder()));
+    }
+
+    @Test
+    public void testFanOutTimeoutAfterFinishIsIgnored() {
+        final ProcessRecord app = createProcessRecord("app");
+        final BroadcastRecord first = createBroadcastRecord(new Intent(OTHER_ACTION), 1);
+        final BroadcastQueue.FanOutReceiver stale =
+                new BroadcastQueue.FanOutReceiver(first, app, 0);
+        mQueue.trackFanOutLocked(stale);
+        assertTrue(mQueue.finishFanOutReceiverLocked(app.thread.asBinder()));
+
+        final BroadcastRecord second = createBroadcastRecord(new Intent(OTHER_ACTION), 1);
+        final BroadcastQueue.FanOutReceiver current =
+                new BroadcastQueue.FanOutReceiver(second, app, 0);
+        mQueue.trackFanOutLocked(current);
+
+        mQueue.fanOutTimeoutLocked(stale);
+        assertSame(current, mQueue.mFanOutReceivers.get(app));
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, second.delivery[0]);
+    }
+
+    private ProcessRecord createProcessRecord(String processName) {
+        final ApplicationInfo info = new ApplicationInfo(sContext.getApplicationInfo());
+        final ProcessRecord app = new ProcessRecord(sService, info, processName, info.uid);
+        app.thread = mock(IApplicationThread.class);
+        final IBinder binder = new Binder();
+        when(app.thread.asBinder()).thenReturn(binder);
+        return app;
+    }
+
+    private static BroadcastRecord createBroadcastRecord(Intent intent, int receiverCount) {
+        final ArrayList<ResolveInfo> receivers = new ArrayList<>();
+        for (int i = 0; i < receiverCount; i++) {
+            final ResolveInfo resolveInfo = new ResolveInfo();
+            resolveInfo.activityInfo = new ActivityInfo();
+            resolveInfo.activityInfo.applicationInfo = new ApplicationInfo();
+            receivers.add(resolveInfo);
+        }
+        return new BroadcastRecord(
+                null /* queue */,
+                intent,
+                null /* callerApp */,
+                null  /* callerPackage */,
+                0 /* callingPid */,
+                0 /* callingUid */,
+                false /* callerInstantApp */,
+                null /* resolvedType */,
+                null /* requiredPermissions */,
+                0 /* appOp */,
+                null /* options */,
+                receivers,
+                null /* resultTo */,
+                0 /* resultCode */,
+                null /* resultData */,
+                null /* resultExtras */,
+                false /* serialized */,
+                false /* sticky */,
+                false /* initialSticky */,
+                UserHandle.USER_SYSTEM,
+                false, /* allowBackgroundActivityStarts */
+                false /* timeoutExempt */ );
+    }
+}
@@ -21,13 +21,26 @@ import static android.testing.DexmakerShareClassLoaderRule.runWithDexmakerShareC
 import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentation;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
 
 import android.app.ActivityManager;
+import android.app.IApplicationThread;
+import android.app.IServiceConnection;
 import android.app.usage.UsageStatsManagerInternal;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.SparseArray;
 
 import com.android.server.LocalServices;
 import com.android.server.wm.ActivityTaskManagerService;
@@ -36,6 +49,12 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
 /**
  * Test class for {@link OomAdjuster}.
  *
@@ -72,6 +91,20 @@ public class OomAdjusterTests {
                     mock(UsageStatsManagerInternal.class));
             sService.mUsageStatsService = LocalServices.getService(UsageStatsManagerInternal.class);
         });
+        // Final fields are not initialized on the mock; the partial updates use them.
+        setFieldValue(sService, "mBackupTargets", new SparseArray<BackupRecord>());
+        setFieldValue(sService, "mProcessStats", new ProcessStatsService(sService,
+                new File(sContext.getFilesDir(), "procstats")));
+    }
+
+    private static void setFieldValue(Object obj, String fieldName, Object value) {
+        try {
+            final Field field = ActivityManagerService.class.getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(obj, value);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Before
@@ -86,6 +119,9 @@ public class OomAdjusterTests {
         assertNotNull(sService.mUsageStatsService);
         assertEquals(USAGE_STATS_INTERACTION, sService.mConstants.USAGE_STATS_INTERACTION_INTERVAL);
         assertEquals(SERVICE_USAGE_INTERACTION, sService.mConstants.SERVICE_USAGE_INTERACTION_TIME);
+
+        // Partial updates run unless a test makes the last full update too old.
+        sService.mOomAdjuster.mLastFullUpdateTime = SystemClock.uptimeMillis();
     }
 
     @Test
@@ -243,6 +279,256 @@ public class OomAdjusterTests {
         assertProcessRecordState(ZERO, false, ZERO);
     }
 
+    @Test
+    public void testCollectReachableProcesses_FollowsProviders() {
+        final ProcessRecord client = createLiveProcess("client", 12346);
+        final ProcessRecord host = createLiveProcess("host", 12347);
+        final ProcessRecord backend = createLiveProcess("backend", 12348);
+        connectProvider(client, host);
+        connectProvider(host, backend);
+        // A provider used by the backend points back to the host; it is collected only once.
+        connectProvider(backend, host);
+
+        final ArrayList<ProcessRecord> out = collectReachable(client);
+        assertEquals(3, out.size());
+        assertEquals(client, out.get(0));
+        assertEquals(host, out.get(1));
+        assertEquals(backend, out.get(2));
+
+        // Clients are not affected by the processes they use.
+        assertFalse(collectReachable(backend).contains(client));
+    }
+
+    @Test
+    public void testCollectReachableProcesses_SkipsDeadProcesses() {
+        final ProcessRecord client = createLiveProcess("client", 12346);
+        final ProcessRecord host = createLiveProcess("host", 12347);
+        connectProvider(client, host);
+        host.thread = null;
+
+        final ArrayList<ProcessRecord> out = collectReachable(client);
+        assertEquals(1, out.size());
+        assertEquals(client, out.get(0));
+    }
+
+    @Test
+    public void testUpdateOomAdjPendingTargets_PeriodicFullUpdate() {
+        final String reason = "testPeriodicFullUpdate";
+        final ProcessRecord app = createLiveProcess("app", 12346);
+        startService(app);
+        final long now = SystemClock.uptimeMillis();
+        sService.mOomAdjuster.mLastFullUpdateTime = now - OomAdjuster.FULL_UPDATE_INTERVAL_MS - 1;
+
+        sService.mOomAdjuster.enqueueOomAdjTargetLocked(app);
+        assertFalse(sService.mOomAdjuster.updateOomAdjPendingTargetsPartialLocked(reason, now));
+        assertEquals(ProcessList.INVALID_ADJ, app.setAdj);
+        assertTrue(getUpdateStats(reason).contains("periodic=1 fallback=0"));
+
+        // The pending processes were handed to the full update.
+        assertTrue(sService.mOomAdjuster.updateOomAdjPendingTargetsPartialLocked(reason, now));
+        assertTrue(getUpdateStats(reason).contains("partial: 0 "));
+    }
+
+    @Test
+    public void testUpdateOomAdjPendingTargets_CycleFallsBack() {
+        final String reason = "testCycleFallsBack";
+        final ProcessRecord first = createLiveProcess("first", 12346);
+        final ProcessRecord second = createLiveProcess("second", 12347);
+        startService(first);
+        startService(second);
+        connectProvider(first, second);
+        connectProvider(second, first);
+
+        assertFalse(updatePendingTargets(reason, first));
+        assertEquals(ProcessList.INVALID_ADJ, first.setAdj);
+        assertEquals(ProcessList.INVALID_ADJ, second.setAdj);
+        assertTrue(getUpdateStats(reason).contains("periodic=0 fallback=1"));
+    }
+
+    @Test
+    public void testUpdateOomAdjPendingTargets_BecomingCachedFallsBack() {
+        final String reason = "testBecomingCachedFallsBack";
+        final ProcessRecord app = createLiveProcess("app", 12346);
+        final ServiceRecord s = startService(app);
+        assertTrue(updatePendingTargets(reason, app));
+        assertEquals(ProcessList.SERVICE_ADJ, app.setAdj);
+
+        // Only a full update hands out cached slots and enforces the cached process limits.
+        s.startRequested = false;
+        assertFalse(updatePendingTargets(reason, app));
+        assertEquals(ProcessList.SERVICE_ADJ, app.setAdj);
+        assertTrue(getUpdateStats(reason).contains("periodic=0 fallback=1"));
+    }
+
+    @Test
+    public void testUpdateOomAdjPartial_AppliesReachableProcesses() {
+        final ProcessRecord client = createPersistentProcess("client", 12346);
+        final ProcessRecord host = createLiveProcess("host", 12347);
+        startService(host);
+        connectProvider(client, host);
+
+        final ArrayList<ProcessRecord> processes = collectReachable(client);
+        assertTrue(sService.mOomAdjuster.updateOomAdjPartialLocked(processes,
+                SystemClock.uptimeMillis()));
+        assertEquals(ProcessList.PERSISTENT_PROC_ADJ, client.setAdj);
+        assertEquals(ProcessList.FOREGROUND_APP_ADJ, host.setAdj);
+        assertSameAdjAsFullUpdate(client, host);
+    }
+
+    @Test
+    public void testUpdateOomAdjPendingTargets_BindAndUnbindService() {
+        final String reason = "testBindAndUnbindService";
+        final ProcessRecord client = createPersistentProcess("client", 12346);
+        final ProcessRecord host = createLiveProcess("host", 12347);
+        final ServiceRecord s = startService(host);
+        assertTrue(updatePendingTargets(reason, client, host));
+        final int unboundAdj = host.setAdj;
+
+        // Like ActiveServices, the host of the service is the target of the update.
+        final ConnectionRecord cr = bindService(client, s, Context.BIND_AUTO_CREATE);
+        assertTrue(updatePendingTargets(reason, host));
+        assertTrue(host.setAdj < unboundAdj);
+        assertSameAdjAsFullUpdate(client, host);
+
+        unbindService(cr);
+        assertTrue(updatePendingTargets(reason, host));
+        assertEquals(unboundAdj, host.setAdj);
+        assertSameAdjAsFullUpdate(client, host);
+        assertTrue(getUpdateStats(reason).contains("periodic=0 fallback=0"));
+    }
+
+    @Test
+    public void testUpdateOomAdjPendingTargets_RemoveProvider() {
+        final String reason = "testRemoveProvider";
+        final ProcessRecord client = createPersistentProcess("client", 12346);
+        final ProcessRecord host = createLiveProcess("host", 12347);
+        startService(host);
+        final ContentProviderConnection conn = connectProvider(client, host);
+        assertTrue(updatePendingTargets(reason, client));
+        assertEquals(ProcessList.FOREGROUND_APP_ADJ, host.setAdj);
+        assertSameAdjAsFullUpdate(client, host);
+
+        // Like ActivityManagerService, the host of the provider is the target of the update.
+        client.conProviders.remove(conn);
+        conn.provider.connections.remove(conn);
+        assertTrue(updatePendingTargets(reason, host));
+        assertEquals(ProcessList.SERVICE_ADJ, host.setAdj);
+        assertSameAdjAsFullUpdate(client, host);
+        assertTrue(getUpdateStats(reason).contains("periodic=0 fallback=0"));
+    }
+
+    private ProcessRecord createLiveProcess(String name, int uid) {
+        final ProcessRecord app = new ProcessRecord(sService, sContext.getApplicationInfo(),
+                name, uid);
+        app.thread = mock(IApplicationThread.class);
+        return app;
+    }
+
+    private ProcessRecord createPersistentProcess(String name, int uid) {
+        final ProcessRecord app = createLiveProcess(name, uid);
+        app.maxAdj = ProcessList.PERSISTENT_PROC_ADJ;
+        return app;
+    }
+
+    private ContentProviderConnection connectProvider(ProcessRecord client, ProcessRecord host) {
+        final ContentProviderRecord provider = new ContentProviderRecord(sService,
+                new ProviderInfo(), sContext.getApplicationInfo(),
+                new ComponentName(host.processName, client.processName + "Provider"), false);
+        provider.proc = host;
+        host.pubProviders.put(provider.name.getClassName(), provider);
+        final ContentProviderConnection conn = new ContentProviderConnection(provider, client,
+                client.processName);
+        provider.connections.add(conn);
+        client.conProviders.add(conn);
+        return conn;
+    }
+
+    private ServiceRecord startService(ProcessRecord host) {
+        final ServiceInfo info = new ServiceInfo();
+        info.applicationInfo = host.info;
+        info.packageName = host.info.packageName;
+        info.processName = host.processName;
+        info.name = "Service";
+        final ComponentName name = new ComponentName(info.packageName, info.name);
+        final ServiceRecord s = new ServiceRecord(sService, null, name, name, info.packageName,
+                host.uid, new Intent.FilterComparison(new Intent()), info, false, null);
+        s.app = host;
+        s.startRequested = true;
+        host.services.add(s);
+        return s;
+    }
+
+    private ConnectionRecord bindService(ProcessRecord client, ServiceRecord s, int flags) {
+        final IServiceConnection conn = mock(IServiceConnection.class);
+        when(conn.asBinder()).thenReturn(new Binder());
+        final AppBindRecord binding = new AppBindRecord(s, new IntentBindRecord(s, s.intent),
+                client);
+        final ConnectionRecord cr = new ConnectionRecord(binding, null, conn, flags, 0, null,
+                client.uid, client.processName, client.info.packageName);
+        s.addConnection(conn.asBinder(), cr);
+        client.connections.add(cr);
+        return cr;
+    }
+
+    private void unbindService(ConnectionRecord cr) {
+        cr.binding.service.removeConnection(cr.conn.asBinder());
+        cr.binding.client.connections.remove(cr);
+    }
+
+    private boolean updatePendingTargets(String reason, ProcessRecord... apps) {
+        for (ProcessRecord app : apps) {
+            sService.mOomAdjuster.enqueueOomAdjTargetLocked(app);
+        }
+        return sService.mOomAdjuster.updateOomAdjPendingTargetsPartialLocked(reason,
+                SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Recomputes {@code apps} from scratch, as the first pass of a full update does, and checks
+     * that each gets the adj the partial update applied.
+     */
+    private void assertSameAdjAsFullUpdate(ProcessRecord... apps) {
+        final OomAdjuster oomAdjuster = sService.mOomAdjuster;
+        final int[] appliedAdj = new int[apps.length];
+        for (int i = 0; i < apps.length; i++) {
+            appliedAdj[i] = apps[i].setAdj;
+            apps[i].containsCycle = false;
+            apps[i].setCurRawProcState(ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+            apps[i].setCurRawAdj(ProcessList.UNKNOWN_ADJ);
+        }
+        oomAdjuster.mAdjSeq++;
+        final long now = SystemClock.uptimeMillis();
+        for (int i = apps.length - 1; i >= 0; i--) {
+            oomAdjuster.computeOomAdjLocked(apps[i], ProcessList.UNKNOWN_ADJ, null, true, now,
+                    false);
+        }
+        for (int i = 0; i < apps.length; i++) {
+            assertEquals(apps[i].processName, apps[i].curAdj, appliedAdj[i]);
+        }
+    }
+
+    private static String getUpdateStats(String reason) {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        sService.mOomAdjuster.dumpUpdateStatsLocked(pw);
+        pw.flush();
+        final String[] lines = sw.toString().split("\n");
+        for (int i = 0; i + 2 < lines.length; i++) {
+            if (lines[i].trim().equals(reason + ":")) {
+                return lines[i + 1].trim() + " " + lines[i + 2].trim();
+            }
+        }
+        return "";
+    }
+
+    private ArrayList<ProcessRecord> collectReachable(ProcessRecord app) {
+        final ArraySet<ProcessRecord> seeds = new ArraySet<>();
+        seeds.add(app);
+        final ArrayList<ProcessRecord> out = new ArrayList<>();
+        sService.mOomAdjuster.collectReachableProcessesLocked(seeds, out);
+        return out;
+    }
+
     private void assertProcessRecordState(long fgInteractionTime, boolean reportedInteraction,
             long interactionEventTime) {
         assertEquals("Foreground interaction time was not updated correctly.",
@@ -0,0 +1,130 @@
+package com.android.server.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link LensLaunchBarrier}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensLaunchBarrierTest {
+    private final Object mLock = new Object();
+    private CapturingHandler mHandler;
+    private int mCompletions;
+    private LensLaunchBarrier mBarrier;
+
+    @Before
+    public void setUp() {
+        mHandler = new CapturingHandler();
+        mCompletions = 0;
+        mBarrier = new LensLaunchBarrier(mLock, mHandler, 1000, () -> mCompletions++);
+    }
+
+    @Test
+    public void testOpenUntilLaunch() {
+        assertTrue(mBarrier.isOpenLocked());
+        mBarrier.expectLocked(2);
+        assertFalse(mBarrier.isOpenLocked());
+    }
+
+    @Test
+    public void testCompletesWhenAllAppsReady() {
+        mBarrier.expectLocked(2);
+        mBarrier.expectLocked(2);
+        mBarrier.readyLocked(100, 10100);
+        // The same process reporting again does not count twice.
+        mBarrier.readyLocked(100, 10100);
+        assertFalse(mBarrier.isOpenLocked());
+        assertEquals(0, mCompletions);
+
+        mBarrier.readyLocked(200, 10200);
+        assertTrue(mBarrier.isOpenLocked());
+        assertEquals(1, mCompletions);
+
+        // Late reports are ignored.
+        mBarrier.readyLocked(300, 10300);
+        assertEquals(1, mCompletions);
+    }
+
+    @Test
+    public void testCompletesOnDeadline() {
+        mBarrier.expectLocked(2);
+        assertNotNull(mHandler.mTimeout);
+        assertTrue(mHandler.mDelayMillis > 900 && mHandler.mDelayMillis <= 1000);
+
+        mBarrier.readyLocked(100, 10100);
+        mHandler.mTimeout.run();
+        assertTrue(mBarrier.isOpenLocked());
+        assertEquals(1, mCompletions);
+
+        // Nor does the last app complete it a second time.
+        mBarrier.readyLocked(200, 10200);
+        assertEquals(1, mCompletions);
+    }
+
+    @Test
+    public void testResetCancelsLaunch() {
+        mBarrier.expectLocked(2);
+        mBarrier.readyLocked(100, 10100);
+        mBarrier.resetLocked();
+        assertTrue(mBarrier.isOpenLocked());
+        assertEquals(0, mCompletions);
+
+        // Reports after the lens was torn down do not start a launch.
+        mBarrier.readyLocked(200, 10200);
+        assertTrue(mBarrier.isOpenLocked());
+        assertEquals(0, mCompletions);
+    }
+
+    @Test
+    public void testLaunchAfterResetStartsItsOwnDeadline() throws Exception {
+        mBarrier.expectLocked(1);
+        final Runnable timeout = mHandler.mTimeout;
+        mBarrier.resetLocked();
+        Thread.sleep(200);
+
+        mBarrier.expectLocked(1);
+        assertTrue(mHandler.mDelayMillis > 900 && mHandler.mDelayMillis <= 1000);
+        // The deadline of the cancelled launch must not complete the new one early.
+        timeout.run();
+        assertFalse(mBarrier.isOpenLocked());
+        assertEquals(0, mCompletions);
+
+        // Its own app completes it.
+        mBarrier.readyLocked(100, 10100);
+        assertTrue(mBarrier.isOpenLocked());
+        assertEquals(1, mCompletions);
+    }
+
+    /** Keeps the last posted runnable instead of queueing it. */
+    private static final class CapturingHandler extends Handler {
+        Runnable mTimeout;
+        long mDelayMillis;
+
+        CapturingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            mTimeout = msg.getCallback();
+            mDelayMillis = uptimeMillis - SystemClock.uptimeMillis();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.android.server.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests for {@link LensPreloadPredictor}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensPreloadPredictorTest {
+    private static final long HALF_LIFE = LensPreloadPredictor.HALF_LIFE_MILLIS;
+
+    private LensPreloadPredictor mPredictor;
+
+    @Before
+    public void setUp() {
+        mPredictor = new LensPreloadPredictor();
+    }
+
+    @Test
+    public void testNoPredictionBeforeFirstLens() {
+        assertNull(mPredictor.predictTargetLocked(0));
+        assertEquals(0, mPredictor.predictAppCountLocked());
+    }
+
+    @Test
+    public void testPredictsMostUsedTarget() {
+        mPredictor.noteLaunchLocked("com.example.a", 0);
+        mPredictor.noteLaunchLocked("com.example.b", 1);
+        mPredictor.noteLaunchLocked("com.example.b", 2);
+        assertEquals("com.example.b", mPredictor.predictTargetLocked(3));
+    }
+
+    @Test
+    public void testOldUsageDecays() {
+        mPredictor.noteLaunchLocked("com.example.a", 0);
+        mPredictor.noteLaunchLocked("com.example.a", 1);
+        mPredictor.noteLaunchLocked("com.example.a", 2);
+        // Three lenses two half-lives ago count less than one lens now.
+        mPredictor.noteLaunchLocked("com.example.b", 2 * HALF_LIFE + 2);
+        assertEquals("com.example.b", mPredictor.predictTargetLocked(2 * HALF_LIFE + 3));
+    }
+
+    @Test
+    public void testForgetsLowestScoreWhenFull() {
+        for (int i = 0; i < LensPreloadPredictor.MAX_TARGETS; i++) {
+            mPredictor.noteLaunchLocked("com.example.t" + i, 0);
+            if (i != 0) {
+                mPredictor.noteLaunchLocked("com.example.t" + i, 0);
+            }
+        }
+        mPredictor.noteLaunchLocked("com.example.new", 0);
+
+        StringWriter out = new StringWriter();
+        mPredictor.dumpLocked(new PrintWriter(out), "", 0);
+        assertEquals(-1, out.toString().indexOf("com.example.t0:"));
+    }
+
+    @Test
+    public void testPredictsLastAppCount() {
+        mPredictor.noteAppCountLocked(3);
+        mPredictor.noteAppCountLocked(2);
+        assertEquals(2, mPredictor.predictAppCountLocked());
+    }
+}
@@ -0,0 +1,131 @@
+package com.android.server.display;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link LensSnapshotPersister}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LensSnapshotPersisterTest {
+    private static final String TARGET = "com.example.lens";
+    private static final int USER_ID = 0;
+    private static final int OTHER_USER_ID = 10;
+
+    private File mDirectory;
+    private LensSnapshotPersister mPersister;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getContext().getFilesDir(),
+                "lens_snapshots");
+        mPersister = new LensSnapshotPersister(
+                userId -> new File(mDirectory, Integer.toString(userId)));
+        mPersister.start();
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDirectory);
+    }
+
+    @Test
+    public void testWritesOneFilePerSlot() {
+        mPersister.persistSnapshot(USER_ID, TARGET, 0, createFrame(40, 20));
+        mPersister.persistSnapshot(USER_ID, TARGET, 1, createFrame(40, 20));
+        mPersister.waitForQueueEmpty();
+        assertTrue(mPersister.getBitmapFile(USER_ID, TARGET, 0).exists());
+        assertTrue(mPersister.getBitmapFile(USER_ID, TARGET, 1).exists());
+    }
+
+    @Test
+    public void testFramesArePerUser() throws Exception {
+        mPersister.persistSnapshot(USER_ID, TARGET, 0, createFrame(40, 20));
+        mPersister.waitForQueueEmpty();
+        assertFalse(mPersister.getBitmapFile(OTHER_USER_ID, TARGET, 0).exists());
+        assertEquals(0, loadSnapshots(OTHER_USER_ID).length);
+        assertEquals(1, loadSnapshots(USER_ID).length);
+    }
+
+    @Test
+    public void testRemoveDeletesFrames() throws Exception {
+        mPersister.persistSnapshot(USER_ID, TARGET, 0, createFrame(40, 20));
+        mPersister.persistSnapshot(OTHER_USER_ID, TARGET, 0, createFrame(40, 20));
+        mPersister.waitForQueueEmpty();
+        assertEquals(1, loadSnapshots(USER_ID).length);
+
+        mPersister.removeSnapshots(USER_ID, TARGET);
+        mPersister.waitForQueueEmpty();
+        assertFalse(mPersister.getBitmapFile(USER_ID, TARGET, 0).getParentFile().exists());
+        assertEquals(0, loadSnapshots(USER_ID).length);
+        assertTrue(mPersister.getBitmapFile(OTHER_USER_ID, TARGET, 0).exists());
+    }
+
+    @Test
+    public void testTrimDeletesHigherSlots() {
+        mPersister.persistSnapshot(USER_ID, TARGET, 0, createFrame(40, 20));
+        mPersister.persistSnapshot(USER_ID, TARGET, 1, createFrame(40, 20));
+        mPersister.trimSnapshots(USER_ID, TARGET, 1);
+        mPersister.waitForQueueEmpty();
+        assertTrue(mPersister.getBitmapFile(USER_ID, TARGET, 0).exists());
+        assertFalse(mPersister.getBitmapFile(USER_ID, TARGET, 1).exists());
+    }
+
+    @Test
+    public void testLoadsFramesInSlotOrder() throws Exception {
+        mPersister.persistSnapshot(USER_ID, TARGET, 0, createFrame(40, 20));
+        mPersister.persistSnapshot(USER_ID, TARGET, 1, createFrame(60, 30));
+
+        final Bitmap[] loaded = loadSnapshots(USER_ID);
+        assertEquals(2, loaded.length);
+        assertEquals(40, loaded[0].getWidth());
+        assertEquals(60, loaded[1].getWidth());
+    }
+
+    @Test
+    public void testSharedUserNameIsAPlainDirectory() {
+        File file = mPersister.getBitmapFile(USER_ID, "android.uid.system:1000", 0);
+        assertEquals(new File(new File(mDirectory, Integer.toString(USER_ID)), "lens_snapshots"),
+                file.getParentFile().getParentFile());
+        assertEquals("android.uid.system_1000", file.getParentFile().getName());
+    }
+
+    private Bitmap[] loadSnapshots(int userId) throws InterruptedException {
+        final Bitmap[][] loaded = new Bitmap[1][];
+        final CountDownLatch latch = new CountDownLatch(1);
+        mPersister.loadSnapshots(userId, TARGET, mHandler, (target, frames) -> {
+            loaded[0] = frames;
+            latch.countDown();
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return loaded[0];
+    }
+
+    private static Bitmap createFrame(int width, int height) {
+        Bitmap frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        frame.eraseColor(0xff336699);
+        return frame;
+    }
+}
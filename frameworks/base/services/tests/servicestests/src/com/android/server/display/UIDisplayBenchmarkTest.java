@@ -0,0 +1,35 @@
+package com.android.server.display;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link UIDisplayBenchmark}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class UIDisplayBenchmarkTest {
+    @Test
+    public void testPercentileIsNearestRank() {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+        assertEquals(50, UIDisplayBenchmark.percentile(sorted, 50));
+        assertEquals(90, UIDisplayBenchmark.percentile(sorted, 90));
+        assertEquals(99, UIDisplayBenchmark.percentile(sorted, 99));
+        assertEquals(100, UIDisplayBenchmark.percentile(sorted, 100));
+    }
+
+    @Test
+    public void testPercentileOfSingleSample() {
+        long[] sorted = new long[] {7};
+        assertEquals(7, UIDisplayBenchmark.percentile(sorted, 50));
+        assertEquals(7, UIDisplayBenchmark.percentile(sorted, 99));
+    }
+}
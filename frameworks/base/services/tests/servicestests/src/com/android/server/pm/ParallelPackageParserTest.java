@@ -30,6 +30,7 @@ import org.junit.runner.RunWith;
 import java.io.File;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for {@link ParallelPackageParser}
@@ -38,7 +39,7 @@ import java.util.Set;
 public class ParallelPackageParserTest {
     private static final String TAG = ParallelPackageParserTest.class.getSimpleName();
 
-    private ParallelPackageParser mParser;
+    private TestParallelPackageParser mParser;
 
     @Before
     public void setUp() {
@@ -67,7 +68,52 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 1000)
+    public void testTakeBatch() {
+        int batchCount = 3;
+        int filesPerBatch = 5;
+        for (int batch = 0; batch < batchCount; batch++) {
+            for (int i = 0; i < filesPerBatch; i++) {
+                mParser.submit(new File("b" + batch + "f" + i), 0, batch);
+            }
+        }
+        // Results of later batches parsed early are kept until their batch is taken.
+        for (int batch = 0; batch < batchCount; batch++) {
+            Set<File> batchFiles = new HashSet<>();
+            for (int i = 0; i < filesPerBatch; i++) {
+                ParallelPackageParser.ParseResult result = mParser.take(batch);
+                Assert.assertEquals(batch, result.batch);
+                Assert.assertTrue(result.scanFile.getName().startsWith("b" + batch));
+                batchFiles.add(result.scanFile);
+            }
+            Assert.assertEquals(filesPerBatch, batchFiles.size());
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void testParsingIsBounded() throws Exception {
+        int batchCount = 3;
+        int filesPerBatch = 15;
+        for (int batch = 0; batch < batchCount; batch++) {
+            for (int i = 0; i < filesPerBatch; i++) {
+                mParser.submit(new File("b" + batch + "f" + i), 0, batch);
+            }
+        }
+        // Give the parsing threads time to run as far ahead as they can.
+        Thread.sleep(100);
+        Assert.assertTrue("Parsed " + mParser.mParseCount.get() + " packages ahead",
+                mParser.mParseCount.get() <= 10);
+        // Results of later batches parsed while a batch is taken do not stall that batch.
+        for (int batch = 0; batch < batchCount; batch++) {
+            for (int i = 0; i < filesPerBatch; i++) {
+                Assert.assertEquals(batch, mParser.take(batch).batch);
+            }
+        }
+        Assert.assertEquals(batchCount * filesPerBatch, mParser.mParseCount.get());
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
+        final AtomicInteger mParseCount = new AtomicInteger();
 
         TestParallelPackageParser() {
             super(null, false, null, null, null);
@@ -77,6 +123,7 @@ public class ParallelPackageParserTest {
         protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
                 int parseFlags) throws PackageParser.PackageParserException {
             // Do not actually parse the package for testing
+            mParseCount.incrementAndGet();
             return null;
         }
     }